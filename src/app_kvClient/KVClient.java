@@ -250,6 +250,9 @@ public class KVClient {
       case SERVER_STOPPED:
         info = "Server is stopped and cannot process requests";
         break;
+      case SERVER_BUSY:
+        info = "Server is busy, try again later";
+        break;
       case SERVER_WRITE_LOCK:
         info = "Server is write-locked and cannot process process write requests";
         break;
@@ -278,6 +281,9 @@ public class KVClient {
       case SERVER_STOPPED:
         info = "Server is stopped and cannot process requests";
         break;
+      case SERVER_BUSY:
+        info = "Server is busy, try again later";
+        break;
       default:
         info = "Error: Unexpected response type";
         break;
@@ -300,6 +306,9 @@ public class KVClient {
       case SERVER_STOPPED:
         info = "Server is stopped and cannot process requests";
         break;
+      case SERVER_BUSY:
+        info = "Server is busy, try again later";
+        break;
       default:
         info = "Error: Unexpected response type";
         break;
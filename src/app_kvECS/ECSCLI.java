@@ -1,6 +1,8 @@
 package app_kvECS;
 
 import app_kvServer.data.cache.CacheStrategy;
+import app_kvServer.data.storage.StorageEngineConfig;
+import app_kvServer.data.storage.StorageStrategy;
 import ecs.ECSMetadata;
 import ecs.ECSNode;
 import ecs.ECSUtils;
@@ -22,6 +24,7 @@ public class ECSCLI {
   // cache strategy
   // cache size
   // encrypted storage
+  // storage engine
   public static void main(String[] args) {
     try {
       new LogSetup("logs/ecs.log", Level.INFO, false);
@@ -31,12 +34,12 @@ public class ECSCLI {
       return;
     }
 
-    if (args.length < 4 || 7 < args.length) {
+    if (args.length < 4 || 8 < args.length) {
       System.out.println("Incorrect arguments for ECS. \n\n");
       System.out.println("To initialize the ECS service please input the following: \n");
       System.out.println(
           "<config file name> <number of nodes> <zookeeper ip> <zookeeper port> <cache strategy>"
-              + " <cache size> <encrypted storage>\n");
+              + " <cache size> <encrypted storage> [<storage engine>]\n");
       System.out.println(
           "Using cache is optional. In case you don't want any cache then issue: \n");
       System.out.println(
@@ -109,15 +112,33 @@ public class ECSCLI {
         System.out.println("<max-cache-size> must be an integer. given: " + args[5] + ".");
         return;
       }
-      if (args.length == 6) {
-        ecsClient =
-            new ECSClient(availableNodes, m, zkAddress, zkPort, cacheStrategy, cacheSize, false);
-      } else {
-        boolean encrypted = Boolean.parseBoolean(args[4]);
-        ecsClient =
-            new ECSClient(
-                availableNodes, m, zkAddress, zkPort, cacheStrategy, cacheSize, encrypted);
+      boolean encrypted = args.length >= 7 && Boolean.parseBoolean(args[6]);
+
+      StorageEngineConfig storageEngineConfig =
+          new StorageEngineConfig(StorageStrategy.LOG_STRUCTURED);
+      if (args.length == 8) {
+        try {
+          storageEngineConfig = StorageEngineConfig.parse(args[7]);
+        } catch (IllegalArgumentException e) {
+          System.out.println(
+              "<storage engine> must be one of \"FLAT_FILE\", \"LOG_STRUCTURED\" and \"LSM\","
+                  + " optionally followed by :parameter=value,... Given: \""
+                  + args[7]
+                  + "\". "
+                  + e.getMessage());
+          return;
+        }
       }
+      ecsClient =
+          new ECSClient(
+              availableNodes,
+              m,
+              zkAddress,
+              zkPort,
+              cacheStrategy,
+              cacheSize,
+              encrypted,
+              storageEngineConfig);
     }
     new Thread(ecsClient).start();
     new ECSCLI().run();
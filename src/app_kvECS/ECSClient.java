@@ -3,6 +3,8 @@ package app_kvECS;
 import static ecs.ECSUtils.sendECSMessageToNode;
 
 import app_kvServer.data.cache.CacheStrategy;
+import app_kvServer.data.storage.StorageEngineConfig;
+import app_kvServer.data.storage.StorageStrategy;
 import com.google.common.collect.Sets;
 import ecs.ECSMetadata;
 import ecs.ECSNode;
@@ -31,6 +33,7 @@ public class ECSClient implements Runnable {
   private final String SERVER_SSH_COMMAND;
   private final CacheStrategy cacheStrategy;
   private final int cacheSize;
+  private final StorageEngineConfig storageEngineConfig;
   public ArrayList<ECSNode> availableNodes;
   public Hashtable<String, ECSNode> allNodes;
   private ZKManager zkManager;
@@ -47,7 +50,8 @@ public class ECSClient implements Runnable {
       int zkPort,
       CacheStrategy cacheStrategy,
       int cacheSize,
-      boolean encrypted) {
+      boolean encrypted,
+      StorageEngineConfig storageEngineConfig) {
     CLIECSUtils.printMessage("Initializing Nodes...");
     logger.info("Starting ECS");
     this.availableNodes = availableNodes;
@@ -68,9 +72,9 @@ public class ECSClient implements Runnable {
             .append(zkPort)
             .append(" ")
             .append(encrypted)
-            .append(" %s")
-            .append(" &> /dev/null &")
+            .append(" %s %s &> /dev/null &")
             .toString();
+    this.storageEngineConfig = storageEngineConfig;
     this.allNodes = createAllNodesLookup(availableNodes);
     initializePrivateKey();
     ECSPropertyStore.getInstance().setSenderID("ecs");
@@ -98,8 +102,9 @@ public class ECSClient implements Runnable {
             .append(zkPort)
             .append(" ")
             .append(encrypted)
-            .append(" %s &> /dev/null &")
+            .append(" %s %s &> /dev/null &")
             .toString();
+    this.storageEngineConfig = new StorageEngineConfig(StorageStrategy.LOG_STRUCTURED);
     this.allNodes = createAllNodesLookup(availableNodes);
     initializePrivateKey();
     ECSPropertyStore.getInstance().setSenderID("ecs");
@@ -132,10 +137,14 @@ public class ECSClient implements Runnable {
     CLIECSUtils.printMessage("Initialization complete");
   }
 
-  private void startServerProcess(ECSNode node) {
+  private void startServerProcess(ECSNode node, StorageEngineConfig engineConfig) {
     String command =
         String.format(
-            SERVER_SSH_COMMAND, node.getNodeHost(), node.getNodePort(), node.getNodeName());
+            SERVER_SSH_COMMAND,
+            node.getNodeHost(),
+            node.getNodePort(),
+            node.getNodeName(),
+            engineConfig);
     try {
       logger.info("Starting server process with command: " + command);
       Runtime.getRuntime().exec(command);
@@ -292,11 +301,15 @@ public class ECSClient implements Runnable {
   }
 
   public ECSNode addSpecificNode(ECSNode nodeToAdd) {
+    return addSpecificNode(nodeToAdd, storageEngineConfig);
+  }
+
+  private ECSNode addSpecificNode(ECSNode nodeToAdd, StorageEngineConfig engineConfig) {
     ECSNode[] affectedNodes = ECSMetadata.getInstance().placeNewNodeOnTheRing(nodeToAdd);
 
     // Let zookeeper know that there might be an event from this server
     expectedZookeeperNodeEvent.add(nodeToAdd.getNodeName());
-    startServerProcess(nodeToAdd);
+    startServerProcess(nodeToAdd, engineConfig);
 
     if (awaitNodes(1, 30)) {
       CLIECSUtils.printMessage(
@@ -311,19 +324,13 @@ public class ECSClient implements Runnable {
       return null;
     }
 
-    if (affectedNodes.length == 2) {
-      sendECSMessageToNode(
-          affectedNodes[1], new ECSMessage(ECSMessage.ActionType.LOCK_WRITE).calculateAndSetMAC());
-    }
-
+    // the successor keeps taking writes while it moves the range, see
+    // SynchronizedKVManager.handOffRange
     if (affectedNodes.length == 2) {
       ECSMessage moveData =
           new ECSMessage(ECSMessage.ActionType.MOVE_DATA, nodeToAdd, nodeToAdd.getNodeHashRange());
 
       sendECSMessageToNode(affectedNodes[1], moveData.calculateAndSetMAC());
-      sendECSMessageToNode(
-          affectedNodes[1],
-          new ECSMessage(ECSMessage.ActionType.UNLOCK_WRITE).calculateAndSetMAC());
     }
 
     return nodeToAdd;
@@ -362,8 +369,6 @@ public class ECSClient implements Runnable {
 
     if (affectedNodes.length == 2) {
       ECSNode affectedNode = affectedNodes[1];
-      sendECSMessageToNode(
-          affectedNode, new ECSMessage(ECSMessage.ActionType.LOCK_WRITE).calculateAndSetMAC());
       ECSMessage moveData =
           new ECSMessage(
                   ECSMessage.ActionType.MOVE_DATA, affectedNode, affectedNode.getNodeHashRange())
@@ -371,12 +376,6 @@ public class ECSClient implements Runnable {
       sendECSMessageToNode(nodeToRemove, moveData.calculateAndSetMAC());
     }
 
-    if (affectedNodes.length == 2) {
-      ECSNode affectedNode = affectedNodes[1];
-      sendECSMessageToNode(
-          affectedNode, new ECSMessage(ECSMessage.ActionType.UNLOCK_WRITE).calculateAndSetMAC());
-    }
-
     expectedZookeeperNodeEvent.add(nodeToRemove.getNodeName());
     sendECSMessageToNode(
         nodeToRemove, new ECSMessage(ECSMessage.ActionType.SHUTDOWN).calculateAndSetMAC());
@@ -412,7 +411,8 @@ public class ECSClient implements Runnable {
         TimeUnit.SECONDS.sleep(5);
 
         logger.info("Reviving crashed node: " + nodeToRevive);
-        addSpecificNode(allNodes.get(nodeToRevive));
+        // the node reopens the data it had before crashing and is only sent what it missed
+        addSpecificNode(allNodes.get(nodeToRevive), storageEngineConfig.withRecovery());
         start(); // Start all nodes, including revived one
         logger.info("Done reviving crashed node: " + nodeToRevive);
       } catch (InterruptedException e) {
@@ -7,13 +7,14 @@ import ecs.ECSMetadata;
 import ecs.ECSNode;
 import java.io.IOException;
 import java.net.BindException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.security.spec.InvalidKeySpecException;
 import java.util.ArrayList;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import logger.LogSetup;
@@ -26,6 +27,7 @@ import shared.communication.messages.KVMessage;
 import shared.communication.messages.Message;
 import shared.communication.messages.MessageException;
 import shared.communication.security.KeyLoader;
+import shared.communication.security.ReplayFilter;
 import shared.communication.security.keys.ClientPublicKey;
 import shared.communication.security.keys.ECSPublicKey;
 import shared.communication.security.property_stores.ServerPropertyStore;
@@ -33,6 +35,7 @@ import shared.communication.security.property_stores.ServerPropertyStore;
 public class KVServer implements Runnable {
 
   private static final Logger logger = Logger.getLogger(KVServer.class);
+  private static final long ECS_REPLAY_WINDOW_MILLIS = 5 * 60 * 1000;
 
   private final int port;
   private final AtomicBoolean isRunning = new AtomicBoolean();
@@ -41,11 +44,18 @@ public class KVServer implements Runnable {
   private volatile ServerSocket serverSocket;
   private final LinkedBlockingQueue<KVMessage> replicationQueue = new LinkedBlockingQueue<>();
   private final String nodeName;
+  private final NetworkConfig networkConfig;
   private ReplicationService replicationService;
-  private final Set<String> ecsIDs = ConcurrentHashMap.newKeySet();
+  // only the start of a transfer is checked against the window, the chunks that follow and resends
+  // of them are checked against the stream they continue
+  private final ReplayFilter ecsIDs = new ReplayFilter(ECS_REPLAY_WINDOW_MILLIS, 10_000, 1e-9);
 
   // Constructor used when running standalone server
   public KVServer(final int port) throws ByzantineException {
+    this(port, new NetworkConfig(NetworkConfig.Mode.BLOCKING));
+  }
+
+  public KVServer(final int port, final NetworkConfig networkConfig) throws ByzantineException {
     try {
       new LogSetup("logs/server_" + port + ".log", Level.INFO, false);
     } catch (IOException e) {
@@ -55,6 +65,7 @@ public class KVServer implements Runnable {
     }
 
     this.port = port;
+    this.networkConfig = networkConfig;
     zkManager = null;
     replicationService = null;
 
@@ -80,6 +91,16 @@ public class KVServer implements Runnable {
   // Constructor used by ECS i.e running a cluster of servers
   public KVServer(final int port, final String zkIP, final int zkPort, final String name)
       throws ByzantineException {
+    this(port, zkIP, zkPort, name, new NetworkConfig(NetworkConfig.Mode.BLOCKING));
+  }
+
+  public KVServer(
+      final int port,
+      final String zkIP,
+      final int zkPort,
+      final String name,
+      final NetworkConfig networkConfig)
+      throws ByzantineException {
     try {
       new LogSetup("logs/server_" + port + ".log", Level.DEBUG, false);
     } catch (IOException e) {
@@ -90,6 +111,7 @@ public class KVServer implements Runnable {
     ServerPropertyStore.getInstance().setSenderID(name);
     this.nodeName = name;
     this.port = port;
+    this.networkConfig = networkConfig;
     this.serverAcceptingClients.set(false);
     ECSMetadata.initialize(new ArrayList<>());
     zkManager = new ZKManager(zkIP, zkPort);
@@ -146,6 +168,7 @@ public class KVServer implements Runnable {
 
       ECSMetadata.getInstance().update(message.getMetadata());
       SynchronizedKVManager.getInstance().clearCache();
+      SynchronizedKVManager.getInstance().releaseHandedOffRanges();
 
       logger.info(ECSMetadata.getInstance().toString());
       if (this.replicationService != null) {
@@ -163,13 +186,47 @@ public class KVServer implements Runnable {
   @Override
   public void run() {
     initializeServerSocket();
+    RequestExecutor executor = new RequestExecutor(networkConfig, port);
+    SelectorServer selectorServer = null;
+    if (isRunning.get() && networkConfig.getMode() == NetworkConfig.Mode.NIO) {
+      try {
+        selectorServer =
+            new SelectorServer(
+                networkConfig, serverAcceptingClients, replicationQueue, ecsIDs, executor);
+      } catch (IOException e) {
+        logger.error("Error opening selectors: ", e);
+        stop();
+      }
+    }
 
     while (isRunning.get()) {
       try {
+        if (selectorServer != null) {
+          final SocketChannel clientChannel = serverSocket.getChannel().accept();
+          if (!executor.admitConnection()) {
+            logger.warn("Refused connection to " + clientChannel + ", too many connections open");
+            clientChannel.close();
+            continue;
+          }
+          try {
+            selectorServer.register(clientChannel);
+          } catch (IOException e) {
+            executor.connectionClosed();
+            clientChannel.close();
+            throw e;
+          }
+          logger.info("New connection to " + clientChannel + " accepted.");
+          continue;
+        }
         final Socket clientSocket = serverSocket.accept();
+        if (!executor.admitConnection()) {
+          logger.warn("Refused connection to " + clientSocket + ", too many connections open");
+          clientSocket.close();
+          continue;
+        }
         new Thread(
                 new KVServerConnection(
-                    clientSocket, serverAcceptingClients, this.replicationQueue, ecsIDs),
+                    clientSocket, serverAcceptingClients, this.replicationQueue, ecsIDs, executor),
                 "Conn Thread: " + clientSocket)
             .start();
         logger.info("New connection to " + clientSocket + " accepted.");
@@ -181,6 +238,10 @@ public class KVServer implements Runnable {
         }
       }
     }
+    if (selectorServer != null) {
+      selectorServer.close();
+    }
+    executor.shutdown();
     logger.info("Server stopped");
   }
 
@@ -207,7 +268,14 @@ public class KVServer implements Runnable {
       throw new AssertionError("Server already initialized");
     }
     try {
-      serverSocket = new ServerSocket(port, 1000);
+      if (networkConfig.getMode() == NetworkConfig.Mode.NIO) {
+        // accepted in blocking mode, the connections are then served without blocking
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1000);
+        serverSocket = serverChannel.socket();
+      } else {
+        serverSocket = new ServerSocket(port, 1000);
+      }
     } catch (BindException e) {
       logger.error("Error opening server socket: Port " + port + " is already bound!", e);
       return;
@@ -218,7 +286,7 @@ public class KVServer implements Runnable {
     String newThreadName = "Server Thread: " + serverSocket;
     logger.info("Renaming current thread to '" + newThreadName + "'");
     Thread.currentThread().setName(newThreadName);
-    logger.info("Server listening on " + serverSocket);
+    logger.info("Server listening on " + serverSocket + ", serving connections " + networkConfig);
     isRunning.set(true);
   }
 }
@@ -3,6 +3,7 @@ package app_kvServer;
 import static shared.communication.messages.DataTransferMessage.DataTransferMessageType.DATA_TRANSFER_FAILURE;
 import static shared.communication.messages.DataTransferMessage.DataTransferMessageType.DATA_TRANSFER_REQUEST;
 import static shared.communication.messages.DataTransferMessage.DataTransferMessageType.DATA_TRANSFER_SUCCESS;
+import static shared.communication.messages.DataTransferMessage.DataTransferMessageType.DIGEST_REQUEST;
 import static shared.communication.messages.KVMessage.StatusType.DELETE_SUCCESS;
 import static shared.communication.messages.KVMessage.StatusType.NOTIFY;
 import static shared.communication.messages.KVMessage.StatusType.PUT;
@@ -13,16 +14,25 @@ import static shared.communication.messages.KVMessage.StatusType.SUBSCRIBE_SUCCE
 import static shared.communication.messages.KVMessage.StatusType.UNSUBSCRIBE;
 import static shared.communication.messages.KVMessage.StatusType.UNSUBSCRIBE_SUCCESS;
 
+import app_kvServer.data.NotificationDispatcher;
 import app_kvServer.data.SynchronizedKVManager;
+import com.google.common.base.Throwables;
+import com.google.common.io.ByteStreams;
 import ecs.ECSMetadata;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.net.InetAddress;
+import java.io.UncheckedIOException;
 import java.net.Socket;
-import java.net.UnknownHostException;
-import java.util.Set;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
@@ -36,10 +46,11 @@ import shared.communication.messages.KVMessage;
 import shared.communication.messages.Message;
 import shared.communication.messages.MetadataUpdateMessage;
 import shared.communication.messages.ReplicationMessage;
+import shared.communication.security.ReplayFilter;
 import shared.communication.security.Verifier;
 import shared.communication.security.encryption.EncryptionException;
 
-public class KVServerConnection implements Runnable {
+public class KVServerConnection implements Runnable, NotificationDispatcher.Subscriber {
   private static final Logger logger = Logger.getLogger(KVServerConnection.class);
   private final AtomicBoolean isRunning = new AtomicBoolean();
   private final Socket clientSocket;
@@ -50,110 +61,272 @@ public class KVServerConnection implements Runnable {
   private final ECSMetadata ecsMetadata;
   private final LinkedBlockingQueue<KVMessage> replicationQueue;
   private final AtomicReference<UUID> clientId = new AtomicReference<>();
-  private final Set<String> seenECSIDs;
+  private final ReplayFilter seenECSIDs;
+  private final RequestExecutor executor;
+  private final RequestPipeline pipeline;
 
+  /** The connection must have been admitted by the executor. */
   public KVServerConnection(
       final Socket clientSocket,
       AtomicBoolean serverAcceptingClients,
       final LinkedBlockingQueue<KVMessage> replicationQueue,
-      final Set<String> seenECSIDs)
+      final ReplayFilter seenECSIDs,
+      final RequestExecutor executor)
       throws IOException {
+    this(
+        clientSocket,
+        new BufferedInputStream(clientSocket.getInputStream()),
+        clientSocket.getOutputStream(),
+        serverAcceptingClients,
+        replicationQueue,
+        seenECSIDs,
+        executor);
+  }
+
+  /**
+   * For connections that are not served by run(), the streams may be null if send is overridden.
+   */
+  protected KVServerConnection(
+      final Socket clientSocket,
+      final InputStream input,
+      final OutputStream output,
+      AtomicBoolean serverAcceptingClients,
+      final LinkedBlockingQueue<KVMessage> replicationQueue,
+      final ReplayFilter seenECSIDs,
+      final RequestExecutor executor) {
     this.clientSocket = clientSocket;
-    this.input = clientSocket.getInputStream();
-    this.output = clientSocket.getOutputStream();
+    this.input = input;
+    this.output = output;
     this.serverAcceptingClients = serverAcceptingClients;
     this.ecsMetadata = ECSMetadata.getInstance();
     this.kvManager = SynchronizedKVManager.getInstance();
     this.replicationQueue = replicationQueue;
     this.seenECSIDs = seenECSIDs;
+    this.executor = executor;
+    this.pipeline = new RequestPipeline(executor.getPipelinedRequests());
+    isRunning.set(true);
   }
 
   @Override
   public void run() {
-    isRunning.set(true);
     while (isRunning.get()) {
       try {
         final Message request = Protocol.receiveMessage(input);
         logger.info("received request: " + request);
-        Message response;
-        if (request.getClass() == ClientIdentificationMessage.class) {
-          assert (getClientId() == null);
-          clientId.set(((ClientIdentificationMessage) request).getClientId());
-          kvManager.addConnection(this);
-          logger.info("ClientId set: " + getClientId());
-          response = null;
-        } else if (request.getClass() == KVMessage.class) {
-          KVMessage kvRequest = (KVMessage) request;
-          assert (kvRequest.getClientId().equals(getClientId()));
-          if (verifyKVMessageFromClient(kvRequest)) {
-            response = handleClientRequest(kvRequest);
-          } else {
-            response =
-                new KVMessage(
-                    kvRequest.getKey(),
-                    null,
-                    kvRequest.getClientId(),
-                    KVMessage.StatusType.AUTH_FAILED,
-                    kvRequest.getRequestId());
-          }
-        } else if (request.getClass() == ReplicationMessage.class) {
-          KVMessage kvRequest = ((ReplicationMessage) request).getMessage();
-          if (verifyKVMessageFromClient(kvRequest)) {
-            response = kvManager.handleServerRequest(kvRequest);
-          } else {
-            response =
-                new KVMessage(
-                    kvRequest.getKey(),
-                    null,
-                    kvRequest.getClientId(),
-                    KVMessage.StatusType.AUTH_FAILED,
-                    kvRequest.getRequestId());
-          }
-        } else if (request.getClass() == MetadataUpdateMessage.class) {
-          response =
-              new MetadataUpdateMessage(
-                  ecsMetadata, ((MetadataUpdateMessage) request).getRequestId());
-        } else if (request.getClass() == ECSMessage.class) {
-          ECSMessage ecsRequest = (ECSMessage) request;
-          if (verifyECSMessageFromServer(ecsRequest)) {
-            ECSMessage ecsResponse = handleECSMessage((ECSMessage) request);
-            if (ecsResponse.getStatus() == ECSMessage.ActionStatus.ACTION_SUCCESS)
-              seenECSIDs.add(ecsRequest.getMAC());
-            response = ecsResponse;
-          } else {
-            response =
-                new ECSMessage(
-                    ECSMessage.ActionStatus.ACTION_FAILED, "Invalid origin or corrupted data");
-          }
-        } else if (request.getClass() == DataTransferMessage.class) {
-          DataTransferMessage DTRequest = (DataTransferMessage) request;
-          ECSMessage ecsRequest = DTRequest.getECSMessage();
-          if (verifyECSMessageFromServer(ecsRequest)) {
-            DataTransferMessage dataTransferMessage =
-                handleDataTransferMessage((DataTransferMessage) request);
-            if (dataTransferMessage.getDataTransferMessageType() == DATA_TRANSFER_SUCCESS)
-              seenECSIDs.add(ecsRequest.getMAC());
-            response = dataTransferMessage;
-          } else {
-            response =
-                new DataTransferMessage(
-                    DATA_TRANSFER_FAILURE,
-                    "Invalid origin or corrupted data" + DTRequest.getDataTransferMessageType(),
-                    DTRequest.getECSMessage());
-          }
+        if (RequestExecutor.trafficOf(request) == RequestExecutor.Traffic.CLIENT) {
+          // read ahead while the client requests before it run
+          dispatch(new RequestPipeline.Request(request, null));
+          pipeline.awaitOutstandingBelow(executor.getPipelinedRequests());
         } else {
-          logger.error("Unknown request type: " + request.getClass());
-          continue;
+          // may be followed by raw records, which are read before the next request
+          pipeline.awaitOutstandingBelow(1);
+          send(execute(request));
         }
-        send(response);
       } catch (IOException | ProtocolException e) {
         logger.error("Unexpected error, dropping connection to " + clientSocket, e);
         stop();
         return;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        logger.error("Interrupted, dropping connection to " + clientSocket, e);
+        stop();
+        return;
+      }
+    }
+  }
+
+  /** Handle a request read from the connection once the requests it has to wait for completed. */
+  protected void dispatch(final RequestPipeline.Request request) {
+    start(pipeline.add(request));
+  }
+
+  /** @return how many dispatched requests have not been answered yet. */
+  protected int outstandingRequests() {
+    return pipeline.outstanding();
+  }
+
+  /** Called when dispatched requests were answered, from whichever thread answered them. */
+  protected void requestsDone() {}
+
+  private void start(final List<RequestPipeline.Request> ready) {
+    ArrayDeque<RequestPipeline.Request> work = new ArrayDeque<>(ready);
+    while (!work.isEmpty()) {
+      RequestPipeline.Request request = work.poll();
+      RequestExecutor.Traffic traffic = RequestExecutor.trafficOf(request.message);
+      if (!isRunning.get()) {
+        // never answered, but done so that the connection's reader stops waiting
+        pipeline.removeWaiting(request);
+      } else if (executor.execute(traffic, () -> start(handle(request)))) {
+        continue;
+      } else if (traffic != RequestExecutor.Traffic.CLIENT) {
+        logger.debug("Workers were shut down, dropping connection to " + clientSocket);
+        stop();
+      } else {
+        refuse(request);
+      }
+      work.addAll(pipeline.done(request));
+      requestsDone();
+    }
+  }
+
+  /** Answer SERVER_BUSY to the request and to the requests of its key waiting behind it. */
+  private void refuse(final RequestPipeline.Request request) {
+    List<RequestPipeline.Request> refused = new ArrayList<>();
+    refused.add(request);
+    refused.addAll(pipeline.removeWaiting(request));
+    try {
+      for (RequestPipeline.Request busy : refused) {
+        sendWithoutWaiting(busyReply(busy.message));
       }
+    } catch (IOException e) {
+      logger.error("Unexpected error, dropping connection to " + clientSocket, e);
+      stop();
     }
   }
 
+  /** @return the requests that may start now that request was answered. */
+  private List<RequestPipeline.Request> handle(final RequestPipeline.Request request) {
+    try {
+      if (isRunning.get()) {
+        InputStream rawRecords =
+            request.rawRecords != null ? request.rawRecords : new ByteArrayInputStream(new byte[0]);
+        send(handleRequest(request.message, rawRecords));
+      }
+    } catch (IOException e) {
+      logger.error("Unexpected error, dropping connection to " + clientSocket, e);
+      stop();
+    } catch (RuntimeException e) {
+      logger.error("Error handling request, dropping connection to " + clientSocket, e);
+      stop();
+    }
+    List<RequestPipeline.Request> ready = pipeline.done(request);
+    requestsDone();
+    return ready;
+  }
+
+  /** Handle the request on the executor's pool for its traffic and wait for it to finish. */
+  private Message execute(final Message request) throws IOException {
+    RequestExecutor.Traffic traffic = RequestExecutor.trafficOf(request);
+    if (traffic == RequestExecutor.Traffic.CONTROL) {
+      // this connection has a thread of its own already, control requests need no other
+      return handleRequest(request, input);
+    }
+    FutureTask<Message> task = new FutureTask<>(() -> handleRequest(request, input));
+    if (!executor.execute(traffic, task)) {
+      return busyReply(request);
+    }
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted handling " + request);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class);
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /** @return the answer to a client request the executor turned away. */
+  protected KVMessage busyReply(final Message request) {
+    KVMessage kvRequest = (KVMessage) request;
+    return new KVMessage(
+            kvRequest.getKey(),
+            null,
+            kvRequest.getClientId(),
+            KVMessage.StatusType.SERVER_BUSY,
+            kvRequest.getRequestId())
+        .withRetryAfterMillis(executor.getRetryAfterMillis());
+  }
+
+  /**
+   * Handle a request read from the connection.
+   *
+   * @param connectionInput where the raw records of a stream chunk follow the request.
+   * @return the response to send, or null if there is none.
+   */
+  protected Message handleRequest(final Message request, final InputStream connectionInput)
+      throws IOException {
+    Message response;
+    if (request.getClass() == ClientIdentificationMessage.class) {
+      assert (getClientId() == null);
+      clientId.set(((ClientIdentificationMessage) request).getClientId());
+      kvManager.addConnection(this);
+      logger.info("ClientId set: " + getClientId());
+      response = null;
+    } else if (request.getClass() == KVMessage.class) {
+      KVMessage kvRequest = (KVMessage) request;
+      assert (kvRequest.getClientId().equals(getClientId()));
+      if (verifyKVMessageFromClient(kvRequest)) {
+        response = handleClientRequest(kvRequest);
+      } else {
+        response =
+            new KVMessage(
+                kvRequest.getKey(),
+                null,
+                kvRequest.getClientId(),
+                KVMessage.StatusType.AUTH_FAILED,
+                kvRequest.getRequestId());
+      }
+    } else if (request.getClass() == ReplicationMessage.class) {
+      KVMessage kvRequest = ((ReplicationMessage) request).getMessage();
+      if (verifyKVMessageFromClient(kvRequest)) {
+        response = kvManager.handleServerRequest(kvRequest);
+      } else {
+        response =
+            new KVMessage(
+                kvRequest.getKey(),
+                null,
+                kvRequest.getClientId(),
+                KVMessage.StatusType.AUTH_FAILED,
+                kvRequest.getRequestId());
+      }
+    } else if (request.getClass() == MetadataUpdateMessage.class) {
+      response =
+          new MetadataUpdateMessage(ecsMetadata, ((MetadataUpdateMessage) request).getRequestId());
+    } else if (request.getClass() == ECSMessage.class) {
+      ECSMessage ecsRequest = (ECSMessage) request;
+      if (verifyECSMessageFromServer(ecsRequest)) {
+        ECSMessage ecsResponse = handleECSMessage((ECSMessage) request);
+        if (ecsResponse.getStatus() == ECSMessage.ActionStatus.ACTION_SUCCESS)
+          seenECSIDs.add(ecsRequest.getMAC(), ecsRequest.getTimestamp());
+        response = ecsResponse;
+      } else {
+        response =
+            new ECSMessage(
+                ECSMessage.ActionStatus.ACTION_FAILED, "Invalid origin or corrupted data");
+      }
+    } else if (request.getClass() == DataTransferMessage.class) {
+      DataTransferMessage DTRequest = (DataTransferMessage) request;
+      ECSMessage ecsRequest = DTRequest.getECSMessage();
+      // raw records of a stream chunk follow the message on the connection
+      InputStream rawRecords =
+          ByteStreams.limit(connectionInput, Math.max(0, DTRequest.getRawLength()));
+      try {
+        // a stream's later chunks carry the ECSMessage verified with its first
+        if (kvManager.continuesStream(DTRequest) || verifyECSMessageFromServer(ecsRequest)) {
+          DTRequest.setRawRecords(DTRequest.getRawLength() > 0 ? rawRecords : null);
+          DataTransferMessage dataTransferMessage = handleDataTransferMessage(DTRequest);
+          if (dataTransferMessage.getDataTransferMessageType() == DATA_TRANSFER_SUCCESS)
+            seenECSIDs.add(ecsRequest.getMAC(), ecsRequest.getTimestamp());
+          response = dataTransferMessage;
+        } else {
+          response =
+              new DataTransferMessage(
+                  DATA_TRANSFER_FAILURE,
+                  "Invalid origin or corrupted data" + DTRequest.getDataTransferMessageType(),
+                  DTRequest.getECSMessage());
+        }
+      } finally {
+        // skip whatever was not ingested to stay in step with the sender
+        ByteStreams.exhaust(rawRecords);
+      }
+    } else {
+      logger.error("Unknown request type: " + request.getClass());
+      response = null;
+    }
+    return response;
+  }
+
   private boolean verifyKVMessageFromClient(KVMessage message) {
     ECSMetadata metadata = ECSMetadata.getInstance();
     boolean checks =
@@ -172,7 +345,11 @@ public class KVServerConnection implements Runnable {
         logger.info("ECS Message not from the right origin");
         return false;
       }
-      if (seenECSIDs.contains(message.getMAC())) {
+      if (!seenECSIDs.isFresh(message.getTimestamp())) {
+        logger.error("ECS Message too old or from the future, suspected replay attack");
+        return false;
+      }
+      if (seenECSIDs.mightHaveSeen(message.getMAC())) {
         logger.error("ECS Message MAC seen before, suspected replay attack");
         return false;
       }
@@ -191,7 +368,7 @@ public class KVServerConnection implements Runnable {
     return clientId.get();
   }
 
-  private void send(Message msg) throws IOException {
+  protected void send(Message msg) throws IOException {
     if (msg != null) {
       synchronized (output) {
         Protocol.sendMessage(output, msg);
@@ -199,12 +376,40 @@ public class KVServerConnection implements Runnable {
     }
   }
 
-  private DataTransferMessage handleDataTransferMessage(DataTransferMessage request) {
+  /** Send from a thread that must not wait for the other side to read, e.g. an event loop. */
+  protected void sendWithoutWaiting(Message msg) throws IOException {
+    send(msg);
+  }
+
+  /** Wait for the messages given to send to be written out, they are as soon as send returns. */
+  protected void awaitSent() throws IOException {}
+
+  private DataTransferMessage handleDataTransferMessage(DataTransferMessage request)
+      throws IOException {
     logger.info("Received data transfer request with message: " + request.getMessage());
     if (request.getDataTransferMessageType() == DATA_TRANSFER_REQUEST) {
       logger.debug("Data transfer message with payload: " + request.getPayload().toString());
     }
-    DataTransferMessage response = kvManager.handleDataTransfer(request);
+    DataTransferMessage response;
+    if (request.getDataTransferMessageType() == DIGEST_REQUEST) {
+      // large digests are sent in parts ahead of the response
+      try {
+        response =
+            kvManager.handleDigestRequest(
+                request,
+                partialDigest -> {
+                  try {
+                    send(partialDigest);
+                  } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                  }
+                });
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+    } else {
+      response = kvManager.handleDataTransfer(request);
+    }
     logger.info("Completed data transfer request with message: " + response.getMessage());
     return response;
   }
@@ -273,6 +478,7 @@ public class KVServerConnection implements Runnable {
         logger.info("Shutting down KV Server");
         reply = new ECSMessage(ECSMessage.ActionStatus.ACTION_SUCCESS, "SHUTDOWN SUCCESS");
         send(reply);
+        awaitSent();
         System.exit(0);
         break;
       case LOCK_WRITE:
@@ -299,59 +505,23 @@ public class KVServerConnection implements Runnable {
   }
 
   private ECSMessage doDataTransfer(ECSMessage request) {
-    try {
-      InetAddress serverAddress =
-          InetAddress.getByName(request.getDataTransferServer().getNodeHost());
-      int port = request.getDataTransferServer().getNodePort();
-
-      Socket dataTransferSock = new Socket(serverAddress, port);
-      OutputStream outputStream = dataTransferSock.getOutputStream();
-
-      DataTransferMessage dataTransferMessage =
-          kvManager.partitionDatabaseAndGetKeysInRange(request, request.getDataTransferHashRange());
-      if (dataTransferMessage.getDataTransferMessageType() == DATA_TRANSFER_REQUEST) {
-        Protocol.sendMessage(outputStream, dataTransferMessage);
-        logger.info("listening on: " + dataTransferSock);
-        DataTransferMessage reply =
-            (DataTransferMessage) Protocol.receiveMessage(dataTransferSock.getInputStream());
-        logger.info("Got DataTransferMessage reply: " + reply.getMessage());
-
-        if (reply.getDataTransferMessageType() == DATA_TRANSFER_SUCCESS) {
-          return new ECSMessage(
-              ECSMessage.ActionStatus.ACTION_SUCCESS, "MOVE_DATA SUCCESS: " + reply.getMessage());
-        } else if (reply.getDataTransferMessageType() == DATA_TRANSFER_FAILURE) {
-          // Revert database changes
-          logger.info(
-              "Data transfer failed on remote: " + reply.getMessage() + " reverting DB changes");
-          kvManager.handleDataTransfer(dataTransferMessage);
-
-          return new ECSMessage(
-              ECSMessage.ActionStatus.ACTION_FAILED,
-              "MOVE_DATA REMOTE FAILURE: " + reply.getMessage());
-        }
-      } else if (dataTransferMessage.getDataTransferMessageType() == DATA_TRANSFER_FAILURE) {
-        return new ECSMessage(
-            ECSMessage.ActionStatus.ACTION_FAILED,
-            "MOVE_DATA LOCAL FAILURE: " + dataTransferMessage.getMessage());
-      }
-      return new ECSMessage(
-          ECSMessage.ActionStatus.ACTION_FAILED, "Unexpected data transfer message type");
-    } catch (UnknownHostException e) {
+    // writes carry on during the transfer, the range stays in place until the receiver has it all
+    DataTransferMessage reply =
+        kvManager.handOffRange(
+            request, request.getDataTransferHashRange(), request.getDataTransferServer());
+    logger.info("Got DataTransferMessage reply: " + reply.getMessage());
+    if (reply.getDataTransferMessageType() != DATA_TRANSFER_SUCCESS) {
       return new ECSMessage(
-          ECSMessage.ActionStatus.ACTION_FAILED,
-          "MOVE_DATA FAILURE: Bad Server Host " + e.toString());
-    } catch (IOException e) {
-      return new ECSMessage(
-          ECSMessage.ActionStatus.ACTION_FAILED, "MOVE_DATA FAILURE: " + e.toString());
-    } catch (ProtocolException e) {
-      return new ECSMessage(
-          ECSMessage.ActionStatus.ACTION_FAILED,
-          "MOVE_DATA FAILURE: Protocol Exception " + e.toString());
+          ECSMessage.ActionStatus.ACTION_FAILED, "MOVE_DATA FAILURE: " + reply.getMessage());
     }
+    return new ECSMessage(
+        ECSMessage.ActionStatus.ACTION_SUCCESS, "MOVE_DATA SUCCESS: " + reply.getMessage());
   }
 
   public void stop() {
-    isRunning.set(false);
+    if (isRunning.getAndSet(false)) {
+      executor.connectionClosed();
+    }
     if (!clientSocket.isClosed()) {
       try {
         clientSocket.close();
@@ -361,6 +531,7 @@ public class KVServerConnection implements Runnable {
     }
   }
 
+  @Override
   public void notifyClient(KVMessage kvMessage) {
     assert (kvMessage.getStatus() == NOTIFY);
     assert (kvMessage.getClientId().equals(getClientId()));
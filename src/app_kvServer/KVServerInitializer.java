@@ -2,22 +2,51 @@ package app_kvServer;
 
 import app_kvServer.data.SynchronizedKVManager;
 import app_kvServer.data.cache.CacheStrategy;
+import app_kvServer.data.storage.StorageEngineConfig;
+import app_kvServer.data.storage.StorageStrategy;
 import client.ByzantineException;
+import java.util.ArrayList;
+import java.util.List;
 import org.apache.log4j.Logger;
 
 public class KVServerInitializer {
 
   private static final Logger logger = Logger.getLogger(KVServerInitializer.class);
+  private static final String NETWORK_OPTION = "--network=";
 
   /**
    * Main entry point for the KVServer application.
    *
-   * @param args expected to be equal to [<port-number>, <max-cache-size>, <cache-strategy>]
+   * @param arguments expected to be equal to [<port-number>, <max-cache-size>, <cache-strategy>],
+   *     optionally followed by [<zookeeper-ip>, <zookeeper-port>], [<encrypted>], <node-name> and
+   *     [<storage-engine>]. The storage engine can only be given after <encrypted>. The option
+   *     --network=<network-mode> may be given anywhere among them.
    */
-  public static void main(final String[] args) throws ByzantineException {
-    if (!(args.length == 3 || args.length == 6 || args.length == 4 || args.length == 7)) {
+  public static void main(final String[] arguments) throws ByzantineException {
+    // Validate --network=<network-mode>
+    NetworkConfig networkConfig = new NetworkConfig(NetworkConfig.Mode.BLOCKING);
+    List<String> positionalArguments = new ArrayList<>();
+    for (String argument : arguments) {
+      if (!argument.startsWith(NETWORK_OPTION)) {
+        positionalArguments.add(argument);
+        continue;
+      }
+      try {
+        networkConfig = NetworkConfig.parse(argument.substring(NETWORK_OPTION.length()));
+      } catch (IllegalArgumentException e) {
+        KVServerInitializer.exitWithErrorMessage(
+            "<network-mode> must be one of \"BLOCKING\" and \"NIO\", optionally followed by"
+                + " :parameter=value,... Given: \""
+                + argument.substring(NETWORK_OPTION.length())
+                + "\". "
+                + e.getMessage());
+      }
+    }
+    String[] args = positionalArguments.toArray(new String[0]);
+
+    if (args.length < 3 || 8 < args.length) {
       KVServerInitializer.exitWithErrorMessage(
-          "Exactly 3, 4, 6, or 7 arguments required. " + args.length + " provided.");
+          "Exactly 3, 4, 5, 6, 7 or 8 arguments required. " + args.length + " provided.");
       return;
     }
 
@@ -54,23 +83,55 @@ public class KVServerInitializer {
               + "\".");
     }
 
+    // Validate <storage-engine>
+    StorageEngineConfig storageEngineConfig =
+        new StorageEngineConfig(StorageStrategy.LOG_STRUCTURED);
+    if (args.length == 5 || args.length == 8) {
+      try {
+        storageEngineConfig = StorageEngineConfig.parse(args[args.length - 1]);
+      } catch (IllegalArgumentException e) {
+        KVServerInitializer.exitWithErrorMessage(
+            "<storage-engine> must be one of \"FLAT_FILE\", \"LOG_STRUCTURED\" and \"LSM\","
+                + " optionally followed by :parameter=value,... Given: \""
+                + args[args.length - 1]
+                + "\". "
+                + e.getMessage());
+      }
+    }
+
     if (args.length == 3) {
-      startServer(port, cacheSize, cacheStrategy, false);
-    } else if (args.length == 4) {
+      startServer(port, cacheSize, cacheStrategy, false, storageEngineConfig, networkConfig);
+    } else if (args.length == 4 || args.length == 5) {
       boolean encrypted = Boolean.valueOf(args[3]);
-      startServer(port, cacheSize, cacheStrategy, encrypted);
+      startServer(port, cacheSize, cacheStrategy, encrypted, storageEngineConfig, networkConfig);
     } else {
       String zookeeperIP = args[3];
       int zookeeperPort = Integer.parseInt(args[4]);
       String nodeName = args[5];
       if (args.length == 6) {
         startServerViaECS(
-            port, cacheSize, cacheStrategy, zookeeperIP, zookeeperPort, nodeName, false);
+            port,
+            cacheSize,
+            cacheStrategy,
+            zookeeperIP,
+            zookeeperPort,
+            nodeName,
+            false,
+            storageEngineConfig,
+            networkConfig);
       } else {
         boolean encrypted = Boolean.valueOf(args[5]);
         nodeName = args[6];
         startServerViaECS(
-            port, cacheSize, cacheStrategy, zookeeperIP, zookeeperPort, nodeName, encrypted);
+            port,
+            cacheSize,
+            cacheStrategy,
+            zookeeperIP,
+            zookeeperPort,
+            nodeName,
+            encrypted,
+            storageEngineConfig,
+            networkConfig);
       }
     }
   }
@@ -79,7 +140,8 @@ public class KVServerInitializer {
     System.out.println("Error! Invalid arguments: " + errorMessage + "\n");
     System.out.println(
         "Usage: Server <port-number> <max-cache-size> <cache-strategy> [<zookeeper-ip>"
-            + " <zookeeper-port> <node-name>]");
+            + " <zookeeper-port>] [<encrypted>] [<node-name>] [<storage-engine>]"
+            + " [--network=<network-mode>]");
     System.out.format(
         "%-32s%32s%n", "\t<port-number>", "The port number for the Server to listen on.");
     System.out.format(
@@ -91,6 +153,30 @@ public class KVServerInitializer {
         "%-32s%32s%n",
         "\t<port-number>",
         "The type of cache to use. Options are: \"FIFO\", \"LRU\", \"LFU\" and \"Concurrent\".");
+    System.out.format(
+        "%-32s%32s%n",
+        "\t<storage-engine>",
+        "The on-disk storage engine to use. Options are: \"FLAT_FILE\", \"LOG_STRUCTURED\""
+            + " (default) and \"LSM\". Tuning parameters may follow the name, e.g."
+            + " \"LSM:memtableBytes=8388608\" or"
+            + " \"LOG_STRUCTURED:maxSegmentBytes=33554432,buckets=256\". FLAT_FILE reads files"
+            + " up to \"maxMappedBytes\" through a memory map. Add \"recover\" to reopen"
+            + " the data of a previous run, e.g. \"LSM:recover\". With encryption, such a node"
+            + " keeps its storage key in a file only its owner can read, wrapped in the secret"
+            + " given by the KV_STORAGE_SECRET environment variable if it is set. Writes are"
+            + " acknowledged once"
+            + " durable as given by \"durability=none|batched|per-write\" (default none), e.g."
+            + " \"LSM:durability=batched,syncIntervalMillis=10,syncBatchWrites=128\".");
+    System.out.format(
+        "%-32s%32s%n",
+        "\t<network-mode>",
+        "How connections are served. Options are: \"BLOCKING\" (default), with a thread per"
+            + " connection, and \"NIO\", with a few selector threads for all connections, e.g."
+            + " \"NIO:ioThreads=2\". In both modes requests run on \"workerThreads\", up to"
+            + " \"queuedRequests\" wait before clients are told the server is busy, and at most"
+            + " \"maxConnections\" are served. Up to \"pipelinedRequests\" requests of a"
+            + " connection on different keys run at once, e.g."
+            + " \"BLOCKING:workerThreads=32,queuedRequests=256,pipelinedRequests=1\".");
     throw new IllegalArgumentException(errorMessage);
   }
 
@@ -102,14 +188,22 @@ public class KVServerInitializer {
    * @param cacheStrategy specifies the cache replacement strategy in case the cache is full and
    *     there is a GET- or PUT-request on a key that is currently not contained in the cache.
    *     Options are "FIFO", "LRU", "LFU" and "Concurrent".
+   * @param storageEngineConfig specifies the on-disk storage engine and its tuning parameters.
+   * @param networkConfig specifies how connections are served.
    */
   private static void startServer(
-      final int port, final int cacheSize, final CacheStrategy cacheStrategy, boolean encrypted)
+      final int port,
+      final int cacheSize,
+      final CacheStrategy cacheStrategy,
+      boolean encrypted,
+      final StorageEngineConfig storageEngineConfig,
+      final NetworkConfig networkConfig)
       throws ByzantineException {
-    SynchronizedKVManager.initialize(cacheSize, cacheStrategy, "localhost:" + port, encrypted);
+    SynchronizedKVManager.initialize(
+        cacheSize, cacheStrategy, "localhost:" + port, encrypted, storageEngineConfig);
     logger.info("Starting KVServer from Main");
     logger.info("Encryption is specified as " + encrypted);
-    new Thread(new KVServer(port), "KVServer@" + port).start();
+    new Thread(new KVServer(port, networkConfig), "KVServer@" + port).start();
   }
 
   private static void startServerViaECS(
@@ -119,11 +213,16 @@ public class KVServerInitializer {
       final String zookeeperIP,
       final int zookeeperPort,
       final String nodeName,
-      boolean encrypted)
+      boolean encrypted,
+      final StorageEngineConfig storageEngineConfig,
+      final NetworkConfig networkConfig)
       throws ByzantineException {
-    SynchronizedKVManager.initialize(cacheSize, cacheStrategy, nodeName, encrypted);
+    SynchronizedKVManager.initialize(
+        cacheSize, cacheStrategy, nodeName, encrypted, storageEngineConfig);
     logger.info("Starting KVServer from Main");
-    new Thread(new KVServer(port, zookeeperIP, zookeeperPort, nodeName), "KVServer@" + port)
+    new Thread(
+            new KVServer(port, zookeeperIP, zookeeperPort, nodeName, networkConfig),
+            "KVServer@" + port)
         .start();
   }
 }
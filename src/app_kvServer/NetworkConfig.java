@@ -0,0 +1,157 @@
+package app_kvServer;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * How a KVServer serves its connections, written as MODE[:parameter=value[,parameter=value]*], e.g.
+ * "NIO:ioThreads=2,workerThreads=32".
+ *
+ * <p>BLOCKING serves each connection on a thread of its own. NIO multiplexes all connections over
+ * IO_THREADS selector threads, which frame messages and write replies, see SelectorServer.
+ *
+ * <p>In both modes requests run on the pools of a RequestExecutor: WORKER_THREADS for client
+ * requests, of which up to QUEUED_REQUESTS may wait before clients are told to come back later, and
+ * REPLICATION_THREADS for the writes of other servers. At most MAX_CONNECTIONS connections are
+ * served at a time, any further ones are closed as soon as they are accepted. Up to
+ * PIPELINED_REQUESTS client requests of a connection on different keys run at once, see
+ * RequestPipeline.
+ */
+public class NetworkConfig {
+  public enum Mode {
+    BLOCKING,
+    NIO
+  }
+
+  public static final String IO_THREADS = "ioThreads";
+  public static final String WORKER_THREADS = "workerThreads";
+  public static final String REPLICATION_THREADS = "replicationThreads";
+  public static final String QUEUED_REQUESTS = "queuedRequests";
+  public static final String MAX_CONNECTIONS = "maxConnections";
+  public static final String PIPELINED_REQUESTS = "pipelinedRequests";
+  /** Parameters of both modes. */
+  public static final List<String> PARAMETERS =
+      Collections.unmodifiableList(
+          Arrays.asList(
+              WORKER_THREADS,
+              REPLICATION_THREADS,
+              QUEUED_REQUESTS,
+              MAX_CONNECTIONS,
+              PIPELINED_REQUESTS));
+
+  public static final List<String> NIO_PARAMETERS =
+      Collections.unmodifiableList(Collections.singletonList(IO_THREADS));
+
+  private static final long MAX_THREADS = 1024;
+  public static final int DEFAULT_IO_THREADS =
+      Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+  // requests block on disk, on replicas and on other servers, so there are more workers than cores
+  public static final int DEFAULT_WORKER_THREADS =
+      Math.max(16, 4 * Runtime.getRuntime().availableProcessors());
+  public static final int DEFAULT_REPLICATION_THREADS = 4;
+  public static final int DEFAULT_QUEUED_REQUESTS = 1024;
+  public static final int DEFAULT_MAX_CONNECTIONS = 16384;
+  public static final int DEFAULT_PIPELINED_REQUESTS = 16;
+
+  private final Mode mode;
+  private final Map<String, Long> parameters;
+
+  public NetworkConfig(final Mode mode) {
+    this(mode, Collections.emptyMap());
+  }
+
+  public NetworkConfig(final Mode mode, final Map<String, Long> parameters) {
+    for (Map.Entry<String, Long> parameter : parameters.entrySet()) {
+      if (!PARAMETERS.contains(parameter.getKey())
+          && (mode != Mode.NIO || !NIO_PARAMETERS.contains(parameter.getKey()))) {
+        throw new IllegalArgumentException(
+            "Unknown parameter \""
+                + parameter.getKey()
+                + "\" for "
+                + mode
+                + ". Supported parameters: "
+                + PARAMETERS
+                + (mode == Mode.NIO ? " and " + NIO_PARAMETERS : ""));
+      }
+      long max = parameter.getKey().endsWith("Threads") ? MAX_THREADS : Integer.MAX_VALUE;
+      if (parameter.getValue() <= 0 || parameter.getValue() > max) {
+        throw new IllegalArgumentException(
+            "Parameter \"" + parameter.getKey() + "\" must be between 1 and " + max + ".");
+      }
+    }
+    this.mode = mode;
+    this.parameters = Collections.unmodifiableMap(new LinkedHashMap<>(parameters));
+  }
+
+  /**
+   * @param config a network mode optionally followed by its tuning parameters.
+   * @throws IllegalArgumentException if the mode, a parameter or its value is invalid.
+   */
+  public static NetworkConfig parse(final String config) {
+    String[] modeAndParameters = config.split(":", 2);
+    Mode mode = Mode.valueOf(modeAndParameters[0].trim());
+    Map<String, Long> parameters = new LinkedHashMap<>();
+    if (modeAndParameters.length == 2) {
+      for (String parameter : modeAndParameters[1].split(",")) {
+        String[] nameAndValue = parameter.split("=", 2);
+        if (nameAndValue.length != 2) {
+          throw new IllegalArgumentException(
+              "Expected parameter=value for " + mode + ". Given: \"" + parameter + "\".");
+        }
+        try {
+          parameters.put(nameAndValue[0].trim(), Long.parseLong(nameAndValue[1].trim()));
+        } catch (NumberFormatException e) {
+          throw new IllegalArgumentException(
+              "Parameter \"" + nameAndValue[0].trim() + "\" must be an integer.");
+        }
+      }
+    }
+    return new NetworkConfig(mode, parameters);
+  }
+
+  public Mode getMode() {
+    return mode;
+  }
+
+  public int getIoThreads() {
+    return parameters.getOrDefault(IO_THREADS, (long) DEFAULT_IO_THREADS).intValue();
+  }
+
+  public int getWorkerThreads() {
+    return parameters.getOrDefault(WORKER_THREADS, (long) DEFAULT_WORKER_THREADS).intValue();
+  }
+
+  public int getReplicationThreads() {
+    return parameters
+        .getOrDefault(REPLICATION_THREADS, (long) DEFAULT_REPLICATION_THREADS)
+        .intValue();
+  }
+
+  public int getQueuedRequests() {
+    return parameters.getOrDefault(QUEUED_REQUESTS, (long) DEFAULT_QUEUED_REQUESTS).intValue();
+  }
+
+  public int getMaxConnections() {
+    return parameters.getOrDefault(MAX_CONNECTIONS, (long) DEFAULT_MAX_CONNECTIONS).intValue();
+  }
+
+  public int getPipelinedRequests() {
+    return parameters
+        .getOrDefault(PIPELINED_REQUESTS, (long) DEFAULT_PIPELINED_REQUESTS)
+        .intValue();
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder config = new StringBuilder(mode.toString());
+    String separator = ":";
+    for (Map.Entry<String, Long> parameter : parameters.entrySet()) {
+      config.append(separator).append(parameter.getKey()).append('=').append(parameter.getValue());
+      separator = ",";
+    }
+    return config.toString();
+  }
+}
@@ -3,7 +3,7 @@ package app_kvServer;
 import static shared.communication.messages.DataTransferMessage.DataTransferMessageType.*;
 
 import app_kvServer.data.SynchronizedKVManager;
-import app_kvServer.data.storage.DiskStorage;
+import app_kvServer.data.storage.StorageEngine;
 import com.google.common.collect.Sets;
 import ecs.ECSMetadata;
 import ecs.ECSMetadataUtils;
@@ -16,8 +16,10 @@ import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -33,6 +35,8 @@ import shared.communication.messages.*;
 public class ReplicationService implements Runnable {
 
   private static final Logger logger = Logger.getLogger(ReplicationService.class);
+  // writes queued while a batch is out are sent together in the next one, up to this many
+  private static final int MAX_BATCH_MESSAGES = 64;
   private final String nodeName;
   LinkedBlockingQueue<KVMessage> replicationQueue;
   HashMap<String, Socket> socketCache = new HashMap<>();
@@ -49,34 +53,38 @@ public class ReplicationService implements Runnable {
   public void run() {
     logger.info("Replication service started");
     while (true) {
-      KVMessage message = null;
-      ReplicationMessage replicationMessage = null;
+      List<KVMessage> batch = new ArrayList<>();
       try {
-        message = replicationQueue.take();
-        replicationMessage = new ReplicationMessage(message);
+        batch.add(replicationQueue.take());
+        replicationQueue.drainTo(batch, MAX_BATCH_MESSAGES - 1);
         pauseReplicationService.arriveAndAwaitAdvance();
       } catch (InterruptedException e) {
         e.printStackTrace();
       }
-      assert message != null;
+      assert !batch.isEmpty();
       logger.info(
-          "Sending message to replicas with key: "
-              + message.getKey()
-              + " queue length: "
+          "Sending "
+              + batch.size()
+              + " messages to replicas, queue length: "
               + replicationQueue.size());
+      List<ReplicationMessage> replicationMessages =
+          batch.stream().map(ReplicationMessage::new).collect(Collectors.toList());
       ECSNode[] replicas = ECSMetadata.getInstance().getReplicasBasedOnName(this.nodeName);
 
       for (ECSNode replica : replicas) {
-        KVMessage response = (KVMessage) sendMessageToServer(replica, replicationMessage, true);
-        assert response != null;
-        if (response.getStatus() == KVMessage.StatusType.FAILED
-            || response.getStatus() == KVMessage.StatusType.PUT_ERROR
-            || response.getStatus() == KVMessage.StatusType.DELETE_ERROR) {
-          logger.error(
-              "Error replicating request: "
-                  + message.toString()
-                  + " to replica: "
-                  + replica.getNodeName());
+        List<Message> responses = sendMessagesToServer(replica, replicationMessages, true);
+        for (int i = 0; i < batch.size(); i++) {
+          KVMessage response = i < responses.size() ? (KVMessage) responses.get(i) : null;
+          if (response == null
+              || response.getStatus() == KVMessage.StatusType.FAILED
+              || response.getStatus() == KVMessage.StatusType.PUT_ERROR
+              || response.getStatus() == KVMessage.StatusType.DELETE_ERROR) {
+            logger.error(
+                "Error replicating request: "
+                    + batch.get(i).toString()
+                    + " to replica: "
+                    + replica.getNodeName());
+          }
         }
       }
     }
@@ -178,8 +186,8 @@ public class ReplicationService implements Runnable {
       // Ask old replicas to delete new node's hash range from their replicas (new node will send
       // them replica data)
       for (int i = 0; i < Objects.requireNonNull(oldReplicas).length; ++i) {
-        DiskStorage.StorageType storageType =
-            i == 1 ? DiskStorage.StorageType.REPLICA_1 : DiskStorage.StorageType.REPLICA_2;
+        StorageEngine.StorageType storageType =
+            i == 1 ? StorageEngine.StorageType.REPLICA_1 : StorageEngine.StorageType.REPLICA_2;
         deleteReplicaDataFromNode(
             ecsMessage, addedNode.getNodeHashRange(), storageType, oldReplicas[i]);
       }
@@ -206,7 +214,7 @@ public class ReplicationService implements Runnable {
         deleteReplicaDataFromNode(
             ecsMessage,
             currentNode.getNodeHashRange(),
-            DiskStorage.StorageType.REPLICA_2,
+            StorageEngine.StorageType.REPLICA_2,
             oldReplicas[1]);
       }
 
@@ -225,7 +233,7 @@ public class ReplicationService implements Runnable {
           deleteReplicaDataFromNode(
               ecsMessage,
               currentNode.getNodeHashRange(),
-              DiskStorage.StorageType.REPLICA_2,
+              StorageEngine.StorageType.REPLICA_2,
               oldReplicas[1]);
         }
       }
@@ -262,7 +270,7 @@ public class ReplicationService implements Runnable {
       if (newReplicas.length == 2) {
         logger.info("Updating replica2 with removed node's data");
         transferReplicaDataToNode(
-            ecsMessage, removedNode, DiskStorage.StorageType.REPLICA_2, newReplicas, 1);
+            ecsMessage, removedNode, StorageEngine.StorageType.REPLICA_2, newReplicas, 1);
         logger.info("Done updating replica2 with removed node's data");
         askNodeToSwitchReplicaFiles(
             ecsMessage, MOVE_REPLICA2_TO_REPLICA1, currentNode, newReplicas[0]);
@@ -336,8 +344,10 @@ public class ReplicationService implements Runnable {
       ECSNode[] newReplicas,
       ECSNode currentNode,
       int replicaNumber) {
-    DiskStorage.StorageType storageType =
-        replicaNumber == 1 ? DiskStorage.StorageType.REPLICA_1 : DiskStorage.StorageType.REPLICA_2;
+    StorageEngine.StorageType storageType =
+        replicaNumber == 1
+            ? StorageEngine.StorageType.REPLICA_1
+            : StorageEngine.StorageType.REPLICA_2;
     if (checkIfNewReplica(oldReplicas, newReplicas, replicaNumber)) {
       logger.info(
           "Starting replication for node: "
@@ -352,15 +362,19 @@ public class ReplicationService implements Runnable {
   private void transferReplicaDataToNode(
       ECSMessage ecsMessage,
       ECSNode currentNode,
-      DiskStorage.StorageType storageType,
+      StorageEngine.StorageType storageType,
       ECSNode[] newReplicas,
       int i) {
-    DataTransferMessage dtmsg =
-        SynchronizedKVManager.getInstance()
-            .getDataChunkForReplication(ecsMessage, currentNode.getNodeHashRange());
-    dtmsg.setStorageType(storageType);
+    // the replica may still hold most of this data from before a restart, only the delta is sent
     DataTransferMessage response =
-        (DataTransferMessage) sendMessageToServer(newReplicas[i], dtmsg, false);
+        SynchronizedKVManager.getInstance()
+            .openTransferStream(
+                ecsMessage,
+                currentNode.getNodeHashRange(),
+                newReplicas[i],
+                StorageEngine.StorageType.SELF,
+                storageType)
+            .transfer();
     assert response != null;
     if (response.getDataTransferMessageType() == DATA_TRANSFER_FAILURE) {
       logger.error("Data transfer to replica failed ->" + newReplicas[i].getNodeName());
@@ -372,7 +386,7 @@ public class ReplicationService implements Runnable {
   private void deleteReplicaDataFromNode(
       ECSMessage ecsMessage,
       String[] hashRange,
-      DiskStorage.StorageType storageType,
+      StorageEngine.StorageType storageType,
       ECSNode nodeToAsk) {
     DataTransferMessage dtmsg =
         new DataTransferMessage(
@@ -423,6 +437,19 @@ public class ReplicationService implements Runnable {
   }
 
   private Message sendMessageToServer(ECSNode node, Message message, boolean cacheConnection) {
+    List<Message> responses =
+        sendMessagesToServer(node, Collections.singletonList(message), cacheConnection);
+    return responses.isEmpty() ? null : responses.get(0);
+  }
+
+  /**
+   * Send messages back to back, then read their replies, which the node sends in the same order.
+   *
+   * @return the replies received, fewer than messages if the connection failed on the way.
+   */
+  private List<Message> sendMessagesToServer(
+      ECSNode node, List<? extends Message> messages, boolean cacheConnection) {
+    List<Message> responses = new ArrayList<>();
     Socket nodeSocket;
     if (!cacheConnection) {
       socketCache.remove(node.getNodeName());
@@ -438,26 +465,37 @@ public class ReplicationService implements Runnable {
         }
       } catch (IOException e) {
         e.printStackTrace();
-        return null;
+        return responses;
       }
     }
     try {
       OutputStream outputStream = nodeSocket.getOutputStream();
       InputStream inputStream = nodeSocket.getInputStream();
 
-      Protocol.sendMessage(outputStream, message);
-      return Protocol.receiveMessage(inputStream);
+      for (Message message : messages) {
+        Protocol.sendMessage(outputStream, message);
+      }
+      while (responses.size() < messages.size()) {
+        responses.add(Protocol.receiveMessage(inputStream));
+      }
+      return responses;
     } catch (SocketTimeoutException e) {
       logger.error("Did not receive reply from server in 10s");
       e.printStackTrace();
     } catch (IOException e) {
-      // TODO: Handle a stale socket, will reach here
       logger.error("Socket problems");
       e.printStackTrace();
     } catch (ProtocolException e) {
       logger.error("Problem receiving message from node");
       e.printStackTrace();
     }
-    return null;
+    // replies still due would be read as replies to the next messages, start over next time
+    socketCache.remove(node.getNodeName());
+    try {
+      nodeSocket.close();
+    } catch (IOException e) {
+      logger.error("Failed on closing socket to " + node.getNodeName());
+    }
+    return responses;
   }
 }
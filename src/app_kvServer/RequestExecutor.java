@@ -0,0 +1,215 @@
+package app_kvServer;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import org.apache.log4j.Logger;
+import shared.communication.messages.KVMessage;
+import shared.communication.messages.Message;
+import shared.communication.messages.ReplicationMessage;
+
+/**
+ * Runs the requests of a KVServer's connections, on a separate pool for each kind of Traffic so a
+ * flood of client requests never holds up the ECS or the other servers.
+ *
+ * <p>Only CLIENT requests are turned away. Once the client queue is full, execute refuses them and
+ * the connection answers SERVER_BUSY, with a hint of when the queue will have drained. REPLICATION
+ * requests always queue, ReplicationService keeps at most a batch per replica in flight. CONTROL
+ * requests come from the ECS and from servers moving ranges, which may wait on one another, so they
+ * get a thread each just like they did on their own connections.
+ *
+ * <p>Queue depths and rejections are published over JMX as app_kvServer:type=RequestExecutor.
+ */
+public class RequestExecutor implements RequestExecutorMBean {
+  private static final Logger logger = Logger.getLogger(RequestExecutor.class);
+  static final long MIN_RETRY_AFTER_MILLIS = 10;
+  static final long MAX_RETRY_AFTER_MILLIS = 5000;
+
+  public enum Traffic {
+    CLIENT,
+    REPLICATION,
+    CONTROL
+  }
+
+  private final ThreadPoolExecutor clientPool;
+  private final ThreadPoolExecutor replicationPool;
+  private final ThreadPoolExecutor controlPool;
+  private final int maxConnections;
+  private final int pipelinedRequests;
+  private final AtomicInteger openConnections = new AtomicInteger();
+  private final AtomicLong rejectedConnections = new AtomicLong();
+  private final AtomicLong rejectedRequests = new AtomicLong();
+  private final AtomicLong acceptedRequests = new AtomicLong();
+  // moving average of how long a client request takes to run
+  private final AtomicLong clientRequestNanos = new AtomicLong(TimeUnit.MILLISECONDS.toNanos(1));
+  private ObjectName name;
+
+  public RequestExecutor(final NetworkConfig config, final int port) {
+    this.clientPool =
+        new ThreadPoolExecutor(
+            config.getWorkerThreads(),
+            config.getWorkerThreads(),
+            0,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(config.getQueuedRequests()),
+            threadsNamed("Client Worker"));
+    this.replicationPool =
+        new ThreadPoolExecutor(
+            config.getReplicationThreads(),
+            config.getReplicationThreads(),
+            0,
+            TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(),
+            threadsNamed("Replication Worker"));
+    this.controlPool =
+        new ThreadPoolExecutor(
+            0,
+            Integer.MAX_VALUE,
+            60,
+            TimeUnit.SECONDS,
+            new SynchronousQueue<>(),
+            threadsNamed("Control Worker"));
+    this.maxConnections = config.getMaxConnections();
+    this.pipelinedRequests = config.getPipelinedRequests();
+    try {
+      name = new ObjectName("app_kvServer:type=RequestExecutor,port=" + port);
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+    } catch (JMException e) {
+      logger.warn("Unable to publish metrics over JMX", e);
+      name = null;
+    }
+  }
+
+  private static ThreadFactory threadsNamed(String prefix) {
+    AtomicInteger number = new AtomicInteger();
+    return task -> new Thread(task, prefix + " " + number.incrementAndGet());
+  }
+
+  public static Traffic trafficOf(Message request) {
+    if (request.getClass() == KVMessage.class) {
+      return Traffic.CLIENT;
+    } else if (request.getClass() == ReplicationMessage.class) {
+      return Traffic.REPLICATION;
+    }
+    return Traffic.CONTROL;
+  }
+
+  /** @return whether the task will run, CLIENT tasks are refused while the client queue is full. */
+  public boolean execute(final Traffic traffic, final Runnable task) {
+    try {
+      switch (traffic) {
+        case CLIENT:
+          clientPool.execute(
+              () -> {
+                long start = System.nanoTime();
+                task.run();
+                long nanos = System.nanoTime() - start;
+                clientRequestNanos.updateAndGet(average -> average + (nanos - average) / 16);
+              });
+          break;
+        case REPLICATION:
+          replicationPool.execute(task);
+          break;
+        default:
+          controlPool.execute(task);
+      }
+    } catch (RejectedExecutionException e) {
+      if (traffic == Traffic.CLIENT && !clientPool.isShutdown()) {
+        rejectedRequests.incrementAndGet();
+      }
+      return false;
+    }
+    acceptedRequests.incrementAndGet();
+    return true;
+  }
+
+  /** @return whether another connection may be served, it counts as open if so. */
+  public boolean admitConnection() {
+    while (true) {
+      int open = openConnections.get();
+      if (open >= maxConnections) {
+        rejectedConnections.incrementAndGet();
+        return false;
+      }
+      if (openConnections.compareAndSet(open, open + 1)) {
+        return true;
+      }
+    }
+  }
+
+  public void connectionClosed() {
+    openConnections.decrementAndGet();
+  }
+
+  /** @return how many client requests of one connection may run at once. */
+  public int getPipelinedRequests() {
+    return pipelinedRequests;
+  }
+
+  public void shutdown() {
+    clientPool.shutdown();
+    replicationPool.shutdown();
+    controlPool.shutdown();
+    if (name != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+      } catch (JMException e) {
+        logger.warn("Unable to withdraw metrics from JMX", e);
+      }
+    }
+  }
+
+  @Override
+  public int getClientQueueDepth() {
+    return clientPool.getQueue().size();
+  }
+
+  @Override
+  public int getReplicationQueueDepth() {
+    return replicationPool.getQueue().size();
+  }
+
+  @Override
+  public int getControlRequestsRunning() {
+    return controlPool.getActiveCount();
+  }
+
+  @Override
+  public long getAcceptedRequests() {
+    return acceptedRequests.get();
+  }
+
+  @Override
+  public long getRejectedRequests() {
+    return rejectedRequests.get();
+  }
+
+  @Override
+  public int getOpenConnections() {
+    return openConnections.get();
+  }
+
+  @Override
+  public long getRejectedConnections() {
+    return rejectedConnections.get();
+  }
+
+  /** @return about how long the client requests waiting now take to run, within bounds. */
+  @Override
+  public long getRetryAfterMillis() {
+    int threads = clientPool.getMaximumPoolSize();
+    long drainNanos = (getClientQueueDepth() + threads) * clientRequestNanos.get() / threads;
+    return Math.max(
+        MIN_RETRY_AFTER_MILLIS,
+        Math.min(MAX_RETRY_AFTER_MILLIS, TimeUnit.NANOSECONDS.toMillis(drainNanos)));
+  }
+}
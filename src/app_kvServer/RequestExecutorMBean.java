@@ -0,0 +1,22 @@
+package app_kvServer;
+
+/** What a RequestExecutor publishes over JMX. */
+public interface RequestExecutorMBean {
+  int getClientQueueDepth();
+
+  int getReplicationQueueDepth();
+
+  int getControlRequestsRunning();
+
+  long getAcceptedRequests();
+
+  /** @return how many client requests were answered with SERVER_BUSY. */
+  long getRejectedRequests();
+
+  int getOpenConnections();
+
+  /** @return how many connections were closed right away because MAX_CONNECTIONS were open. */
+  long getRejectedConnections();
+
+  long getRetryAfterMillis();
+}
@@ -0,0 +1,140 @@
+package app_kvServer;
+
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import shared.communication.messages.KVMessage;
+import shared.communication.messages.Message;
+
+/**
+ * Decides which of the requests read ahead on a connection may run at the same time.
+ *
+ * <p>Client requests on different keys run concurrently, up to the in-flight limit, and are
+ * answered as they complete. Client requests on the same key run one after the other in the order
+ * they arrived. Any other request, from the ECS, another server or the client identifying itself,
+ * runs alone: it waits for the requests before it to complete, and the requests after it wait for
+ * it.
+ *
+ * <p>The connection adds each request it reads and reports each request that completed. Both return
+ * the requests that may start now, which the connection hands to its RequestExecutor.
+ */
+public class RequestPipeline {
+  private final int maxInFlight;
+  // the running request of each key, and the requests of the key waiting behind it
+  private final Map<String, ArrayDeque<Request>> keys = new HashMap<>();
+  // requests that may not start yet, in order of arrival
+  private final LinkedList<Request> held = new LinkedList<>();
+  private int running;
+  private boolean aloneRunning;
+  private int outstanding;
+
+  /** A request read from a connection, along with the raw records of a stream chunk. */
+  public static class Request {
+    final Message message;
+    final InputStream rawRecords;
+    private final boolean alone;
+    private final String key;
+
+    public Request(final Message message, final InputStream rawRecords) {
+      this.message = message;
+      this.rawRecords = rawRecords;
+      this.alone = RequestExecutor.trafficOf(message) != RequestExecutor.Traffic.CLIENT;
+      this.key = alone ? null : ((KVMessage) message).getKey();
+    }
+  }
+
+  public RequestPipeline(final int maxInFlight) {
+    this.maxInFlight = maxInFlight;
+  }
+
+  /** @return the requests that may start now. */
+  public synchronized List<Request> add(final Request request) {
+    outstanding++;
+    held.add(request);
+    return release();
+  }
+
+  /** @return the requests that may start now that request completed. */
+  public synchronized List<Request> done(final Request request) {
+    outstanding--;
+    notifyAll();
+    if (request.alone) {
+      aloneRunning = false;
+      running--;
+      return release();
+    }
+    ArrayDeque<Request> waiting = keys.get(request.key);
+    Request next = waiting.poll();
+    if (next != null) {
+      // the next request of the key takes over its slot
+      return Collections.singletonList(next);
+    }
+    keys.remove(request.key);
+    running--;
+    return release();
+  }
+
+  /**
+   * Take the requests waiting behind a request that was turned away, they are turned away too so
+   * that no later request of its key runs before it is retried. The request must still be reported
+   * done.
+   */
+  public synchronized List<Request> removeWaiting(final Request request) {
+    ArrayDeque<Request> waiting = request.alone ? null : keys.get(request.key);
+    if (waiting == null || waiting.isEmpty()) {
+      return Collections.emptyList();
+    }
+    List<Request> removed = new ArrayList<>(waiting);
+    waiting.clear();
+    outstanding -= removed.size();
+    notifyAll();
+    return removed;
+  }
+
+  /** @return how many requests were added and are not done. */
+  public synchronized int outstanding() {
+    return outstanding;
+  }
+
+  /** Wait until fewer than limit requests are outstanding. */
+  public synchronized void awaitOutstandingBelow(final int limit) throws InterruptedException {
+    while (outstanding >= limit) {
+      wait();
+    }
+  }
+
+  private List<Request> release() {
+    List<Request> ready = new ArrayList<>();
+    Iterator<Request> iterator = held.iterator();
+    while (iterator.hasNext() && !aloneRunning) {
+      Request request = iterator.next();
+      if (request.alone) {
+        if (running == 0) {
+          iterator.remove();
+          aloneRunning = true;
+          running++;
+          ready.add(request);
+        }
+        // nothing after it may start before it
+        break;
+      }
+      ArrayDeque<Request> waiting = keys.get(request.key);
+      if (waiting != null) {
+        iterator.remove();
+        waiting.add(request);
+      } else if (running < maxInFlight) {
+        iterator.remove();
+        keys.put(request.key, new ArrayDeque<>());
+        running++;
+        ready.add(request);
+      }
+    }
+    return ready;
+  }
+}
@@ -0,0 +1,354 @@
+package app_kvServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.log4j.Logger;
+import shared.communication.Protocol;
+import shared.communication.ProtocolException;
+import shared.communication.messages.DataTransferMessage;
+import shared.communication.messages.KVMessage;
+import shared.communication.messages.Message;
+import shared.communication.messages.MessageException;
+import shared.communication.security.ReplayFilter;
+
+/**
+ * A KVServerConnection served by a SelectorServer. Its event loop frames the messages read from the
+ * channel and dispatches the requests, which run on the pools of the RequestExecutor as their
+ * RequestPipeline allows. Client requests the executor turns away are answered with SERVER_BUSY
+ * straight away.
+ *
+ * <p>Once MAX_PENDING_REQUESTS, or the pipelined requests if more, are outstanding the loop stops
+ * reading the connection, until the workers have caught up to half of that. Replies and
+ * notifications are queued for the loop if the socket does not take them at once, and senders wait
+ * while more than MAX_QUEUED_BYTES are queued, just like they would on a blocking socket.
+ *
+ * <p>A stream chunk is dispatched as soon as its message is read, and the raw records following it
+ * are handed to the worker ingesting them as they arrive. The loop stops reading while more than
+ * MAX_BUFFERED_RECORD_BYTES of them wait for the worker, so a chunk of any size is ingested in
+ * bounded memory as it would be from a blocking socket.
+ */
+class SelectorConnection extends KVServerConnection {
+  private static final Logger logger = Logger.getLogger(SelectorConnection.class);
+  static final int MAX_PENDING_REQUESTS = 64;
+  static final long MAX_QUEUED_BYTES = 8 * 1024 * 1024;
+  static final long MAX_BUFFERED_RECORD_BYTES = 1024 * 1024;
+  // frames are read into a buffer that is kept unless it grew past this
+  private static final int RETAINED_FRAME_BYTES = 16 * 1024;
+  private static final long SHUTDOWN_FLUSH_MILLIS = 1000;
+
+  private final SocketChannel channel;
+  private final SelectorServer.EventLoop loop;
+  private final int maxOutstanding;
+  private volatile SelectionKey key;
+  private final AtomicBoolean readingPaused = new AtomicBoolean();
+
+  // only used by the event loop
+  private ByteArrayOutputStream frame;
+  private boolean oversized;
+  // written by the event loop, read by stop()
+  private volatile RecordPipe records;
+
+  // guards itself and queuedBytes
+  private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+  private long queuedBytes;
+
+  SelectorConnection(
+      final SocketChannel channel,
+      final SelectorServer.EventLoop loop,
+      AtomicBoolean serverAcceptingClients,
+      final LinkedBlockingQueue<KVMessage> replicationQueue,
+      final ReplayFilter seenECSIDs,
+      final RequestExecutor executor) {
+    super(
+        channel.socket(),
+        null,
+        null,
+        serverAcceptingClients,
+        replicationQueue,
+        seenECSIDs,
+        executor);
+    this.channel = channel;
+    this.loop = loop;
+    this.maxOutstanding = Math.max(MAX_PENDING_REQUESTS, executor.getPipelinedRequests());
+  }
+
+  void setKey(SelectionKey key) {
+    this.key = key;
+  }
+
+  /** Called by the event loop with the bytes just read, which are all consumed. */
+  void onRead(ByteBuffer buffer) throws ProtocolException {
+    while (buffer.hasRemaining()) {
+      if (records != null) {
+        if (records.add(buffer)) {
+          records = null;
+        }
+        continue;
+      }
+      int start = buffer.position();
+      int end = start;
+      while (end < buffer.limit() && buffer.get(end) != Protocol.END_OF_MESSAGE) {
+        end++;
+      }
+      if (frame == null) {
+        frame = new ByteArrayOutputStream(Math.min(end - start + 1, RETAINED_FRAME_BYTES));
+      }
+      int length = Math.min(end - start, Protocol.MAX_MESSAGE_BYTES - frame.size());
+      frame.write(buffer.array(), buffer.arrayOffset() + start, length);
+      oversized |= length < end - start;
+      if (end == buffer.limit()) {
+        buffer.position(end);
+        break;
+      }
+      buffer.position(end + 1);
+      onFrame();
+    }
+    if (records != null && records.pauseIfFull() && key.isValid()) {
+      key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+    }
+    if (outstandingRequests() >= maxOutstanding && key.isValid()) {
+      readingPaused.set(true);
+      // the workers may have caught up before they could see reading was paused
+      if (outstandingRequests() > maxOutstanding / 2) {
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+      } else {
+        readingPaused.set(false);
+      }
+    }
+  }
+
+  private void onFrame() throws ProtocolException {
+    if (oversized) {
+      throw new ProtocolException(
+          "Dropped message larger than " + Protocol.MAX_MESSAGE_BYTES + " bytes");
+    }
+    byte[] bytes = frame.toByteArray();
+    if (frame.size() > RETAINED_FRAME_BYTES) {
+      frame = null;
+    } else {
+      frame.reset();
+    }
+    Message message;
+    try {
+      message = Message.deserialize(bytes);
+    } catch (MessageException e) {
+      logger.error("Message failed to deserialize!", e);
+      return;
+    }
+    logger.info("received request: " + message);
+    if (message.getClass() == DataTransferMessage.class
+        && ((DataTransferMessage) message).getRawLength() > 0) {
+      // raw records of a stream chunk follow the message on the connection
+      records = new RecordPipe(((DataTransferMessage) message).getRawLength());
+      dispatch(new RequestPipeline.Request(message, records));
+    } else {
+      dispatch(new RequestPipeline.Request(message, null));
+    }
+  }
+
+  @Override
+  protected void requestsDone() {
+    if (outstandingRequests() <= maxOutstanding / 2 && readingPaused.compareAndSet(true, false)) {
+      loop.execute(this::resumeReading);
+    }
+  }
+
+  private void resumeReading() {
+    // reading stays paused while the requests or the raw records of a chunk are still behind
+    RecordPipe pipe = records;
+    if (key.isValid() && !readingPaused.get() && (pipe == null || !pipe.isPaused())) {
+      key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+    }
+  }
+
+  @Override
+  protected void send(Message msg) throws IOException {
+    if (msg == null) {
+      return;
+    }
+    write(ByteBuffer.wrap(Protocol.frame(msg)), true);
+    logger.info("sent: " + msg);
+  }
+
+  @Override
+  protected void sendWithoutWaiting(Message msg) throws IOException {
+    write(ByteBuffer.wrap(Protocol.frame(msg)), false);
+    logger.info("sent: " + msg);
+  }
+
+  /** @param mayWait whether to wait while more than MAX_QUEUED_BYTES are queued. */
+  private void write(ByteBuffer bytes, boolean mayWait) throws IOException {
+    synchronized (writeQueue) {
+      try {
+        while (mayWait && queuedBytes > MAX_QUEUED_BYTES && channel.isOpen()) {
+          writeQueue.wait();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting to send to " + this);
+      }
+      if (writeQueue.isEmpty()) {
+        channel.write(bytes);
+      }
+      if (bytes.hasRemaining()) {
+        writeQueue.add(bytes);
+        queuedBytes += bytes.limit();
+        if (writeQueue.size() == 1) {
+          loop.execute(this::resumeWriting);
+        }
+      }
+    }
+  }
+
+  private void resumeWriting() {
+    if (key != null && key.isValid()) {
+      key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+    }
+  }
+
+  /** Called by the event loop once the channel takes more bytes. */
+  void onWritable() throws IOException {
+    synchronized (writeQueue) {
+      while (!writeQueue.isEmpty()) {
+        ByteBuffer bytes = writeQueue.peek();
+        channel.write(bytes);
+        if (bytes.hasRemaining()) {
+          return;
+        }
+        writeQueue.poll();
+        queuedBytes -= bytes.limit();
+      }
+      key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+      writeQueue.notifyAll();
+    }
+  }
+
+  @Override
+  protected void awaitSent() throws IOException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SHUTDOWN_FLUSH_MILLIS);
+    synchronized (writeQueue) {
+      long remaining;
+      while (!writeQueue.isEmpty()
+          && channel.isOpen()
+          && (remaining = deadline - System.nanoTime()) > 0) {
+        try {
+          TimeUnit.NANOSECONDS.timedWait(writeQueue, remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted waiting to send to " + this);
+        }
+      }
+    }
+  }
+
+  @Override
+  public void stop() {
+    super.stop();
+    RecordPipe pipe = records;
+    if (pipe != null) {
+      pipe.abort();
+    }
+    synchronized (writeQueue) {
+      writeQueue.clear();
+      queuedBytes = 0;
+      writeQueue.notifyAll();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return channel.socket().toString();
+  }
+
+  /** The raw records of a stream chunk, added by the event loop and read by the worker. */
+  private class RecordPipe extends InputStream {
+    private final ArrayDeque<ByteBuffer> buffered = new ArrayDeque<>();
+    private long bufferedBytes;
+    // not read from the connection yet
+    private long remaining;
+    private boolean paused;
+    private boolean aborted;
+
+    private RecordPipe(long length) {
+      this.remaining = length;
+    }
+
+    /**
+     * Take the bytes of buffer that belong to the chunk.
+     *
+     * @return whether the chunk is complete.
+     */
+    private synchronized boolean add(ByteBuffer buffer) {
+      byte[] bytes = new byte[(int) Math.min(buffer.remaining(), remaining)];
+      buffer.get(bytes);
+      buffered.add(ByteBuffer.wrap(bytes));
+      bufferedBytes += bytes.length;
+      remaining -= bytes.length;
+      notifyAll();
+      return remaining == 0;
+    }
+
+    /** @return whether the loop is to stop reading until the worker takes the buffered records. */
+    private synchronized boolean pauseIfFull() {
+      paused = bufferedBytes > MAX_BUFFERED_RECORD_BYTES;
+      return paused;
+    }
+
+    private synchronized boolean isPaused() {
+      return paused;
+    }
+
+    /** Fail the reads still waiting for records, the connection is gone. */
+    private synchronized void abort() {
+      aborted = true;
+      notifyAll();
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] single = new byte[1];
+      return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public synchronized int read(byte[] bytes, int offset, int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      }
+      while (buffered.isEmpty()) {
+        if (remaining == 0) {
+          return -1;
+        } else if (aborted) {
+          throw new IOException("Connection to " + SelectorConnection.this + " closed mid-chunk");
+        }
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted reading from " + SelectorConnection.this);
+        }
+      }
+      ByteBuffer first = buffered.peek();
+      int read = Math.min(length, first.remaining());
+      first.get(bytes, offset, read);
+      if (!first.hasRemaining()) {
+        buffered.poll();
+      }
+      bufferedBytes -= read;
+      if (paused && bufferedBytes <= MAX_BUFFERED_RECORD_BYTES / 2) {
+        paused = false;
+        loop.execute(SelectorConnection.this::resumeReading);
+      }
+      return read;
+    }
+  }
+}
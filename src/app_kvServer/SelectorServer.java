@@ -0,0 +1,168 @@
+package app_kvServer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.log4j.Logger;
+import shared.communication.ProtocolException;
+import shared.communication.messages.KVMessage;
+import shared.communication.security.ReplayFilter;
+
+/**
+ * Serves the connections KVServer accepts in NIO mode without a thread per connection.
+ *
+ * <p>Each connection belongs to one of a few event loops, which wait on a Selector for the
+ * connections that can be read or written. A loop reads whatever has arrived into a buffer it
+ * shares with all its connections and cuts it into messages, so idle connections hold no buffers.
+ * The messages are handled on the pools of the server's RequestExecutor, see SelectorConnection,
+ * and their replies are written by the worker if the socket takes them at once, otherwise by the
+ * loop.
+ */
+public class SelectorServer {
+  private static final Logger logger = Logger.getLogger(SelectorServer.class);
+  private static final int READ_BUFFER_BYTES = 64 * 1024;
+
+  private final EventLoop[] loops;
+  private final RequestExecutor executor;
+  private final AtomicInteger nextLoop = new AtomicInteger();
+  private final AtomicBoolean serverAcceptingClients;
+  private final LinkedBlockingQueue<KVMessage> replicationQueue;
+  private final ReplayFilter seenECSIDs;
+
+  public SelectorServer(
+      final NetworkConfig config,
+      final AtomicBoolean serverAcceptingClients,
+      final LinkedBlockingQueue<KVMessage> replicationQueue,
+      final ReplayFilter seenECSIDs,
+      final RequestExecutor executor)
+      throws IOException {
+    this.serverAcceptingClients = serverAcceptingClients;
+    this.replicationQueue = replicationQueue;
+    this.seenECSIDs = seenECSIDs;
+    this.executor = executor;
+    this.loops = new EventLoop[config.getIoThreads()];
+    for (int i = 0; i < loops.length; i++) {
+      loops[i] = new EventLoop();
+      new Thread(loops[i], "IO Thread " + (i + 1)).start();
+    }
+    logger.info("Serving connections on " + loops.length + " IO threads");
+  }
+
+  /** Serve an accepted connection from now on. */
+  public void register(final SocketChannel channel) throws IOException {
+    channel.configureBlocking(false);
+    channel.socket().setTcpNoDelay(true);
+    EventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+    SelectorConnection connection =
+        new SelectorConnection(
+            channel, loop, serverAcceptingClients, replicationQueue, seenECSIDs, executor);
+    loop.execute(
+        () -> {
+          try {
+            connection.setKey(channel.register(loop.selector, SelectionKey.OP_READ, connection));
+          } catch (ClosedChannelException e) {
+            connection.stop();
+          }
+        });
+  }
+
+  /** Stop serving, all connections are closed. */
+  public void close() {
+    for (EventLoop loop : loops) {
+      loop.execute(loop::close);
+    }
+  }
+
+  /** A thread that does the IO of its connections, and runs tasks handed to it between selects. */
+  static class EventLoop implements Runnable {
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+    private volatile Thread thread;
+
+    EventLoop() throws IOException {
+      this.selector = Selector.open();
+    }
+
+    /** Run the task on this loop, which is where the selection keys may be changed. */
+    void execute(Runnable task) {
+      tasks.add(task);
+      if (Thread.currentThread() != thread) {
+        selector.wakeup();
+      }
+    }
+
+    @Override
+    public void run() {
+      thread = Thread.currentThread();
+      while (selector.isOpen()) {
+        try {
+          selector.select();
+        } catch (IOException e) {
+          logger.error("Unable to select, stopping " + thread.getName(), e);
+          close();
+        }
+        for (Runnable task = tasks.poll(); task != null; task = tasks.poll()) {
+          try {
+            task.run();
+          } catch (CancelledKeyException e) {
+            // the connection was closed since the task was handed over
+          }
+        }
+        if (!selector.isOpen()) {
+          break;
+        }
+        Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+        while (selected.hasNext()) {
+          SelectionKey key = selected.next();
+          selected.remove();
+          SelectorConnection connection = (SelectorConnection) key.attachment();
+          try {
+            if (key.isValid() && key.isReadable()) {
+              read(key, connection);
+            }
+            if (key.isValid() && key.isWritable()) {
+              connection.onWritable();
+            }
+          } catch (IOException | ProtocolException e) {
+            logger.info("Dropping connection to " + connection + ": " + e.getMessage());
+            connection.stop();
+          } catch (CancelledKeyException e) {
+            connection.stop();
+          }
+        }
+      }
+    }
+
+    private void read(SelectionKey key, SelectorConnection connection)
+        throws IOException, ProtocolException {
+      readBuffer.clear();
+      int read = ((SocketChannel) key.channel()).read(readBuffer);
+      if (read == -1) {
+        throw new ProtocolException("Connection closed by the other side!");
+      }
+      readBuffer.flip();
+      connection.onRead(readBuffer);
+    }
+
+    private void close() {
+      for (SelectionKey key : selector.keys()) {
+        ((SelectorConnection) key.attachment()).stop();
+      }
+      try {
+        selector.close();
+      } catch (IOException e) {
+        logger.error("Error closing selector", e);
+      }
+    }
+  }
+}
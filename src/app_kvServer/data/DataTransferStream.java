@@ -0,0 +1,403 @@
+package app_kvServer.data;
+
+import static shared.communication.messages.DataTransferMessage.DataTransferMessageType.CHUNK_ACK;
+import static shared.communication.messages.DataTransferMessage.DataTransferMessageType.DATA_TRANSFER_FAILURE;
+import static shared.communication.messages.DataTransferMessage.DataTransferMessageType.DIGEST;
+import static shared.communication.messages.DataTransferMessage.DataTransferMessageType.DIGEST_REQUEST;
+import static shared.communication.messages.DataTransferMessage.DataTransferMessageType.STREAM_CHUNK;
+import static shared.communication.messages.DataTransferMessage.DataTransferMessageType.STREAM_RESUME;
+
+import app_kvServer.data.storage.DiskStorageException;
+import app_kvServer.data.storage.StorageEngine;
+import app_kvServer.data.storage.StorageUnit;
+import ecs.ECSNode;
+import ecs.ECSUtils;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+import org.apache.log4j.Logger;
+import shared.communication.Protocol;
+import shared.communication.ProtocolException;
+import shared.communication.messages.DataTransferMessage;
+import shared.communication.messages.ECSMessage;
+import shared.communication.messages.Message;
+
+/**
+ * Sender side of a range transfer to another server, e.g. for MOVE_DATA or to initialize a replica.
+ * Units are sent in chunks of at most CHUNK_BYTES of raw records, or of a single record larger than
+ * that, so neither side ever holds more than a few chunks of values in memory. A chunk is a
+ * STREAM_CHUNK message followed by the raw records of its units, which the storage engine writes to
+ * the socket as stored, with FileChannel.transferTo where it can, and the receiver appends as they
+ * arrive:
+ *
+ * <ol>
+ *   <li>The receiver streams a DIGEST of the keys it already holds in the range, so unchanged units
+ *       are skipped and keys the sender no longer has are deleted.
+ *   <li>The sender sends STREAM_CHUNKs in ring order with up to WINDOW_CHUNKS of them
+ *       unacknowledged. The receiver ingests each chunk before answering with a CHUNK_ACK, and
+ *       answers the last one with DATA_TRANSFER_SUCCESS or DATA_TRANSFER_FAILURE.
+ *   <li>If the connection drops, the sender reconnects and sends STREAM_RESUME. The receiver
+ *       answers with the CHUNK_ACK of the last chunk it ingested and the sender carries on after
+ *       that chunk.
+ * </ol>
+ *
+ * Once the range is sent, a stream given a CatchUp sends the keys it returns in further chunks of
+ * the same stream, until it returns null. Only keys and fingerprints of the range are kept in
+ * memory for the whole transfer.
+ */
+public class DataTransferStream {
+  private static final Logger logger = Logger.getLogger(DataTransferStream.class);
+  public static final int CHUNK_BYTES = 256 * 1024;
+  public static final int WINDOW_CHUNKS = 4;
+  private static final int MAX_ATTEMPTS = 3;
+  private static final int SOCKET_TIMEOUT_MILLIS = 30 * 1000;
+
+  /** Keys that changed since the range was sent, which the stream sends before it ends. */
+  interface CatchUp {
+    /** @return the keys to send before asking again, or null to end the stream. */
+    Collection<String> changedKeys();
+  }
+
+  private final StorageEngine storageEngine;
+  private final ECSMessage ecsMessage;
+  private final String[] hashRange;
+  private final ECSNode receiver;
+  private final StorageEngine.StorageType source;
+  private final StorageEngine.StorageType destination;
+  private final String streamId = UUID.randomUUID().toString();
+  private HashMap<String, String> remoteDigest = null;
+  // ring positions of the local and remote keys of the range, in ring order
+  private List<String> positions = null;
+  // index into positions after each chunk sent, by sequence, to resume from
+  private final HashMap<Long, Integer> chunkEnds = new HashMap<>();
+  private CatchUp catchUp = null;
+  private long nextSequence = 0;
+  private int resumeAt = 0;
+  private long unitsSent = 0;
+  private long keysDeleted = 0;
+
+  DataTransferStream(
+      StorageEngine storageEngine,
+      ECSMessage ecsMessage,
+      String[] hashRange,
+      ECSNode receiver,
+      StorageEngine.StorageType source,
+      StorageEngine.StorageType destination) {
+    this.storageEngine = storageEngine;
+    this.ecsMessage = ecsMessage;
+    this.hashRange = hashRange;
+    this.receiver = receiver;
+    this.source = source;
+    this.destination = destination;
+  }
+
+  /**
+   * Send the units of source in the hash range to the destination storage of the receiver,
+   * reconnecting up to MAX_ATTEMPTS times if the connection drops.
+   *
+   * @return DATA_TRANSFER_SUCCESS once the receiver ingested the whole range, DATA_TRANSFER_FAILURE
+   *     otherwise.
+   */
+  public DataTransferMessage transfer() {
+    String lastError = null;
+    for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+      try (SocketChannel channel =
+          SocketChannel.open(
+              new InetSocketAddress(
+                  InetAddress.getByName(receiver.getNodeHost()), receiver.getNodePort()))) {
+        channel.socket().setSoTimeout(SOCKET_TIMEOUT_MILLIS);
+        InputStream input = new BufferedInputStream(channel.socket().getInputStream());
+        OutputStream output = new BufferedOutputStream(Channels.newOutputStream(channel));
+        if (remoteDigest == null) {
+          remoteDigest = fetchDigest(input, output);
+          positions = mergePositions(storageEngine.keysInRange(hashRange, source), remoteDigest);
+        } else {
+          DataTransferMessage resumed = resume(input, output);
+          if (resumed.getDataTransferMessageType() != CHUNK_ACK) {
+            return resumed;
+          }
+        }
+        DataTransferMessage reply = stream(input, output, channel);
+        logger.info(
+            String.format(
+                "Stream %s to %s done: %d units sent, %d keys deleted, %s",
+                streamId, receiver.getNodeName(), unitsSent, keysDeleted, reply.getMessage()));
+        return reply;
+      } catch (IOException | ProtocolException e) {
+        lastError = e.toString();
+        logger.warn(
+            "Stream " + streamId + " to " + receiver.getNodeName() + " interrupted: " + lastError);
+      } catch (DiskStorageException e) {
+        logger.error("Could not read range to stream", e);
+        return failure(e.getLocalizedMessage());
+      }
+    }
+    return failure("Gave up after " + MAX_ATTEMPTS + " attempts: " + lastError);
+  }
+
+  /** Send the keys catchUp returns once the range is sent, in the same stream. */
+  DataTransferStream catchingUp(CatchUp catchUp) {
+    this.catchUp = catchUp;
+    return this;
+  }
+
+  public String getStreamId() {
+    return streamId;
+  }
+
+  private HashMap<String, String> fetchDigest(InputStream input, OutputStream output)
+      throws IOException, ProtocolException {
+    DataTransferMessage digestRequest =
+        new DataTransferMessage(
+            DIGEST_REQUEST,
+            hashRange,
+            "Requesting digest of " + destination.name() + " in range",
+            ecsMessage);
+    digestRequest.setStorageType(destination);
+    Protocol.sendMessage(output, digestRequest);
+    HashMap<String, String> digest = new HashMap<>();
+    DataTransferMessage reply;
+    do {
+      reply = receive(input);
+      if (reply.getDataTransferMessageType() != DIGEST) {
+        // the receiver can't tell what it holds, send everything
+        logger.warn("No digest from " + receiver.getNodeName() + ": " + reply.getMessage());
+        return new HashMap<>();
+      }
+      digest.putAll(reply.getDigest());
+    } while (reply.hasMore());
+    return digest;
+  }
+
+  /** Learn where the receiver stopped ingesting, restarting from scratch if it doesn't know. */
+  private DataTransferMessage resume(InputStream input, OutputStream output)
+      throws IOException, ProtocolException {
+    DataTransferMessage resumeRequest =
+        new DataTransferMessage(STREAM_RESUME, hashRange, "Resuming stream", ecsMessage);
+    resumeRequest.setStreamId(streamId);
+    resumeRequest.setStorageType(destination);
+    Protocol.sendMessage(output, resumeRequest);
+    DataTransferMessage ack = receive(input);
+    if (ack.getDataTransferMessageType() == CHUNK_ACK) {
+      nextSequence = ack.getSequence() + 1;
+      resumeAt = chunkEnds.getOrDefault(ack.getSequence(), 0);
+      logger.info("Resuming stream " + streamId + " at chunk " + nextSequence);
+    }
+    return ack;
+  }
+
+  private DataTransferMessage stream(
+      InputStream input, OutputStream output, WritableByteChannel channel)
+      throws IOException, ProtocolException, DiskStorageException {
+    int next = resumeAt;
+    int chunkStart = next;
+    long acknowledged = nextSequence - 1;
+    DataTransferMessage chunk = newChunk();
+    List<String> chunkKeys = new ArrayList<>();
+    long chunkBytes = 0;
+    while (true) {
+      boolean caughtUp = next == positions.size();
+      boolean full = false;
+      if (!caughtUp) {
+        String key = ECSUtils.keyAtRingPosition(positions.get(next));
+        String remoteFingerprint = remoteDigest.get(key);
+        boolean deleted = false;
+        long keyBytes = 0;
+        if (remoteFingerprint == null) {
+          // the receiver lacks the key, its record is sent without looking at it
+          keyBytes = storageEngine.rawRecordBytes(key, source);
+        } else {
+          StorageUnit storageUnit = storageEngine.readStorageUnit(key, source);
+          if (storageUnit == null) {
+            deleted = true;
+            keyBytes = key.length();
+          } else if (!storageUnit.fingerprint().equals(remoteFingerprint)) {
+            keyBytes = storageEngine.rawRecordBytes(key, source);
+          }
+        }
+        boolean pending = !chunkKeys.isEmpty() || !chunk.getDeletedKeys().isEmpty();
+        if (pending && chunkBytes + keyBytes > CHUNK_BYTES) {
+          // the key starts the next chunk, a chunk only outgrows CHUNK_BYTES by a lone record
+          full = true;
+        } else {
+          next++;
+          chunkBytes += keyBytes;
+          if (deleted) {
+            chunk.getDeletedKeys().add(key);
+          } else if (keyBytes > 0) {
+            chunkKeys.add(key);
+          }
+        }
+      }
+      int pending = chunkKeys.size() + chunk.getDeletedKeys().size();
+      boolean last = false;
+      if (caughtUp && (catchUp == null || pending == 0)) {
+        if (catchUp == null) {
+          last = true;
+        } else {
+          // the receiver holds all that was sent before the keys changed meanwhile are collected
+          while (acknowledged < chunk.getSequence() - 1) {
+            DataTransferMessage ack = receive(input);
+            if (ack.getDataTransferMessageType() != CHUNK_ACK) {
+              return ack;
+            }
+            acknowledged = ack.getSequence();
+          }
+          Collection<String> changedKeys = catchUp.changedKeys();
+          if (changedKeys == null) {
+            last = true;
+          } else {
+            // an empty fingerprint matches no unit, so every changed key still held is sent again
+            HashMap<String, String> changed = new HashMap<>();
+            changedKeys.forEach(key -> changed.put(key, ""));
+            remoteDigest.putAll(changed);
+            positions.addAll(mergePositions(Collections.emptyList(), changed));
+            continue;
+          }
+        }
+      }
+      if (full || last || (caughtUp && pending > 0)) {
+        if (last) {
+          chunk.setResumeAfter(positions.isEmpty() ? null : positions.get(positions.size() - 1));
+        } else {
+          chunk.setResumeAfter(positions.get(next - 1));
+        }
+        chunk.setHasMore(!last);
+        chunkEnds.put(chunk.getSequence(), next);
+        if (!send(output, channel, chunk, chunkKeys)) {
+          // records grew since they were measured, cut the chunk again from its first key
+          next = chunkStart;
+          chunk.getDeletedKeys().clear();
+          chunkKeys = new ArrayList<>();
+          chunkBytes = 0;
+          continue;
+        }
+        if (last) {
+          break;
+        }
+        // flow control: wait for the receiver once WINDOW_CHUNKS are in flight
+        while (chunk.getSequence() - acknowledged >= WINDOW_CHUNKS) {
+          DataTransferMessage ack = receive(input);
+          if (ack.getDataTransferMessageType() != CHUNK_ACK) {
+            return ack;
+          }
+          acknowledged = ack.getSequence();
+        }
+        chunk = newChunk();
+        chunkKeys = new ArrayList<>();
+        chunkBytes = 0;
+        chunkStart = next;
+      }
+    }
+    while (true) {
+      DataTransferMessage reply = receive(input);
+      if (reply.getDataTransferMessageType() != CHUNK_ACK) {
+        return reply;
+      }
+    }
+  }
+
+  private DataTransferMessage newChunk() {
+    DataTransferMessage chunk =
+        new DataTransferMessage(STREAM_CHUNK, new HashSet<>(), "Stream chunk", ecsMessage);
+    chunk.setStreamId(streamId);
+    chunk.setSequence(nextSequence++);
+    chunk.setStorageType(destination);
+    chunk.setDeletedKeys(new HashSet<>());
+    return chunk;
+  }
+
+  /**
+   * Send chunk followed by the raw records of keys, which the storage engine writes straight to the
+   * socket channel once the chunk announcing their length is out.
+   *
+   * @return false if nothing was sent because the records of several keys outgrew CHUNK_BYTES since
+   *     they were measured.
+   */
+  private boolean send(
+      OutputStream output,
+      WritableByteChannel channel,
+      DataTransferMessage chunk,
+      List<String> keys)
+      throws IOException, DiskStorageException {
+    if (keys.isEmpty()) {
+      Protocol.sendMessage(output, chunk);
+      keysDeleted += chunk.getDeletedKeys().size();
+      return true;
+    }
+    chunk.setSubscriptions(storageEngine.getSubscriptions(keys, source));
+    long records;
+    try {
+      records =
+          storageEngine.exportRawRecords(
+              keys,
+              source,
+              totalBytes -> {
+                if (totalBytes > CHUNK_BYTES && keys.size() > 1) {
+                  throw new ChunkOverflow();
+                }
+                chunk.setRawLength(totalBytes);
+                Protocol.sendMessage(output, chunk);
+                return channel;
+              });
+    } catch (ChunkOverflow e) {
+      return false;
+    }
+    keysDeleted += chunk.getDeletedKeys().size();
+    unitsSent += records;
+    return true;
+  }
+
+  /** Thrown by the sink of a chunk whose records outgrew it, before any of it is sent. */
+  private static class ChunkOverflow extends IOException {}
+
+  private DataTransferMessage receive(InputStream input) throws IOException, ProtocolException {
+    Message reply = Protocol.receiveMessage(input);
+    if (!(reply instanceof DataTransferMessage)) {
+      throw new ProtocolException("Unexpected reply to data transfer: " + reply);
+    }
+    return (DataTransferMessage) reply;
+  }
+
+  private DataTransferMessage failure(String message) {
+    return new DataTransferMessage(
+        DATA_TRANSFER_FAILURE,
+        "Stream to " + receiver.getNodeName() + " failed: " + message,
+        ecsMessage);
+  }
+
+  /** @return the ring positions of localKeys and the keys of remoteDigest, in ring order. */
+  private static List<String> mergePositions(
+      List<String> localKeys, HashMap<String, String> remoteDigest) {
+    ArrayList<String> positions = new ArrayList<>(localKeys.size() + remoteDigest.size());
+    for (String key : localKeys) {
+      positions.add(ECSUtils.ringPosition(key));
+    }
+    for (String key : remoteDigest.keySet()) {
+      positions.add(ECSUtils.ringPosition(key));
+    }
+    Collections.sort(positions);
+    // drop the keys held by both sides
+    int distinct = 0;
+    for (int i = 0; i < positions.size(); i++) {
+      if (distinct == 0 || !positions.get(i).equals(positions.get(distinct - 1))) {
+        positions.set(distinct++, positions.get(i));
+      }
+    }
+    return new ArrayList<>(positions.subList(0, distinct));
+  }
+}
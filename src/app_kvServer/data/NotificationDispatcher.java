@@ -0,0 +1,275 @@
+package app_kvServer.data;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import org.apache.log4j.Logger;
+import shared.communication.messages.KVMessage;
+
+/**
+ * Sends the NOTIFY messages of changed keys to their subscribers on a small pool of threads.
+ *
+ * <p>Every subscriber has a queue of the keys that changed since it was last notified, holding the
+ * latest value of each: a key that changes again before the subscriber was sent the previous change
+ * replaces it where it was queued, so a slow subscriber is sent fewer, newer values. Once
+ * maxQueuedKeys are queued for a subscriber the oldest is dropped. Changes are queued in the order
+ * they are given, SynchronizedKVManager gives them under the lock of their key.
+ *
+ * <p>A subscriber whose connection is gone or stopped is forgotten by the thread that would have
+ * notified it, its queue is dropped and its connection removed from the connections the dispatcher
+ * was given.
+ *
+ * <p>Queue lengths, coalesced and dropped changes and the time changes waited are published over
+ * JMX as app_kvServer:type=NotificationDispatcher.
+ */
+public class NotificationDispatcher implements NotificationDispatcherMBean {
+  private static final Logger logger = Logger.getLogger(NotificationDispatcher.class);
+  // a thread notifies this many changes of a subscriber before others get a turn
+  private static final int NOTIFICATIONS_PER_TURN = 64;
+
+  /** Where a subscriber is notified, a connection of its client. */
+  public interface Subscriber {
+    boolean isRunning();
+
+    void notifyClient(KVMessage notification);
+  }
+
+  private final ConcurrentMap<UUID, ? extends Subscriber> connections;
+  private final int maxQueuedKeys;
+  private final ExecutorService threads;
+  private final ConcurrentHashMap<UUID, Queue> queues = new ConcurrentHashMap<>();
+  private final AtomicInteger queued = new AtomicInteger();
+  private final AtomicLong sent = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong lagNanos = new AtomicLong();
+  private final AtomicLong maxLagNanos = new AtomicLong();
+  private ObjectName name;
+
+  /**
+   * @param connections the connection of every client, by client id.
+   * @param name distinguishes the metrics of dispatchers in the same JVM.
+   */
+  public NotificationDispatcher(
+      final ConcurrentMap<UUID, ? extends Subscriber> connections,
+      final int threads,
+      final int maxQueuedKeys,
+      final String name) {
+    this.connections = connections;
+    this.maxQueuedKeys = maxQueuedKeys;
+    AtomicInteger number = new AtomicInteger();
+    this.threads =
+        Executors.newFixedThreadPool(
+            threads,
+            task -> {
+              Thread thread = new Thread(task, "Notifier " + number.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+    try {
+      this.name =
+          new ObjectName("app_kvServer:type=NotificationDispatcher,node=" + ObjectName.quote(name));
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, this.name);
+    } catch (JMException e) {
+      logger.warn("Unable to publish metrics over JMX", e);
+      this.name = null;
+    }
+  }
+
+  /** A change waiting to be sent, the latest of its key. */
+  private static class Change {
+    private final KVMessage notification;
+    private final long queuedAt;
+
+    private Change(KVMessage notification, long queuedAt) {
+      this.notification = notification;
+      this.queuedAt = queuedAt;
+    }
+  }
+
+  /** The changes waiting for a subscriber, in the order their keys first changed. */
+  private class Queue implements Runnable {
+    private final UUID subscriberId;
+    // guarded by this
+    private final LinkedHashMap<String, Change> changes = new LinkedHashMap<>();
+    private boolean scheduled;
+    private boolean retired;
+
+    private Queue(UUID subscriberId) {
+      this.subscriberId = subscriberId;
+    }
+
+    /** @return false if the queue was retired and may no longer be added to. */
+    private boolean add(KVMessage notification, long now) {
+      synchronized (this) {
+        if (retired) {
+          return false;
+        }
+        Change previous = changes.get(notification.getKey());
+        if (previous != null) {
+          // keeps its place in the queue, and the time the subscriber has been waiting
+          changes.put(notification.getKey(), new Change(notification, previous.queuedAt));
+          coalesced.incrementAndGet();
+        } else {
+          if (changes.size() >= maxQueuedKeys) {
+            Iterator<Change> oldest = changes.values().iterator();
+            oldest.next();
+            oldest.remove();
+            queued.decrementAndGet();
+            dropped.incrementAndGet();
+          }
+          changes.put(notification.getKey(), new Change(notification, now));
+          queued.incrementAndGet();
+        }
+        if (scheduled) {
+          return true;
+        }
+        scheduled = true;
+      }
+      schedule();
+      return true;
+    }
+
+    private void schedule() {
+      try {
+        threads.execute(this);
+      } catch (RejectedExecutionException e) {
+        logger.debug("Notifier stopped, dropping notifications of " + subscriberId);
+        retire();
+      }
+    }
+
+    @Override
+    public void run() {
+      Subscriber connection = connections.get(subscriberId);
+      if (connection == null || !connection.isRunning()) {
+        logger.info("Connection to subscriber " + subscriberId + " is gone, forgetting it");
+        if (connection != null) {
+          connections.remove(subscriberId, connection);
+        }
+        retire();
+        return;
+      }
+      for (int i = 0; i < NOTIFICATIONS_PER_TURN; i++) {
+        Change change;
+        synchronized (this) {
+          Iterator<Change> next = changes.values().iterator();
+          if (!next.hasNext()) {
+            // an idle subscriber holds no queue, its next change starts a new one
+            retired = true;
+            queues.remove(subscriberId, this);
+            return;
+          }
+          change = next.next();
+          next.remove();
+          queued.decrementAndGet();
+        }
+        long lag = System.nanoTime() - change.queuedAt;
+        lagNanos.addAndGet(lag);
+        maxLagNanos.accumulateAndGet(lag, Math::max);
+        try {
+          connection.notifyClient(change.notification);
+          sent.incrementAndGet();
+        } catch (RuntimeException e) {
+          logger.error("Unable to notify subscriber " + subscriberId, e);
+          dropped.incrementAndGet();
+        }
+      }
+      schedule();
+    }
+
+    private void retire() {
+      synchronized (this) {
+        retired = true;
+        queued.addAndGet(-changes.size());
+        dropped.addAndGet(changes.size());
+        changes.clear();
+      }
+      queues.remove(subscriberId, this);
+    }
+  }
+
+  /** Queue the change of a key, given as its NOTIFY message, for each of the subscribers. */
+  public void notify(final Collection<UUID> subscribers, final KVMessage notification) {
+    if (subscribers == null) {
+      return;
+    }
+    long now = System.nanoTime();
+    for (UUID subscriberId : subscribers) {
+      while (!queues.computeIfAbsent(subscriberId, Queue::new).add(notification, now)) {
+        // the queue was retired just now, the next one takes it
+      }
+    }
+  }
+
+  public void shutdown() {
+    threads.shutdown();
+    if (name != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+      } catch (JMException e) {
+        logger.warn("Unable to withdraw metrics from JMX", e);
+      }
+    }
+  }
+
+  @Override
+  public int getQueuedNotifications() {
+    return queued.get();
+  }
+
+  @Override
+  public int getQueuedSubscribers() {
+    return queues.size();
+  }
+
+  @Override
+  public long getSentNotifications() {
+    return sent.get();
+  }
+
+  @Override
+  public long getCoalescedNotifications() {
+    return coalesced.get();
+  }
+
+  @Override
+  public long getDroppedNotifications() {
+    return dropped.get();
+  }
+
+  @Override
+  public double getMeanLagMillis() {
+    long count = sent.get();
+    return count == 0 ? 0 : lagNanos.get() / 1e6 / count;
+  }
+
+  @Override
+  public double getMaxLagMillis() {
+    return maxLagNanos.get() / 1e6;
+  }
+
+  /** @return whether every queued change was sent or dropped within the timeout. */
+  public boolean awaitIdle(final long timeout, final TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (!queues.isEmpty()) {
+      if (System.nanoTime() > deadline) {
+        return false;
+      }
+      TimeUnit.MILLISECONDS.sleep(1);
+    }
+    return true;
+  }
+}
@@ -0,0 +1,22 @@
+package app_kvServer.data;
+
+/** What a NotificationDispatcher publishes over JMX. */
+public interface NotificationDispatcherMBean {
+  /** @return how many changes wait to be sent, over all subscribers. */
+  int getQueuedNotifications();
+
+  int getQueuedSubscribers();
+
+  long getSentNotifications();
+
+  /** @return how many changes replaced an earlier change of their key that was not sent yet. */
+  long getCoalescedNotifications();
+
+  /** @return how many changes were not sent, because a queue was full or a subscriber gone. */
+  long getDroppedNotifications();
+
+  /** @return how long the changes sent waited in their queue on average. */
+  double getMeanLagMillis();
+
+  double getMaxLagMillis();
+}
@@ -0,0 +1,50 @@
+package app_kvServer.data;
+
+import ecs.ECSUtils;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Catch-up log of a hash range being handed over to another node. While the range is streamed,
+ * writes to it carry on and only their keys are noted here, to be sent again once the stream is
+ * done. Freezing the handoff rejects further writes to the range for the short final round.
+ *
+ * <p>Writes to different keys are recorded concurrently. The SynchronizedKVManager drains and
+ * freezes the handoff while holding every key lock, so no write is in progress meanwhile.
+ */
+class RangeHandoff {
+  private final String[] hashRange;
+  private volatile Set<String> changedKeys = ConcurrentHashMap.newKeySet();
+  private volatile boolean frozen = false;
+
+  RangeHandoff(String[] hashRange) {
+    this.hashRange = hashRange;
+  }
+
+  boolean covers(String key) {
+    return ECSUtils.checkIfKeyBelongsInRange(key, hashRange);
+  }
+
+  void recordWrite(String key) {
+    changedKeys.add(key);
+  }
+
+  /** @return the keys written since the last call. */
+  Set<String> drainChangedKeys() {
+    Set<String> drained = changedKeys;
+    changedKeys = ConcurrentHashMap.newKeySet();
+    return drained;
+  }
+
+  void freeze() {
+    frozen = true;
+  }
+
+  boolean isFrozen() {
+    return frozen;
+  }
+
+  String[] getHashRange() {
+    return hashRange;
+  }
+}
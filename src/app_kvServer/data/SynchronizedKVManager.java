@@ -1,8 +1,12 @@
 package app_kvServer.data;
 
+import static shared.communication.messages.DataTransferMessage.DataTransferMessageType.CHUNK_ACK;
 import static shared.communication.messages.DataTransferMessage.DataTransferMessageType.DATA_TRANSFER_FAILURE;
 import static shared.communication.messages.DataTransferMessage.DataTransferMessageType.DATA_TRANSFER_REQUEST;
 import static shared.communication.messages.DataTransferMessage.DataTransferMessageType.DATA_TRANSFER_SUCCESS;
+import static shared.communication.messages.DataTransferMessage.DataTransferMessageType.DIGEST;
+import static shared.communication.messages.DataTransferMessage.DataTransferMessageType.STREAM_CHUNK;
+import static shared.communication.messages.DataTransferMessage.DataTransferMessageType.STREAM_RESUME;
 import static shared.communication.messages.KVMessage.StatusType.DELETE_SUCCESS;
 import static shared.communication.messages.KVMessage.StatusType.NOTIFY;
 import static shared.communication.messages.KVMessage.StatusType.PUT;
@@ -15,20 +19,38 @@ import app_kvServer.KVServerConnection;
 import app_kvServer.data.cache.CacheStrategy;
 import app_kvServer.data.cache.ThreadSafeCache;
 import app_kvServer.data.cache.ThreadSafeCacheFactory;
-import app_kvServer.data.storage.DiskStorage;
 import app_kvServer.data.storage.DiskStorageException;
+import app_kvServer.data.storage.StorageEngine;
+import app_kvServer.data.storage.StorageEngineConfig;
+import app_kvServer.data.storage.StorageEngineFactory;
+import app_kvServer.data.storage.StorageStrategy;
 import app_kvServer.data.storage.StorageUnit;
 import ecs.ECSMetadata;
 import ecs.ECSNode;
 import ecs.ECSUtils;
+import ecs.HashRing;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import org.apache.log4j.Logger;
 import shared.communication.messages.DataTransferMessage;
@@ -36,30 +58,69 @@ import shared.communication.messages.ECSMessage;
 import shared.communication.messages.KVMessage;
 import shared.communication.security.Hashing;
 
+/**
+ * Serves the requests of a node against its cache and StorageEngine.
+ *
+ * <p>GETs take no lock. Writes are serialized per key through striped locks picked by the key's
+ * ring hash: the cache, the storage and the notifications of a key change in the order its writes
+ * take the lock. Keys of different stripes are written in parallel. Operations on whole ranges that
+ * must not interleave with writes, such as freezing a handoff, take every stripe.
+ *
+ * <p>Notifications are only queued under the lock, a NotificationDispatcher sends them.
+ */
 public final class SynchronizedKVManager {
   private static final int MAX_KEY_BYTES = 20; // 20 Bytes
   private static final int MAX_VALUE_BYTES = 120 * 1024; // 120 KB
+  private static final int DIGEST_CHUNK_KEYS = 4096;
+  private static final int MAX_OPEN_STREAMS = 16;
+  // catch-up rounds of a handoff before freezing the range regardless of what is left
+  private static final int MAX_CATCH_UP_ROUNDS = 5;
+  private static final int FREEZE_BELOW_KEYS = 256;
+  // a power of two, see stripe
+  private static final int KEY_STRIPES = 1024;
+  private static final int NOTIFIER_THREADS = 4;
+  // changed keys queued for a subscriber, beyond which the oldest are dropped
+  private static final int MAX_QUEUED_NOTIFICATIONS = 1024;
   private static final Logger logger = Logger.getLogger(SynchronizedKVManager.class);
   private static SynchronizedKVManager INSTANCE;
   private final ThreadSafeCache<String, String> cache;
-  private final DiskStorage diskStorage;
+  private final StorageEngine storageEngine;
   private final AtomicBoolean writeEnabled = new AtomicBoolean(true);
   private final String nodeName;
   private final ConcurrentHashMap<UUID, KVServerConnection> connections = new ConcurrentHashMap<>();
+  private final NotificationDispatcher notifier;
+  private final ReentrantLock[] keyLocks = new ReentrantLock[KEY_STRIPES];
+  // bumped whenever a key of the stripe changes, so a GET that read the key from storage can tell
+  // whether the value may be stale by the time it caches it
+  private final AtomicLongArray stripeVersions = new AtomicLongArray(KEY_STRIPES);
+  // ranges handed over by MOVE_DATA
+  private final List<RangeHandoff> handoffs = new CopyOnWriteArrayList<>();
+  // acknowledgement of the last chunk ingested for every incoming stream, to resume from
+  private final Map<String, DataTransferMessage> openStreams = streamMap();
+  // the answer to the last chunk of recently ingested streams, for senders that missed it
+  private final Map<String, DataTransferMessage> completedStreams = streamMap();
 
   private SynchronizedKVManager(
       final int cacheSize,
       final CacheStrategy cacheStrategy,
       final String nodeName,
-      boolean encrypted) {
+      boolean encrypted,
+      final StorageEngineConfig storageEngineConfig) {
     cache = new ThreadSafeCacheFactory<String, String>().getCache(cacheSize, cacheStrategy);
     try {
-      diskStorage = new DiskStorage(nodeName, encrypted);
+      storageEngine =
+          new StorageEngineFactory().getStorageEngine(storageEngineConfig, nodeName, encrypted);
     } catch (DiskStorageException e) {
       // TODO What do we do when there is a problem with storage?
       throw new ExceptionInInitializerError(e);
     }
     this.nodeName = nodeName;
+    this.notifier =
+        new NotificationDispatcher(
+            connections, NOTIFIER_THREADS, MAX_QUEUED_NOTIFICATIONS, nodeName);
+    for (int i = 0; i < KEY_STRIPES; i++) {
+      keyLocks[i] = new ReentrantLock();
+    }
   }
 
   public static SynchronizedKVManager getInstance() {
@@ -74,10 +135,30 @@ public final class SynchronizedKVManager {
       final CacheStrategy cacheStrategy,
       final String nodeName,
       boolean encrypted) {
+    initialize(
+        cacheSize,
+        cacheStrategy,
+        nodeName,
+        encrypted,
+        new StorageEngineConfig(StorageStrategy.LOG_STRUCTURED));
+  }
+
+  public static synchronized void initialize(
+      final int cacheSize,
+      final CacheStrategy cacheStrategy,
+      final String nodeName,
+      boolean encrypted,
+      final StorageEngineConfig storageEngineConfig) {
     if (INSTANCE != null) {
       throw new AssertionError("Instance has already been initialized.");
     }
-    INSTANCE = new SynchronizedKVManager(cacheSize, cacheStrategy, nodeName, encrypted);
+    INSTANCE =
+        new SynchronizedKVManager(
+            cacheSize, cacheStrategy, nodeName, encrypted, storageEngineConfig);
+  }
+
+  public NotificationDispatcher getNotificationDispatcher() {
+    return notifier;
   }
 
   public void addConnection(KVServerConnection connection) {
@@ -87,12 +168,43 @@ public final class SynchronizedKVManager {
     logger.info("Connection added: " + connections.get(connection.getClientId()));
   }
 
-  public synchronized void setWriteEnabled(boolean writeEnabled) {
-    this.writeEnabled.set(writeEnabled);
+  /** Writes in progress finish first, none are accepted afterwards while writes are disabled. */
+  public void setWriteEnabled(boolean writeEnabled) {
+    withAllKeysLocked(
+        () -> {
+          this.writeEnabled.set(writeEnabled);
+          if (writeEnabled) {
+            releaseHandedOffRanges();
+          }
+          return null;
+        });
   }
 
-  public synchronized KVMessage handleClientRequest(final KVMessage request) {
-    if (!messageIsValidSize(request)) {
+  /**
+   * Accept writes again to ranges handed over to other nodes, once the metadata says who owns them.
+   */
+  public void releaseHandedOffRanges() {
+    handoffs.removeIf(RangeHandoff::isFrozen);
+  }
+
+  /**
+   * Serve a client request. The response to a write is held back, outside the lock, until the
+   * storage engine made the write as durable as its Durability asks for.
+   */
+  public KVMessage handleClientRequest(final KVMessage request) {
+    return awaitDurability(request, applyClientRequest(request));
+  }
+
+  public KVMessage handleServerRequest(final KVMessage request) {
+    return awaitDurability(request, applyServerRequest(request));
+  }
+
+  private static KVMessage awaitDurability(
+      final KVMessage request, final StorageEngine.WriteResponse response) {
+    try {
+      response.getDurable().join();
+    } catch (CompletionException e) {
+      logger.error("Write could not be made durable: " + request, e.getCause());
       return new KVMessage(
           request.getKey(),
           request.getValue(),
@@ -100,113 +212,164 @@ public final class SynchronizedKVManager {
           KVMessage.StatusType.FAILED,
           request.getRequestId());
     }
+    return response.getKvMessageResponse();
+  }
+
+  private static StorageEngine.WriteResponse notWritten(final KVMessage response) {
+    return new StorageEngine.WriteResponse(response, new ArrayList<>());
+  }
+
+  private StorageEngine.WriteResponse applyClientRequest(final KVMessage request) {
+    if (!messageIsValidSize(request)) {
+      return notWritten(
+          new KVMessage(
+              request.getKey(),
+              request.getValue(),
+              request.getClientId(),
+              KVMessage.StatusType.FAILED,
+              request.getRequestId()));
+    }
     switch (request.getStatus()) {
       case GET:
         logger.info("Received a GET request for key: " + request.getKey());
-        return getKV(request);
+        return notWritten(getKV(request));
       case PUT:
       case SUBSCRIBE:
       case UNSUBSCRIBE:
         logger.info("Received a " + request.getStatus() + " request for key: " + request.getKey());
         return writeKV(request);
       default:
-        return new KVMessage(
-            request.getKey(),
-            request.getValue(),
-            request.getClientId(),
-            KVMessage.StatusType.FAILED,
-            request.getRequestId());
+        return notWritten(
+            new KVMessage(
+                request.getKey(),
+                request.getValue(),
+                request.getClientId(),
+                KVMessage.StatusType.FAILED,
+                request.getRequestId()));
     }
   }
 
-  public synchronized KVMessage handleServerRequest(final KVMessage request) {
+  /**
+   * Replicated writes only touch the replica files, which the storage engine locks on its own, so
+   * they don't take the key locks of client writes.
+   */
+  private StorageEngine.WriteResponse applyServerRequest(final KVMessage request) {
     if (request.getStatus() == PUT
         || request.getStatus() == SUBSCRIBE
         || request.getStatus() == UNSUBSCRIBE) {
       logger.info("Received a replication request for key: " + request.getKey());
       return handleReplication(request);
     }
-    return new KVMessage(
-        request.getKey(),
-        request.getValue(),
-        request.getClientId(),
-        KVMessage.StatusType.FAILED,
-        request.getRequestId());
+    return notWritten(
+        new KVMessage(
+            request.getKey(),
+            request.getValue(),
+            request.getClientId(),
+            KVMessage.StatusType.FAILED,
+            request.getRequestId()));
   }
 
-  private KVMessage handleReplication(KVMessage request) {
-    DiskStorage.StorageType storageType = returnReplicaType(request);
+  private StorageEngine.WriteResponse handleReplication(KVMessage request) {
+    StorageEngine.StorageType storageType = returnReplicaType(request);
     if (storageType == null) {
       logger.info(
           "Node not responsible for replication of the request with key: "
               + request.getKey()
               + " hash: "
               + Hashing.calculateMD5Hash(request.getKey()));
-      return new KVMessage(
-          request.getKey(),
-          request.getValue(),
-          request.getClientId(),
-          KVMessage.StatusType.NOT_RESPONSIBLE,
-          request.getRequestId());
+      return notWritten(
+          new KVMessage(
+              request.getKey(),
+              request.getValue(),
+              request.getClientId(),
+              KVMessage.StatusType.NOT_RESPONSIBLE,
+              request.getRequestId()));
     }
-    return diskStorage.write(request, storageType).getKvMessageResponse();
+    return storageEngine.write(request, storageType);
   }
 
-  public synchronized void clearCache() {
+  /**
+   * Empty the cache. Call after changing the storage behind the writes, so GETs that read the old
+   * values meanwhile don't cache them again, see fillCache.
+   */
+  public void clearCache() {
+    for (int i = 0; i < KEY_STRIPES; i++) {
+      stripeVersions.incrementAndGet(i);
+    }
     cache.purge();
   }
 
+  /** Drop key from the cache after changing it in storage, see clearCache. */
+  private void invalidate(String key) {
+    stripeVersions.incrementAndGet(stripe(key));
+    cache.remove(key);
+  }
+
+  /** @return the stripe of key, taken from the top of its ring hash. */
+  private static int stripe(String key) {
+    return Integer.parseUnsignedInt(Hashing.calculateMD5Hash(key).substring(0, 8), 16)
+        & (KEY_STRIPES - 1);
+  }
+
+  /** Run action while holding every key lock, so no write is in progress and none starts. */
+  private <T> T withAllKeysLocked(Supplier<T> action) {
+    for (ReentrantLock keyLock : keyLocks) {
+      keyLock.lock();
+    }
+    try {
+      return action.get();
+    } finally {
+      for (ReentrantLock keyLock : keyLocks) {
+        keyLock.unlock();
+      }
+    }
+  }
+
   public CacheStrategy getCacheStrategy() {
     return cache.getStrategy();
   }
 
   public DataTransferMessage partitionDatabaseAndGetKeysInRange(
       ECSMessage ecsMessage, String[] hashRange) {
+    DataTransferMessage partition =
+        this.storageEngine.partitionDatabaseAndGetKeysInRange(
+            ecsMessage, hashRange, StorageEngine.StorageType.SELF, true);
     clearCache();
-    return this.diskStorage.partitionDatabaseAndGetKeysInRange(
-        ecsMessage, hashRange, DiskStorage.StorageType.SELF, true);
+    return partition;
   }
 
   public DataTransferMessage getDataChunkForReplication(ECSMessage ecsMessage, String[] hashRange) {
-    return this.diskStorage.partitionDatabaseAndGetKeysInRange(
-        ecsMessage, hashRange, DiskStorage.StorageType.SELF, false);
+    return this.storageEngine.partitionDatabaseAndGetKeysInRange(
+        ecsMessage, hashRange, StorageEngine.StorageType.SELF, false);
   }
 
   public DataTransferMessage handleDataTransfer(DataTransferMessage dataTransferMessage) {
     switch (dataTransferMessage.getDataTransferMessageType()) {
       case DATA_TRANSFER_REQUEST:
-        return this.diskStorage.updateDatabaseWithKVDataTransfer(
+        return this.storageEngine.updateDatabaseWithKVDataTransfer(
             dataTransferMessage, dataTransferMessage.getStorageType());
 
       case MOVE_REPLICA2_TO_REPLICA1:
-        DataTransferMessage replica2Data =
-            this.diskStorage.partitionDatabaseAndGetKeysInRange(
-                dataTransferMessage.getECSMessage(),
-                dataTransferMessage.getHashRange(),
-                DiskStorage.StorageType.REPLICA_2,
-                true);
-        replica2Data.setStorageType(DiskStorage.StorageType.REPLICA_1);
-        return this.diskStorage.updateDatabaseWithKVDataTransfer(
-            replica2Data, replica2Data.getStorageType());
+        return this.storageEngine.moveUnitsInRange(
+            dataTransferMessage.getECSMessage(),
+            dataTransferMessage.getHashRange(),
+            StorageEngine.StorageType.REPLICA_2,
+            StorageEngine.StorageType.REPLICA_1);
 
       case MOVE_REPLICA1_TO_REPLICA2:
-        DataTransferMessage replica1Data =
-            this.diskStorage.partitionDatabaseAndGetKeysInRange(
-                dataTransferMessage.getECSMessage(),
-                dataTransferMessage.getHashRange(),
-                DiskStorage.StorageType.REPLICA_1,
-                true);
-        replica1Data.setStorageType(DiskStorage.StorageType.REPLICA_2);
-        return this.diskStorage.updateDatabaseWithKVDataTransfer(
-            replica1Data, replica1Data.getStorageType());
+        return this.storageEngine.moveUnitsInRange(
+            dataTransferMessage.getECSMessage(),
+            dataTransferMessage.getHashRange(),
+            StorageEngine.StorageType.REPLICA_1,
+            StorageEngine.StorageType.REPLICA_2);
 
       case DELETE_DATA:
         String[] hashRangeToDelete = dataTransferMessage.getHashRange();
-        DiskStorage.StorageType replicaToDeleteFrom = dataTransferMessage.getStorageType();
+        StorageEngine.StorageType replicaToDeleteFrom = dataTransferMessage.getStorageType();
         DataTransferMessage deletionResponse =
-            this.diskStorage.partitionDatabaseAndGetKeysInRange(
-                dataTransferMessage.getECSMessage(), hashRangeToDelete, replicaToDeleteFrom, true);
-        if (deletionResponse.getDataTransferMessageType() == DATA_TRANSFER_REQUEST) {
+            this.storageEngine.deleteUnitsInRange(
+                dataTransferMessage.getECSMessage(), hashRangeToDelete, replicaToDeleteFrom);
+        if (deletionResponse.getDataTransferMessageType() == DATA_TRANSFER_SUCCESS) {
           return new DataTransferMessage(
               DATA_TRANSFER_SUCCESS,
               "Deletion request on node " + this.nodeName + " successful.",
@@ -221,6 +384,28 @@ public final class SynchronizedKVManager {
               dataTransferMessage.getECSMessage());
         }
 
+      case DIGEST_REQUEST:
+        // callers expecting a single reply get the digest in one piece
+        HashMap<String, String> fullDigest = new HashMap<>();
+        DataTransferMessage digestResponse =
+            handleDigestRequest(
+                dataTransferMessage, partialDigest -> fullDigest.putAll(partialDigest.getDigest()));
+        if (digestResponse.getDataTransferMessageType() == DIGEST) {
+          fullDigest.putAll(digestResponse.getDigest());
+          digestResponse.setDigest(fullDigest);
+        }
+        return digestResponse;
+
+      case STREAM_CHUNK:
+        return ingestStreamChunk(dataTransferMessage);
+
+      case STREAM_RESUME:
+        DataTransferMessage lastAck = openStreams.get(dataTransferMessage.getStreamId());
+        if (lastAck == null) {
+          lastAck = completedStreams.get(dataTransferMessage.getStreamId());
+        }
+        return lastAck != null ? lastAck : chunkAck(dataTransferMessage, -1, null);
+
       default:
         return new DataTransferMessage(
             DATA_TRANSFER_FAILURE,
@@ -229,7 +414,285 @@ public final class SynchronizedKVManager {
     }
   }
 
-  private synchronized KVMessage getKV(final KVMessage request) throws NoSuchElementException {
+  /**
+   * Answer a DIGEST_REQUEST with the fingerprint of every key held in the requested range. The
+   * range is read one unit at a time and all but the last DIGEST_CHUNK_KEYS fingerprints are handed
+   * to partialDigests as DIGEST messages flagged hasMore.
+   *
+   * @return the last part of the digest, or DATA_TRANSFER_FAILURE.
+   */
+  public DataTransferMessage handleDigestRequest(
+      DataTransferMessage request, Consumer<DataTransferMessage> partialDigests) {
+    HashMap<String, String> digest = new HashMap<>();
+    int keysInRange = 0;
+    try {
+      List<String> keys =
+          this.storageEngine.keysInRange(request.getHashRange(), request.getStorageType());
+      for (String key : keys) {
+        StorageUnit storageUnit = this.storageEngine.readStorageUnit(key, request.getStorageType());
+        if (storageUnit == null) {
+          continue;
+        }
+        digest.put(key, storageUnit.fingerprint());
+        keysInRange++;
+        if (digest.size() >= DIGEST_CHUNK_KEYS) {
+          partialDigests.accept(digestMessage(request, digest, keysInRange, true));
+          digest = new HashMap<>();
+        }
+      }
+    } catch (DiskStorageException e) {
+      return new DataTransferMessage(
+          DATA_TRANSFER_FAILURE, e.getLocalizedMessage(), request.getECSMessage());
+    }
+    return digestMessage(request, digest, keysInRange, false);
+  }
+
+  private DataTransferMessage digestMessage(
+      DataTransferMessage request,
+      HashMap<String, String> digest,
+      int keysInRange,
+      boolean hasMore) {
+    DataTransferMessage digestResponse =
+        new DataTransferMessage(
+            DIGEST,
+            "Node "
+                + this.nodeName
+                + (hasMore ? " holds at least " : " holds ")
+                + keysInRange
+                + " keys in range",
+            request.getECSMessage());
+    digestResponse.setDigest(digest);
+    digestResponse.setHasMore(hasMore);
+    return digestResponse;
+  }
+
+  /**
+   * Ingest the next chunk of a stream sent by a DataTransferStream. Chunks must arrive in sequence.
+   *
+   * @return a CHUNK_ACK, or DATA_TRANSFER_SUCCESS once the last chunk is ingested.
+   */
+  private DataTransferMessage ingestStreamChunk(DataTransferMessage chunk) {
+    String streamId = chunk.getStreamId();
+    DataTransferMessage completed = completedStreams.get(streamId);
+    if (completed != null) {
+      // the sender resent the last chunk, it was ingested already
+      return completed;
+    }
+    DataTransferMessage lastAck = openStreams.get(streamId);
+    long expectedSequence = lastAck == null ? 0 : lastAck.getSequence() + 1;
+    if (chunk.getSequence() < expectedSequence) {
+      return chunkAck(chunk, chunk.getSequence(), chunk.getResumeAfter());
+    } else if (chunk.getSequence() > expectedSequence) {
+      openStreams.remove(streamId);
+      return new DataTransferMessage(
+          DATA_TRANSFER_FAILURE,
+          "Stream "
+              + streamId
+              + " expected chunk "
+              + expectedSequence
+              + " got "
+              + chunk.getSequence(),
+          chunk.getECSMessage());
+    }
+    DataTransferMessage result =
+        this.storageEngine.updateDatabaseWithKVDataTransfer(chunk, chunk.getStorageType());
+    if (chunk.getStorageType() == StorageEngine.StorageType.SELF) {
+      if (chunk.getRawRecords() != null) {
+        // keys of raw records are only known once they are read
+        clearCache();
+      } else {
+        chunk.getPayload().forEach(storageUnit -> invalidate(storageUnit.key));
+        chunk.getDeletedKeys().forEach(this::invalidate);
+      }
+    }
+    if (result.getDataTransferMessageType() != DATA_TRANSFER_SUCCESS) {
+      openStreams.remove(streamId);
+      return result;
+    }
+    if (!chunk.hasMore()) {
+      openStreams.remove(streamId);
+      DataTransferMessage success =
+          new DataTransferMessage(
+              DATA_TRANSFER_SUCCESS,
+              "Node "
+                  + this.nodeName
+                  + " ingested stream in "
+                  + (chunk.getSequence() + 1)
+                  + " chunks",
+              chunk.getECSMessage());
+      success.setStreamId(streamId);
+      completedStreams.put(streamId, success);
+      return success;
+    }
+    DataTransferMessage ack = chunkAck(chunk, chunk.getSequence(), chunk.getResumeAfter());
+    openStreams.put(streamId, ack);
+    return ack;
+  }
+
+  /**
+   * @return whether request is a chunk or resume of a stream this node is ingesting or has just
+   *     ingested, sent with the ECSMessage of the chunk that opened it. Its ECSMessage was verified
+   *     then and may be taken as used once the stream ends, the stream's sequence tells resent
+   *     chunks apart.
+   */
+  public boolean continuesStream(DataTransferMessage request) {
+    if ((request.getDataTransferMessageType() != STREAM_CHUNK
+            && request.getDataTransferMessageType() != STREAM_RESUME)
+        || request.getStreamId() == null
+        || request.getECSMessage() == null
+        || request.getECSMessage().getMAC() == null) {
+      return false;
+    }
+    DataTransferMessage known = openStreams.get(request.getStreamId());
+    if (known == null) {
+      known = completedStreams.get(request.getStreamId());
+    }
+    return known != null
+        && known.getECSMessage() != null
+        && Objects.equals(known.getECSMessage().getMAC(), request.getECSMessage().getMAC());
+  }
+
+  private static Map<String, DataTransferMessage> streamMap() {
+    return Collections.synchronizedMap(
+        new LinkedHashMap<String, DataTransferMessage>() {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, DataTransferMessage> eldest) {
+            return size() > MAX_OPEN_STREAMS;
+          }
+        });
+  }
+
+  private static DataTransferMessage chunkAck(
+      DataTransferMessage request, long sequence, String resumeAfter) {
+    DataTransferMessage ack =
+        new DataTransferMessage(
+            CHUNK_ACK, "Chunk " + sequence + " ingested", request.getECSMessage());
+    ack.setStreamId(request.getStreamId());
+    ack.setSequence(sequence);
+    ack.setResumeAfter(resumeAfter);
+    return ack;
+  }
+
+  /**
+   * Prepare a transfer of the units of source in hashRange to the destination storage of receiver.
+   */
+  public DataTransferStream openTransferStream(
+      ECSMessage ecsMessage,
+      String[] hashRange,
+      ECSNode receiver,
+      StorageEngine.StorageType source,
+      StorageEngine.StorageType destination) {
+    return new DataTransferStream(
+        this.storageEngine, ecsMessage, hashRange, receiver, source, destination);
+  }
+
+  /**
+   * Move the node's own units in hashRange to receiver without blocking writes for the length of
+   * the transfer. The range is streamed while writes to it are noted in a catch-up log, which is
+   * then sent in rounds until little is left, all in the one stream: the receiver takes the
+   * ECSMessage as used once the stream ends. Writes to the range are only rejected during the final
+   * round and stay rejected after the units are dropped locally, until new metadata arrives or
+   * writes are unlocked.
+   *
+   * @return DATA_TRANSFER_SUCCESS once the receiver holds the range, DATA_TRANSFER_FAILURE
+   *     otherwise, in which case the range stays in place and open for writes.
+   */
+  public DataTransferMessage handOffRange(
+      ECSMessage ecsMessage, String[] hashRange, ECSNode receiver) {
+    RangeHandoff handoff = new RangeHandoff(hashRange);
+    handoffs.add(handoff);
+    AtomicInteger rounds = new AtomicInteger();
+    DataTransferMessage reply =
+        openTransferStream(
+                ecsMessage,
+                hashRange,
+                receiver,
+                StorageEngine.StorageType.SELF,
+                StorageEngine.StorageType.SELF)
+            .catchingUp(
+                () -> {
+                  // the keys of the round that froze the range were the last to send
+                  if (handoff.isFrozen()) {
+                    return null;
+                  }
+                  final boolean lastRound = rounds.incrementAndGet() > MAX_CATCH_UP_ROUNDS;
+                  Set<String> changedKeys =
+                      withAllKeysLocked(
+                          () -> {
+                            Set<String> drained = handoff.drainChangedKeys();
+                            if (drained.size() < FREEZE_BELOW_KEYS || lastRound) {
+                              handoff.freeze();
+                            }
+                            return drained;
+                          });
+                  logger.info(
+                      String.format(
+                          "Handoff of %s: %d keys written meanwhile%s",
+                          Arrays.toString(hashRange),
+                          changedKeys.size(),
+                          handoff.isFrozen() ? ", range frozen" : ""));
+                  return changedKeys;
+                })
+            .transfer();
+    if (reply.getDataTransferMessageType() != DATA_TRANSFER_SUCCESS) {
+      handoffs.remove(handoff);
+      return reply;
+    }
+    DataTransferMessage deletion = deleteKeysInRange(ecsMessage, hashRange);
+    if (deletion.getDataTransferMessageType() != DATA_TRANSFER_SUCCESS) {
+      logger.error("Could not delete moved keys: " + deletion.getMessage());
+    }
+    return reply;
+  }
+
+  /** Drop the node's own units in hashRange once they were handed over to another node. */
+  public DataTransferMessage deleteKeysInRange(ECSMessage ecsMessage, String[] hashRange) {
+    DataTransferMessage deletion =
+        this.storageEngine.deleteUnitsInRange(
+            ecsMessage, hashRange, StorageEngine.StorageType.SELF);
+    clearCache();
+    return deletion;
+  }
+
+  /**
+   * Reduce a transfer to what its receiver is missing, given the receiver's answer to a
+   * DIGEST_REQUEST for the same range: units it holds an identical version of are left out and keys
+   * it holds that the transfer lacks are listed for deletion. A node restarted on its old data thus
+   * only receives the writes it missed while down.
+   *
+   * @return the reduced transfer, or transfer itself if digestResponse is not a DIGEST.
+   */
+  public DataTransferMessage getDelta(
+      DataTransferMessage transfer, DataTransferMessage digestResponse) {
+    if (digestResponse == null || digestResponse.getDataTransferMessageType() != DIGEST) {
+      return transfer;
+    }
+    HashMap<String, String> remoteDigest = digestResponse.getDigest();
+    HashSet<StorageUnit> changedUnits = new HashSet<>();
+    HashSet<String> deletedKeys = new HashSet<>(remoteDigest.keySet());
+    for (StorageUnit storageUnit : transfer.getPayload()) {
+      deletedKeys.remove(storageUnit.key);
+      if (!storageUnit.fingerprint().equals(remoteDigest.get(storageUnit.key))) {
+        changedUnits.add(storageUnit);
+      }
+    }
+    logger.info(
+        "Sending "
+            + changedUnits.size()
+            + " of "
+            + transfer.getPayload().size()
+            + " units and "
+            + deletedKeys.size()
+            + " deletions");
+    DataTransferMessage delta =
+        new DataTransferMessage(
+            DATA_TRANSFER_REQUEST, changedUnits, transfer.getMessage(), transfer.getECSMessage());
+    delta.setStorageType(transfer.getStorageType());
+    delta.setDeletedKeys(deletedKeys);
+    return delta;
+  }
+
+  private KVMessage getKV(final KVMessage request) throws NoSuchElementException {
     if (!checkNodeResponsibleForRequest(request)) {
       logger.info(
           "Node not responsible for request with key: "
@@ -251,44 +714,71 @@ public final class SynchronizedKVManager {
           KVMessage.StatusType.GET_SUCCESS,
           request.getRequestId());
     } catch (NoSuchElementException e) {
-      DiskStorage.StorageType storage = returnReplicaType(request);
+      StorageEngine.StorageType storage = returnReplicaType(request);
       if (storage == null) {
-        storage = DiskStorage.StorageType.SELF;
+        storage = StorageEngine.StorageType.SELF;
       }
-      final KVMessage result = diskStorage.get(request, storage);
+      int stripe = stripe(request.getKey());
+      long version = stripeVersions.get(stripe);
+      final KVMessage result = storageEngine.get(request, storage);
       if (result.getStatus() == KVMessage.StatusType.GET_SUCCESS) {
-        cache.put(request.getKey(), result.getValue());
+        fillCache(stripe, version, request.getKey(), result.getValue());
       }
       return result;
     }
   }
 
-  private DiskStorage.StorageType returnReplicaType(KVMessage request) {
-    String key = request.getKey();
+  /**
+   * Cache a value read from storage, unless the stripe of its key changed since version was read,
+   * in which case the value may already be stale. A stripe busy with a write is left alone rather
+   * than waited for.
+   */
+  private void fillCache(int stripe, long version, String key, String value) {
+    ReentrantLock keyLock = keyLocks[stripe];
+    if (!keyLock.tryLock()) {
+      return;
+    }
+    try {
+      if (stripeVersions.get(stripe) == version) {
+        cache.put(key, value);
+        // clearCache and invalidate don't take the lock, one of them may have just missed the put
+        if (stripeVersions.get(stripe) != version) {
+          cache.remove(key);
+        }
+      }
+    } finally {
+      keyLock.unlock();
+    }
+  }
+
+  private StorageEngine.StorageType returnReplicaType(KVMessage request) {
+    String hash = Hashing.calculateMD5Hash(request.getKey());
     ECSNode[] replicas =
         ECSMetadata.getInstance().getNodesWhereIAmReplicaBasedOnName(this.nodeName);
-    logger.debug(
-        String.format(
-            "Nodes where %s is a replica: %s",
-            this.nodeName,
-            Arrays.stream(replicas).map(ECSNode::getNodeName).collect(Collectors.toList())));
+    if (logger.isDebugEnabled()) {
+      logger.debug(
+          String.format(
+              "Nodes where %s is a replica: %s",
+              this.nodeName,
+              Arrays.stream(replicas).map(ECSNode::getNodeName).collect(Collectors.toList())));
+    }
 
     if (replicas == null || replicas.length == 0) {
       logger.error("Could not find any replicas");
       return null;
     }
     if (replicas.length == 2) {
-      if (ECSUtils.checkIfKeyBelongsInRange(key, replicas[0].getNodeHashRange())) {
-        return DiskStorage.StorageType.REPLICA_1;
-      } else if (ECSUtils.checkIfKeyBelongsInRange(key, replicas[1].getNodeHashRange())) {
-        return DiskStorage.StorageType.REPLICA_2;
+      if (ECSUtils.checkIfHashBelongsInRange(hash, replicas[0].getNodeHashRange())) {
+        return StorageEngine.StorageType.REPLICA_1;
+      } else if (ECSUtils.checkIfHashBelongsInRange(hash, replicas[1].getNodeHashRange())) {
+        return StorageEngine.StorageType.REPLICA_2;
       } else {
         logger.error("Key doesn't belong to any known replica!!");
         return null;
       }
     } else if (replicas.length == 1) {
-      if (ECSUtils.checkIfKeyBelongsInRange(key, replicas[0].getNodeHashRange())) {
-        return DiskStorage.StorageType.REPLICA_1;
+      if (ECSUtils.checkIfHashBelongsInRange(hash, replicas[0].getNodeHashRange())) {
+        return StorageEngine.StorageType.REPLICA_1;
       } else {
         logger.error("Key doesn't belong to any known replica!!");
         return null;
@@ -301,180 +791,148 @@ public final class SynchronizedKVManager {
 
   private boolean checkNodeResponsibleForRequest(KVMessage request) {
     String key = request.getKey();
-    ECSNode identityNode = ECSMetadata.getInstance().getNodeBasedOnName(this.nodeName);
+    // one snapshot of the ring for the whole check
+    HashRing ring = ECSMetadata.getInstance().getHashRing();
+    ECSNode identityNode = ring.getNodeBasedOnName(this.nodeName);
     if (identityNode == null) {
       logger.error("Could not find node by name!!");
       return false;
     }
-    logger.info(
-        String.format(
-            "Received key %s with hash %s; Node hash range %s",
-            key, Hashing.calculateMD5Hash(key), Arrays.toString(identityNode.getNodeHashRange())));
+    String hash = Hashing.calculateMD5Hash(key);
+    if (logger.isInfoEnabled()) {
+      logger.info(
+          String.format(
+              "Received key %s with hash %s; Node hash range %s",
+              key, hash, Arrays.toString(identityNode.getNodeHashRange())));
+    }
+    if (ECSUtils.checkIfHashBelongsInRange(hash, identityNode.getNodeHashRange())) {
+      return true;
+    }
     // If GET, check if node has replica which can service request
     if (request.getStatus() == KVMessage.StatusType.GET) {
-      ECSNode[] replicas =
-          ECSMetadata.getInstance().getNodesWhereIAmReplicaBasedOnName(this.nodeName);
-      return ECSUtils.checkIfKeyBelongsInRange(key, identityNode.getNodeHashRange())
-          || Arrays.stream(replicas)
-              .anyMatch(
-                  replica -> ECSUtils.checkIfKeyBelongsInRange(key, replica.getNodeHashRange()));
+      for (ECSNode replica : ring.getNodesWhereReplica(this.nodeName)) {
+        if (ECSUtils.checkIfHashBelongsInRange(hash, replica.getNodeHashRange())) {
+          return true;
+        }
+      }
     }
-    return ECSUtils.checkIfKeyBelongsInRange(key, identityNode.getNodeHashRange());
+    return false;
   }
 
-  private synchronized KVMessage writeKV(final KVMessage request) {
+  private StorageEngine.WriteResponse writeKV(final KVMessage request) {
     if (!checkNodeResponsibleForRequest(request)) {
       logger.info(
           "Node not responsible for request with key: "
               + request.getKey()
               + " hash: "
               + Hashing.calculateMD5Hash(request.getKey()));
-      return new KVMessage(
-          request.getKey(),
-          request.getValue(),
-          request.getClientId(),
-          KVMessage.StatusType.NOT_RESPONSIBLE,
-          request.getRequestId());
+      return notWritten(
+          new KVMessage(
+              request.getKey(),
+              request.getValue(),
+              request.getClientId(),
+              KVMessage.StatusType.NOT_RESPONSIBLE,
+              request.getRequestId()));
+    }
+    int stripe = stripe(request.getKey());
+    keyLocks[stripe].lock();
+    try {
+      return writeKVLocked(request, stripe);
+    } finally {
+      keyLocks[stripe].unlock();
     }
-    if (!writingIsAvailable()) {
+  }
+
+  /** Apply a write to its key while holding the key's lock. */
+  private StorageEngine.WriteResponse writeKVLocked(final KVMessage request, int stripe) {
+    if (!writingIsAvailable() || isHandedOff(request.getKey())) {
       logger.info("Writing is not available to serve request: " + request.toString());
-      return new KVMessage(
-          request.getKey(),
-          request.getValue(),
-          request.getClientId(),
-          KVMessage.StatusType.SERVER_WRITE_LOCK,
-          request.getRequestId());
+      return notWritten(
+          new KVMessage(
+              request.getKey(),
+              request.getValue(),
+              request.getClientId(),
+              KVMessage.StatusType.SERVER_WRITE_LOCK,
+              request.getRequestId()));
     }
 
-    // caching
+    StorageEngine.WriteResponse response =
+        storageEngine.write(request, StorageEngine.StorageType.SELF);
+    KVMessage kvMessageResponse = response.getKvMessageResponse();
+
+    // caching, once storage holds the write
     if (request.getStatus() == PUT) {
-      if (request.getValue() == null) {
-        logger.info("Deleting key from cache");
-        cache.remove(request.getKey());
-      } else {
+      if (kvMessageResponse.getStatus() == PUT_SUCCESS
+          || kvMessageResponse.getStatus() == PUT_UPDATE) {
         logger.info("Adding key to cache");
         cache.put(request.getKey(), request.getValue());
+      } else {
+        logger.info("Deleting key from cache");
+        cache.remove(request.getKey());
+      }
+      stripeVersions.incrementAndGet(stripe);
+    }
+    for (RangeHandoff handoff : handoffs) {
+      if (handoff.covers(request.getKey())) {
+        handoff.recordWrite(request.getKey());
       }
-      logger.info("Accessing disk storage for key");
     }
-
-    DiskStorage.DiskStorageWriteResponse response =
-        diskStorage.write(request, DiskStorage.StorageType.SELF);
-    KVMessage kvMessageResponse = response.getKvMessageResponse();
 
     // Notify subscribers if data changed
     if (kvMessageResponse.getStatus() == PUT_SUCCESS
         || kvMessageResponse.getStatus() == PUT_UPDATE
         || kvMessageResponse.getStatus() == DELETE_SUCCESS) {
       logger.info("Notifying subscribers of change: " + response.getSubscribers());
-      new Thread(
-              () -> {
-                ArrayList<UUID> toRemove = new ArrayList<>();
-                response
-                    .getSubscribers()
-                    .forEach(
-                        subscriberId -> {
-                          KVServerConnection connection = connections.get(subscriberId);
-                          if (connection == null) {
-                            logger.info(
-                                "Unable to find connection for: "
-                                    + subscriberId
-                                    + " | connections: "
-                                    + connections.keySet());
-                            toRemove.add(subscriberId);
-                          } else {
-                            logger.info("found connection for: " + subscriberId);
-                            if (connection.isRunning()) {
-                              connection.notifyClient(
-                                  new KVMessage(
-                                      kvMessageResponse.getKey(),
-                                      kvMessageResponse.getValue(),
-                                      kvMessageResponse.getClientId(),
-                                      NOTIFY,
-                                      new UUID(0, 0)));
-                              logger.info("Notified client for: " + subscriberId);
-                            } else {
-                              logger.info(
-                                  "reference to connection to client "
-                                      + subscriberId
-                                      + " stale. Removing.");
-                              KVServerConnection staleConnection = connections.remove(subscriberId);
-
-                              // Handle race condition
-                              if (staleConnection != connection && staleConnection != null) {
-                                // connection was replaced concurrently and then we mistakenly
-                                // removed the replacement.
-                                KVServerConnection mistakenlyReplacedConnection = staleConnection;
-                                while (true) {
-                                  // Put the mistakenly replaced connection back and capture what
-                                  // taht replaces
-                                  KVServerConnection replacedConnection =
-                                      connections.put(subscriberId, mistakenlyReplacedConnection);
-                                  if (replacedConnection == null
-                                      || replacedConnection == mistakenlyReplacedConnection) {
-                                    // Putting the mistakenlyReplacedConnection back replaced
-                                    // nothing or itself, which is a consistent state
-                                    break;
-                                  }
-                                  // There was another concurrent replacement (rare) so we need to
-                                  // put that one back now
-                                  mistakenlyReplacedConnection = replacedConnection;
-                                }
-                              }
-                            }
-                          }
-                        });
-                //                toRemove.forEach(
-                //                    subscriberId ->
-                //                        this.writeKV(
-                //                            new KVMessage(
-                //                                request.getKey(),
-                //                                null,
-                //                                subscriberId,
-                //                                UNSUBSCRIBE,
-                //                                new UUID(0, 0))) // todo replication
-                //                    );
-              })
-          .start();
-    }
-
-    return kvMessageResponse;
-  }
-
-  public synchronized boolean moveReplicaDataToSelfStorage(
-      ECSMessage ecsMessage, String[] hashRange) {
-    HashSet<StorageUnit> replica1Data =
-        diskStorage
-            .partitionDatabaseAndGetKeysInRange(
-                ecsMessage, hashRange, DiskStorage.StorageType.REPLICA_1, true)
-            .getPayload();
-    HashSet<StorageUnit> replica2Data =
-        diskStorage
-            .partitionDatabaseAndGetKeysInRange(
-                ecsMessage, hashRange, DiskStorage.StorageType.REPLICA_2, true)
-            .getPayload();
-    boolean success1 = moveReplicaDataToSelf(replica1Data);
-    boolean success2 = moveReplicaDataToSelf(replica2Data);
-    return success1 && success2;
+      notifier.notify(
+          response.getSubscribers(),
+          new KVMessage(
+              kvMessageResponse.getKey(),
+              kvMessageResponse.getValue(),
+              kvMessageResponse.getClientId(),
+              NOTIFY,
+              new UUID(0, 0)));
+    }
+
+    return response;
   }
 
-  private boolean moveReplicaDataToSelf(HashSet<StorageUnit> replica1Data) {
-    boolean success = true;
-    for (StorageUnit entry : replica1Data) {
-      KVMessage.StatusType response =
-          diskStorage.putStorageUnit(entry, DiskStorage.StorageType.SELF);
-      success = success && (response == PUT_SUCCESS || response == PUT_UPDATE);
-    }
-    return success;
+  public boolean moveReplicaDataToSelfStorage(ECSMessage ecsMessage, String[] hashRange) {
+    return withAllKeysLocked(() -> moveReplicasToSelf(ecsMessage, hashRange));
   }
 
-  private synchronized boolean messageIsValidSize(final KVMessage request) {
+  private boolean moveReplicasToSelf(ECSMessage ecsMessage, String[] hashRange) {
+    boolean success1 =
+        storageEngine
+                .moveUnitsInRange(
+                    ecsMessage,
+                    hashRange,
+                    StorageEngine.StorageType.REPLICA_1,
+                    StorageEngine.StorageType.SELF)
+                .getDataTransferMessageType()
+            == DATA_TRANSFER_SUCCESS;
+    boolean success2 =
+        storageEngine
+                .moveUnitsInRange(
+                    ecsMessage,
+                    hashRange,
+                    StorageEngine.StorageType.REPLICA_2,
+                    StorageEngine.StorageType.SELF)
+                .getDataTransferMessageType()
+            == DATA_TRANSFER_SUCCESS;
+    return success1 && success2;
+  }
+
+  private boolean messageIsValidSize(final KVMessage request) {
     return request.getKey().getBytes(StandardCharsets.UTF_8).length <= MAX_KEY_BYTES
         && (request.getValue() == null
             || request.getValue().getBytes(StandardCharsets.UTF_8).length <= MAX_VALUE_BYTES);
   }
 
-  private synchronized boolean writingIsAvailable() {
+  private boolean writingIsAvailable() {
     return this.writeEnabled.get();
   }
+
+  private boolean isHandedOff(String key) {
+    return handoffs.stream().anyMatch(handoff -> handoff.isFrozen() && handoff.covers(key));
+  }
 }
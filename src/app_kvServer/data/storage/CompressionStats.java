@@ -0,0 +1,53 @@
+package app_kvServer.data.storage;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running totals of how well the records encoded by a StorageEngine compressed, counting the part
+ * of each record StorageUnitRecord may compress: value, uniqueID, MAC and subscribers.
+ */
+public final class CompressionStats {
+  private final AtomicLong uncompressedBytes = new AtomicLong();
+  private final AtomicLong storedBytes = new AtomicLong();
+  private final AtomicLong compressedRecords = new AtomicLong();
+  private final AtomicLong records = new AtomicLong();
+
+  void record(long uncompressed, long stored) {
+    uncompressedBytes.addAndGet(uncompressed);
+    storedBytes.addAndGet(stored);
+    records.incrementAndGet();
+    if (stored < uncompressed) {
+      compressedRecords.incrementAndGet();
+    }
+  }
+
+  public long getUncompressedBytes() {
+    return uncompressedBytes.get();
+  }
+
+  public long getStoredBytes() {
+    return storedBytes.get();
+  }
+
+  /** @return the number of records encoded, of which getCompressedRecords were compressed. */
+  public long getRecords() {
+    return records.get();
+  }
+
+  public long getCompressedRecords() {
+    return compressedRecords.get();
+  }
+
+  /** @return uncompressed bytes per stored byte, 1 until anything was encoded. */
+  public double getRatio() {
+    long stored = storedBytes.get();
+    return stored == 0 ? 1 : (double) uncompressedBytes.get() / stored;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "%d of %d records compressed, %d bytes stored as %d (ratio %.2f)",
+        getCompressedRecords(), getRecords(), getUncompressedBytes(), getStoredBytes(), getRatio());
+  }
+}
@@ -12,90 +12,430 @@ import static shared.communication.messages.KVMessage.StatusType.UNSUBSCRIBE;
 import static shared.communication.messages.KVMessage.StatusType.UNSUBSCRIBE_ERROR;
 import static shared.communication.messages.KVMessage.StatusType.UNSUBSCRIBE_SUCCESS;
 
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Futures;
 import ecs.ECSUtils;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
 import javax.crypto.spec.SecretKeySpec;
 import org.apache.log4j.Logger;
 import shared.communication.messages.DataTransferMessage;
 import shared.communication.messages.ECSMessage;
 import shared.communication.messages.KVMessage;
+import shared.communication.security.ReplayFilter;
 import shared.communication.security.Verifier;
 import shared.communication.security.encryption.Encryption;
 import shared.communication.security.encryption.EncryptionException;
 
-public class DiskStorage {
+/**
+ * Request level semantics shared by the StorageEngines: MAC verification, replay protection, status
+ * codes and subscriber bookkeeping. How StorageUnits are laid out on disk for each StorageType is
+ * left to the subclasses.
+ *
+ * <p>Subscribers are kept in a SubscriptionRegistry next to the files of the subclass rather than
+ * in the stored units, so (un)subscribing never rewrites a value. Units written by earlier versions
+ * may still carry subscribers; they move to the registry the first time their key is written.
+ *
+ * <p>Every StorageType has a write lock of its own, so the files of different StorageTypes are
+ * changed in parallel, and a writer thread that applies its single key writes in arrival order.
+ * Operations spanning two StorageTypes take both locks in StorageType order. Reads take no lock.
+ */
+public abstract class DiskStorage implements StorageEngine {
   private static final Logger logger = Logger.getLogger(DiskStorage.class);
-  private final File storageFile;
-  private final File replica1File;
-  private final File replica2File;
-  private final String uniqueID;
-  private final Object diskWriteLock = new Object();
-  private final SecretKeySpec encryption;
-  private final HashSet<String> seenIDs = new HashSet<>();
-
-  public DiskStorage(final String uniqueID, boolean encrypted) throws DiskStorageException {
+  /** How far a write's timestamp may be from now, replicas that fall further behind reject it. */
+  public static final long REPLAY_WINDOW_MILLIS = 15 * 60 * 1000;
+  /** Writes each generation of the replay filter is sized for, about 4 MB of Bloom filter. */
+  public static final int REPLAY_FILTER_MESSAGES_PER_WINDOW = 1_000_000;
+  /**
+   * Environment variable with the secret the storage key of a node to be recovered is wrapped in.
+   */
+  public static final String STORAGE_SECRET_VARIABLE = "KV_STORAGE_SECRET";
+
+  private static final Set<PosixFilePermission> OWNER_ONLY =
+      PosixFilePermissions.fromString("rw-------");
+
+  protected final String uniqueID;
+  protected final SecretKeySpec encryption;
+  private final Object[] diskWriteLocks = new Object[StorageType.values().length];
+  private final ExecutorService[] writers = new ExecutorService[StorageType.values().length];
+  // shared by the writers of every StorageType
+  private final ReplayFilter seenIDs =
+      new ReplayFilter(REPLAY_WINDOW_MILLIS, REPLAY_FILTER_MESSAGES_PER_WINDOW, 1e-7);
+  private final SubscriptionRegistry subscriptions;
+  private final AtomicLongArray avoidedDiskReads = new AtomicLongArray(StorageType.values().length);
+  /** To be passed to StorageUnitRecord.encode by subclasses for every record they store. */
+  protected final CompressionStats compressionStats = new CompressionStats();
+
+  private GroupCommit groupCommit = new GroupCommit("none", Durability.NONE, 0, 0, () -> {});
+
+  protected DiskStorage(final String uniqueID, boolean encrypted) throws DiskStorageException {
+    this(uniqueID, encrypted, false);
+  }
+
+  /**
+   * @param recover whether the subclass reopens the data left by a previous run of this node. The
+   *     storage encryption key is then reused as well so the recovered records can be decrypted,
+   *     see storageKey.
+   */
+  protected DiskStorage(final String uniqueID, boolean encrypted, boolean recover)
+      throws DiskStorageException {
     if (encrypted) {
-      Random random = new Random();
-      StringBuilder encryptionKey = new StringBuilder();
-      for (int i = 0; i < 16; i++) {
-        encryptionKey.append(random.nextInt(9));
-      }
       try {
-        this.encryption = Encryption.createSecretKeySpec(encryptionKey.toString());
+        this.encryption = Encryption.createSecretKeySpec(storageKey(uniqueID, recover));
       } catch (EncryptionException e) {
-        logger.error("Failed on creating encryption key for storage");
+        logger.error("Failed on creating or unwrapping the encryption key for storage", e);
+        throw new DiskStorageException(e.getLocalizedMessage());
+      } catch (IOException e) {
+        logger.error("Failed on storing encryption key for storage", e);
         throw new DiskStorageException(e.getLocalizedMessage());
       }
     } else {
       this.encryption = null;
     }
     this.uniqueID = uniqueID;
-    this.storageFile = new File("KeyValueData_" + uniqueID + ".txt");
-    this.replica1File = new File("KeyValueData_" + uniqueID + "_replica1.txt");
-    this.replica2File = new File("KeyValueData_" + uniqueID + "_replica2.txt");
-    // remove existing storage to start fresh
-    if (storageFile.exists() && !storageFile.delete()) {
-      throw new DiskStorageException("Unable to delete file " + storageFile.getAbsolutePath());
+    try {
+      this.subscriptions =
+          new SubscriptionRegistry(
+              new File("KeyValueData_" + uniqueID + "_subscriptions.log"), recover);
+    } catch (IOException e) {
+      logger.error("Failed on opening the subscription log", e);
+      throw new DiskStorageException(e.getLocalizedMessage());
     }
-    if (replica1File.exists() && !replica1File.delete()) {
-      throw new DiskStorageException("Unable to delete file " + replica1File.getAbsolutePath());
+    for (StorageType storageType : StorageType.values()) {
+      diskWriteLocks[storageType.ordinal()] = new Object();
+      writers[storageType.ordinal()] =
+          Executors.newSingleThreadExecutor(
+              runnable -> {
+                Thread writer =
+                    new Thread(runnable, "DiskStorage-" + uniqueID + "-" + storageType.name());
+                writer.setDaemon(true);
+                return writer;
+              });
     }
-    if (replica2File.exists() && !replica2File.delete()) {
-      throw new DiskStorageException("Unable to delete file " + replica2File.getAbsolutePath());
+  }
+
+  /**
+   * @return the key the records of this node are encrypted with. Only a node started with recover
+   *     keeps it on disk, in a file only its owner may read, wrapped in the secret given by the
+   *     STORAGE_SECRET_VARIABLE environment variable if it is set. Other nodes start with a new key
+   *     held in memory only.
+   */
+  private static String storageKey(String uniqueID, boolean recover)
+      throws IOException, EncryptionException {
+    Path keyFile = new File("KeyValueData_" + uniqueID + ".key").toPath();
+    if (!recover) {
+      // only good for decrypting data that is gone
+      Files.deleteIfExists(keyFile);
+      return newStorageKey();
+    }
+    String secret = System.getenv(STORAGE_SECRET_VARIABLE);
+    SecretKeySpec wrapping =
+        secret == null
+            ? null
+            : new SecretKeySpec(
+                Hashing.sha256().hashString(secret, StandardCharsets.UTF_8).asBytes(), "AES");
+    if (Files.exists(keyFile)) {
+      restrictToOwner(keyFile);
+      byte[] stored = Files.readAllBytes(keyFile);
+      if (wrapping != null) {
+        stored = Encryption.decryptBytes(stored, wrapping, Encryption.EncryptionType.AES);
+      }
+      return new String(stored, StandardCharsets.UTF_8);
     }
+    String key = newStorageKey();
+    byte[] stored = key.getBytes(StandardCharsets.UTF_8);
+    if (wrapping != null) {
+      stored = Encryption.encryptBytes(stored, wrapping, Encryption.EncryptionType.AES);
+    } else {
+      logger.warn(
+          "Keeping the storage key of "
+              + uniqueID
+              + " unwrapped, set "
+              + STORAGE_SECRET_VARIABLE
+              + " to wrap it");
+    }
+    // written whole or not at all, readable by the owner only from the start
+    Path temporary = new File(keyFile + ".tmp").toPath();
+    Files.deleteIfExists(temporary);
     try {
-      for (int i = 0; i < 10; i++) {
-        storageFile.createNewFile();
-        replica1File.createNewFile();
-        replica2File.createNewFile();
-        if (storageFile.exists() && replica1File.exists() && replica2File.exists()) {
-          break;
-        }
+      Files.createFile(temporary, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+    } catch (UnsupportedOperationException e) {
+      Files.createFile(temporary);
+      restrictToOwner(temporary);
+    }
+    Files.write(temporary, stored);
+    Files.move(temporary, keyFile, StandardCopyOption.ATOMIC_MOVE);
+    return key;
+  }
+
+  private static String newStorageKey() {
+    Random random = new Random();
+    StringBuilder key = new StringBuilder();
+    for (int i = 0; i < 16; i++) {
+      key.append(random.nextInt(9));
+    }
+    return key.toString();
+  }
+
+  private static void restrictToOwner(Path path) throws IOException {
+    try {
+      Files.setPosixFilePermissions(path, OWNER_ONLY);
+    } catch (UnsupportedOperationException e) {
+      File file = path.toFile();
+      if (!file.setReadable(false, false) || !file.setReadable(true, true)) {
+        throw new IOException("Unable to restrict access to " + path);
       }
-      logger.info("Storage file " + storageFile.getAbsolutePath() + " created.");
-      logger.info("Storage replica 1 " + replica1File.getAbsolutePath() + " created.");
-      logger.info("Storage replica 2 " + replica2File.getAbsolutePath() + " created.");
-    } catch (Exception e) {
-      logger.error("Could not establish connection to disk storage.");
+      file.setWritable(false, false);
+      file.setWritable(true, true);
+    }
+  }
+
+  /** @return the lock held while the files of storageType change. */
+  private Object writeLock(StorageType storageType) {
+    return diskWriteLocks[storageType.ordinal()];
+  }
+
+  /** Run write on the writer thread of storageType, under its lock, and wait for its result. */
+  private <T> T onWriter(StorageType storageType, Supplier<T> write) {
+    return Futures.getUnchecked(
+        writers[storageType.ordinal()].submit(
+            () -> {
+              synchronized (writeLock(storageType)) {
+                return write.get();
+              }
+            }));
+  }
+
+  /**
+   * Look up a single key.
+   *
+   * @return the unit stored under key, or null if the key is not present in the given storage.
+   */
+  protected abstract StorageUnit readUnit(String key, StorageType storageType)
+      throws IOException, StorageUnitException;
+
+  /**
+   * Force every write applied so far to disk. Called by the group commit flusher while writes
+   * continue, so implementations must not hold locks writers need while syncing.
+   */
+  protected abstract void sync() throws IOException;
+
+  /**
+   * Have write acknowledge its writes once they are as durable as durability requires, syncing them
+   * in groups as configured. Called once, right after construction.
+   */
+  void startGroupCommit(Durability durability, long syncIntervalMillis, long syncBatchWrites) {
+    groupCommit =
+        new GroupCommit(
+            uniqueID,
+            durability,
+            syncIntervalMillis,
+            syncBatchWrites,
+            () -> {
+              sync();
+              subscriptions.sync();
+            });
+  }
+
+  /**
+   * Stop the writer threads once their queued writes are done, then the group commit after syncing
+   * its last batch. Subclasses close their files afterwards.
+   */
+  @Override
+  public void close() throws DiskStorageException {
+    for (ExecutorService writer : writers) {
+      writer.shutdown();
+    }
+    try {
+      for (ExecutorService writer : writers) {
+        writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    groupCommit.close();
+    try {
+      subscriptions.close();
+    } catch (IOException e) {
+      logger.error("Failed on closing the subscription log of " + uniqueID, e);
       throw new DiskStorageException(e.getLocalizedMessage());
     }
+    logger.info("Storage of " + uniqueID + " closed. Compression: " + compressionStats);
+  }
+
+  /**
+   * Tell whether key may be present without reading from disk, e.g. through a KeyFilter. Lookups of
+   * keys this rules out are answered right away.
+   *
+   * @return false only if key is certainly not present in the given storage.
+   */
+  protected boolean mightContain(String key, StorageType storageType) {
+    return true;
+  }
+
+  /** readUnit, skipped for keys mightContain rules out. */
+  private StorageUnit lookUpUnit(String key, StorageType storageType)
+      throws IOException, StorageUnitException {
+    if (!mightContain(key, storageType)) {
+      avoidedDiskReads.incrementAndGet(storageType.ordinal());
+      return null;
+    }
+    return readUnit(key, storageType);
+  }
+
+  /**
+   * Atomically replace the unit stored under key. update is called exactly once with the current
+   * unit (null if the key is absent) and returns the unit to store, or null to remove the key.
+   * Callers hold the write lock of storageType.
+   */
+  protected abstract void updateUnit(
+      String key, StorageType storageType, UnaryOperator<StorageUnit> update)
+      throws IOException, StorageUnitException;
+
+  /**
+   * Collect every unit whose key hashes into hashRange, optionally removing them from storage.
+   * Callers hold the write lock of storageType.
+   */
+  protected abstract HashSet<StorageUnit> extractUnitsInRange(
+      String[] hashRange, StorageType storageType, boolean delete)
+      throws IOException, StorageUnitException;
+
+  /**
+   * Move every unit whose key hashes into hashRange from source to destination. Callers hold the
+   * write locks of both. Subclasses able to move whole files should override the default, which
+   * extracts and re-ingests every unit.
+   */
+  protected void transferUnitsInRange(
+      String[] hashRange, StorageType source, StorageType destination)
+      throws IOException, StorageUnitException {
+    appendUnits(extractUnitsInRange(hashRange, source, true), destination);
+  }
+
+  /**
+   * Remove every unit whose key hashes into hashRange. Callers hold the write lock of storageType.
+   * Subclasses able to drop whole files should override the default, which extracts every unit.
+   */
+  protected void dropUnitsInRange(String[] hashRange, StorageType storageType)
+      throws IOException, StorageUnitException {
+    extractUnitsInRange(hashRange, storageType, true);
+  }
+
+  /**
+   * Collect the keys of every unit whose key hashes into hashRange, in any order. Callers hold the
+   * write lock of storageType. Subclasses able to list keys without decoding units should override
+   * the default, which extracts every unit.
+   */
+  protected Collection<String> listKeysInRange(String[] hashRange, StorageType storageType)
+      throws IOException, StorageUnitException {
+    return extractUnitsInRange(hashRange, storageType, false).stream()
+        .map(storageUnit -> storageUnit.key)
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Write the records of keys to sink for exportRawRecords. Callers hold the write lock of
+   * storageType. Subclasses able to hand out their stored records as they are should override the
+   * default, which decodes and re-encodes every unit.
+   */
+  protected long writeRawRecords(List<String> keys, StorageType storageType, RawRecordSink sink)
+      throws IOException, StorageUnitException {
+    List<byte[]> records = new ArrayList<>(keys.size());
+    for (String key : keys) {
+      StorageUnit storageUnit = lookUpUnit(key, storageType);
+      if (storageUnit != null) {
+        records.add(SegmentLog.frameRecord(key, StorageUnitRecord.encode(storageUnit, null)));
+      }
+    }
+    return writeFramedRecords(records, sink);
+  }
+
+  /**
+   * @return the bytes writeRawRecords writes for key, or at most that many, 0 if key is not
+   *     present. Subclasses that know the length of their records without decoding them should
+   *     override the default, which encodes the unit.
+   */
+  protected long recordBytes(String key, StorageType storageType)
+      throws IOException, StorageUnitException {
+    StorageUnit storageUnit = lookUpUnit(key, storageType);
+    return storageUnit == null
+        ? 0
+        : SegmentLog.framedBytes(key, StorageUnitRecord.encode(storageUnit, null).length);
+  }
+
+  /**
+   * Write records, each already framed by SegmentLog.frameRecord, to sink.
+   *
+   * @return the number of records written.
+   */
+  protected static long writeFramedRecords(List<byte[]> records, RawRecordSink sink)
+      throws IOException {
+    long totalBytes = 0;
+    for (byte[] record : records) {
+      totalBytes += record.length;
+    }
+    WritableByteChannel target = sink.begin(totalBytes);
+    for (byte[] record : records) {
+      ByteBuffer buffer = ByteBuffer.wrap(record);
+      while (buffer.hasRemaining()) {
+        target.write(buffer);
+      }
+    }
+    return records.size();
   }
 
+  /**
+   * Store an unencrypted record received through exportRawRecords under key. Callers hold the write
+   * lock of storageType. Subclasses storing StorageUnitRecords should override the default, which
+   * decodes the record and appends the unit.
+   */
+  protected void putRawRecord(String key, byte[] record, StorageType storageType)
+      throws IOException, StorageUnitException {
+    appendUnits(
+        Collections.singletonList(StorageUnitRecord.decode(ByteBuffer.wrap(record), null)),
+        storageType);
+  }
+
+  /**
+   * Bulk ingest already verified units, replacing any unit stored under the same key. Callers hold
+   * the write lock of storageType.
+   */
+  protected abstract void appendUnits(Collection<StorageUnit> units, StorageType storageType)
+      throws IOException, StorageUnitException;
+
+  @Override
   public KVMessage get(final KVMessage request, StorageType storageType) {
     assert (request != null);
-    if (seenIDs.contains(request.getMAC())) {
+    if (seenIDs.mightHaveSeen(request.getMAC())) {
       logger.error("The MAC is the repeated MAC. Request will not be served");
       return new KVMessage(
           request.getKey(),
@@ -106,26 +446,15 @@ public class DiskStorage {
     }
 
     logger.info("GET request for " + request.getKey() + " using storage: " + storageType.name());
-    File workingFile = correctFileBasedOnEnum(storageType);
     String requestKey = request.getKey();
     assert (request.getValue() == null);
     String requestValue = null;
 
-    BufferedReader reader;
     try {
-      reader = new BufferedReader(new FileReader(workingFile), 16384);
-      String entry;
-
-      while ((entry = reader.readLine()) != null) {
-        StorageUnit currentUnit = StorageUnit.deserialize(entry.trim(), encryption);
-        String key = currentUnit.key;
-
-        if (key.equals(requestKey)) {
-          requestValue = currentUnit.value;
-          break;
-        }
+      StorageUnit currentUnit = lookUpUnit(requestKey, storageType);
+      if (currentUnit != null) {
+        requestValue = currentUnit.value;
       }
-      reader.close();
       if (requestValue != null) {
         logger.info("GET request for " + requestKey + " yielded value: " + requestValue);
         return new KVMessage(
@@ -170,17 +499,22 @@ public class DiskStorage {
     }
   }
 
-  public DiskStorageWriteResponse write(final KVMessage request, StorageType storageType) {
+  @Override
+  public WriteResponse write(final KVMessage request, StorageType storageType) {
     assert (request != null
         && (request.getStatus() == PUT
             || request.getStatus() == SUBSCRIBE
             || request.getStatus() == UNSUBSCRIBE));
     logger.info("Received request " + request + " with storage type " + storageType);
     try {
-      boolean checks = Verifier.verifyKVMessageMAC(request) && !seenIDs.contains(request.getMAC());
+      // stale messages are turned away before paying for the signature check
+      boolean checks =
+          seenIDs.isFresh(request.getTimestamp())
+              && Verifier.verifyKVMessageMAC(request)
+              && !seenIDs.mightHaveSeen(request.getMAC());
       if (!checks) {
         logger.error("Verification failed for the KVMessage " + request);
-        return new DiskStorageWriteResponse(
+        return new WriteResponse(
             new KVMessage(
                 request.getKey(),
                 request.getValue(),
@@ -191,7 +525,7 @@ public class DiskStorage {
       }
     } catch (EncryptionException e) {
       logger.error("Verification failed for the KVMessage " + request, e);
-      return new DiskStorageWriteResponse(
+      return new WriteResponse(
           new KVMessage(
               request.getKey(),
               request.getValue(),
@@ -209,142 +543,201 @@ public class DiskStorage {
             + "for: "
             + storageType.name());
 
-    synchronized (diskWriteLock) {
-      File workingFile = correctFileBasedOnEnum(storageType);
-      String requestKey = request.getKey();
-      String requestValue = request.getValue();
-      KVMessage.StatusType status = KVMessage.StatusType.PUT_ERROR;
-
-      final File newWorkingFile = new File("temp_" + uniqueID + "_" + storageType.name() + ".txt");
-      BufferedWriter newFileWriter;
-      BufferedReader oldFileReader;
-      KVMessage kvMessageResponse;
-      ArrayList<UUID> subscribers = null;
-      try {
-        newFileWriter = new BufferedWriter(new FileWriter(newWorkingFile), 16384);
-        oldFileReader = new BufferedReader(new FileReader(workingFile), 16384);
-        String entry;
-        boolean found = false;
-        // get storage
-        while ((entry = oldFileReader.readLine()) != null) {
-
-          StorageUnit currentUnit = StorageUnit.deserialize(entry.trim(), encryption);
-          String key = currentUnit.key;
-
-          if (key.equals(requestKey)) {
-            found = true;
-            switch (request.getStatus()) {
-              case SUBSCRIBE:
-                assert (request.getClientId() != null);
-                currentUnit.subscribers.add(request.getClientId());
-                newFileWriter.write(currentUnit.serialize(encryption));
-                newFileWriter.newLine();
-                status = SUBSCRIBE_SUCCESS;
-                break;
-              case UNSUBSCRIBE:
-                assert (request.getClientId() != null);
-                currentUnit.subscribers.remove(request.getClientId());
-                newFileWriter.write(currentUnit.serialize(encryption));
-                newFileWriter.newLine();
-                status = UNSUBSCRIBE_SUCCESS;
-                break;
-              case PUT:
-                assert (subscribers == null);
-                subscribers = currentUnit.subscribers;
-                if (requestValue != null) {
-                  currentUnit.value = requestValue;
-                  currentUnit.uniqueID = request.getUniqueID();
-                  currentUnit.MAC = request.getMAC();
-                  newFileWriter.write(currentUnit.serialize(encryption));
-                  newFileWriter.newLine();
-                  status = KVMessage.StatusType.PUT_UPDATE;
-                } else {
-                  status = KVMessage.StatusType.DELETE_SUCCESS;
-                  seenIDs.add(currentUnit.MAC);
-                }
-                break;
-            }
+    return onWriter(storageType, () -> applyRequest(request, storageType));
+  }
 
-          } else {
-            newFileWriter.write(entry.trim());
-            newFileWriter.newLine();
-          }
-        }
+  private WriteResponse applyRequest(final KVMessage request, StorageType storageType) {
+    String requestKey = request.getKey();
+    String requestValue = request.getValue();
+    WriteOutcome outcome = new WriteOutcome();
+    KVMessage kvMessageResponse;
+    try {
+      if (request.getStatus() == PUT) {
+        applyPut(request, storageType, outcome);
+      } else {
+        outcome.status = applySubscription(request, storageType);
+      }
+      kvMessageResponse =
+          new KVMessage(
+              requestKey,
+              requestValue,
+              request.getClientId(),
+              outcome.status,
+              request.getRequestId());
+    } catch (FileNotFoundException e) {
+      logger.error("No storage file exists for operation " + request, e);
+      kvMessageResponse =
+          new KVMessage(
+              requestKey,
+              requestValue,
+              request.getClientId(),
+              correspondingErrorStatus(request.getStatus()),
+              request.getRequestId());
+    } catch (SecurityException e) {
+      logger.error("Security rules do not allow file deletion or renaming", e);
+      kvMessageResponse =
+          new KVMessage(
+              requestKey,
+              requestValue,
+              request.getClientId(),
+              correspondingErrorStatus(request.getStatus()),
+              request.getRequestId());
+    } catch (IOException e) {
+      logger.error("I/O error on working with the storage file during operation: " + request, e);
+      kvMessageResponse =
+          new KVMessage(
+              requestKey,
+              requestValue,
+              request.getClientId(),
+              correspondingErrorStatus(request.getStatus()),
+              request.getRequestId());
+    } catch (Exception e) {
+      logger.error("Something went wrong during operation: " + request, e);
+      kvMessageResponse =
+          new KVMessage(
+              requestKey,
+              requestValue,
+              request.getClientId(),
+              correspondingErrorStatus(request.getStatus()),
+              request.getRequestId());
+    }
+    WriteResponse response =
+        new WriteResponse(
+            kvMessageResponse,
+            outcome.subscribers,
+            changesStorage(kvMessageResponse.getStatus())
+                ? groupCommit.register()
+                : WriteResponse.DURABLE);
+    logger.info("Response: " + response);
+    return response;
+  }
 
-        if (!found) {
-          switch (request.getStatus()) {
-            case SUBSCRIBE:
-              status = SUBSCRIBE_ERROR;
-              break;
-            case UNSUBSCRIBE:
-              status = UNSUBSCRIBE_ERROR;
-              break;
-            case PUT:
-              if (requestValue != null) {
-                StorageUnit currentUnit =
-                    new StorageUnit(
-                        requestKey, requestValue, request.getUniqueID(), request.getMAC());
-                newFileWriter.write(currentUnit.serialize(encryption));
-                newFileWriter.newLine();
-                status = KVMessage.StatusType.PUT_SUCCESS;
-                seenIDs.add(currentUnit.MAC);
-              } else {
-                status = KVMessage.StatusType.DELETE_ERROR;
-              }
-              break;
-          }
-        }
+  /** Apply a PUT request, including the subscriber bookkeeping that goes with it. */
+  private void applyPut(final KVMessage request, StorageType storageType, WriteOutcome outcome)
+      throws IOException, StorageUnitException {
+    updateUnit(
+        request.getKey(), storageType, currentUnit -> applyWrite(request, currentUnit, outcome));
+    adoptSubscribers(request.getKey(), storageType, outcome.inlineSubscribers);
+    if (outcome.status == KVMessage.StatusType.PUT_UPDATE) {
+      outcome.subscribers = subscriptions.subscribersOf(storageType, request.getKey());
+    } else if (outcome.status == KVMessage.StatusType.DELETE_SUCCESS) {
+      outcome.subscribers = subscriptions.removeKey(storageType, request.getKey());
+    }
+  }
 
-        oldFileReader.close();
-        newFileWriter.flush();
-        newFileWriter.close();
+  /**
+   * Apply a PUT request to the unit currently stored under its key.
+   *
+   * @return the unit to store in place of currentUnit, null to remove the key.
+   */
+  private StorageUnit applyWrite(
+      final KVMessage request, StorageUnit currentUnit, WriteOutcome outcome) {
+    String requestValue = request.getValue();
+    if (currentUnit != null) {
+      outcome.inlineSubscribers.addAll(currentUnit.subscribers);
+      currentUnit.subscribers.clear();
+      if (requestValue != null) {
+        currentUnit.value = requestValue;
+        currentUnit.uniqueID = request.getUniqueID();
+        currentUnit.MAC = request.getMAC();
+        outcome.status = KVMessage.StatusType.PUT_UPDATE;
+        return currentUnit;
+      } else {
+        outcome.status = KVMessage.StatusType.DELETE_SUCCESS;
+        seenIDs.add(currentUnit.MAC, KVMessage.timestampOf(currentUnit.uniqueID));
+        return null;
+      }
+    }
+    if (requestValue != null) {
+      StorageUnit newUnit =
+          new StorageUnit(request.getKey(), requestValue, request.getUniqueID(), request.getMAC());
+      outcome.status = KVMessage.StatusType.PUT_SUCCESS;
+      seenIDs.add(newUnit.MAC, request.getTimestamp());
+      return newUnit;
+    } else {
+      outcome.status = KVMessage.StatusType.DELETE_ERROR;
+      return null;
+    }
+  }
 
-        Files.move(
-            newWorkingFile.toPath(), workingFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-        kvMessageResponse =
-            new KVMessage(
-                requestKey, requestValue, request.getClientId(), status, request.getRequestId());
-      } catch (FileNotFoundException e) {
-        logger.error("No storage file exists for operation " + request, e);
-        kvMessageResponse =
-            new KVMessage(
-                requestKey,
-                requestValue,
-                request.getClientId(),
-                correspondingErrorStatus(request.getStatus()),
-                request.getRequestId());
-      } catch (SecurityException e) {
-        logger.error("Security rules do not allow file deletion or renaming", e);
-        kvMessageResponse =
-            new KVMessage(
-                requestKey,
-                requestValue,
-                request.getClientId(),
-                correspondingErrorStatus(request.getStatus()),
-                request.getRequestId());
-      } catch (IOException e) {
-        logger.error("I/O error on working with the storage file during operation: " + request, e);
-        kvMessageResponse =
-            new KVMessage(
-                requestKey,
-                requestValue,
-                request.getClientId(),
-                correspondingErrorStatus(request.getStatus()),
-                request.getRequestId());
-      } catch (Exception e) {
-        logger.error("Something went wrong during operation: " + request, e);
-        kvMessageResponse =
-            new KVMessage(
-                requestKey,
-                requestValue,
-                request.getClientId(),
-                correspondingErrorStatus(request.getStatus()),
-                request.getRequestId());
+  /**
+   * Apply a SUBSCRIBE or UNSUBSCRIBE request. Only the SubscriptionRegistry changes, unless the
+   * stored unit still carries subscribers, which is then rewritten once without them.
+   */
+  private KVMessage.StatusType applySubscription(final KVMessage request, StorageType storageType)
+      throws IOException, StorageUnitException {
+    assert (request.getClientId() != null);
+    String key = request.getKey();
+    StorageUnit currentUnit = lookUpUnit(key, storageType);
+    if (currentUnit == null) {
+      return request.getStatus() == SUBSCRIBE ? SUBSCRIBE_ERROR : UNSUBSCRIBE_ERROR;
+    }
+    if (!currentUnit.subscribers.isEmpty()) {
+      adoptSubscribers(key, storageType, currentUnit.subscribers);
+      updateUnit(
+          key,
+          storageType,
+          storedUnit -> {
+            if (storedUnit != null) {
+              storedUnit.subscribers.clear();
+            }
+            return storedUnit;
+          });
+    }
+    if (request.getStatus() == SUBSCRIBE) {
+      subscriptions.add(storageType, key, request.getClientId());
+      return SUBSCRIBE_SUCCESS;
+    }
+    subscriptions.remove(storageType, key, request.getClientId());
+    return UNSUBSCRIBE_SUCCESS;
+  }
+
+  /** Add subscribers found in a unit stored by an earlier version to the SubscriptionRegistry. */
+  private void adoptSubscribers(String key, StorageType storageType, Collection<UUID> inline)
+      throws IOException {
+    if (inline.isEmpty()) {
+      return;
+    }
+    LinkedHashSet<UUID> merged = new LinkedHashSet<>(subscriptions.subscribersOf(storageType, key));
+    merged.addAll(inline);
+    subscriptions.replace(storageType, key, merged);
+  }
+
+  /**
+   * Take the subscribers off units received from another node, which stores them with the unit.
+   *
+   * @return the subscribers of each unit, to be put in the SubscriptionRegistry once the units are
+   *     stored.
+   */
+  private static HashMap<String, ArrayList<UUID>> detachSubscribers(Collection<StorageUnit> units) {
+    HashMap<String, ArrayList<UUID>> detached = new HashMap<>();
+    for (StorageUnit storageUnit : units) {
+      detached.put(storageUnit.key, new ArrayList<>(storageUnit.subscribers));
+      storageUnit.subscribers.clear();
+    }
+    return detached;
+  }
+
+  /** Fill in the subscribers of a unit handed out to another node, see detachSubscribers. */
+  private StorageUnit attachSubscribers(StorageUnit storageUnit, StorageType storageType) {
+    for (UUID subscriber : subscriptions.subscribersOf(storageType, storageUnit.key)) {
+      if (!storageUnit.subscribers.contains(subscriber)) {
+        storageUnit.subscribers.add(subscriber);
       }
-      DiskStorageWriteResponse response =
-          new DiskStorageWriteResponse(kvMessageResponse, subscribers);
-      logger.info("Response: " + response);
-      return new DiskStorageWriteResponse(kvMessageResponse, subscribers);
+    }
+    return storageUnit;
+  }
+
+  private static boolean changesStorage(KVMessage.StatusType status) {
+    switch (status) {
+      case PUT_SUCCESS:
+      case PUT_UPDATE:
+      case DELETE_SUCCESS:
+      case SUBSCRIBE_SUCCESS:
+      case UNSUBSCRIBE_SUCCESS:
+        return true;
+      default:
+        return false;
     }
   }
 
@@ -361,13 +754,15 @@ public class DiskStorage {
     }
   }
 
+  @Override
   public KVMessage.StatusType putStorageUnit(
       final StorageUnit storageUnit, StorageType storageType) {
     assert (storageUnit != null);
     assert (storageUnit.value != null);
 
     try {
-      if (!Verifier.verifyStorageUnitMAC(storageUnit) || seenIDs.contains(storageUnit.uniqueID)) {
+      if (!Verifier.verifyStorageUnitMAC(storageUnit)
+          || seenIDs.mightHaveSeen(storageUnit.uniqueID)) {
         return KVMessage.StatusType.AUTH_FAILED;
       }
     } catch (EncryptionException e) {
@@ -383,97 +778,50 @@ public class DiskStorage {
             + "for: "
             + storageType.name());
 
-    synchronized (diskWriteLock) {
-      File workingFile = correctFileBasedOnEnum(storageType);
-      String requestKey = storageUnit.key;
-      KVMessage.StatusType status = KVMessage.StatusType.PUT_ERROR;
-
-      final File newWorkingFile = new File("temp_" + uniqueID + "_" + storageType.name() + ".txt");
-      BufferedWriter newFileWriter;
-      BufferedReader oldFileReader;
-      try {
-        newFileWriter = new BufferedWriter(new FileWriter(newWorkingFile), 16384);
-        oldFileReader = new BufferedReader(new FileReader(workingFile), 16384);
-        String entry;
-        boolean found = false;
-        // get storage
-        while ((entry = oldFileReader.readLine()) != null) {
-
-          StorageUnit currentUnit = StorageUnit.deserialize(entry.trim(), encryption);
-          String key = currentUnit.key;
-
-          if (key.equals(requestKey)) {
-            found = true;
-            currentUnit = storageUnit;
-            newFileWriter.write(currentUnit.serialize(encryption));
-            newFileWriter.newLine();
-            status = KVMessage.StatusType.PUT_UPDATE;
-            seenIDs.add(storageUnit.MAC);
-          } else {
-            newFileWriter.write(entry.trim());
-            newFileWriter.newLine();
-          }
-        }
-        if (!found) {
-          newFileWriter.write(storageUnit.serialize(encryption));
-          newFileWriter.newLine();
-          status = KVMessage.StatusType.PUT_SUCCESS;
-          seenIDs.add(storageUnit.MAC);
-        }
-        oldFileReader.close();
-        newFileWriter.flush();
-        newFileWriter.close();
+    return onWriter(storageType, () -> putVerifiedUnit(storageUnit, storageType));
+  }
 
-        Files.move(
-            newWorkingFile.toPath(), workingFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-        return status;
-      } catch (Exception e) {
-        logger.error("Something went wrong during PUT operation", e);
-        return KVMessage.StatusType.PUT_ERROR;
-      }
+  private KVMessage.StatusType putVerifiedUnit(
+      final StorageUnit storageUnit, StorageType storageType) {
+    final KVMessage.StatusType[] status = {KVMessage.StatusType.PUT_ERROR};
+    try {
+      ArrayList<UUID> subscribers =
+          detachSubscribers(Collections.singletonList(storageUnit)).get(storageUnit.key);
+      updateUnit(
+          storageUnit.key,
+          storageType,
+          currentUnit -> {
+            status[0] =
+                currentUnit != null
+                    ? KVMessage.StatusType.PUT_UPDATE
+                    : KVMessage.StatusType.PUT_SUCCESS;
+            seenIDs.add(storageUnit.MAC, KVMessage.timestampOf(storageUnit.uniqueID));
+            return storageUnit;
+          });
+      subscriptions.replace(storageType, storageUnit.key, subscribers);
+      return status[0];
+    } catch (Exception e) {
+      logger.error("Something went wrong during PUT operation", e);
+      return KVMessage.StatusType.PUT_ERROR;
     }
   }
 
+  @Override
   public DataTransferMessage partitionDatabaseAndGetKeysInRange(
       ECSMessage ecsMessage,
       final String[] hashRange,
       StorageType storageType,
       boolean deleteKeysDuringPartition) {
-    HashSet<StorageUnit> dataToTransfer = new HashSet<>();
-
-    synchronized (diskWriteLock) {
-      File workingFile = correctFileBasedOnEnum(storageType);
-
-      final File newWorkingFile =
-          new File("temp_" + uniqueID + "_" + storageType.name() + "_partitioning" + ".txt");
-      BufferedWriter newFileWriter;
-      BufferedReader oldFileReader;
+    synchronized (writeLock(storageType)) {
       try {
-        newFileWriter = new BufferedWriter(new FileWriter(newWorkingFile));
-        oldFileReader = new BufferedReader(new FileReader(workingFile));
-        String entry;
-
-        while ((entry = oldFileReader.readLine()) != null) {
-          StorageUnit currentUnit = StorageUnit.deserialize(entry.trim(), encryption);
-
-          if (ECSUtils.checkIfKeyBelongsInRange(currentUnit.key, hashRange)) {
-            dataToTransfer.add(currentUnit);
-            if (!deleteKeysDuringPartition) {
-              newFileWriter.write(entry.trim());
-              newFileWriter.newLine();
-            }
-          } else {
-            newFileWriter.write(entry.trim());
-            newFileWriter.newLine();
-          }
+        HashSet<StorageUnit> dataToTransfer =
+            extractUnitsInRange(hashRange, storageType, deleteKeysDuringPartition);
+        for (StorageUnit storageUnit : dataToTransfer) {
+          attachSubscribers(storageUnit, storageType);
+        }
+        if (deleteKeysDuringPartition) {
+          subscriptions.dropRange(hashRange, storageType);
         }
-
-        oldFileReader.close();
-        newFileWriter.flush();
-        newFileWriter.close();
-        Files.move(
-            newWorkingFile.toPath(), workingFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-
         return new DataTransferMessage(
             DATA_TRANSFER_REQUEST,
             dataToTransfer,
@@ -496,95 +844,228 @@ public class DiskStorage {
     }
   }
 
-  public DataTransferMessage updateDatabaseWithKVDataTransfer(
-      final DataTransferMessage dataTransferMessage, StorageType storageType) {
-    HashSet<StorageUnit> dataToWrite = dataTransferMessage.getPayload();
-
-    File workingFile = correctFileBasedOnEnum(storageType);
-    BufferedWriter databaseFileWriter;
-    try {
-      databaseFileWriter = new BufferedWriter(new FileWriter(workingFile, true));
-
-      for (StorageUnit storageUnit : dataToWrite) {
-        assert (storageUnit != null);
-        assert (storageUnit.value != null);
+  @Override
+  public DataTransferMessage moveUnitsInRange(
+      ECSMessage ecsMessage,
+      final String[] hashRange,
+      StorageType source,
+      StorageType destination) {
+    // both locks, in StorageType order so two moves in opposite directions can't deadlock
+    StorageType first = source.compareTo(destination) < 0 ? source : destination;
+    StorageType second = first == source ? destination : source;
+    synchronized (writeLock(first)) {
+      synchronized (writeLock(second)) {
         try {
-          assert (Verifier.verifyStorageUnitMAC(storageUnit) && !seenIDs.contains(storageUnit.MAC));
-        } catch (EncryptionException e) {
-          logger.error("Verification failed for the StorageUnit " + storageUnit.toString(), e);
+          transferUnitsInRange(hashRange, source, destination);
+          subscriptions.moveRange(hashRange, source, destination);
           return new DataTransferMessage(
-              DATA_TRANSFER_FAILURE, e.toString(), dataTransferMessage.getECSMessage());
+              DATA_TRANSFER_SUCCESS,
+              "Moved keys from " + source.name() + " to " + destination.name(),
+              ecsMessage);
+        } catch (IOException e) {
+          logger.error("I/O error on working with the storage file during move operation", e);
+          return new DataTransferMessage(DATA_TRANSFER_FAILURE, e.toString(), ecsMessage);
+        } catch (Exception e) {
+          logger.error("Something went wrong during move operation", e);
+          return new DataTransferMessage(DATA_TRANSFER_FAILURE, e.toString(), ecsMessage);
         }
-        databaseFileWriter.write(storageUnit.serialize(encryption));
-        databaseFileWriter.newLine();
-        seenIDs.add(storageUnit.MAC);
       }
+    }
+  }
 
-      databaseFileWriter.close();
-      return new DataTransferMessage(
-          DATA_TRANSFER_SUCCESS, "Added new keys to database", dataTransferMessage.getECSMessage());
+  @Override
+  public DataTransferMessage deleteUnitsInRange(
+      ECSMessage ecsMessage, final String[] hashRange, StorageType storageType) {
+    synchronized (writeLock(storageType)) {
+      try {
+        dropUnitsInRange(hashRange, storageType);
+        subscriptions.dropRange(hashRange, storageType);
+        return new DataTransferMessage(
+            DATA_TRANSFER_SUCCESS, "Deleted keys from " + storageType.name(), ecsMessage);
+      } catch (IOException e) {
+        logger.error("I/O error on working with the storage file during delete operation", e);
+        return new DataTransferMessage(DATA_TRANSFER_FAILURE, e.toString(), ecsMessage);
+      } catch (Exception e) {
+        logger.error("Something went wrong during delete operation", e);
+        return new DataTransferMessage(DATA_TRANSFER_FAILURE, e.toString(), ecsMessage);
+      }
+    }
+  }
 
-    } catch (FileNotFoundException e) {
-      logger.error("No storage file exists for partition operation", e);
-      return new DataTransferMessage(
-          DATA_TRANSFER_FAILURE, e.toString(), dataTransferMessage.getECSMessage());
-    } catch (SecurityException e) {
-      logger.error("Security rules do not allow file deletion or renaming", e);
-      return new DataTransferMessage(
-          DATA_TRANSFER_FAILURE, e.toString(), dataTransferMessage.getECSMessage());
-    } catch (IOException e) {
-      logger.error("I/O error on working with the storage file during PUT operation", e);
-      return new DataTransferMessage(
-          DATA_TRANSFER_FAILURE, e.toString(), dataTransferMessage.getECSMessage());
-    } catch (Exception e) {
-      logger.error("Something went wrong during database partitioning", e);
-      return new DataTransferMessage(
-          DATA_TRANSFER_FAILURE, e.toString(), dataTransferMessage.getECSMessage());
+  @Override
+  public List<String> keysInRange(final String[] hashRange, StorageType storageType)
+      throws DiskStorageException {
+    Collection<String> keys;
+    synchronized (writeLock(storageType)) {
+      try {
+        keys = listKeysInRange(hashRange, storageType);
+      } catch (IOException | StorageUnitException e) {
+        logger.error("Could not list the keys in range of " + storageType.name(), e);
+        throw new DiskStorageException(e.getLocalizedMessage());
+      }
     }
+    // hash every key once rather than on every comparison
+    return keys.stream()
+        .map(ECSUtils::ringPosition)
+        .sorted()
+        .map(ECSUtils::keyAtRingPosition)
+        .collect(Collectors.toList());
   }
 
-  private File correctFileBasedOnEnum(StorageType type) {
-    switch (type) {
-      case REPLICA_1:
-        return this.replica1File;
-      case REPLICA_2:
-        return this.replica2File;
-      default:
-        return this.storageFile;
+  @Override
+  public StorageUnit readStorageUnit(final String key, StorageType storageType)
+      throws DiskStorageException {
+    try {
+      StorageUnit storageUnit = lookUpUnit(key, storageType);
+      return storageUnit == null ? null : attachSubscribers(storageUnit, storageType);
+    } catch (IOException | StorageUnitException e) {
+      logger.error("Could not read " + key + " from " + storageType.name(), e);
+      throw new DiskStorageException(e.getLocalizedMessage());
+    }
+  }
+
+  @Override
+  public long rawRecordBytes(final String key, StorageType storageType)
+      throws DiskStorageException {
+    try {
+      return recordBytes(key, storageType);
+    } catch (IOException | StorageUnitException e) {
+      logger.error("Could not read " + key + " from " + storageType.name(), e);
+      throw new DiskStorageException(e.getLocalizedMessage());
     }
   }
 
-  public enum StorageType {
-    SELF,
-    REPLICA_1,
-    REPLICA_2
+  @Override
+  public HashMap<String, ArrayList<UUID>> getSubscriptions(
+      Collection<String> keys, StorageType storageType) {
+    return subscriptions.subscriptionsOf(keys, storageType);
   }
 
-  public static class DiskStorageWriteResponse {
-    private final KVMessage kvMessageResponse;
-    private final ArrayList<UUID> subscribers;
+  @Override
+  public long getAvoidedDiskReads(StorageType storageType) {
+    return avoidedDiskReads.get(storageType.ordinal());
+  }
 
-    public DiskStorageWriteResponse(KVMessage kvMessageResponse, ArrayList<UUID> subscribers) {
-      this.kvMessageResponse = kvMessageResponse;
-      this.subscribers = subscribers;
-    }
+  @Override
+  public CompressionStats getCompressionStats() {
+    return compressionStats;
+  }
 
-    public KVMessage getKvMessageResponse() {
-      return kvMessageResponse;
+  @Override
+  public long exportRawRecords(List<String> keys, StorageType storageType, RawRecordSink sink)
+      throws IOException, DiskStorageException {
+    synchronized (writeLock(storageType)) {
+      try {
+        return writeRawRecords(keys, storageType, sink);
+      } catch (StorageUnitException e) {
+        logger.error("Could not export records of " + storageType.name(), e);
+        throw new DiskStorageException(e.getLocalizedMessage());
+      }
     }
+  }
 
-    public ArrayList<UUID> getSubscribers() {
-      return subscribers;
+  @Override
+  public DataTransferMessage updateDatabaseWithKVDataTransfer(
+      final DataTransferMessage dataTransferMessage, StorageType storageType) {
+    HashSet<StorageUnit> dataToWrite = dataTransferMessage.getPayload();
+
+    for (StorageUnit storageUnit : dataToWrite) {
+      assert (storageUnit != null);
+      assert (storageUnit.value != null);
+      try {
+        assert (Verifier.verifyStorageUnitMAC(storageUnit)
+            && !seenIDs.mightHaveSeen(storageUnit.MAC));
+      } catch (EncryptionException e) {
+        logger.error("Verification failed for the StorageUnit " + storageUnit.toString(), e);
+        return new DataTransferMessage(
+            DATA_TRANSFER_FAILURE, e.toString(), dataTransferMessage.getECSMessage());
+      }
     }
 
-    @Override
-    public String toString() {
-      return "DiskStorageWriteResponse{"
-          + "kvMessage="
-          + kvMessageResponse
-          + ",  subscribers="
-          + subscribers
-          + "}";
+    HashMap<String, ArrayList<UUID>> subscribers = detachSubscribers(dataToWrite);
+    CompletableFuture<Void> durable;
+    synchronized (writeLock(storageType)) {
+      try {
+        appendUnits(dataToWrite, storageType);
+        for (StorageUnit storageUnit : dataToWrite) {
+          seenIDs.add(storageUnit.MAC, KVMessage.timestampOf(storageUnit.uniqueID));
+        }
+        for (Map.Entry<String, ArrayList<UUID>> entry : subscribers.entrySet()) {
+          subscriptions.replace(storageType, entry.getKey(), entry.getValue());
+        }
+        if (dataTransferMessage.getRawRecords() != null) {
+          ingestRawRecords(
+              dataTransferMessage.getRawRecords(),
+              dataTransferMessage.getSubscriptions(),
+              storageType);
+        }
+        for (String key : dataTransferMessage.getDeletedKeys()) {
+          updateUnit(key, storageType, currentUnit -> null);
+          subscriptions.removeKey(storageType, key);
+        }
+        durable = groupCommit.register();
+      } catch (FileNotFoundException e) {
+        logger.error("No storage file exists for partition operation", e);
+        return new DataTransferMessage(
+            DATA_TRANSFER_FAILURE, e.toString(), dataTransferMessage.getECSMessage());
+      } catch (SecurityException e) {
+        logger.error("Security rules do not allow file deletion or renaming", e);
+        return new DataTransferMessage(
+            DATA_TRANSFER_FAILURE, e.toString(), dataTransferMessage.getECSMessage());
+      } catch (IOException e) {
+        logger.error("I/O error on working with the storage file during PUT operation", e);
+        return new DataTransferMessage(
+            DATA_TRANSFER_FAILURE, e.toString(), dataTransferMessage.getECSMessage());
+      } catch (Exception e) {
+        logger.error("Something went wrong during database partitioning", e);
+        return new DataTransferMessage(
+            DATA_TRANSFER_FAILURE, e.toString(), dataTransferMessage.getECSMessage());
+      }
     }
+    // the sender may drop its copy once this is acknowledged
+    try {
+      durable.join();
+    } catch (CompletionException e) {
+      return new DataTransferMessage(
+          DATA_TRANSFER_FAILURE, e.getCause().toString(), dataTransferMessage.getECSMessage());
+    }
+    return new DataTransferMessage(
+        DATA_TRANSFER_SUCCESS, "Added new keys to database", dataTransferMessage.getECSMessage());
+  }
+
+  /**
+   * Apply the records written by another node's exportRawRecords, each key getting exactly the
+   * subscribers listed for it in subscribers. Callers hold the write lock of storageType.
+   */
+  private void ingestRawRecords(
+      InputStream rawRecords, Map<String, ArrayList<UUID>> subscribers, StorageType storageType)
+      throws IOException {
+    SegmentLog.readRecords(
+        rawRecords,
+        (key, record) -> {
+          try {
+            if (record == null) {
+              updateUnit(key, storageType, currentUnit -> null);
+              subscriptions.removeKey(storageType, key);
+            } else {
+              seenIDs.add(
+                  StorageUnitRecord.readMAC(ByteBuffer.wrap(record), null),
+                  KVMessage.timestampOf(
+                      StorageUnitRecord.readUniqueID(ByteBuffer.wrap(record), null)));
+              putRawRecord(key, record, storageType);
+              subscriptions.replace(
+                  storageType, key, subscribers.getOrDefault(key, new ArrayList<>()));
+            }
+          } catch (StorageUnitException e) {
+            throw new IOException("Bad record for " + key + ": " + e.getLocalizedMessage(), e);
+          }
+        });
+  }
+
+  private static class WriteOutcome {
+    private KVMessage.StatusType status = KVMessage.StatusType.PUT_ERROR;
+    private ArrayList<UUID> subscribers = null;
+    // found in the stored unit, written by a version that kept subscribers there
+    private final ArrayList<UUID> inlineSubscribers = new ArrayList<>();
   }
 }
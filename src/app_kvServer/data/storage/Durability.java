@@ -0,0 +1,30 @@
+package app_kvServer.data.storage;
+
+/**
+ * When a write counts as done, i.e. when its acknowledgement may be sent. Chosen per server through
+ * the StorageEngineConfig parameter "durability".
+ */
+public enum Durability {
+  /** Acknowledge once the write is applied, leaving it to the OS to reach the disk. */
+  NONE,
+  /**
+   * Acknowledge once the write is synced to disk together with the other writes of its batch. A
+   * batch is synced every syncIntervalMillis or as soon as it holds syncBatchWrites writes.
+   */
+  BATCHED,
+  /**
+   * Acknowledge once the write is synced to disk. Writes that arrive while a sync is running share
+   * the next one, so concurrent writers are not limited to one sync each.
+   */
+  PER_WRITE;
+
+  /** @param name e.g. "none", "batched" or "per-write". */
+  public static Durability parse(String name) {
+    return valueOf(name.trim().toUpperCase().replace('-', '_'));
+  }
+
+  @Override
+  public String toString() {
+    return name().toLowerCase().replace('_', '-');
+  }
+}
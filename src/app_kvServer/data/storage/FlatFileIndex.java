@@ -0,0 +1,280 @@
+package app_kvServer.data.storage;
+
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
+import com.google.common.hash.HashingOutputStream;
+import com.google.common.io.ByteStreams;
+import ecs.ECSUtils;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.spec.SecretKeySpec;
+import org.apache.log4j.Logger;
+
+/**
+ * Location of every record in one version of a FlatFileStorage file, along with the ring hash of
+ * each key so hash ranges are answered without reading the file. An index never changes once built:
+ * rewriting the file builds the index of the new version alongside through a Builder.
+ *
+ * <p>The index of each version is saved next to its file as a sidecar, replaced atomically:
+ *
+ * <pre>
+ * [format version (4 bytes)][entry count (4 bytes)]
+ * per entry: [key length (4 bytes)][key][ring hash (32 bytes)][offset (8 bytes)][length (4 bytes)]
+ * [file length (8 bytes)][file modification time (8 bytes)][CRC32C of everything before it (4 bytes)]
+ * </pre>
+ *
+ * A sidecar is only loaded for the file whose length and modification time it records, so one left
+ * behind by a crash between replacing the file and saving its index is never paired with it.
+ */
+public final class FlatFileIndex {
+  private static final Logger logger = Logger.getLogger(FlatFileIndex.class);
+  private static final String SIDECAR_SUFFIX = ".idx";
+  private static final String TEMPORARY_SUFFIX = ".tmp";
+  private static final int FORMAT_VERSION = 2;
+  private static final int HASH_BYTES = 32;
+  private static final int CHECKSUM_BYTES = 4;
+  // file length, file modification time and checksum
+  private static final int TRAILER_BYTES = 8 + 8 + CHECKSUM_BYTES;
+  // key length, ring hash, offset and length of an entry with an empty key
+  private static final int MIN_ENTRY_BYTES = 4 + HASH_BYTES + 8 + 4;
+  // in file order
+  private final LinkedHashMap<String, Entry> entries;
+  private final long fileLength;
+
+  /** Where a key's record is, and the key's ring hash. */
+  public static final class Entry {
+    private final String hash;
+    private final long offset;
+    private final int length;
+
+    private Entry(String hash, long offset, int length) {
+      this.hash = hash;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    public String getHash() {
+      return hash;
+    }
+
+    public long getOffset() {
+      return offset;
+    }
+
+    public int getLength() {
+      return length;
+    }
+  }
+
+  private FlatFileIndex(LinkedHashMap<String, Entry> entries, long fileLength) {
+    this.entries = entries;
+    this.fileLength = fileLength;
+  }
+
+  /** Collects the entries of a file as its records are written one after another. */
+  public static final class Builder {
+    private final LinkedHashMap<String, Entry> entries;
+    private final FlatFileIndex previous;
+    private long offset = 0;
+
+    /** @param previous the index of the file being rewritten, to reuse the hashes it knows. */
+    public Builder(FlatFileIndex previous) {
+      this.previous = previous;
+      this.entries = new LinkedHashMap<>(previous == null ? 16 : previous.size() * 4 / 3 + 2);
+    }
+
+    /** Note the record of key, of length bytes, written right after the last one added. */
+    public void add(String key, int length) {
+      Entry known = previous == null ? null : previous.entries.get(key);
+      String hash =
+          known != null ? known.hash : shared.communication.security.Hashing.calculateMD5Hash(key);
+      entries.put(key, new Entry(hash, offset, length));
+      offset += length;
+    }
+
+    public FlatFileIndex build() {
+      return new FlatFileIndex(entries, offset);
+    }
+  }
+
+  /** @return the index of file, built by reading each of its records. */
+  public static FlatFileIndex scan(File file, SecretKeySpec encryption)
+      throws IOException, StorageUnitException {
+    Builder builder = new Builder(null);
+    try (DataInputStream reader =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+      byte[] record;
+      while ((record = StorageUnitRecord.read(reader)) != null) {
+        builder.add(StorageUnitRecord.readKey(ByteBuffer.wrap(record), encryption), record.length);
+      }
+    }
+    return builder.build();
+  }
+
+  /**
+   * Load the sidecar of file.
+   *
+   * @return the saved index, or null if there is none or it doesn't match file.
+   */
+  public static FlatFileIndex load(File file) throws IOException {
+    File sidecar = sidecar(file);
+    if (!sidecar.exists()) {
+      return null;
+    }
+    long sidecarLength = sidecar.length();
+    if (sidecarLength < 4 + 4 + TRAILER_BYTES) {
+      logger.warn("Ignoring corrupt index " + sidecar.getAbsolutePath());
+      return null;
+    }
+    // the trailer tells whether the sidecar is of this version of file before the rest is read
+    ByteBuffer trailer = ByteBuffer.allocate(TRAILER_BYTES);
+    try (FileChannel channel = FileChannel.open(sidecar.toPath(), StandardOpenOption.READ)) {
+      while (trailer.hasRemaining()) {
+        if (channel.read(trailer, sidecarLength - TRAILER_BYTES + trailer.position()) < 0) {
+          throw new EOFException("Index " + sidecar.getAbsolutePath() + " shrank while read");
+        }
+      }
+    }
+    long fileLength = trailer.getLong(0);
+    if (fileLength != file.length() || trailer.getLong(8) != modified(file)) {
+      logger.warn("Ignoring index of a different version of " + file.getAbsolutePath());
+      return null;
+    }
+    HashingInputStream hashing =
+        new HashingInputStream(
+            Hashing.crc32c(),
+            ByteStreams.limit(
+                new BufferedInputStream(new FileInputStream(sidecar), 64 * 1024),
+                sidecarLength - CHECKSUM_BYTES));
+    try (DataInputStream input = new DataInputStream(hashing)) {
+      if (input.readInt() != FORMAT_VERSION) {
+        logger.warn("Ignoring index of an older format " + sidecar.getAbsolutePath());
+        return null;
+      }
+      int count = input.readInt();
+      if (count < 0 || count > sidecarLength / MIN_ENTRY_BYTES) {
+        logger.warn("Ignoring corrupt index " + sidecar.getAbsolutePath());
+        return null;
+      }
+      LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(count * 4 / 3 + 2);
+      byte[] hash = new byte[HASH_BYTES];
+      for (int i = 0; i < count; i++) {
+        int keyLength = input.readInt();
+        if (keyLength < 0 || keyLength > sidecarLength) {
+          logger.warn("Ignoring corrupt index " + sidecar.getAbsolutePath());
+          return null;
+        }
+        byte[] key = new byte[keyLength];
+        input.readFully(key);
+        input.readFully(hash);
+        entries.put(
+            new String(key, StandardCharsets.UTF_8),
+            new Entry(
+                new String(hash, StandardCharsets.US_ASCII), input.readLong(), input.readInt()));
+      }
+      // read rather than skipped, which would leave them out of the checksum
+      input.readLong();
+      input.readLong();
+      if (input.read() != -1 || hashing.hash().asInt() != trailer.getInt(TRAILER_BYTES - 4)) {
+        logger.warn("Ignoring corrupt index " + sidecar.getAbsolutePath());
+        return null;
+      }
+      return new FlatFileIndex(entries, fileLength);
+    } catch (EOFException e) {
+      logger.warn("Ignoring torn index " + sidecar.getAbsolutePath());
+      return null;
+    }
+  }
+
+  /**
+   * Save this index as the sidecar of file, which must be the file it indexes. The sidecar isn't
+   * forced to disk: one torn by a crash fails its checksum and the file is scanned instead.
+   */
+  public void save(File file) throws IOException {
+    long modified = modified(file);
+    File temporary = new File(sidecar(file).getPath() + TEMPORARY_SUFFIX);
+    try (FileOutputStream stream = new FileOutputStream(temporary)) {
+      HashingOutputStream hashing =
+          new HashingOutputStream(Hashing.crc32c(), new BufferedOutputStream(stream, 64 * 1024));
+      DataOutputStream output = new DataOutputStream(hashing);
+      output.writeInt(FORMAT_VERSION);
+      output.writeInt(entries.size());
+      for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+        byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+        output.writeInt(key.length);
+        output.write(key);
+        output.write(entry.getValue().hash.getBytes(StandardCharsets.US_ASCII));
+        output.writeLong(entry.getValue().offset);
+        output.writeInt(entry.getValue().length);
+      }
+      output.writeLong(fileLength);
+      output.writeLong(modified);
+      output.writeInt(hashing.hash().asInt());
+      output.flush();
+    }
+    Files.move(temporary.toPath(), sidecar(file).toPath(), StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /** Delete the sidecar of file if there is one. */
+  public static void deleteSidecar(File file) throws IOException {
+    Files.deleteIfExists(sidecar(file).toPath());
+  }
+
+  /** @return where the record of key is, or null if the file doesn't hold key. */
+  public Entry get(String key) {
+    return entries.get(key);
+  }
+
+  public boolean contains(String key) {
+    return entries.containsKey(key);
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  /** @return every key with the location of its record, in file order. */
+  public Collection<Map.Entry<String, Entry>> entries() {
+    return Collections.unmodifiableCollection(entries.entrySet());
+  }
+
+  /** @return the keys whose ring hash falls into hashRange, in file order. */
+  public List<String> keysInRange(String[] hashRange) {
+    List<String> keys = new ArrayList<>();
+    for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+      if (ECSUtils.checkIfHashBelongsInRange(entry.getValue().hash, hashRange)) {
+        keys.add(entry.getKey());
+      }
+    }
+    return keys;
+  }
+
+  private static File sidecar(File file) {
+    return new File(file.getPath() + SIDECAR_SUFFIX);
+  }
+
+  /** @return the modification time of file, as precisely as the file system keeps it. */
+  private static long modified(File file) throws IOException {
+    return Files.getLastModifiedTime(file.toPath()).to(TimeUnit.NANOSECONDS);
+  }
+}
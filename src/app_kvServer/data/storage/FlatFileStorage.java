@@ -0,0 +1,470 @@
+package app_kvServer.data.storage;
+
+import ecs.ECSUtils;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.UnaryOperator;
+import org.apache.log4j.Logger;
+
+/**
+ * Stores each StorageType as a single file of consecutive StorageUnitRecords, and every mutation
+ * rewrites the whole file. Each file has a FlatFileIndex, built along with the file, so a lookup is
+ * a single positioned read and a hash range is listed without reading the file. Unless the storage
+ * is encrypted, the index is saved next to its file with every rewrite and loaded again by
+ * recovery, sparing it a scan of the files even after a crash.
+ *
+ * <p>Files up to maxMappedBytes are read through a read-only memory map of the version in use,
+ * mapped again after each rewrite, so a GET decodes its record straight from the page cache without
+ * a system call. A file is never changed once written, only replaced, and the map of a replaced
+ * version, along with its disk space, is released when the garbage collector frees it.
+ */
+public class FlatFileStorage extends DiskStorage {
+  private static final Logger logger = Logger.getLogger(FlatFileStorage.class);
+  public static final long DEFAULT_MAX_MAPPED_BYTES = Integer.MAX_VALUE;
+  private final long maxMappedBytes;
+  private final File storageFile;
+  private final File replica1File;
+  private final File replica2File;
+  private final AtomicReferenceArray<IndexedFile> files =
+      new AtomicReferenceArray<>(StorageType.values().length);
+  // 1 for the files rewritten since the last sync
+  private final AtomicIntegerArray unsynced = new AtomicIntegerArray(StorageType.values().length);
+
+  public FlatFileStorage(final String uniqueID, boolean encrypted) throws DiskStorageException {
+    this(uniqueID, encrypted, DEFAULT_MAX_MAPPED_BYTES, false);
+  }
+
+  /**
+   * @param maxMappedBytes size up to which a file is read through a memory map rather than with
+   *     positioned reads. At most DEFAULT_MAX_MAPPED_BYTES, the largest a map can be.
+   * @param recover whether to keep the files left by a previous run of this node instead of
+   *     starting empty. A file comes with the index saved when it was written. Without one that
+   *     matches, records torn or corrupted by a crash are cut off its end and it is scanned to
+   *     index it.
+   */
+  public FlatFileStorage(
+      final String uniqueID, boolean encrypted, long maxMappedBytes, boolean recover)
+      throws DiskStorageException {
+    super(uniqueID, encrypted, recover);
+    this.maxMappedBytes = Math.min(maxMappedBytes, DEFAULT_MAX_MAPPED_BYTES);
+    this.storageFile = new File("KeyValueData_" + uniqueID + ".dat");
+    this.replica1File = new File("KeyValueData_" + uniqueID + "_replica1.dat");
+    this.replica2File = new File("KeyValueData_" + uniqueID + "_replica2.dat");
+    if (!recover) {
+      // remove existing storage to start fresh
+      if (storageFile.exists() && !storageFile.delete()) {
+        throw new DiskStorageException("Unable to delete file " + storageFile.getAbsolutePath());
+      }
+      if (replica1File.exists() && !replica1File.delete()) {
+        throw new DiskStorageException("Unable to delete file " + replica1File.getAbsolutePath());
+      }
+      if (replica2File.exists() && !replica2File.delete()) {
+        throw new DiskStorageException("Unable to delete file " + replica2File.getAbsolutePath());
+      }
+      try {
+        for (File file : new File[] {storageFile, replica1File, replica2File}) {
+          FlatFileIndex.deleteSidecar(file);
+        }
+      } catch (IOException e) {
+        throw new DiskStorageException(e.getLocalizedMessage());
+      }
+    }
+    try {
+      for (int i = 0; i < 10; i++) {
+        storageFile.createNewFile();
+        replica1File.createNewFile();
+        replica2File.createNewFile();
+        if (storageFile.exists() && replica1File.exists() && replica2File.exists()) {
+          break;
+        }
+      }
+      // each file may have to be scanned for want of a saved index
+      Arrays.stream(StorageType.values())
+          .parallel()
+          .forEach(storageType -> files.set(storageType.ordinal(), openFile(storageType, recover)));
+      logger.info("Storage file " + storageFile.getAbsolutePath() + " opened.");
+      logger.info("Storage replica 1 " + replica1File.getAbsolutePath() + " opened.");
+      logger.info("Storage replica 2 " + replica2File.getAbsolutePath() + " opened.");
+    } catch (Exception e) {
+      logger.error("Could not establish connection to disk storage.");
+      throw new DiskStorageException(e.getLocalizedMessage());
+    }
+  }
+
+  /** Cut file off after its last intact record. */
+  private static void truncateToValidRecords(File file) throws IOException {
+    long validBytes = 0;
+    try (DataInputStream reader = openReader(file)) {
+      byte[] record;
+      while ((record = StorageUnitRecord.read(reader)) != null) {
+        StorageUnitRecord.verify(ByteBuffer.wrap(record));
+        validBytes += record.length;
+      }
+    } catch (StorageUnitException e) {
+      logger.warn("Stopped recovering " + file.getAbsolutePath() + ": " + e.getMessage());
+    }
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+      if (validBytes < channel.size()) {
+        logger.warn(
+            "Truncating "
+                + (channel.size() - validBytes)
+                + " bytes of torn or corrupt records from "
+                + file.getAbsolutePath());
+        channel.truncate(validBytes);
+      }
+    }
+  }
+
+  private IndexedFile openFile(StorageType storageType, boolean recover) {
+    File file = correctFileBasedOnEnum(storageType);
+    try {
+      FlatFileIndex index = recover ? FlatFileIndex.load(file) : null;
+      if (index == null) {
+        if (recover) {
+          truncateToValidRecords(file);
+        }
+        index = FlatFileIndex.scan(file, encryption);
+        saveIndex(index, file);
+      }
+      return openIndexedFile(file.toPath(), index);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } catch (StorageUnitException e) {
+      throw new UncheckedIOException(new IOException(e.getLocalizedMessage(), e));
+    }
+  }
+
+  /**
+   * Swap in newWorkingFile for the file of storageType along with its index. Lookups still holding
+   * the replaced file either read its map, which stays valid, or find its channel closed and retry
+   * on the new one.
+   */
+  private void replaceFile(File newWorkingFile, StorageType storageType, FlatFileIndex newIndex)
+      throws IOException {
+    Path file = correctFileBasedOnEnum(storageType).toPath();
+    Files.move(newWorkingFile.toPath(), file, StandardCopyOption.ATOMIC_MOVE);
+    IndexedFile replaced = files.getAndSet(storageType.ordinal(), openIndexedFile(file, newIndex));
+    replaced.channel.close();
+    unsynced.set(storageType.ordinal(), 1);
+    saveIndex(newIndex, file.toFile());
+  }
+
+  /**
+   * Save index as the sidecar of file, unless the storage is encrypted: an index would hold the
+   * keys in plain text, so recovery scans encrypted files instead. A sidecar left behind doesn't
+   * match the new version of file, so failing to save only costs the next recovery a scan.
+   */
+  private void saveIndex(FlatFileIndex index, File file) {
+    if (encryption != null) {
+      return;
+    }
+    try {
+      index.save(file);
+    } catch (IOException e) {
+      logger.warn("Could not save the index of " + file.getAbsolutePath(), e);
+    }
+  }
+
+  /** Open file, which index describes, for reading, mapping it if it is small enough. */
+  private IndexedFile openIndexedFile(Path file, FlatFileIndex index) throws IOException {
+    FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+    long size = channel.size();
+    MappedByteBuffer map =
+        size > 0 && size <= maxMappedBytes
+            ? channel.map(FileChannel.MapMode.READ_ONLY, 0, size)
+            : null;
+    return new IndexedFile(index, channel, map);
+  }
+
+  @Override
+  protected boolean mightContain(String key, StorageType storageType) {
+    return files.get(storageType.ordinal()).index.contains(key);
+  }
+
+  @Override
+  protected StorageUnit readUnit(String key, StorageType storageType)
+      throws IOException, StorageUnitException {
+    while (true) {
+      IndexedFile file = files.get(storageType.ordinal());
+      FlatFileIndex.Entry entry = file.index.get(key);
+      if (entry == null) {
+        return null;
+      }
+      try {
+        return StorageUnitRecord.decode(file.read(entry), encryption);
+      } catch (ClosedChannelException e) {
+        if (files.get(storageType.ordinal()) == file) {
+          throw e;
+        }
+        // the file was rewritten meanwhile
+      }
+    }
+  }
+
+  @Override
+  protected void updateUnit(String key, StorageType storageType, UnaryOperator<StorageUnit> update)
+      throws IOException, StorageUnitException {
+    File workingFile = correctFileBasedOnEnum(storageType);
+    final File newWorkingFile = new File("temp_" + uniqueID + "_" + storageType.name() + ".dat");
+    FlatFileIndex index = files.get(storageType.ordinal()).index;
+    FlatFileIndex.Builder newIndex = new FlatFileIndex.Builder(index);
+    try (DataOutputStream newFileWriter = openWriter(newWorkingFile, false);
+        DataInputStream oldFileReader = openReader(workingFile)) {
+      boolean found = false;
+      // the index lists the keys in file order, so no record needs decoding to find its key
+      for (Map.Entry<String, FlatFileIndex.Entry> indexed : index.entries()) {
+        byte[] record = readIndexedRecord(oldFileReader, indexed.getValue());
+        if (indexed.getKey().equals(key)) {
+          found = true;
+          StorageUnit updatedUnit =
+              update.apply(StorageUnitRecord.decode(ByteBuffer.wrap(record), encryption));
+          if (updatedUnit != null) {
+            byte[] updatedRecord =
+                StorageUnitRecord.encode(updatedUnit, encryption, compressionStats);
+            newFileWriter.write(updatedRecord);
+            newIndex.add(key, updatedRecord.length);
+          }
+        } else {
+          newFileWriter.write(record);
+          newIndex.add(indexed.getKey(), record.length);
+        }
+      }
+      if (!found) {
+        StorageUnit newUnit = update.apply(null);
+        if (newUnit != null) {
+          byte[] newRecord = StorageUnitRecord.encode(newUnit, encryption, compressionStats);
+          newFileWriter.write(newRecord);
+          newIndex.add(key, newRecord.length);
+        }
+      }
+    }
+    replaceFile(newWorkingFile, storageType, newIndex.build());
+  }
+
+  @Override
+  protected HashSet<StorageUnit> extractUnitsInRange(
+      String[] hashRange, StorageType storageType, boolean delete)
+      throws IOException, StorageUnitException {
+    HashSet<StorageUnit> unitsInRange = new HashSet<>();
+    File workingFile = correctFileBasedOnEnum(storageType);
+    IndexedFile file = files.get(storageType.ordinal());
+    if (!delete) {
+      // nothing to rewrite, only the records in range are read
+      for (String key : file.index.keysInRange(hashRange)) {
+        unitsInRange.add(StorageUnitRecord.decode(file.read(file.index.get(key)), encryption));
+      }
+      return unitsInRange;
+    }
+    final File newWorkingFile =
+        new File("temp_" + uniqueID + "_" + storageType.name() + "_partitioning" + ".dat");
+    FlatFileIndex.Builder newIndex = new FlatFileIndex.Builder(file.index);
+    try (DataOutputStream newFileWriter = openWriter(newWorkingFile, false);
+        DataInputStream oldFileReader = openReader(workingFile)) {
+      for (Map.Entry<String, FlatFileIndex.Entry> indexed : file.index.entries()) {
+        byte[] record = readIndexedRecord(oldFileReader, indexed.getValue());
+        if (ECSUtils.checkIfHashBelongsInRange(indexed.getValue().getHash(), hashRange)) {
+          unitsInRange.add(StorageUnitRecord.decode(ByteBuffer.wrap(record), encryption));
+        } else {
+          newFileWriter.write(record);
+          newIndex.add(indexed.getKey(), record.length);
+        }
+      }
+    }
+    replaceFile(newWorkingFile, storageType, newIndex.build());
+    return unitsInRange;
+  }
+
+  @Override
+  protected long writeRawRecords(List<String> keys, StorageType storageType, RawRecordSink sink)
+      throws IOException, StorageUnitException {
+    // the records go out as they are stored, still compressed, but in the clear
+    IndexedFile file = files.get(storageType.ordinal());
+    List<byte[]> records = new ArrayList<>(keys.size());
+    for (String key : keys) {
+      FlatFileIndex.Entry entry = file.index.get(key);
+      if (entry != null) {
+        records.add(
+            SegmentLog.frameRecord(
+                key, StorageUnitRecord.reencrypt(file.read(entry), encryption, null)));
+      }
+    }
+    return writeFramedRecords(records, sink);
+  }
+
+  @Override
+  protected long recordBytes(String key, StorageType storageType) {
+    // an encrypted record only gets shorter once decrypted
+    FlatFileIndex.Entry entry = files.get(storageType.ordinal()).index.get(key);
+    return entry == null ? 0 : SegmentLog.framedBytes(key, entry.getLength());
+  }
+
+  @Override
+  protected void appendUnits(Collection<StorageUnit> units, StorageType storageType)
+      throws IOException, StorageUnitException {
+    File workingFile = correctFileBasedOnEnum(storageType);
+    HashSet<String> keys = new HashSet<>();
+    for (StorageUnit storageUnit : units) {
+      keys.add(storageUnit.key);
+    }
+    final File newWorkingFile =
+        new File("temp_" + uniqueID + "_" + storageType.name() + "_appending" + ".dat");
+    FlatFileIndex index = files.get(storageType.ordinal()).index;
+    FlatFileIndex.Builder newIndex = new FlatFileIndex.Builder(index);
+    try (DataOutputStream newFileWriter = openWriter(newWorkingFile, false);
+        DataInputStream oldFileReader = openReader(workingFile)) {
+      for (Map.Entry<String, FlatFileIndex.Entry> indexed : index.entries()) {
+        byte[] record = readIndexedRecord(oldFileReader, indexed.getValue());
+        // drop older versions of the incoming keys
+        if (!keys.contains(indexed.getKey())) {
+          newFileWriter.write(record);
+          newIndex.add(indexed.getKey(), record.length);
+        }
+      }
+      HashSet<String> written = new HashSet<>();
+      for (StorageUnit storageUnit : units) {
+        // a file holds each key once, so its records stay in step with its index
+        if (written.add(storageUnit.key)) {
+          byte[] record = StorageUnitRecord.encode(storageUnit, encryption, compressionStats);
+          newFileWriter.write(record);
+          newIndex.add(storageUnit.key, record.length);
+        }
+      }
+    }
+    replaceFile(newWorkingFile, storageType, newIndex.build());
+  }
+
+  @Override
+  protected void sync() throws IOException {
+    for (StorageType storageType : StorageType.values()) {
+      if (unsynced.getAndSet(storageType.ordinal(), 0) == 0) {
+        continue;
+      }
+      // the file may be replaced meanwhile, its replacement is then marked unsynced again
+      Path file = correctFileBasedOnEnum(storageType).toPath().toAbsolutePath();
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+        channel.force(true);
+      }
+      // the rename that swapped the file in is only durable once its directory is synced
+      try (FileChannel directory = FileChannel.open(file.getParent(), StandardOpenOption.READ)) {
+        directory.force(true);
+      } catch (IOException e) {
+        logger.debug("Directory of " + file + " cannot be synced on this platform", e);
+      }
+    }
+  }
+
+  @Override
+  protected Collection<String> listKeysInRange(String[] hashRange, StorageType storageType) {
+    return files.get(storageType.ordinal()).index.keysInRange(hashRange);
+  }
+
+  /** Close the files, whose indexes were saved as they were written. */
+  @Override
+  public void close() throws DiskStorageException {
+    super.close();
+    try {
+      for (StorageType storageType : StorageType.values()) {
+        files.get(storageType.ordinal()).channel.close();
+      }
+    } catch (IOException e) {
+      logger.error("Could not close the storage files", e);
+      throw new DiskStorageException(e.getLocalizedMessage());
+    }
+  }
+
+  /** @return the next record of input, which the index says is entry. */
+  private static byte[] readIndexedRecord(DataInputStream input, FlatFileIndex.Entry entry)
+      throws IOException, StorageUnitException {
+    byte[] record = new byte[entry.getLength()];
+    input.readFully(record);
+    if (StorageUnitRecord.length(ByteBuffer.wrap(record)) != record.length) {
+      throw new StorageUnitException("index out of step with its file at " + entry.getOffset());
+    }
+    return record;
+  }
+
+  private static DataInputStream openReader(File file) throws IOException {
+    return new DataInputStream(new BufferedInputStream(new FileInputStream(file), 16384));
+  }
+
+  private static DataOutputStream openWriter(File file, boolean append) throws IOException {
+    return new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(file, append), 16384));
+  }
+
+  /**
+   * One version of a storage file: its index and a channel reading that exact version, as well as a
+   * map of it unless it is too large.
+   */
+  private static class IndexedFile {
+    private final FlatFileIndex index;
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+
+    private IndexedFile(FlatFileIndex index, FileChannel channel, MappedByteBuffer map) {
+      this.index = index;
+      this.channel = channel;
+      this.map = map;
+    }
+
+    /**
+     * @return the record at entry, a view of the map or else read with a single positioned read.
+     */
+    private ByteBuffer read(FlatFileIndex.Entry entry) throws IOException {
+      if (map != null) {
+        if (entry.getOffset() + entry.getLength() > map.capacity()) {
+          throw new EOFException("Record past the end of the file at " + entry.getOffset());
+        }
+        // a duplicate per read, as the position and limit of the map are shared by all readers
+        ByteBuffer record = map.duplicate();
+        record.limit((int) entry.getOffset() + entry.getLength()).position((int) entry.getOffset());
+        return record.slice();
+      }
+      ByteBuffer record = ByteBuffer.allocate(entry.getLength());
+      long position = entry.getOffset();
+      while (record.hasRemaining()) {
+        int read = channel.read(record, position + record.position());
+        if (read < 0) {
+          throw new EOFException("Record past the end of the file at " + position);
+        }
+      }
+      record.flip();
+      return record;
+    }
+  }
+
+  private File correctFileBasedOnEnum(StorageType type) {
+    switch (type) {
+      case REPLICA_1:
+        return this.replica1File;
+      case REPLICA_2:
+        return this.replica2File;
+      default:
+        return this.storageFile;
+    }
+  }
+}
@@ -0,0 +1,136 @@
+package app_kvServer.data.storage;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import org.apache.log4j.Logger;
+
+/**
+ * Group commit of the writes of a StorageEngine. Writers apply their changes without syncing and
+ * register them here. A single flusher thread then syncs every registered write with one call to
+ * the engine's Syncer and completes the batch's future, which writers wait on before acknowledging.
+ */
+public class GroupCommit {
+  private static final Logger logger = Logger.getLogger(GroupCommit.class);
+
+  private final Durability durability;
+  private final long syncIntervalMillis;
+  private final long syncBatchWrites;
+  private final Syncer syncer;
+  private final Thread flusher;
+  private CompletableFuture<Void> nextBatch = new CompletableFuture<>();
+  private long pendingWrites = 0;
+  private long firstPendingMillis;
+  private boolean closed = false;
+
+  /** Forces everything written so far to disk. */
+  public interface Syncer {
+    void sync() throws IOException;
+  }
+
+  /**
+   * @param syncIntervalMillis longest a BATCHED write waits for its batch to be synced.
+   * @param syncBatchWrites number of writes after which a BATCHED batch is synced right away.
+   */
+  public GroupCommit(
+      final String name,
+      final Durability durability,
+      final long syncIntervalMillis,
+      final long syncBatchWrites,
+      final Syncer syncer) {
+    this.durability = durability;
+    this.syncIntervalMillis = syncIntervalMillis;
+    this.syncBatchWrites = syncBatchWrites;
+    this.syncer = syncer;
+    if (durability == Durability.NONE) {
+      this.flusher = null;
+      return;
+    }
+    this.flusher = new Thread(this::flushBatches, "GroupCommit-" + name);
+    this.flusher.setDaemon(true);
+    this.flusher.start();
+  }
+
+  /**
+   * Register a write that was just applied.
+   *
+   * @return a future completed once the write is as durable as required, exceptionally if syncing
+   *     it failed.
+   */
+  public synchronized CompletableFuture<Void> register() {
+    if (flusher == null || closed) {
+      return StorageEngine.WriteResponse.DURABLE;
+    }
+    if (pendingWrites++ == 0) {
+      // wakes the flusher up to time the batch, or to sync it at once if PER_WRITE
+      firstPendingMillis = System.currentTimeMillis();
+      notifyAll();
+    } else if (durability == Durability.PER_WRITE || pendingWrites >= syncBatchWrites) {
+      notifyAll();
+    }
+    return nextBatch;
+  }
+
+  public Durability getDurability() {
+    return durability;
+  }
+
+  /** Sync the last batch and stop the flusher. Writes registered afterwards count as durable. */
+  public void close() {
+    synchronized (this) {
+      closed = true;
+      notifyAll();
+    }
+    if (flusher != null) {
+      try {
+        flusher.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void flushBatches() {
+    while (true) {
+      CompletableFuture<Void> batch;
+      long batchWrites;
+      synchronized (this) {
+        try {
+          while (!closed && !batchIsDue()) {
+            if (pendingWrites == 0 || durability == Durability.PER_WRITE) {
+              wait();
+            } else {
+              wait(
+                  Math.max(
+                      1, firstPendingMillis + syncIntervalMillis - System.currentTimeMillis()));
+            }
+          }
+        } catch (InterruptedException e) {
+          closed = true;
+        }
+        if (closed && pendingWrites == 0) {
+          return;
+        }
+        batch = nextBatch;
+        batchWrites = pendingWrites;
+        nextBatch = new CompletableFuture<>();
+        pendingWrites = 0;
+      }
+      try {
+        syncer.sync();
+        batch.complete(null);
+      } catch (IOException | RuntimeException e) {
+        logger.error("Could not sync a batch of " + batchWrites + " writes", e);
+        batch.completeExceptionally(e);
+      }
+    }
+  }
+
+  private boolean batchIsDue() {
+    if (pendingWrites == 0) {
+      return false;
+    }
+    return durability == Durability.PER_WRITE
+        || pendingWrites >= syncBatchWrites
+        || System.currentTimeMillis() - firstPendingMillis >= syncIntervalMillis;
+  }
+}
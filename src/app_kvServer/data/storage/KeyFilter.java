@@ -0,0 +1,41 @@
+package app_kvServer.data.storage;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Bloom filter over the keys of a storage file, answering lookups for keys the file certainly does
+ * not hold without reading it. Keys are added by one writer at a time while lookups carry on, and
+ * are never removed: a file drops deleted keys from its filter by building a new one.
+ */
+public final class KeyFilter {
+  private static final double FALSE_POSITIVE_RATE = 0.01;
+  private static final int MIN_EXPECTED_KEYS = 1024;
+  private final BloomFilter<CharSequence> filter;
+  private volatile int keyCount = 0;
+
+  /** @param expectedKeys number of keys the filter keeps FALSE_POSITIVE_RATE up to. */
+  public KeyFilter(long expectedKeys) {
+    this.filter =
+        BloomFilter.create(
+            Funnels.stringFunnel(StandardCharsets.UTF_8),
+            Math.max(expectedKeys, MIN_EXPECTED_KEYS),
+            FALSE_POSITIVE_RATE);
+  }
+
+  public void add(String key) {
+    filter.put(key);
+    keyCount++;
+  }
+
+  /** @return false if key was certainly never added, true if it may have been. */
+  public boolean mightContain(String key) {
+    return filter.mightContain(key);
+  }
+
+  /** @return the number of keys added, counting a key added twice twice. */
+  public int keyCount() {
+    return keyCount;
+  }
+}
@@ -0,0 +1,233 @@
+package app_kvServer.data.storage;
+
+import ecs.ECSUtils;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
+import org.apache.log4j.Logger;
+
+/**
+ * Log-structured merge tree storage: every StorageType is an LSMTree ordered by ring position, i.e.
+ * by the MD5 hash of each key followed by the key itself. Writes are buffered in memory and flushed
+ * as sorted tables, and the key range a node hands off on a rebalance is a contiguous slice of
+ * every table, so partitioning seeks to the start of the range and reads sequentially.
+ */
+public class LSMStorage extends DiskStorage {
+  private static final Logger logger = Logger.getLogger(LSMStorage.class);
+  public static final long DEFAULT_MEMTABLE_BYTES = 4 * 1024 * 1024; // 4 MB
+  // the ring hash is a fixed width hex string, everything after it is the key
+  private static final int HASH_LENGTH = 32;
+  // sorts after any ring key sharing the prefix it is appended to
+  private static final String MAX_SUFFIX = "\uffff";
+  private final ExecutorService compactor;
+  private final LSMTree storageTree;
+  private final LSMTree replica1Tree;
+  private final LSMTree replica2Tree;
+
+  public LSMStorage(final String uniqueID, boolean encrypted) throws DiskStorageException {
+    this(uniqueID, encrypted, DEFAULT_MEMTABLE_BYTES, false);
+  }
+
+  /**
+   * @param recover whether to reopen the trees left by a previous run of this node instead of
+   *     starting empty.
+   */
+  public LSMStorage(final String uniqueID, boolean encrypted, long memtableBytes, boolean recover)
+      throws DiskStorageException {
+    super(uniqueID, encrypted, recover);
+    this.compactor =
+        Executors.newSingleThreadExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "LSMCompactor-" + uniqueID);
+              thread.setDaemon(true);
+              return thread;
+            });
+    try {
+      this.storageTree =
+          new LSMTree(
+              new File("KeyValueData_" + uniqueID + "_lsm"), memtableBytes, compactor, recover);
+      this.replica1Tree =
+          new LSMTree(
+              new File("KeyValueData_" + uniqueID + "_replica1_lsm"),
+              memtableBytes,
+              compactor,
+              recover);
+      this.replica2Tree =
+          new LSMTree(
+              new File("KeyValueData_" + uniqueID + "_replica2_lsm"),
+              memtableBytes,
+              compactor,
+              recover);
+    } catch (IOException e) {
+      logger.error("Could not establish connection to disk storage.", e);
+      compactor.shutdownNow();
+      throw new DiskStorageException(e.getLocalizedMessage());
+    }
+  }
+
+  @Override
+  protected boolean mightContain(String key, StorageType storageType) {
+    return correctTreeBasedOnEnum(storageType).mightContain(ringKey(key));
+  }
+
+  @Override
+  protected StorageUnit readUnit(String key, StorageType storageType)
+      throws IOException, StorageUnitException {
+    byte[] record = correctTreeBasedOnEnum(storageType).get(ringKey(key));
+    return record == null ? null : decode(record);
+  }
+
+  @Override
+  protected void updateUnit(String key, StorageType storageType, UnaryOperator<StorageUnit> update)
+      throws IOException, StorageUnitException {
+    LSMTree tree = correctTreeBasedOnEnum(storageType);
+    StorageUnit currentUnit = readUnit(key, storageType);
+    StorageUnit updatedUnit = update.apply(currentUnit);
+    if (updatedUnit != null) {
+      tree.put(ringKey(key), encode(updatedUnit));
+    } else if (currentUnit != null) {
+      tree.remove(ringKey(key));
+    }
+  }
+
+  @Override
+  protected HashSet<StorageUnit> extractUnitsInRange(
+      String[] hashRange, StorageType storageType, boolean delete)
+      throws IOException, StorageUnitException {
+    LSMTree tree = correctTreeBasedOnEnum(storageType);
+    HashSet<StorageUnit> unitsInRange = new HashSet<>();
+    if (hashRange[0].compareTo(hashRange[1]) < 0) {
+      extractUnitsInRange(tree, hashRange[0], hashRange[1], hashRange, unitsInRange);
+    } else {
+      // the range wraps around the top of the ring: [start of ring, right] and (left, end of ring]
+      extractUnitsInRange(tree, "", hashRange[1] + MAX_SUFFIX, hashRange, unitsInRange);
+      extractUnitsInRange(tree, hashRange[0] + MAX_SUFFIX, null, hashRange, unitsInRange);
+    }
+    if (delete) {
+      for (StorageUnit storageUnit : unitsInRange) {
+        tree.remove(ringKey(storageUnit.key));
+      }
+    }
+    return unitsInRange;
+  }
+
+  private void extractUnitsInRange(
+      LSMTree tree, String from, String to, String[] hashRange, HashSet<StorageUnit> unitsInRange)
+      throws IOException, StorageUnitException {
+    List<Map.Entry<String, byte[]>> entries = tree.scan(from, to);
+    for (Map.Entry<String, byte[]> entry : entries) {
+      if (ECSUtils.checkIfHashBelongsInRange(entry.getKey().substring(0, HASH_LENGTH), hashRange)) {
+        unitsInRange.add(decode(entry.getValue()));
+      }
+    }
+  }
+
+  @Override
+  protected long writeRawRecords(List<String> keys, StorageType storageType, RawRecordSink sink)
+      throws IOException, StorageUnitException {
+    LSMTree tree = correctTreeBasedOnEnum(storageType);
+    List<ByteBuffer> records = new ArrayList<>(keys.size());
+    long totalBytes = 0;
+    for (String key : keys) {
+      byte[] record = tree.get(ringKey(key));
+      if (record != null) {
+        // sent in the clear as they are stored, still compressed
+        if (encryption != null) {
+          record = StorageUnitRecord.reencrypt(ByteBuffer.wrap(record), encryption, null);
+        }
+        records.add(ByteBuffer.wrap(SegmentLog.frameRecord(key, record)));
+        totalBytes += records.get(records.size() - 1).remaining();
+      }
+    }
+    WritableByteChannel target = sink.begin(totalBytes);
+    for (ByteBuffer record : records) {
+      while (record.hasRemaining()) {
+        target.write(record);
+      }
+    }
+    return records.size();
+  }
+
+  @Override
+  protected long recordBytes(String key, StorageType storageType) throws IOException {
+    // no index of record lengths, the record is looked up as for a read
+    byte[] record = correctTreeBasedOnEnum(storageType).get(ringKey(key));
+    return record == null ? 0 : SegmentLog.framedBytes(key, record.length);
+  }
+
+  @Override
+  protected void putRawRecord(String key, byte[] record, StorageType storageType)
+      throws IOException, StorageUnitException {
+    correctTreeBasedOnEnum(storageType)
+        .put(
+            ringKey(key),
+            encryption == null
+                ? record
+                : StorageUnitRecord.reencrypt(ByteBuffer.wrap(record), null, encryption));
+  }
+
+  @Override
+  protected void appendUnits(Collection<StorageUnit> units, StorageType storageType)
+      throws IOException, StorageUnitException {
+    LSMTree tree = correctTreeBasedOnEnum(storageType);
+    for (StorageUnit storageUnit : units) {
+      tree.put(ringKey(storageUnit.key), encode(storageUnit));
+    }
+  }
+
+  @Override
+  protected void sync() throws IOException {
+    storageTree.sync();
+    replica1Tree.sync();
+    replica2Tree.sync();
+  }
+
+  @Override
+  public void close() throws DiskStorageException {
+    super.close();
+    compactor.shutdown();
+    try {
+      // let a running compaction finish rather than leave a partially written table behind
+      compactor.awaitTermination(1, TimeUnit.MINUTES);
+      storageTree.close();
+      replica1Tree.close();
+      replica2Tree.close();
+    } catch (IOException | InterruptedException e) {
+      logger.error("Could not close disk storage.", e);
+      throw new DiskStorageException(e.getLocalizedMessage());
+    }
+  }
+
+  private static String ringKey(String key) {
+    return ECSUtils.ringPosition(key);
+  }
+
+  private byte[] encode(StorageUnit storageUnit) throws StorageUnitException {
+    return StorageUnitRecord.encode(storageUnit, encryption, compressionStats);
+  }
+
+  private StorageUnit decode(byte[] record) throws StorageUnitException {
+    return StorageUnitRecord.decode(ByteBuffer.wrap(record), encryption);
+  }
+
+  private LSMTree correctTreeBasedOnEnum(StorageType type) {
+    switch (type) {
+      case REPLICA_1:
+        return this.replica1Tree;
+      case REPLICA_2:
+        return this.replica2Tree;
+      default:
+        return this.storageTree;
+    }
+  }
+}
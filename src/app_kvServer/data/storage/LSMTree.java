@@ -0,0 +1,750 @@
+package app_kvServer.data.storage;
+
+import com.google.common.collect.Iterators;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ * Log-structured merge tree of opaque payloads keyed by strings. Writes go to a sorted in-memory
+ * memtable. Once it grows past memtableBytes it is swapped for a fresh one and flushed to an
+ * immutable SSTable on the compactor, staying readable until its table is installed. Tables are
+ * organised in levels: level 0 holds flushed memtables which may overlap, every deeper level holds
+ * non-overlapping tables and is about LEVEL_SIZE_MULTIPLIER times larger than the one above it. A
+ * background compactor merges tables down the levels, dropping overwritten and deleted records.
+ *
+ * <p>Every write is also appended to the WriteAheadLog of its memtable, deleted once the memtable
+ * is flushed, and the tables making up each level are recorded in a manifest whenever they change,
+ * so the tree can be reopened after a restart.
+ *
+ * <p>Writers are serialized on the tree's monitor and only wait for a flush when the memtable fills
+ * up again before the previous one is flushed. Readers never lock: they work on an immutable
+ * snapshot of the levels and retry if compaction deleted a table underneath them.
+ */
+public class LSMTree {
+  private static final Logger logger = Logger.getLogger(LSMTree.class);
+  private static final String TABLE_PREFIX = "sstable_";
+  private static final String TABLE_SUFFIX = ".sst";
+  private static final String MANIFEST = "MANIFEST";
+  // logs are numbered in the order their memtables were started, "memtable.wal" sorting first
+  private static final String LOG_PREFIX = "memtable";
+  private static final String LOG_SUFFIX = ".wal";
+  private static final String TEMPORARY_SUFFIX = ".tmp";
+  private static final int MAX_LEVELS = 7;
+  private static final int LEVEL_0_COMPACTION_TRIGGER = 4;
+  private static final int LEVEL_SIZE_MULTIPLIER = 10;
+  // approximate memory overhead of a memtable entry on top of its key and payload
+  private static final int ENTRY_OVERHEAD_BYTES = 64;
+
+  private final File directory;
+  private final long memtableBytes;
+  private final ExecutorService compactor;
+  private final AtomicLong nextTableId = new AtomicLong();
+  private long nextLogId = 0;
+  private final Object versionLock = new Object();
+  private final String[] compactionPointers = new String[MAX_LEVELS];
+  private volatile ConcurrentSkipListMap<String, byte[]> memtable = new ConcurrentSkipListMap<>();
+  // the logs of the memtable, the last one taking its writes, more after a recovery
+  private volatile List<WriteAheadLog> memtableLogs;
+  // a full memtable and its logs until the compactor installs its table, read after the memtable
+  private volatile ConcurrentSkipListMap<String, byte[]> immutableMemtable = null;
+  private volatile List<WriteAheadLog> immutableLogs = Collections.emptyList();
+  private volatile Version version = new Version();
+  private long memtableUsedBytes = 0;
+  private IOException flushFailure = null;
+
+  /**
+   * @param directory the directory holding this tree's tables. Any existing tables are removed.
+   * @param memtableBytes memtable size after which it is flushed to a table. Tables produced by
+   *     compaction are the same size and level 1 holds LEVEL_SIZE_MULTIPLIER of them.
+   * @param compactor executor the tree schedules its background compactions on.
+   */
+  public LSMTree(final File directory, final long memtableBytes, final ExecutorService compactor)
+      throws IOException {
+    this(directory, memtableBytes, compactor, false);
+  }
+
+  /**
+   * @param recover whether to reopen the tables and write-ahead log already in directory instead of
+   *     removing them.
+   */
+  public LSMTree(
+      final File directory,
+      final long memtableBytes,
+      final ExecutorService compactor,
+      boolean recover)
+      throws IOException {
+    this.directory = directory;
+    this.memtableBytes = memtableBytes;
+    this.compactor = compactor;
+    if (!directory.exists()) {
+      if (!directory.mkdirs()) {
+        throw new IOException("Unable to create directory " + directory.getAbsolutePath());
+      }
+    } else if (recover) {
+      recoverTables();
+    } else {
+      // remove existing storage to start fresh
+      File[] existingTables = directory.listFiles();
+      if (existingTables != null) {
+        for (File table : existingTables) {
+          if (!table.delete()) {
+            throw new IOException("Unable to delete file " + table.getAbsolutePath());
+          }
+        }
+      }
+    }
+    memtableLogs = openLogs(recover);
+    logger.info(
+        "LSM tree "
+            + directory.getAbsolutePath()
+            + " opened with "
+            + memtable.size()
+            + " memtable entries.");
+  }
+
+  /** @return the payload stored for key, or null if key is not present. */
+  public byte[] get(final String key) throws IOException {
+    while (true) {
+      // the memtables must be read before the version: a flush installs its table first
+      byte[] payload = memtable.get(key);
+      if (payload == null) {
+        ConcurrentSkipListMap<String, byte[]> immutable = immutableMemtable;
+        payload = immutable == null ? null : immutable.get(key);
+      }
+      if (payload != null) {
+        return payload == SSTable.TOMBSTONE ? null : payload;
+      }
+      try {
+        payload = version.get(key);
+      } catch (ClosedByInterruptException e) {
+        throw e;
+      } catch (ClosedChannelException e) {
+        // a table was compacted away after we took the snapshot
+        continue;
+      }
+      return payload == SSTable.TOMBSTONE ? null : payload;
+    }
+  }
+
+  /**
+   * @return false if the tree certainly holds no record for key, checked against the memtable and
+   *     the KeyFilter of every table that may hold key without reading any of them.
+   */
+  public boolean mightContain(final String key) {
+    // same order as get
+    if (memtable.containsKey(key)) {
+      return true;
+    }
+    ConcurrentSkipListMap<String, byte[]> immutable = immutableMemtable;
+    return (immutable != null && immutable.containsKey(key)) || version.mightContain(key);
+  }
+
+  public synchronized void put(final String key, final byte[] payload) throws IOException {
+    List<WriteAheadLog> logs = memtableLogs;
+    logs.get(logs.size() - 1).append(key, payload);
+    memtable.put(key, payload);
+    memtableUsedBytes += key.length() + payload.length + ENTRY_OVERHEAD_BYTES;
+    if (memtableUsedBytes >= memtableBytes) {
+      rotateMemtable();
+    }
+  }
+
+  /** Force the writes held only in the memtables to disk, without blocking writers. */
+  public void sync() throws IOException {
+    // the immutable memtable's logs first: once it is flushed the memtable's may be the only ones
+    for (WriteAheadLog log : immutableLogs) {
+      try {
+        log.sync();
+      } catch (ClosedByInterruptException e) {
+        throw e;
+      } catch (ClosedChannelException e) {
+        // flushed meanwhile, its records are in a table
+      }
+    }
+    List<WriteAheadLog> logs = memtableLogs;
+    logs.get(logs.size() - 1).sync();
+  }
+
+  /** Remove key from the tree. A tombstone shadows any older record until compaction drops it. */
+  public synchronized void remove(final String key) throws IOException {
+    put(key, SSTable.TOMBSTONE);
+  }
+
+  /**
+   * @return the live entries with from <= key <= to in key order. to may be null to scan to the end
+   *     of the tree.
+   */
+  public List<Map.Entry<String, byte[]>> scan(final String from, final String to)
+      throws IOException {
+    while (true) {
+      List<Map.Entry<String, byte[]>> entries = new ArrayList<>();
+      try {
+        List<Iterator<Map.Entry<String, byte[]>>> sources = new ArrayList<>();
+        sources.add(memtable.tailMap(from).entrySet().iterator());
+        ConcurrentSkipListMap<String, byte[]> immutable = immutableMemtable;
+        if (immutable != null) {
+          sources.add(immutable.tailMap(from).entrySet().iterator());
+        }
+        sources.addAll(version.iterators(from));
+        Iterator<Map.Entry<String, byte[]>> merged = new MergingIterator(sources);
+        while (merged.hasNext()) {
+          Map.Entry<String, byte[]> entry = merged.next();
+          if (to != null && entry.getKey().compareTo(to) > 0) {
+            break;
+          }
+          if (entry.getValue() != SSTable.TOMBSTONE) {
+            entries.add(entry);
+          }
+        }
+      } catch (UncheckedIOException e) {
+        if (e.getCause() instanceof ClosedChannelException
+            && !(e.getCause() instanceof ClosedByInterruptException)) {
+          continue;
+        }
+        throw e.getCause();
+      }
+      return entries;
+    }
+  }
+
+  public int tableCount(final int level) {
+    return version.levels.get(level).size();
+  }
+
+  public synchronized void close() throws IOException {
+    synchronized (versionLock) {
+      for (List<SSTable> level : version.levels) {
+        for (SSTable table : level) {
+          table.close();
+        }
+      }
+      version = new Version();
+    }
+    // a memtable not flushed yet is replayed from its logs when the tree is reopened
+    for (WriteAheadLog log : immutableLogs) {
+      log.close();
+    }
+    for (WriteAheadLog log : memtableLogs) {
+      log.close();
+    }
+    memtable = new ConcurrentSkipListMap<>();
+    immutableMemtable = null;
+    immutableLogs = Collections.emptyList();
+    memtableUsedBytes = 0;
+  }
+
+  /**
+   * Replay the logs left in directory into the memtable if recovering, then start a new log for its
+   * writes.
+   *
+   * @return the logs of the memtable, the new one last.
+   */
+  private List<WriteAheadLog> openLogs(boolean recover) throws IOException {
+    List<WriteAheadLog> logs = new ArrayList<>();
+    File[] files =
+        directory.listFiles(
+            (parent, name) -> name.startsWith(LOG_PREFIX) && name.endsWith(LOG_SUFFIX));
+    if (recover && files != null) {
+      Arrays.sort(files);
+      for (File file : files) {
+        WriteAheadLog log = new WriteAheadLog(file);
+        log.replay(
+            (key, payload) -> {
+              memtable.put(key, payload);
+              memtableUsedBytes += key.length() + payload.length + ENTRY_OVERHEAD_BYTES;
+            });
+        logs.add(log);
+        String name = file.getName();
+        if (name.startsWith(LOG_PREFIX + "_")) {
+          long id =
+              Long.parseLong(
+                  name.substring(LOG_PREFIX.length() + 1, name.length() - LOG_SUFFIX.length()));
+          nextLogId = Math.max(nextLogId, id + 1);
+        }
+      }
+    }
+    logs.add(new WriteAheadLog(newLogFile()));
+    return logs;
+  }
+
+  /**
+   * Set the full memtable aside for the compactor to flush and start a fresh one with a new log.
+   * Waits if the previous memtable is still being flushed, so at most two are held in memory.
+   */
+  private void rotateMemtable() throws IOException {
+    while (immutableMemtable != null) {
+      if (flushFailure != null) {
+        IOException failure = flushFailure;
+        flushFailure = null;
+        scheduleFlush();
+        throw new IOException("Flush of the memtable failed", failure);
+      }
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting for the memtable to be flushed");
+      }
+    }
+    List<WriteAheadLog> logs = new ArrayList<>();
+    logs.add(new WriteAheadLog(newLogFile()));
+    // readers take the memtable before the immutable one, which must be in place first
+    immutableLogs = memtableLogs;
+    immutableMemtable = memtable;
+    memtable = new ConcurrentSkipListMap<>();
+    memtableLogs = logs;
+    memtableUsedBytes = 0;
+    scheduleFlush();
+  }
+
+  private void scheduleFlush() {
+    compactor.execute(
+        () -> {
+          if (!flush()) {
+            return;
+          }
+          try {
+            compact();
+          } catch (IOException e) {
+            logger.error("Compaction of " + directory.getAbsolutePath() + " failed.", e);
+          }
+        });
+  }
+
+  /**
+   * Write the immutable memtable out as a new level 0 table, then drop it and its logs. Only called
+   * from the compactor.
+   *
+   * @return whether the table was installed, a failure is left for the next writer to report.
+   */
+  private boolean flush() {
+    ConcurrentSkipListMap<String, byte[]> full = immutableMemtable;
+    List<WriteAheadLog> logs = immutableLogs;
+    try {
+      SSTable table = SSTable.write(newTableFile(), full.entrySet().iterator(), Long.MAX_VALUE);
+      synchronized (versionLock) {
+        List<List<SSTable>> levels = version.copyLevels();
+        levels.get(0).add(0, table);
+        installVersion(new Version(levels));
+      }
+    } catch (IOException e) {
+      logger.error("Flush of a memtable of " + directory.getAbsolutePath() + " failed.", e);
+      synchronized (this) {
+        flushFailure = e;
+        notifyAll();
+      }
+      return false;
+    }
+    synchronized (this) {
+      immutableMemtable = null;
+      immutableLogs = Collections.emptyList();
+      notifyAll();
+    }
+    for (WriteAheadLog log : logs) {
+      try {
+        log.delete();
+      } catch (IOException e) {
+        // replaying it again after a restart is harmless
+        logger.warn("Could not delete write-ahead log of a flushed memtable.", e);
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Merge tables down the levels until every level is within its size limit. Only called from the
+   * compactor, so levels below 0 only ever change here.
+   */
+  private void compact() throws IOException {
+    while (true) {
+      Version current = version;
+      int level = current.levelToCompact();
+      if (level < 0) {
+        return;
+      }
+      List<SSTable> inputs = new ArrayList<>();
+      if (level == 0) {
+        inputs.addAll(current.levels.get(0));
+      } else {
+        inputs.add(nextTableToCompact(current.levels.get(level), level));
+      }
+      String from = inputs.get(0).firstKey();
+      String to = inputs.get(0).lastKey();
+      for (SSTable input : inputs) {
+        from = input.firstKey().compareTo(from) < 0 ? input.firstKey() : from;
+        to = input.lastKey().compareTo(to) > 0 ? input.lastKey() : to;
+      }
+      List<SSTable> overlapping = new ArrayList<>();
+      for (SSTable table : current.levels.get(level + 1)) {
+        if (table.overlaps(from, to)) {
+          overlapping.add(table);
+        }
+      }
+      logger.info(
+          "Compacting "
+              + inputs.size()
+              + " level "
+              + level
+              + " tables with "
+              + overlapping.size()
+              + " level "
+              + (level + 1)
+              + " tables in "
+              + directory.getAbsolutePath());
+
+      // newer sources first: level 0 is already ordered newest to oldest
+      List<Iterator<Map.Entry<String, byte[]>>> sources = new ArrayList<>();
+      for (SSTable table : inputs) {
+        sources.add(table.iterator(""));
+      }
+      // overlapping tables may extend past the inputs on either side, they are rewritten whole
+      sources.add(concat(overlapping, ""));
+      Iterator<Map.Entry<String, byte[]>> merged = new MergingIterator(sources);
+      if (!current.hasTablesBelow(level + 1)) {
+        // nothing older left for a tombstone to shadow
+        merged = Iterators.filter(merged, entry -> entry.getValue() != SSTable.TOMBSTONE);
+      }
+      List<SSTable> outputs = new ArrayList<>();
+      try {
+        SSTable output;
+        while ((output = SSTable.write(newTableFile(), merged, memtableBytes)) != null) {
+          outputs.add(output);
+        }
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+
+      synchronized (versionLock) {
+        List<List<SSTable>> levels = version.copyLevels();
+        levels.get(level).removeAll(inputs);
+        levels.get(level + 1).removeAll(overlapping);
+        levels.get(level + 1).addAll(outputs);
+        levels.get(level + 1).sort(Comparator.comparing(SSTable::firstKey));
+        installVersion(new Version(levels));
+      }
+      for (SSTable table : inputs) {
+        table.delete();
+      }
+      for (SSTable table : overlapping) {
+        table.delete();
+      }
+    }
+  }
+
+  /**
+   * Record newVersion in the manifest, then make it visible to readers. Callers hold versionLock.
+   * Tables are only deleted once a manifest no longer referencing them is in place.
+   */
+  private void installVersion(Version newVersion) throws IOException {
+    File manifest = new File(directory, MANIFEST);
+    File temporary = new File(directory, MANIFEST + TEMPORARY_SUFFIX);
+    try (FileOutputStream fileOutput = new FileOutputStream(temporary);
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(fileOutput))) {
+      output.writeLong(nextTableId.get());
+      output.writeInt(newVersion.levels.size());
+      for (List<SSTable> level : newVersion.levels) {
+        output.writeInt(level.size());
+        for (SSTable table : level) {
+          output.writeUTF(table.file().getName());
+        }
+      }
+      output.flush();
+      fileOutput.getChannel().force(true);
+    }
+    Files.move(temporary.toPath(), manifest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    version = newVersion;
+  }
+
+  /**
+   * Reopen the tables listed in the manifest and delete any other table in directory, left behind
+   * by a flush or compaction that did not finish.
+   */
+  private void recoverTables() throws IOException {
+    File manifest = new File(directory, MANIFEST);
+    HashSet<String> liveTables = new HashSet<>();
+    if (manifest.exists()) {
+      List<List<SSTable>> levels = new ArrayList<>();
+      try (DataInputStream input =
+          new DataInputStream(new BufferedInputStream(new FileInputStream(manifest)))) {
+        nextTableId.set(input.readLong());
+        int levelCount = input.readInt();
+        for (int level = 0; level < levelCount; level++) {
+          List<SSTable> tables = new ArrayList<>();
+          int tableCount = input.readInt();
+          for (int i = 0; i < tableCount; i++) {
+            String name = input.readUTF();
+            tables.add(SSTable.open(new File(directory, name)));
+            liveTables.add(name);
+          }
+          levels.add(tables);
+        }
+      }
+      version = new Version(levels);
+    }
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        String name = file.getName();
+        if ((name.startsWith(TABLE_PREFIX) && !liveTables.contains(name))
+            || name.endsWith(TEMPORARY_SUFFIX)) {
+          logger.info("Removing unreferenced file " + file.getAbsolutePath());
+          Files.delete(file.toPath());
+        }
+      }
+    }
+    int tableCount = 0;
+    for (int level = 0; level < MAX_LEVELS; level++) {
+      tableCount += tableCount(level);
+    }
+    logger.info("Recovered " + tableCount + " tables in " + directory.getAbsolutePath());
+  }
+
+  /** Pick tables of a level in round robin order so every key range gets compacted eventually. */
+  private SSTable nextTableToCompact(List<SSTable> tables, int level) {
+    SSTable next = tables.get(0);
+    if (compactionPointers[level] != null) {
+      for (SSTable table : tables) {
+        if (table.firstKey().compareTo(compactionPointers[level]) > 0) {
+          next = table;
+          break;
+        }
+      }
+    }
+    compactionPointers[level] = next.firstKey();
+    return next;
+  }
+
+  private File newLogFile() {
+    return new File(directory, String.format("%s_%010d%s", LOG_PREFIX, nextLogId++, LOG_SUFFIX));
+  }
+
+  private File newTableFile() {
+    return new File(
+        directory,
+        String.format("%s%010d%s", TABLE_PREFIX, nextTableId.getAndIncrement(), TABLE_SUFFIX));
+  }
+
+  /**
+   * @return an iterator over sorted non-overlapping tables, opening each only once it's reached.
+   */
+  private static Iterator<Map.Entry<String, byte[]>> concat(List<SSTable> tables, String from) {
+    return Iterators.concat(
+        Iterators.transform(
+            Iterators.filter(tables.iterator(), table -> table.lastKey().compareTo(from) >= 0),
+            table -> table.iterator(from)));
+  }
+
+  /** Immutable snapshot of the tables in every level. */
+  private class Version {
+    private final List<List<SSTable>> levels;
+
+    private Version() {
+      List<List<SSTable>> levels = new ArrayList<>();
+      for (int i = 0; i < MAX_LEVELS; i++) {
+        levels.add(Collections.emptyList());
+      }
+      this.levels = Collections.unmodifiableList(levels);
+    }
+
+    private Version(List<List<SSTable>> levels) {
+      List<List<SSTable>> frozen = new ArrayList<>();
+      for (List<SSTable> level : levels) {
+        frozen.add(Collections.unmodifiableList(level));
+      }
+      this.levels = Collections.unmodifiableList(frozen);
+    }
+
+    private List<List<SSTable>> copyLevels() {
+      List<List<SSTable>> copy = new ArrayList<>();
+      for (List<SSTable> level : levels) {
+        copy.add(new ArrayList<>(level));
+      }
+      return copy;
+    }
+
+    private byte[] get(String key) throws IOException {
+      // level 0 tables overlap and are ordered newest first
+      for (SSTable table : levels.get(0)) {
+        byte[] payload = table.get(key);
+        if (payload != null) {
+          return payload;
+        }
+      }
+      for (int level = 1; level < MAX_LEVELS; level++) {
+        SSTable table = tableFor(levels.get(level), key);
+        if (table != null) {
+          byte[] payload = table.get(key);
+          if (payload != null) {
+            return payload;
+          }
+        }
+      }
+      return null;
+    }
+
+    private boolean mightContain(String key) {
+      for (SSTable table : levels.get(0)) {
+        if (table.mightContain(key)) {
+          return true;
+        }
+      }
+      for (int level = 1; level < MAX_LEVELS; level++) {
+        SSTable table = tableFor(levels.get(level), key);
+        if (table != null && table.mightContain(key)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private List<Iterator<Map.Entry<String, byte[]>>> iterators(String from) {
+      List<Iterator<Map.Entry<String, byte[]>>> iterators = new ArrayList<>();
+      for (SSTable table : levels.get(0)) {
+        iterators.add(table.iterator(from));
+      }
+      for (int level = 1; level < MAX_LEVELS; level++) {
+        iterators.add(concat(levels.get(level), from));
+      }
+      return iterators;
+    }
+
+    /** @return the shallowest level over its size limit, or -1 if none is. */
+    private int levelToCompact() {
+      if (levels.get(0).size() >= LEVEL_0_COMPACTION_TRIGGER) {
+        return 0;
+      }
+      long maxBytes = memtableBytes * LEVEL_SIZE_MULTIPLIER;
+      // the last level is unbounded
+      for (int level = 1; level < MAX_LEVELS - 1; level++) {
+        long levelBytes = 0;
+        for (SSTable table : levels.get(level)) {
+          levelBytes += table.sizeBytes();
+        }
+        if (levelBytes > maxBytes) {
+          return level;
+        }
+        maxBytes *= LEVEL_SIZE_MULTIPLIER;
+      }
+      return -1;
+    }
+
+    private boolean hasTablesBelow(int level) {
+      for (int i = level + 1; i < MAX_LEVELS; i++) {
+        if (!levels.get(i).isEmpty()) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Binary search the sorted, non-overlapping tables of a level for the one that may hold key.
+     */
+    private SSTable tableFor(List<SSTable> tables, String key) {
+      int low = 0;
+      int high = tables.size() - 1;
+      while (low <= high) {
+        int middle = (low + high) >>> 1;
+        SSTable table = tables.get(middle);
+        if (table.lastKey().compareTo(key) < 0) {
+          low = middle + 1;
+        } else if (table.firstKey().compareTo(key) > 0) {
+          high = middle - 1;
+        } else {
+          return table;
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Merges sorted iterators into one sorted iterator. Sources are ordered newest first: when
+   * several hold the same key only the entry from the earliest source is returned.
+   */
+  private static class MergingIterator implements Iterator<Map.Entry<String, byte[]>> {
+    private final PriorityQueue<Source> heap =
+        new PriorityQueue<>(
+            Comparator.comparing((Source source) -> source.current.getKey())
+                .thenComparingInt(source -> source.rank));
+
+    private MergingIterator(List<Iterator<Map.Entry<String, byte[]>>> sources) {
+      for (int rank = 0; rank < sources.size(); rank++) {
+        Source source = new Source(rank, sources.get(rank));
+        if (source.advance()) {
+          heap.add(source);
+        }
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return !heap.isEmpty();
+    }
+
+    @Override
+    public Map.Entry<String, byte[]> next() {
+      Source newest = heap.poll();
+      if (newest == null) {
+        throw new NoSuchElementException();
+      }
+      Map.Entry<String, byte[]> entry = newest.current;
+      skip(newest);
+      while (!heap.isEmpty() && heap.peek().current.getKey().equals(entry.getKey())) {
+        skip(heap.poll());
+      }
+      return entry;
+    }
+
+    private void skip(Source source) {
+      if (source.advance()) {
+        heap.add(source);
+      }
+    }
+
+    private static class Source {
+      private final int rank;
+      private final Iterator<Map.Entry<String, byte[]>> entries;
+      private Map.Entry<String, byte[]> current;
+
+      private Source(int rank, Iterator<Map.Entry<String, byte[]>> entries) {
+        this.rank = rank;
+        this.entries = entries;
+      }
+
+      private boolean advance() {
+        if (!entries.hasNext()) {
+          return false;
+        }
+        current = entries.next();
+        return true;
+      }
+    }
+  }
+}
@@ -0,0 +1,408 @@
+package app_kvServer.data.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.UnaryOperator;
+import org.apache.log4j.Logger;
+import shared.communication.security.Hashing;
+
+/**
+ * Bitcask style storage: every StorageType is split into RingBuckets, each an append-only
+ * SegmentLog with an in-memory index from key to the location of its latest record. GETs take one
+ * positioned read and PUTs one append, independent of the amount of data stored.
+ *
+ * <p>Since every bucket has its own directory, handing a key range over touches only the buckets
+ * overlapping it: buckets inside the range are dropped or renamed as a whole and only the two at
+ * its ends are filtered key by key.
+ */
+public class LogStructuredStorage extends DiskStorage {
+  private static final Logger logger = Logger.getLogger(LogStructuredStorage.class);
+  public static final long DEFAULT_MAX_SEGMENT_BYTES = 16 * 1024 * 1024; // 16 MB
+  public static final int DEFAULT_BUCKETS = 64;
+  private static final String BUCKET_PREFIX = "bucket_";
+  private final long maxSegmentBytes;
+  private final RingBuckets buckets;
+  private final File[] directories;
+  // indexed by StorageType ordinal, buckets are replaced when they are dropped or moved
+  private final ArrayList<AtomicReferenceArray<SegmentLog>> logs = new ArrayList<>();
+  // held from closing a bucket's log until its replacement is published, readers that took the
+  // closed log wait on it for the replacement
+  private final Object replacingLogs = new Object();
+
+  public LogStructuredStorage(final String uniqueID, boolean encrypted)
+      throws DiskStorageException {
+    this(uniqueID, encrypted, DEFAULT_MAX_SEGMENT_BYTES, DEFAULT_BUCKETS, false);
+  }
+
+  /**
+   * @param buckets number of RingBuckets each StorageType is split into, a power of two.
+   * @param recover whether to reopen the segments left by a previous run of this node instead of
+   *     starting empty. The previous run must have used the same number of buckets.
+   */
+  public LogStructuredStorage(
+      final String uniqueID, boolean encrypted, long maxSegmentBytes, int buckets, boolean recover)
+      throws DiskStorageException {
+    super(uniqueID, encrypted, recover);
+    this.maxSegmentBytes = maxSegmentBytes;
+    try {
+      this.buckets = new RingBuckets(buckets);
+    } catch (IllegalArgumentException e) {
+      throw new DiskStorageException(e.getMessage());
+    }
+    this.directories =
+        new File[] {
+          new File("KeyValueData_" + uniqueID + "_segments"),
+          new File("KeyValueData_" + uniqueID + "_replica1_segments"),
+          new File("KeyValueData_" + uniqueID + "_replica2_segments")
+        };
+    try {
+      for (File directory : directories) {
+        if (recover) {
+          checkBucketLayout(directory);
+        } else {
+          // remove existing storage to start fresh, including any other bucket layout
+          deleteRecursively(directory);
+        }
+        AtomicReferenceArray<SegmentLog> bucketLogs = new AtomicReferenceArray<>(buckets);
+        for (int bucket = 0; bucket < buckets; bucket++) {
+          bucketLogs.set(bucket, openLog(bucketDirectory(directory, bucket), bucket, recover));
+        }
+        logs.add(bucketLogs);
+      }
+    } catch (IOException e) {
+      logger.error("Could not establish connection to disk storage.", e);
+      throw new DiskStorageException(e.getLocalizedMessage());
+    }
+  }
+
+  @Override
+  protected boolean mightContain(String key, StorageType storageType) {
+    // the in-memory index is exact, no filter needed
+    SegmentLog log = logFor(key, storageType);
+    boolean contains = log.contains(key);
+    while (!contains && log.isClosed()) {
+      // dropped or moved while we looked, as readUnit
+      SegmentLog replacement = publishedLogFor(key, storageType);
+      if (replacement == log) {
+        return false;
+      }
+      log = replacement;
+      contains = log.contains(key);
+    }
+    return contains;
+  }
+
+  @Override
+  protected StorageUnit readUnit(String key, StorageType storageType)
+      throws IOException, StorageUnitException {
+    SegmentLog log = logFor(key, storageType);
+    byte[] record = log.read(key);
+    while (record == null && log.isClosed()) {
+      // the bucket was dropped or moved while we read it, read the log that replaced it
+      SegmentLog replacement = publishedLogFor(key, storageType);
+      if (replacement == log) {
+        // the storage is closed
+        return null;
+      }
+      log = replacement;
+      record = log.read(key);
+    }
+    return record == null ? null : decode(record);
+  }
+
+  @Override
+  protected void updateUnit(String key, StorageType storageType, UnaryOperator<StorageUnit> update)
+      throws IOException, StorageUnitException {
+    SegmentLog log = logFor(key, storageType);
+    StorageUnit currentUnit = readUnit(key, storageType);
+    StorageUnit updatedUnit = update.apply(currentUnit);
+    if (updatedUnit != null) {
+      log.put(key, encode(updatedUnit));
+    } else if (currentUnit != null) {
+      log.remove(key);
+    }
+  }
+
+  @Override
+  protected HashSet<StorageUnit> extractUnitsInRange(
+      String[] hashRange, StorageType storageType, boolean delete)
+      throws IOException, StorageUnitException {
+    HashSet<StorageUnit> unitsInRange = new HashSet<>();
+    for (int bucket = 0; bucket < buckets.count(); bucket++) {
+      RingBuckets.Coverage coverage = buckets.coverage(bucket, hashRange);
+      if (coverage == RingBuckets.Coverage.NONE) {
+        continue;
+      }
+      SegmentLog log = logs.get(storageType.ordinal()).get(bucket);
+      for (String key : keysInRange(log, hashRange, coverage)) {
+        byte[] record = log.read(key);
+        if (record != null) {
+          unitsInRange.add(decode(record));
+        }
+      }
+      if (delete) {
+        removeKeysInRange(storageType, bucket, hashRange, coverage);
+      }
+    }
+    return unitsInRange;
+  }
+
+  @Override
+  protected Collection<String> listKeysInRange(String[] hashRange, StorageType storageType) {
+    ArrayList<String> keys = new ArrayList<>();
+    for (int bucket = 0; bucket < buckets.count(); bucket++) {
+      RingBuckets.Coverage coverage = buckets.coverage(bucket, hashRange);
+      if (coverage != RingBuckets.Coverage.NONE) {
+        keys.addAll(keysInRange(logs.get(storageType.ordinal()).get(bucket), hashRange, coverage));
+      }
+    }
+    return keys;
+  }
+
+  @Override
+  protected void transferUnitsInRange(
+      String[] hashRange, StorageType source, StorageType destination)
+      throws IOException, StorageUnitException {
+    for (int bucket = 0; bucket < buckets.count(); bucket++) {
+      RingBuckets.Coverage coverage = buckets.coverage(bucket, hashRange);
+      if (coverage == RingBuckets.Coverage.NONE) {
+        continue;
+      }
+      SegmentLog sourceLog = logs.get(source.ordinal()).get(bucket);
+      SegmentLog destinationLog = logs.get(destination.ordinal()).get(bucket);
+      if (coverage == RingBuckets.Coverage.FULL && destinationLog.size() == 0) {
+        moveBucket(source, destination, bucket);
+        continue;
+      }
+      for (String key : keysInRange(sourceLog, hashRange, coverage)) {
+        byte[] record = sourceLog.read(key);
+        if (record != null) {
+          // the record is stored as is, it was encoded with this node's key
+          destinationLog.put(key, record);
+        }
+      }
+      removeKeysInRange(source, bucket, hashRange, coverage);
+    }
+  }
+
+  @Override
+  protected void dropUnitsInRange(String[] hashRange, StorageType storageType) throws IOException {
+    for (int bucket = 0; bucket < buckets.count(); bucket++) {
+      RingBuckets.Coverage coverage = buckets.coverage(bucket, hashRange);
+      if (coverage != RingBuckets.Coverage.NONE) {
+        removeKeysInRange(storageType, bucket, hashRange, coverage);
+      }
+    }
+  }
+
+  @Override
+  protected long writeRawRecords(List<String> keys, StorageType storageType, RawRecordSink sink)
+      throws IOException, StorageUnitException {
+    if (encryption != null) {
+      // the records on disk can only be read with this node's key, they are sent in the clear but
+      // still compressed
+      List<byte[]> records = new ArrayList<>(keys.size());
+      for (String key : keys) {
+        byte[] record = logFor(key, storageType).read(key);
+        if (record != null) {
+          records.add(
+              SegmentLog.frameRecord(
+                  key, StorageUnitRecord.reencrypt(ByteBuffer.wrap(record), encryption, null)));
+        }
+      }
+      return writeFramedRecords(records, sink);
+    }
+    Map<Integer, List<String>> keysByBucket = new TreeMap<>();
+    for (String key : keys) {
+      keysByBucket
+          .computeIfAbsent(
+              buckets.bucketOf(Hashing.calculateMD5Hash(key)), bucket -> new ArrayList<>())
+          .add(key);
+    }
+    // the write lock of storageType keeps compaction from closing the segments underneath the runs
+    List<SegmentLog.RecordRun> runs = new ArrayList<>();
+    for (Map.Entry<Integer, List<String>> bucketKeys : keysByBucket.entrySet()) {
+      runs.addAll(
+          logs.get(storageType.ordinal())
+              .get(bucketKeys.getKey())
+              .locateRecords(bucketKeys.getValue()));
+    }
+    long totalBytes = 0;
+    long records = 0;
+    for (SegmentLog.RecordRun run : runs) {
+      totalBytes += run.length();
+      records += run.records();
+    }
+    SegmentLog.transferRecords(runs, sink.begin(totalBytes));
+    return records;
+  }
+
+  @Override
+  protected long recordBytes(String key, StorageType storageType) {
+    // framed as exported, an encrypted record only gets shorter once decrypted
+    SegmentLog log = logFor(key, storageType);
+    long recordBytes = log.recordBytes(key);
+    while (recordBytes == 0 && log.isClosed()) {
+      SegmentLog replacement = publishedLogFor(key, storageType);
+      if (replacement == log) {
+        return 0;
+      }
+      log = replacement;
+      recordBytes = log.recordBytes(key);
+    }
+    return recordBytes;
+  }
+
+  @Override
+  protected void putRawRecord(String key, byte[] record, StorageType storageType)
+      throws IOException, StorageUnitException {
+    logFor(key, storageType)
+        .put(
+            key,
+            encryption == null
+                ? record
+                : StorageUnitRecord.reencrypt(ByteBuffer.wrap(record), null, encryption));
+  }
+
+  @Override
+  protected void appendUnits(Collection<StorageUnit> units, StorageType storageType)
+      throws IOException, StorageUnitException {
+    for (StorageUnit storageUnit : units) {
+      logFor(storageUnit.key, storageType).put(storageUnit.key, encode(storageUnit));
+    }
+  }
+
+  @Override
+  protected void sync() throws IOException {
+    for (AtomicReferenceArray<SegmentLog> bucketLogs : logs) {
+      for (int bucket = 0; bucket < bucketLogs.length(); bucket++) {
+        bucketLogs.get(bucket).sync();
+      }
+    }
+  }
+
+  @Override
+  public void close() throws DiskStorageException {
+    super.close();
+    try {
+      for (AtomicReferenceArray<SegmentLog> bucketLogs : logs) {
+        for (int bucket = 0; bucket < bucketLogs.length(); bucket++) {
+          bucketLogs.get(bucket).close();
+        }
+      }
+    } catch (IOException e) {
+      logger.error("Could not close disk storage.", e);
+      throw new DiskStorageException(e.getLocalizedMessage());
+    }
+  }
+
+  /** @return the keys of log inside hashRange, from its index alone. */
+  private static Collection<String> keysInRange(
+      SegmentLog log, String[] hashRange, RingBuckets.Coverage coverage) {
+    return coverage == RingBuckets.Coverage.FULL ? log.keys() : log.keysInRange(hashRange);
+  }
+
+  /** Remove the keys of a bucket inside hashRange, replacing the bucket outright if covered. */
+  private void removeKeysInRange(
+      StorageType storageType, int bucket, String[] hashRange, RingBuckets.Coverage coverage)
+      throws IOException {
+    AtomicReferenceArray<SegmentLog> bucketLogs = logs.get(storageType.ordinal());
+    SegmentLog log = bucketLogs.get(bucket);
+    if (coverage == RingBuckets.Coverage.FULL) {
+      // the new log takes over the directory of the old one, which must be closed first
+      synchronized (replacingLogs) {
+        log.close();
+        bucketLogs.set(
+            bucket,
+            openLog(bucketDirectory(directories[storageType.ordinal()], bucket), bucket, false));
+      }
+      return;
+    }
+    for (String key : keysInRange(log, hashRange, coverage)) {
+      log.remove(key);
+    }
+  }
+
+  /** Hand the segments of a bucket from source over to the empty bucket of destination. */
+  private void moveBucket(StorageType source, StorageType destination, int bucket)
+      throws IOException {
+    AtomicReferenceArray<SegmentLog> sourceLogs = logs.get(source.ordinal());
+    AtomicReferenceArray<SegmentLog> destinationLogs = logs.get(destination.ordinal());
+    File sourceDirectory = bucketDirectory(directories[source.ordinal()], bucket);
+    File destinationDirectory = bucketDirectory(directories[destination.ordinal()], bucket);
+    synchronized (replacingLogs) {
+      sourceLogs.get(bucket).close();
+      destinationLogs.get(bucket).close();
+      deleteRecursively(destinationDirectory);
+      Files.move(
+          sourceDirectory.toPath(), destinationDirectory.toPath(), StandardCopyOption.ATOMIC_MOVE);
+      // closing sealed every segment with a hint, reopening only reads those
+      destinationLogs.set(bucket, openLog(destinationDirectory, bucket, true));
+      sourceLogs.set(bucket, openLog(sourceDirectory, bucket, false));
+    }
+  }
+
+  private void checkBucketLayout(File directory) throws DiskStorageException {
+    File[] existingBuckets = directory.listFiles((dir, name) -> name.startsWith(BUCKET_PREFIX));
+    if (existingBuckets != null
+        && existingBuckets.length > 0
+        && existingBuckets.length != buckets.count()) {
+      throw new DiskStorageException(
+          directory.getAbsolutePath()
+              + " holds "
+              + existingBuckets.length
+              + " buckets, can't recover it with "
+              + buckets.count());
+    }
+  }
+
+  /** Open the log of bucket, laying its index out past the hash bits every key in it shares. */
+  private SegmentLog openLog(File directory, int bucket, boolean recover) throws IOException {
+    return new SegmentLog(directory, maxSegmentBytes, recover, buckets.bits(), bucket);
+  }
+
+  private static File bucketDirectory(File directory, int bucket) {
+    return new File(directory, String.format("%s%04d", BUCKET_PREFIX, bucket));
+  }
+
+  private static void deleteRecursively(File file) throws IOException {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    if (file.exists() && !file.delete()) {
+      throw new IOException("Unable to delete file " + file.getAbsolutePath());
+    }
+  }
+
+  private byte[] encode(StorageUnit storageUnit) throws StorageUnitException {
+    return StorageUnitRecord.encode(storageUnit, encryption, compressionStats);
+  }
+
+  private StorageUnit decode(byte[] record) throws StorageUnitException {
+    return StorageUnitRecord.decode(ByteBuffer.wrap(record), encryption);
+  }
+
+  /** @return the log of key, once a replacement of it under way is published. */
+  private SegmentLog publishedLogFor(String key, StorageType storageType) {
+    synchronized (replacingLogs) {
+      return logFor(key, storageType);
+    }
+  }
+
+  private SegmentLog logFor(String key, StorageType storageType) {
+    return logs.get(storageType.ordinal()).get(buckets.bucketOf(Hashing.calculateMD5Hash(key)));
+  }
+}
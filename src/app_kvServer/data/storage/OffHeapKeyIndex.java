@@ -0,0 +1,434 @@
+package app_kvServer.data.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+import shared.communication.security.Hashing;
+
+/**
+ * The keydir of a SegmentLog, kept in an open addressing hash table in a direct ByteBuffer so
+ * millions of keys cost the garbage collector nothing to trace. Each slot holds the key's MD5 ring
+ * hash, the key itself and the location of its record:
+ *
+ * <pre>
+ * [ring hash (16 bytes)][segment id (3 bytes) and offset (5 bytes)][payload length (4 bytes)]
+ * [key length + 1 (1 byte), 0 for an empty slot][key (up to 20 bytes)][padding (7 bytes)]
+ * </pre>
+ *
+ * A key's home slot is the start of its ring hash scaled to the table, so slots are ordered by ring
+ * hash up to the displacement of linear probing. Hash ranges are answered by scanning the slots
+ * their ends map to, without reading any segment. Keys longer than fit a slot, which the server
+ * never stores, go to a small on-heap map instead.
+ *
+ * <p>Writers are serialized by the SegmentLog's monitor; as every bucket of every StorageType has a
+ * SegmentLog of its own, writes are striped across them. Readers don't lock: they probe the table
+ * under an optimistic StampedLock read and only retry, holding the read lock, if a write got in.
+ */
+final class OffHeapKeyIndex {
+  static final int MAX_INLINE_KEY_BYTES = 20;
+  private static final int HASH_OFFSET = 0;
+  private static final int LOCATION_OFFSET = 16;
+  private static final int LENGTH_OFFSET = 24;
+  private static final int KEY_LENGTH_OFFSET = 28;
+  private static final int KEY_OFFSET = 29;
+  private static final int SLOT_BYTES = 56;
+  private static final int OFFSET_BITS = 40;
+  private static final int MAX_SEGMENT_ID = (1 << (64 - OFFSET_BITS)) - 1;
+  private static final long MAX_OFFSET = (1L << OFFSET_BITS) - 1;
+  private static final int MIN_CAPACITY_BITS = 6;
+  // the largest table a ByteBuffer can hold
+  private static final int MAX_CAPACITY_BITS = 25;
+
+  private final int prefixBits;
+  private final long prefix;
+  private final StampedLock lock = new StampedLock();
+  private final ConcurrentHashMap<String, SegmentLog.RecordLocation> overflow =
+      new ConcurrentHashMap<>();
+  // replaced as a whole when the table grows
+  private volatile ByteBuffer table;
+  private volatile int capacityBits;
+  private int size = 0;
+
+  /**
+   * @param prefixBits number of leading ring hash bits shared by every key of the index, which are
+   *     skipped when placing keys. 0 if keys may fall anywhere on the ring.
+   * @param prefix the value of those shared bits.
+   */
+  OffHeapKeyIndex(final int prefixBits, final int prefix) {
+    this.prefixBits = prefixBits;
+    this.prefix = prefix;
+    allocate(MIN_CAPACITY_BITS);
+  }
+
+  /** @return the location of key's latest record, or null if key is not present. */
+  SegmentLog.RecordLocation get(final String key) {
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    if (keyBytes.length > MAX_INLINE_KEY_BYTES) {
+      return overflow.get(key);
+    }
+    long[] hash = ringHash(key);
+    long stamp = lock.tryOptimisticRead();
+    SegmentLog.RecordLocation location = find(hash, keyBytes);
+    if (lock.validate(stamp)) {
+      return location;
+    }
+    stamp = lock.readLock();
+    try {
+      return find(hash, keyBytes);
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  boolean contains(final String key) {
+    return get(key) != null;
+  }
+
+  /** @return the location key had before, or null if it was not present. */
+  SegmentLog.RecordLocation put(final String key, final SegmentLog.RecordLocation location) {
+    if (location.segmentId > MAX_SEGMENT_ID || location.offset > MAX_OFFSET) {
+      throw new IllegalArgumentException(
+          "Segment " + location.segmentId + " offset " + location.offset + " can't be indexed");
+    }
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    if (keyBytes.length > MAX_INLINE_KEY_BYTES) {
+      return overflow.put(key, location);
+    }
+    long[] hash = ringHash(key);
+    long stamp = lock.writeLock();
+    try {
+      int slot = probe(table, capacityBits, hash, keyBytes);
+      SegmentLog.RecordLocation previous = null;
+      if (isEmpty(table, slot)) {
+        if ((size + 1) * 10L > (1L << capacityBits) * 7) {
+          if (capacityBits == MAX_CAPACITY_BITS) {
+            throw new IllegalStateException("Key index is full at " + size + " keys");
+          }
+          allocate(capacityBits + 1);
+          slot = probe(table, capacityBits, hash, keyBytes);
+        }
+        size++;
+      } else {
+        previous = locationAt(table, slot);
+      }
+      writeSlot(table, slot, hash, keyBytes, location);
+      return previous;
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /** @return the location key had, or null if it was not present. */
+  SegmentLog.RecordLocation remove(final String key) {
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    if (keyBytes.length > MAX_INLINE_KEY_BYTES) {
+      return overflow.remove(key);
+    }
+    long[] hash = ringHash(key);
+    long stamp = lock.writeLock();
+    try {
+      ByteBuffer slots = table;
+      int slot = probe(slots, capacityBits, hash, keyBytes);
+      if (isEmpty(slots, slot)) {
+        return null;
+      }
+      SegmentLog.RecordLocation previous = locationAt(slots, slot);
+      // backward shift deletion: pull later keys of the cluster into the hole if that doesn't move
+      // them ahead of their home slot, so probes never have to skip over deleted slots
+      int mask = (1 << capacityBits) - 1;
+      int hole = slot;
+      for (int next = (hole + 1) & mask; !isEmpty(slots, next); next = (next + 1) & mask) {
+        int home = home(slots.getLong(next * SLOT_BYTES + HASH_OFFSET), capacityBits);
+        if (((next - home) & mask) >= ((next - hole) & mask)) {
+          copySlot(slots, next, hole);
+          hole = next;
+        }
+      }
+      slots.put(hole * SLOT_BYTES + KEY_LENGTH_OFFSET, (byte) 0);
+      size--;
+      return previous;
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /** Drop every key, handing the table's memory back once the garbage collector frees it. */
+  void clear() {
+    long stamp = lock.writeLock();
+    try {
+      table = ByteBuffer.allocateDirect(SLOT_BYTES << MIN_CAPACITY_BITS);
+      capacityBits = MIN_CAPACITY_BITS;
+      size = 0;
+      overflow.clear();
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  int size() {
+    long stamp = lock.readLock();
+    try {
+      return size + overflow.size();
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  /** @return a snapshot of the keys present. */
+  List<String> keys() {
+    List<String> keys = new ArrayList<>();
+    for (Map.Entry<String, SegmentLog.RecordLocation> entry : entries()) {
+      keys.add(entry.getKey());
+    }
+    return keys;
+  }
+
+  /** @return a snapshot of the keys present with the location of their latest record. */
+  List<Map.Entry<String, SegmentLog.RecordLocation>> entries() {
+    List<Map.Entry<String, SegmentLog.RecordLocation>> entries = new ArrayList<>();
+    long stamp = lock.readLock();
+    try {
+      ByteBuffer slots = table;
+      for (int slot = 0; slot < 1 << capacityBits; slot++) {
+        if (!isEmpty(slots, slot)) {
+          entries.add(
+              new AbstractMap.SimpleImmutableEntry<>(keyAt(slots, slot), locationAt(slots, slot)));
+        }
+      }
+    } finally {
+      lock.unlockRead(stamp);
+    }
+    entries.addAll(overflow.entrySet());
+    return entries;
+  }
+
+  /**
+   * @return the keys whose ring hash falls into hashRange, as tested by ECSUtils, found from the
+   *     slots the ends of hashRange map to.
+   */
+  List<String> keysInRange(final String[] hashRange) {
+    long[] lower = parseHash(hashRange[0]);
+    long[] upper = parseHash(hashRange[1]);
+    List<String> keys = new ArrayList<>();
+    long stamp = lock.readLock();
+    try {
+      ByteBuffer slots = table;
+      BitSet scanned = new BitSet(1 << capacityBits);
+      if (compare(lower, upper) < 0) {
+        scan(slots, lower, upper, lower, upper, scanned, keys);
+      } else {
+        scan(slots, new long[] {0, 0}, upper, lower, upper, scanned, keys);
+        scan(slots, lower, new long[] {-1, -1}, lower, upper, scanned, keys);
+      }
+    } finally {
+      lock.unlockRead(stamp);
+    }
+    for (String key : overflow.keySet()) {
+      if (inRange(ringHash(key), lower, upper)) {
+        keys.add(key);
+      }
+    }
+    return keys;
+  }
+
+  /**
+   * Collect the keys in hashRange from the slots holding ring hashes from first to last: the slots
+   * from the home of first to the home of last, and the rest of the cluster the latter ends in.
+   */
+  private void scan(
+      ByteBuffer slots,
+      long[] first,
+      long[] last,
+      long[] lower,
+      long[] upper,
+      BitSet scanned,
+      List<String> keys) {
+    int capacity = 1 << capacityBits;
+    int mask = capacity - 1;
+    long firstPrefix = prefixOf(first[0]);
+    long lastPrefix = prefixOf(last[0]);
+    if (firstPrefix > prefix || lastPrefix < prefix) {
+      // no key of this index falls in between
+      return;
+    }
+    int start = firstPrefix < prefix ? 0 : home(first[0], capacityBits);
+    int end = lastPrefix > prefix ? capacity - 1 : home(last[0], capacityBits);
+    for (int i = 0, slot = start; i < capacity; i++, slot = (slot + 1) & mask) {
+      boolean pastEnd = i > end - start;
+      if (pastEnd && isEmpty(slots, slot)) {
+        break;
+      }
+      if (scanned.get(slot)) {
+        continue;
+      }
+      scanned.set(slot);
+      if (!isEmpty(slots, slot)
+          && inRange(
+              new long[] {
+                slots.getLong(slot * SLOT_BYTES + HASH_OFFSET),
+                slots.getLong(slot * SLOT_BYTES + HASH_OFFSET + 8)
+              },
+              lower,
+              upper)) {
+        keys.add(keyAt(slots, slot));
+      }
+    }
+  }
+
+  /**
+   * Look key up in the table. Reads without a lock may see a write half done, so nothing read from
+   * the table is trusted to be in bounds.
+   */
+  private SegmentLog.RecordLocation find(long[] hash, byte[] keyBytes) {
+    ByteBuffer slots = table;
+    int bits = capacityBits;
+    if (slots.capacity() < SLOT_BYTES << bits) {
+      // grown in between reading the two, the stamp won't validate
+      return null;
+    }
+    int slot = probe(slots, bits, hash, keyBytes);
+    return isEmpty(slots, slot) ? null : locationAt(slots, slot);
+  }
+
+  /** @return the slot holding key, or the empty slot ending its probe sequence. */
+  private int probe(ByteBuffer slots, int bits, long[] hash, byte[] keyBytes) {
+    int mask = (1 << bits) - 1;
+    int slot = home(hash[0], bits);
+    for (int i = 0; i <= mask; i++, slot = (slot + 1) & mask) {
+      if (isEmpty(slots, slot) || holds(slots, slot, hash, keyBytes)) {
+        return slot;
+      }
+    }
+    // only a torn read sees a full table, as it grows before getting there
+    return slot;
+  }
+
+  private void allocate(int bits) {
+    ByteBuffer grown = ByteBuffer.allocateDirect(SLOT_BYTES << bits);
+    ByteBuffer slots = table;
+    if (slots != null) {
+      for (int slot = 0; slot < 1 << capacityBits; slot++) {
+        if (!isEmpty(slots, slot)) {
+          long[] hash = {
+            slots.getLong(slot * SLOT_BYTES + HASH_OFFSET),
+            slots.getLong(slot * SLOT_BYTES + HASH_OFFSET + 8)
+          };
+          byte[] keyBytes = keyBytesAt(slots, slot);
+          writeSlot(
+              grown, probe(grown, bits, hash, keyBytes), hash, keyBytes, locationAt(slots, slot));
+        }
+      }
+    }
+    table = grown;
+    capacityBits = bits;
+  }
+
+  /** @return the slot a ring hash starting with hashHigh would be placed at if it were free. */
+  private int home(long hashHigh, int bits) {
+    // skips the shared prefix, so the keys spread over the whole table
+    return (int) ((hashHigh << prefixBits) >>> (64 - bits));
+  }
+
+  private long prefixOf(long hashHigh) {
+    return prefixBits == 0 ? 0 : hashHigh >>> (64 - prefixBits);
+  }
+
+  private static boolean isEmpty(ByteBuffer slots, int slot) {
+    return slots.get(slot * SLOT_BYTES + KEY_LENGTH_OFFSET) == 0;
+  }
+
+  private static boolean holds(ByteBuffer slots, int slot, long[] hash, byte[] keyBytes) {
+    int base = slot * SLOT_BYTES;
+    if (slots.getLong(base + HASH_OFFSET) != hash[0]
+        || slots.getLong(base + HASH_OFFSET + 8) != hash[1]
+        || slots.get(base + KEY_LENGTH_OFFSET) != keyBytes.length + 1) {
+      return false;
+    }
+    for (int i = 0; i < keyBytes.length; i++) {
+      if (slots.get(base + KEY_OFFSET + i) != keyBytes[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void writeSlot(
+      ByteBuffer slots,
+      int slot,
+      long[] hash,
+      byte[] keyBytes,
+      SegmentLog.RecordLocation location) {
+    int base = slot * SLOT_BYTES;
+    slots.putLong(base + HASH_OFFSET, hash[0]);
+    slots.putLong(base + HASH_OFFSET + 8, hash[1]);
+    slots.putLong(
+        base + LOCATION_OFFSET, ((long) location.segmentId << OFFSET_BITS) | location.offset);
+    slots.putInt(base + LENGTH_OFFSET, location.length);
+    for (int i = 0; i < keyBytes.length; i++) {
+      slots.put(base + KEY_OFFSET + i, keyBytes[i]);
+    }
+    slots.put(base + KEY_LENGTH_OFFSET, (byte) (keyBytes.length + 1));
+  }
+
+  private static void copySlot(ByteBuffer slots, int from, int to) {
+    for (int i = 0; i < SLOT_BYTES; i += 8) {
+      slots.putLong(to * SLOT_BYTES + i, slots.getLong(from * SLOT_BYTES + i));
+    }
+  }
+
+  private static SegmentLog.RecordLocation locationAt(ByteBuffer slots, int slot) {
+    int base = slot * SLOT_BYTES;
+    long packed = slots.getLong(base + LOCATION_OFFSET);
+    int keyLength = Math.max(0, slots.get(base + KEY_LENGTH_OFFSET) - 1);
+    return new SegmentLog.RecordLocation(
+        (int) (packed >>> OFFSET_BITS),
+        packed & MAX_OFFSET,
+        keyLength,
+        slots.getInt(base + LENGTH_OFFSET));
+  }
+
+  private static byte[] keyBytesAt(ByteBuffer slots, int slot) {
+    int base = slot * SLOT_BYTES;
+    byte[] keyBytes = new byte[slots.get(base + KEY_LENGTH_OFFSET) - 1];
+    for (int i = 0; i < keyBytes.length; i++) {
+      keyBytes[i] = slots.get(base + KEY_OFFSET + i);
+    }
+    return keyBytes;
+  }
+
+  private static String keyAt(ByteBuffer slots, int slot) {
+    return new String(keyBytesAt(slots, slot), StandardCharsets.UTF_8);
+  }
+
+  /** @return the ring hash of key as two longs, the digest Hashing.calculateMD5Hash prints. */
+  private static long[] ringHash(String key) {
+    ByteBuffer digest = ByteBuffer.wrap(Hashing.calculateMD5Digest(key));
+    return new long[] {digest.getLong(), digest.getLong()};
+  }
+
+  private static long[] parseHash(String hash) {
+    return new long[] {
+      Long.parseUnsignedLong(hash.substring(0, 16), 16),
+      Long.parseUnsignedLong(hash.substring(16, 32), 16)
+    };
+  }
+
+  private static int compare(long[] a, long[] b) {
+    int high = Long.compareUnsigned(a[0], b[0]);
+    return high != 0 ? high : Long.compareUnsigned(a[1], b[1]);
+  }
+
+  /** Same test as ECSUtils.checkIfHashBelongsInRange, on the numeric hash. */
+  private static boolean inRange(long[] hash, long[] lower, long[] upper) {
+    if (compare(lower, upper) < 0) {
+      return compare(lower, hash) <= 0 && compare(upper, hash) > 0;
+    }
+    return compare(upper, hash) >= 0 || compare(lower, hash) < 0;
+  }
+}
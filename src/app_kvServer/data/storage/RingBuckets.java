@@ -0,0 +1,71 @@
+package app_kvServer.data.storage;
+
+import ecs.ECSUtils;
+
+/**
+ * Splits the hash ring into a fixed power of two number of equally sized buckets, bucket i holding
+ * the hashes whose leading bits equal i. A key range handed between nodes then covers most buckets
+ * either fully or not at all, and only the buckets at its two ends need a per-key check.
+ */
+public final class RingBuckets {
+  public static final int MAX_BUCKETS = 1024;
+  // ring hashes are 32 uppercase hex digits, the bucket is read from the first four
+  private static final int PREFIX_DIGITS = 4;
+  private static final int PREFIX_BITS = PREFIX_DIGITS * 4;
+  private static final String HASH_SUFFIX_ZEROS = "0000000000000000000000000000";
+  private static final String HASH_SUFFIX_ONES = "FFFFFFFFFFFFFFFFFFFFFFFFFFFF";
+
+  public enum Coverage {
+    NONE,
+    PARTIAL,
+    FULL
+  }
+
+  private final int count;
+  private final int shift;
+
+  /** @throws IllegalArgumentException if count is not a power of two up to MAX_BUCKETS. */
+  public RingBuckets(final int count) {
+    if (count <= 0 || count > MAX_BUCKETS || Integer.bitCount(count) != 1) {
+      throw new IllegalArgumentException(
+          "Bucket count must be a power of two up to " + MAX_BUCKETS + ". Given: " + count);
+    }
+    this.count = count;
+    this.shift = PREFIX_BITS - Integer.numberOfTrailingZeros(count);
+  }
+
+  public int count() {
+    return count;
+  }
+
+  /** @return the number of leading ring hash bits that pick a bucket. */
+  public int bits() {
+    return Integer.numberOfTrailingZeros(count);
+  }
+
+  /** @return the bucket holding a ring hash. */
+  public int bucketOf(final String hash) {
+    return Integer.parseInt(hash.substring(0, PREFIX_DIGITS), 16) >>> shift;
+  }
+
+  /** @return how much of bucket falls into hashRange, as tested by ECSUtils. */
+  public Coverage coverage(final int bucket, final String[] hashRange) {
+    String first = String.format("%04X", bucket << shift) + HASH_SUFFIX_ZEROS;
+    String last = String.format("%04X", ((bucket + 1) << shift) - 1) + HASH_SUFFIX_ONES;
+    String lower = hashRange[0];
+    String upper = hashRange[1];
+    boolean full;
+    boolean none;
+    if (lower.compareTo(upper) < 0) {
+      // covers [lower, upper)
+      full = lower.compareTo(first) <= 0 && last.compareTo(upper) < 0;
+      none = first.compareTo(upper) >= 0 || last.compareTo(lower) < 0;
+    } else {
+      // covers [start of ring, upper] and (lower, end of ring], i.e. all but (upper, lower]
+      full = lower.equals(upper) || last.compareTo(upper) <= 0 || first.compareTo(lower) > 0;
+      none = first.compareTo(upper) > 0 && last.compareTo(lower) <= 0;
+    }
+    assert !full || ECSUtils.checkIfHashBelongsInRange(first, hashRange);
+    return full ? Coverage.FULL : none ? Coverage.NONE : Coverage.PARTIAL;
+  }
+}
@@ -0,0 +1,321 @@
+package app_kvServer.data.storage;
+
+import com.google.common.io.CountingOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable sorted file of (key, payload) records written once by a memtable flush or a compaction.
+ * Records are grouped into blocks of roughly BLOCK_BYTES and the first key of every block is kept
+ * in a sparse in-memory index, so a lookup costs one binary search and one block read and a scan
+ * from any key is a single seek followed by sequential reads. A KeyFilter over all keys of the
+ * table lets lookups of keys it doesn't hold skip the block read.
+ *
+ * <p>File layout: [records][index: count, (key, offset)*, last key][index offset (8 bytes)][magic]
+ * with records laid out as [key length][key][type][payload length][payload].
+ */
+public class SSTable {
+  /** Payload returned for keys whose latest record is a deletion. Compared by identity. */
+  public static final byte[] TOMBSTONE = new byte[0];
+
+  private static final int MAGIC = 0x53535442;
+  private static final int BLOCK_BYTES = 4 * 1024;
+  private static final byte LIVE_RECORD = 0;
+  private static final byte TOMBSTONE_RECORD = 1;
+
+  private final File file;
+  private final FileChannel channel;
+  private final String[] blockKeys;
+  // one more entry than blockKeys, the last one being the end of the record section
+  private final long[] blockOffsets;
+  private final String lastKey;
+  private final KeyFilter filter;
+
+  private SSTable(
+      File file, String[] blockKeys, long[] blockOffsets, String lastKey, KeyFilter filter)
+      throws IOException {
+    this.file = file;
+    this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    this.blockKeys = blockKeys;
+    this.blockOffsets = blockOffsets;
+    this.lastKey = lastKey;
+    this.filter = filter;
+  }
+
+  /**
+   * Write records from entries, which must be in ascending key order, into a new table at file.
+   * Writing stops once the table holds at least targetBytes of records so callers can split a long
+   * merge across several tables by calling this again with the same iterator.
+   *
+   * @return the new table, or null if entries had nothing left.
+   */
+  public static SSTable write(
+      File file, Iterator<Map.Entry<String, byte[]>> entries, long targetBytes) throws IOException {
+    if (!entries.hasNext()) {
+      return null;
+    }
+    List<String> blockKeys = new ArrayList<>();
+    List<Long> blockOffsets = new ArrayList<>();
+    List<String> keys = new ArrayList<>();
+    String lastKey = null;
+    long blockStart = -BLOCK_BYTES;
+    // DataOutputStream.size() stops counting at 2 GB, tables may be larger
+    try (FileOutputStream fileOutput = new FileOutputStream(file);
+        CountingOutputStream counter =
+            new CountingOutputStream(new BufferedOutputStream(fileOutput, 64 * 1024));
+        DataOutputStream output = new DataOutputStream(counter)) {
+      while (entries.hasNext() && counter.getCount() < targetBytes) {
+        Map.Entry<String, byte[]> entry = entries.next();
+        if (counter.getCount() - blockStart >= BLOCK_BYTES) {
+          blockStart = counter.getCount();
+          blockKeys.add(entry.getKey());
+          blockOffsets.add(blockStart);
+        }
+        byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+        byte[] payload = entry.getValue();
+        output.writeInt(key.length);
+        output.write(key);
+        output.writeByte(payload == TOMBSTONE ? TOMBSTONE_RECORD : LIVE_RECORD);
+        output.writeInt(payload.length);
+        output.write(payload);
+        keys.add(entry.getKey());
+        lastKey = entry.getKey();
+      }
+      long indexOffset = counter.getCount();
+      blockOffsets.add(indexOffset);
+      output.writeInt(blockKeys.size());
+      for (int i = 0; i < blockKeys.size(); i++) {
+        output.writeUTF(blockKeys.get(i));
+        output.writeLong(blockOffsets.get(i));
+      }
+      output.writeUTF(lastKey);
+      output.writeLong(indexOffset);
+      output.writeInt(MAGIC);
+      output.flush();
+      fileOutput.getChannel().force(true);
+    }
+    long[] offsets = new long[blockOffsets.size()];
+    for (int i = 0; i < offsets.length; i++) {
+      offsets[i] = blockOffsets.get(i);
+    }
+    return new SSTable(file, blockKeys.toArray(new String[0]), offsets, lastKey, filterOf(keys));
+  }
+
+  /**
+   * Reopen a table written by an earlier call to write, loading its index from the file's footer
+   * and rebuilding its KeyFilter from the records.
+   *
+   * @throws IOException if file is not a complete table.
+   */
+  public static SSTable open(File file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      long size = channel.size();
+      ByteBuffer footer = ByteBuffer.allocate(8 + 4);
+      if (size < footer.capacity()) {
+        throw new IOException("Incomplete table " + file.getAbsolutePath());
+      }
+      readFully(channel, footer, size - footer.capacity());
+      footer.flip();
+      long indexOffset = footer.getLong();
+      if (footer.getInt() != MAGIC || indexOffset < 0 || indexOffset > size - footer.capacity()) {
+        throw new IOException("Incomplete table " + file.getAbsolutePath());
+      }
+      ByteBuffer index = ByteBuffer.allocate((int) (size - footer.capacity() - indexOffset));
+      readFully(channel, index, indexOffset);
+      DataInputStream input = new DataInputStream(new ByteArrayInputStream(index.array()));
+      String[] blockKeys = new String[input.readInt()];
+      long[] blockOffsets = new long[blockKeys.length + 1];
+      for (int i = 0; i < blockKeys.length; i++) {
+        blockKeys[i] = input.readUTF();
+        blockOffsets[i] = input.readLong();
+      }
+      blockOffsets[blockKeys.length] = indexOffset;
+      String lastKey = input.readUTF();
+      List<String> keys = new ArrayList<>();
+      for (int block = 0; block < blockKeys.length; block++) {
+        ByteBuffer records =
+            ByteBuffer.allocate((int) (blockOffsets[block + 1] - blockOffsets[block]));
+        readFully(channel, records, blockOffsets[block]);
+        records.flip();
+        while (records.hasRemaining()) {
+          keys.add(readKey(records));
+          skipPayload(records);
+        }
+      }
+      return new SSTable(file, blockKeys, blockOffsets, lastKey, filterOf(keys));
+    }
+  }
+
+  private static KeyFilter filterOf(List<String> keys) {
+    KeyFilter filter = new KeyFilter(keys.size());
+    keys.forEach(filter::add);
+    return filter;
+  }
+
+  /** @return the payload for key, TOMBSTONE if key was deleted, or null if key is not present. */
+  public byte[] get(String key) throws IOException {
+    if (!mightContain(key)) {
+      return null;
+    }
+    ByteBuffer block = readBlock(blockFor(key));
+    while (block.hasRemaining()) {
+      String recordKey = readKey(block);
+      int comparison = recordKey.compareTo(key);
+      if (comparison == 0) {
+        return readPayload(block);
+      } else if (comparison > 0) {
+        return null;
+      }
+      skipPayload(block);
+    }
+    return null;
+  }
+
+  /**
+   * @return an iterator over the records with keys greater than or equal to from, in key order.
+   *     Deleted keys are returned with TOMBSTONE as their payload. IOExceptions are rethrown as
+   *     UncheckedIOExceptions.
+   */
+  public Iterator<Map.Entry<String, byte[]>> iterator(final String from) {
+    return new Iterator<Map.Entry<String, byte[]>>() {
+      private int nextBlock = from.compareTo(firstKey()) < 0 ? 0 : blockFor(from);
+      private ByteBuffer block = null;
+      private Map.Entry<String, byte[]> next = advance();
+
+      @Override
+      public boolean hasNext() {
+        return next != null;
+      }
+
+      @Override
+      public Map.Entry<String, byte[]> next() {
+        if (next == null) {
+          throw new NoSuchElementException();
+        }
+        Map.Entry<String, byte[]> current = next;
+        next = advance();
+        return current;
+      }
+
+      private Map.Entry<String, byte[]> advance() {
+        try {
+          while (true) {
+            while (block == null || !block.hasRemaining()) {
+              if (nextBlock >= blockKeys.length) {
+                return null;
+              }
+              block = readBlock(nextBlock++);
+            }
+            String key = readKey(block);
+            if (key.compareTo(from) < 0) {
+              skipPayload(block);
+              continue;
+            }
+            return new AbstractMap.SimpleImmutableEntry<>(key, readPayload(block));
+          }
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+    };
+  }
+
+  /** @return false if the table certainly holds no record for key, without reading the file. */
+  public boolean mightContain(String key) {
+    return key.compareTo(firstKey()) >= 0
+        && key.compareTo(lastKey) <= 0
+        && filter.mightContain(key);
+  }
+
+  public String firstKey() {
+    return blockKeys[0];
+  }
+
+  public String lastKey() {
+    return lastKey;
+  }
+
+  /** @return whether this table may hold keys in [from, to]. */
+  public boolean overlaps(String from, String to) {
+    return firstKey().compareTo(to) <= 0 && lastKey.compareTo(from) >= 0;
+  }
+
+  public long sizeBytes() {
+    return blockOffsets[blockOffsets.length - 1];
+  }
+
+  public File file() {
+    return file;
+  }
+
+  /** Close the table and delete its file. Concurrent readers fail with ClosedChannelException. */
+  public void delete() throws IOException {
+    channel.close();
+    if (!file.delete()) {
+      throw new IOException("Unable to delete table " + file.getAbsolutePath());
+    }
+  }
+
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  private int blockFor(String key) {
+    int position = Arrays.binarySearch(blockKeys, key);
+    // not found: the key falls in the block starting before its insertion point
+    return position >= 0 ? position : Math.max(0, -position - 2);
+  }
+
+  private ByteBuffer readBlock(int block) throws IOException {
+    long start = blockOffsets[block];
+    ByteBuffer buffer = ByteBuffer.allocate((int) (blockOffsets[block + 1] - start));
+    readFully(channel, buffer, start);
+    buffer.flip();
+    return buffer;
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of table at " + position);
+      }
+    }
+  }
+
+  private static String readKey(ByteBuffer block) {
+    byte[] key = new byte[block.getInt()];
+    block.get(key);
+    return new String(key, StandardCharsets.UTF_8);
+  }
+
+  private static byte[] readPayload(ByteBuffer block) {
+    byte type = block.get();
+    byte[] payload = new byte[block.getInt()];
+    block.get(payload);
+    return type == TOMBSTONE_RECORD ? TOMBSTONE : payload;
+  }
+
+  private static void skipPayload(ByteBuffer block) {
+    block.get();
+    int length = block.getInt();
+    block.position(block.position() + length);
+  }
+}
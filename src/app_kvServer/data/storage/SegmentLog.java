@@ -0,0 +1,814 @@
+package app_kvServer.data.storage;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import org.apache.log4j.Logger;
+
+/**
+ * Append-only log of opaque records split across segment files, with an off-heap hash index
+ * (Bitcask's "keydir", see OffHeapKeyIndex) from each key to the location of its latest record.
+ * Lookups take a single positioned read and writes a single append, regardless of how much data is
+ * stored.
+ *
+ * <p>Every record carries its key and a checksum, so the index can be rebuilt from the segments
+ * alone. Sealed segments additionally get a hint file listing the key and location of each of their
+ * records, which lets recovery rebuild the index without reading any payloads.
+ *
+ * <p>Writers are serialized on the log's monitor. Readers never lock: they resolve the location
+ * through the index and retry if the segment was compacted away underneath them.
+ */
+public class SegmentLog {
+  private static final Logger logger = Logger.getLogger(SegmentLog.class);
+  private static final String SEGMENT_PREFIX = "segment_";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final String HINT_SUFFIX = ".hint";
+  private static final String TEMPORARY_SUFFIX = ".tmp";
+  private static final byte LIVE_RECORD = 0;
+  private static final byte TOMBSTONE_RECORD = 1;
+  // record layout: [type (1 byte)][key length (4 bytes)][payload length (4 bytes)][key][payload]
+  // [CRC32C of everything before it (4 bytes)]
+  private static final int HEADER_BYTES = 1 + 4 + 4;
+  private static final int CHECKSUM_BYTES = 4;
+  private static final byte[] NO_PAYLOAD = new byte[0];
+
+  private final File directory;
+  private final long maxSegmentBytes;
+  private final OffHeapKeyIndex keyDirectory;
+  private final ConcurrentHashMap<Integer, FileChannel> segments = new ConcurrentHashMap<>();
+  private int nextSegmentId = 0;
+  private int activeSegmentId;
+  // read without the monitor by sync
+  private volatile FileChannel activeSegment;
+  private volatile boolean unsynced = false;
+  private volatile boolean closed = false;
+  private long activeSegmentBytes;
+  private HintWriter activeHints;
+  private long liveBytes = 0;
+  private long totalBytes = 0;
+
+  /**
+   * @param directory the directory holding this log's segment files. Any existing segments are
+   *     removed.
+   * @param maxSegmentBytes size after which the active segment is closed and a new one started.
+   */
+  public SegmentLog(final File directory, final long maxSegmentBytes) throws IOException {
+    this(directory, maxSegmentBytes, false);
+  }
+
+  /**
+   * @param directory the directory holding this log's segment files.
+   * @param maxSegmentBytes size after which the active segment is closed and a new one started.
+   * @param recover whether to reopen the segments already in directory instead of removing them. A
+   *     torn or corrupt tail left by a crash is truncated.
+   */
+  public SegmentLog(final File directory, final long maxSegmentBytes, boolean recover)
+      throws IOException {
+    this(directory, maxSegmentBytes, recover, 0, 0);
+  }
+
+  /**
+   * @param directory the directory holding this log's segment files.
+   * @param maxSegmentBytes size after which the active segment is closed and a new one started.
+   * @param recover whether to reopen the segments already in directory instead of removing them.
+   * @param hashPrefixBits number of leading ring hash bits shared by every key stored in the log,
+   *     as when the log holds a single RingBuckets bucket. Only affects how keys are laid out in
+   *     the index.
+   * @param hashPrefix the value of those shared bits.
+   */
+  public SegmentLog(
+      final File directory,
+      final long maxSegmentBytes,
+      boolean recover,
+      int hashPrefixBits,
+      int hashPrefix)
+      throws IOException {
+    this.directory = directory;
+    this.maxSegmentBytes = maxSegmentBytes;
+    this.keyDirectory = new OffHeapKeyIndex(hashPrefixBits, hashPrefix);
+    if (!directory.exists()) {
+      if (!directory.mkdirs()) {
+        throw new IOException("Unable to create directory " + directory.getAbsolutePath());
+      }
+    } else if (recover) {
+      recover();
+    } else {
+      // remove existing storage to start fresh
+      File[] existingSegments = directory.listFiles();
+      if (existingSegments != null) {
+        for (File segment : existingSegments) {
+          if (!segment.delete()) {
+            throw new IOException("Unable to delete file " + segment.getAbsolutePath());
+          }
+        }
+      }
+    }
+    openActiveSegment();
+    logger.info("Segment log " + directory.getAbsolutePath() + " opened.");
+  }
+
+  /**
+   * Force the records appended so far to disk. Runs alongside writers: sealed segments are forced
+   * when they are sealed, so only the active one needs it. Does nothing once the log is closed,
+   * which forced them all.
+   */
+  public void sync() throws IOException {
+    if (!unsynced) {
+      return;
+    }
+    unsynced = false;
+    while (true) {
+      FileChannel segment = activeSegment;
+      try {
+        segment.force(false);
+        return;
+      } catch (ClosedByInterruptException e) {
+        throw e;
+      } catch (ClosedChannelException e) {
+        if (closed) {
+          // close() forces the segments before closing them, once it is done nothing is left
+          synchronized (this) {
+            return;
+          }
+        }
+        if (segment == activeSegment) {
+          throw e;
+        }
+        // sealed and forced while we got to it, the records since are in the new active segment
+      }
+    }
+  }
+
+  /** @return whether key is present, answered from the index alone. */
+  public boolean contains(final String key) {
+    return keyDirectory.contains(key);
+  }
+
+  /** @return the payload of the latest record for key, or null if key is not present. */
+  public byte[] read(final String key) throws IOException {
+    while (true) {
+      RecordLocation location = keyDirectory.get(key);
+      if (location == null) {
+        return null;
+      }
+      FileChannel segment = segments.get(location.segmentId);
+      if (segment == null) {
+        // compacted away after we looked the key up, the index already points elsewhere
+        continue;
+      }
+      ByteBuffer payload = ByteBuffer.allocate(location.length);
+      try {
+        readFully(segment, payload, location.payloadOffset());
+      } catch (ClosedByInterruptException e) {
+        throw e;
+      } catch (ClosedChannelException e) {
+        continue;
+      }
+      return payload.array();
+    }
+  }
+
+  /** @return the length of the latest record for key as framed, or 0 if key is not present. */
+  public long recordBytes(final String key) {
+    RecordLocation location = keyDirectory.get(key);
+    return location == null ? 0 : location.recordBytes();
+  }
+
+  /** Append payload as the latest record for key. */
+  public synchronized void put(final String key, final byte[] payload) throws IOException {
+    RecordLocation location = append(LIVE_RECORD, key, payload);
+    RecordLocation previous = keyDirectory.put(key, location);
+    liveBytes += location.recordBytes();
+    if (previous != null) {
+      liveBytes -= previous.recordBytes();
+    }
+  }
+
+  /**
+   * Remove key from the log. A tombstone record is appended so the deletion is visible to anyone
+   * reading the segments back in order.
+   */
+  public synchronized void remove(final String key) throws IOException {
+    RecordLocation previous = keyDirectory.get(key);
+    if (previous == null) {
+      return;
+    }
+    append(TOMBSTONE_RECORD, key, NO_PAYLOAD);
+    keyDirectory.remove(key);
+    liveBytes -= previous.recordBytes();
+  }
+
+  /** @return a snapshot of the keys currently present in the log. */
+  public List<String> keys() {
+    return keyDirectory.keys();
+  }
+
+  /**
+   * @return the keys present whose ring hash falls into hashRange, as tested by ECSUtils, answered
+   *     from the index alone.
+   */
+  public List<String> keysInRange(final String[] hashRange) {
+    return keyDirectory.keysInRange(hashRange);
+  }
+
+  public int size() {
+    return keyDirectory.size();
+  }
+
+  public int segmentCount() {
+    return segments.size();
+  }
+
+  /**
+   * Find the records currently stored for keys, skipping keys that are not present. Records lying
+   * back to back in a segment are merged into a single run. The runs stay valid until the next
+   * write, which may compact the segments away, so callers must keep writers out while using them.
+   *
+   * @return the runs in segment order.
+   */
+  List<RecordRun> locateRecords(final Collection<String> keys) {
+    List<RecordLocation> locations = new ArrayList<>(keys.size());
+    for (String key : keys) {
+      RecordLocation location = keyDirectory.get(key);
+      if (location != null) {
+        locations.add(location);
+      }
+    }
+    locations.sort(
+        Comparator.comparingInt((RecordLocation location) -> location.segmentId)
+            .thenComparingLong(location -> location.offset));
+    List<RecordRun> runs = new ArrayList<>();
+    RecordRun run = null;
+    for (RecordLocation location : locations) {
+      if (run == null
+          || run.segmentId != location.segmentId
+          || run.offset + run.length != location.offset) {
+        run = new RecordRun(location.segmentId, segments.get(location.segmentId), location.offset);
+        runs.add(run);
+      }
+      run.length += location.recordBytes();
+      run.records++;
+    }
+    return runs;
+  }
+
+  /**
+   * Write runs found by locateRecords to target with FileChannel.transferTo, which lets the kernel
+   * copy them from the page cache without passing through the heap.
+   */
+  static void transferRecords(final List<RecordRun> runs, final WritableByteChannel target)
+      throws IOException {
+    for (RecordRun run : runs) {
+      long transferred = 0;
+      while (transferred < run.length) {
+        transferred +=
+            run.segment.transferTo(run.offset + transferred, run.length - transferred, target);
+      }
+    }
+  }
+
+  /** @return key and payload framed as a live record, exactly as it would be laid out on disk. */
+  public static byte[] frameRecord(final String key, final byte[] payload) {
+    return frame(LIVE_RECORD, key.getBytes(StandardCharsets.UTF_8), payload);
+  }
+
+  /** @return the length of the record frameRecord makes of key and a payload of payloadBytes. */
+  public static long framedBytes(final String key, final long payloadBytes) {
+    return HEADER_BYTES
+        + key.getBytes(StandardCharsets.UTF_8).length
+        + payloadBytes
+        + CHECKSUM_BYTES;
+  }
+
+  /**
+   * Read records framed as in a segment until the end of input, checking each checksum.
+   *
+   * @return the number of records read.
+   * @throws IOException if a record is truncated or corrupt.
+   */
+  public static long readRecords(final InputStream input, final RecordVisitor visitor)
+      throws IOException {
+    DataInputStream records = new DataInputStream(input);
+    byte[] header = new byte[HEADER_BYTES];
+    long count = 0;
+    while (true) {
+      int read = records.read(header);
+      if (read < 0) {
+        return count;
+      }
+      records.readFully(header, read, HEADER_BYTES - read);
+      ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+      byte type = headerBuffer.get();
+      int keyLength = headerBuffer.getInt();
+      int payloadLength = headerBuffer.getInt();
+      if (keyLength < 0 || payloadLength < 0 || (type != LIVE_RECORD && type != TOMBSTONE_RECORD)) {
+        throw new IOException("Malformed record header");
+      }
+      byte[] record = new byte[HEADER_BYTES + keyLength + payloadLength + CHECKSUM_BYTES];
+      System.arraycopy(header, 0, record, 0, HEADER_BYTES);
+      records.readFully(record, HEADER_BYTES, record.length - HEADER_BYTES);
+      ByteBuffer recordBuffer = ByteBuffer.wrap(record);
+      if (recordBuffer.getInt(record.length - CHECKSUM_BYTES)
+          != checksum(record, record.length - CHECKSUM_BYTES)) {
+        throw new IOException("Checksum mismatch in record " + count);
+      }
+      String key = new String(record, HEADER_BYTES, keyLength, StandardCharsets.UTF_8);
+      byte[] payload = null;
+      if (type == LIVE_RECORD) {
+        payload =
+            Arrays.copyOfRange(
+                record, HEADER_BYTES + keyLength, HEADER_BYTES + keyLength + payloadLength);
+      }
+      visitor.visit(key, payload);
+      count++;
+    }
+  }
+
+  /** @return whether the log was closed, it then reads as empty. */
+  public boolean isClosed() {
+    return closed;
+  }
+
+  /** Seal the active segment and close every segment. The log can be recovered from disk after. */
+  public synchronized void close() throws IOException {
+    // before the index is cleared, so a reader that finds a key gone can tell why
+    closed = true;
+    if (activeSegment.isOpen()) {
+      activeSegment.force(true);
+      unsynced = false;
+      activeHints.seal();
+    }
+    for (FileChannel segment : segments.values()) {
+      segment.close();
+    }
+    segments.clear();
+    keyDirectory.clear();
+  }
+
+  private RecordLocation append(final byte type, final String key, final byte[] payload)
+      throws IOException {
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    int recordBytes = HEADER_BYTES + keyBytes.length + payload.length + CHECKSUM_BYTES;
+    if (activeSegmentBytes > 0 && activeSegmentBytes + recordBytes > maxSegmentBytes) {
+      rollOver();
+    }
+    ByteBuffer record = ByteBuffer.wrap(frame(type, keyBytes, payload));
+    long offset = activeSegmentBytes;
+    writeFully(activeSegment, record, offset);
+    unsynced = true;
+    activeSegmentBytes += recordBytes;
+    totalBytes += recordBytes;
+    RecordLocation location =
+        new RecordLocation(activeSegmentId, offset, keyBytes.length, payload.length);
+    activeHints.add(type, keyBytes, location);
+    return location;
+  }
+
+  private void rollOver() throws IOException {
+    activeSegment.force(true);
+    activeHints.seal();
+    if (liveBytes * 2 < totalBytes) {
+      // more than half of what is on disk is overwritten or deleted
+      compact();
+    }
+    openActiveSegment();
+  }
+
+  /**
+   * Copy every live record into fresh segments and drop all existing ones. The new segments are
+   * numbered after the ones they replace but before the next active segment, so replaying the
+   * segments in order still yields the latest record for every key. The replaced segments are
+   * deleted oldest first so a crash part way through never leaves a record without the tombstone
+   * that followed it.
+   */
+  private void compact() throws IOException {
+    List<Integer> compactedSegmentIds = new ArrayList<>(segments.keySet());
+    Collections.sort(compactedSegmentIds);
+    logger.info(
+        "Compacting "
+            + compactedSegmentIds.size()
+            + " segments in "
+            + directory.getAbsolutePath()
+            + ": "
+            + liveBytes
+            + " of "
+            + totalBytes
+            + " bytes live");
+    int outputId = nextSegmentId++;
+    FileChannel output = openSegment(outputId);
+    HintWriter outputHints = new HintWriter(outputId);
+    long outputBytes = 0;
+    totalBytes = 0;
+    for (Map.Entry<String, RecordLocation> entry : keyDirectory.entries()) {
+      RecordLocation location = entry.getValue();
+      ByteBuffer record = ByteBuffer.allocate(location.recordBytes());
+      readFully(segments.get(location.segmentId), record, location.offset);
+      record.flip();
+      if (outputBytes > 0 && outputBytes + location.recordBytes() > maxSegmentBytes) {
+        output.force(true);
+        outputHints.seal();
+        outputId = nextSegmentId++;
+        output = openSegment(outputId);
+        outputHints = new HintWriter(outputId);
+        outputBytes = 0;
+      }
+      writeFully(output, record, outputBytes);
+      RecordLocation moved =
+          new RecordLocation(outputId, outputBytes, location.keyLength, location.length);
+      keyDirectory.put(entry.getKey(), moved);
+      outputHints.add(LIVE_RECORD, entry.getKey().getBytes(StandardCharsets.UTF_8), moved);
+      outputBytes += location.recordBytes();
+      totalBytes += location.recordBytes();
+    }
+    output.force(true);
+    outputHints.seal();
+    for (int segmentId : compactedSegmentIds) {
+      FileChannel segment = segments.remove(segmentId);
+      segment.close();
+      deleteSegmentFiles(segmentId);
+    }
+  }
+
+  /**
+   * Rebuild the index from the segments in directory. Segments are read in parallel, from their
+   * hint file when there is a valid one, and then applied in order so later records win.
+   */
+  private void recover() throws IOException {
+    long start = System.currentTimeMillis();
+    List<Integer> segmentIds = new ArrayList<>();
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        String name = file.getName();
+        if (name.endsWith(TEMPORARY_SUFFIX)) {
+          // a hint that was never sealed
+          Files.delete(file.toPath());
+        } else if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+          segmentIds.add(
+              Integer.parseInt(
+                  name.substring(
+                      SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+        }
+      }
+    }
+    Collections.sort(segmentIds);
+    List<RecoveredSegment> recovered;
+    try {
+      recovered =
+          segmentIds.parallelStream().map(this::recoverSegment).collect(Collectors.toList());
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    int hinted = 0;
+    for (RecoveredSegment segment : recovered) {
+      segments.put(segment.segmentId, segment.channel);
+      totalBytes += segment.validBytes;
+      hinted += segment.fromHints ? 1 : 0;
+      for (int i = 0; i < segment.keys.size(); i++) {
+        RecordLocation location = segment.locations.get(i);
+        RecordLocation previous =
+            segment.types.get(i) == LIVE_RECORD
+                ? keyDirectory.put(segment.keys.get(i), location)
+                : keyDirectory.remove(segment.keys.get(i));
+        if (previous != null) {
+          liveBytes -= previous.recordBytes();
+        }
+        if (segment.types.get(i) == LIVE_RECORD) {
+          liveBytes += location.recordBytes();
+        }
+      }
+    }
+    if (!segmentIds.isEmpty()) {
+      nextSegmentId = segmentIds.get(segmentIds.size() - 1) + 1;
+    }
+    logger.info(
+        "Recovered "
+            + keyDirectory.size()
+            + " keys from "
+            + segmentIds.size()
+            + " segments ("
+            + hinted
+            + " with hints) in "
+            + directory.getAbsolutePath()
+            + " in "
+            + (System.currentTimeMillis() - start)
+            + " ms");
+  }
+
+  private RecoveredSegment recoverSegment(final int segmentId) {
+    try {
+      FileChannel channel =
+          FileChannel.open(
+              segmentFile(segmentId).toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+      RecoveredSegment segment = new RecoveredSegment(segmentId, channel);
+      if (!readHints(segment)) {
+        scanSegment(segment);
+      }
+      if (segment.validBytes < channel.size()) {
+        logger.warn(
+            "Truncating "
+                + (channel.size() - segment.validBytes)
+                + " bytes of torn or corrupt records from "
+                + segmentFile(segmentId).getAbsolutePath());
+        channel.truncate(segment.validBytes);
+      }
+      if (!segment.fromHints) {
+        // the segment will not be appended to again, spare the next recovery from reading it
+        HintWriter hints = new HintWriter(segmentId);
+        for (int i = 0; i < segment.keys.size(); i++) {
+          hints.add(
+              segment.types.get(i),
+              segment.keys.get(i).getBytes(StandardCharsets.UTF_8),
+              segment.locations.get(i));
+        }
+        channel.force(true);
+        hints.seal();
+      }
+      return segment;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /** @return whether the segment's hint file exists and is intact, in which case it was loaded. */
+  private boolean readHints(final RecoveredSegment segment) throws IOException {
+    File hintFile = hintFile(segment.segmentId);
+    if (!hintFile.exists()) {
+      return false;
+    }
+    byte[] hints = Files.readAllBytes(hintFile.toPath());
+    ByteBuffer buffer = ByteBuffer.wrap(hints);
+    if (hints.length < CHECKSUM_BYTES
+        || checksum(hints, hints.length - CHECKSUM_BYTES)
+            != buffer.getInt(hints.length - CHECKSUM_BYTES)) {
+      logger.warn("Ignoring corrupt hint file " + hintFile.getAbsolutePath());
+      return false;
+    }
+    buffer.limit(hints.length - CHECKSUM_BYTES);
+    while (buffer.hasRemaining()) {
+      byte type = buffer.get();
+      byte[] key = new byte[buffer.getInt()];
+      buffer.get(key);
+      RecordLocation location =
+          new RecordLocation(segment.segmentId, buffer.getLong(), key.length, buffer.getInt());
+      segment.add(type, new String(key, StandardCharsets.UTF_8), location);
+      segment.validBytes = location.offset + location.recordBytes();
+    }
+    if (segment.validBytes > segment.channel.size()) {
+      logger.warn("Ignoring hint file past the end of its segment " + hintFile.getAbsolutePath());
+      segment.clear();
+      return false;
+    }
+    segment.fromHints = true;
+    return true;
+  }
+
+  /** Read every record of the segment, stopping at the first one that is torn or corrupt. */
+  private void scanSegment(final RecoveredSegment segment) throws IOException {
+    File segmentFile = segmentFile(segment.segmentId);
+    try (DataInputStream input =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile), 64 * 1024))) {
+      long offset = 0;
+      byte[] header = new byte[HEADER_BYTES];
+      while (true) {
+        try {
+          input.readFully(header);
+        } catch (EOFException e) {
+          break;
+        }
+        ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+        byte type = headerBuffer.get();
+        int keyLength = headerBuffer.getInt();
+        int payloadLength = headerBuffer.getInt();
+        if ((type != LIVE_RECORD && type != TOMBSTONE_RECORD)
+            || keyLength < 0
+            || payloadLength < 0
+            || offset + HEADER_BYTES + keyLength + payloadLength + CHECKSUM_BYTES
+                > segment.channel.size()) {
+          break;
+        }
+        byte[] body = new byte[keyLength + payloadLength];
+        input.readFully(body);
+        int expectedChecksum = input.readInt();
+        Hasher hasher = Hashing.crc32c().newHasher();
+        hasher.putBytes(header).putBytes(body);
+        if (hasher.hash().asInt() != expectedChecksum) {
+          logger.warn(
+              "Checksum mismatch at offset " + offset + " of " + segmentFile.getAbsolutePath());
+          break;
+        }
+        RecordLocation location =
+            new RecordLocation(segment.segmentId, offset, keyLength, payloadLength);
+        segment.add(type, new String(body, 0, keyLength, StandardCharsets.UTF_8), location);
+        offset += location.recordBytes();
+      }
+      segment.validBytes = offset;
+    }
+  }
+
+  private void openActiveSegment() throws IOException {
+    activeSegmentId = nextSegmentId++;
+    activeSegment = openSegment(activeSegmentId);
+    activeSegmentBytes = 0;
+    activeHints = new HintWriter(activeSegmentId);
+  }
+
+  private FileChannel openSegment(final int segmentId) throws IOException {
+    FileChannel segment =
+        FileChannel.open(
+            segmentFile(segmentId).toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+    segments.put(segmentId, segment);
+    return segment;
+  }
+
+  private void deleteSegmentFiles(final int segmentId) {
+    // the hint goes first: a hint without its segment would be trusted on recovery
+    for (File file : new File[] {hintFile(segmentId), segmentFile(segmentId)}) {
+      if (file.exists() && !file.delete()) {
+        logger.error("Unable to delete compacted segment file " + file.getAbsolutePath());
+      }
+    }
+  }
+
+  private File segmentFile(final int segmentId) {
+    return new File(
+        directory, String.format("%s%010d%s", SEGMENT_PREFIX, segmentId, SEGMENT_SUFFIX));
+  }
+
+  private File hintFile(final int segmentId) {
+    return new File(directory, String.format("%s%010d%s", SEGMENT_PREFIX, segmentId, HINT_SUFFIX));
+  }
+
+  private static byte[] frame(final byte type, final byte[] keyBytes, final byte[] payload) {
+    ByteBuffer record =
+        ByteBuffer.allocate(HEADER_BYTES + keyBytes.length + payload.length + CHECKSUM_BYTES);
+    record.put(type).putInt(keyBytes.length).putInt(payload.length).put(keyBytes).put(payload);
+    record.putInt(checksum(record.array(), record.position()));
+    return record.array();
+  }
+
+  private static int checksum(byte[] bytes, int length) {
+    return Hashing.crc32c().hashBytes(bytes, 0, length).asInt();
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position + buffer.position());
+      if (read < 0) {
+        throw new IOException("Unexpected end of segment at " + position);
+      }
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer, position + buffer.position());
+    }
+  }
+
+  /** Receives the records read back by readRecords. */
+  public interface RecordVisitor {
+    /** @param payload the payload of a live record, null for a tombstone. */
+    void visit(String key, byte[] payload) throws IOException;
+  }
+
+  /** Stretch of a segment file holding whole records back to back. */
+  static class RecordRun {
+    private final int segmentId;
+    private final FileChannel segment;
+    private final long offset;
+    private long length = 0;
+    private int records = 0;
+
+    private RecordRun(int segmentId, FileChannel segment, long offset) {
+      this.segmentId = segmentId;
+      this.segment = segment;
+      this.offset = offset;
+    }
+
+    long length() {
+      return length;
+    }
+
+    int records() {
+      return records;
+    }
+  }
+
+  static class RecordLocation {
+    final int segmentId;
+    final long offset;
+    final int keyLength;
+    final int length;
+
+    RecordLocation(int segmentId, long offset, int keyLength, int length) {
+      this.segmentId = segmentId;
+      this.offset = offset;
+      this.keyLength = keyLength;
+      this.length = length;
+    }
+
+    private long payloadOffset() {
+      return offset + HEADER_BYTES + keyLength;
+    }
+
+    private int recordBytes() {
+      return HEADER_BYTES + keyLength + length + CHECKSUM_BYTES;
+    }
+  }
+
+  /**
+   * Accumulates the hint entries of a segment as it is written: [type][key length][key][record
+   * offset (8 bytes)][payload length], followed by a CRC32C of the whole file once sealed.
+   */
+  private class HintWriter {
+    private final int segmentId;
+    private final ByteArrayOutputStream hints = new ByteArrayOutputStream();
+    private final DataOutputStream output = new DataOutputStream(hints);
+
+    private HintWriter(int segmentId) {
+      this.segmentId = segmentId;
+    }
+
+    private void add(byte type, byte[] key, RecordLocation location) throws IOException {
+      output.writeByte(type);
+      output.writeInt(key.length);
+      output.write(key);
+      output.writeLong(location.offset);
+      output.writeInt(location.length);
+    }
+
+    /** Write the hint file next to its segment, which must already be on disk. */
+    private void seal() throws IOException {
+      output.writeInt(checksum(hints.toByteArray(), hints.size()));
+      File temporary = new File(hintFile(segmentId).getPath() + TEMPORARY_SUFFIX);
+      try (FileOutputStream file = new FileOutputStream(temporary)) {
+        hints.writeTo(file);
+        file.getChannel().force(true);
+      }
+      Files.move(temporary.toPath(), hintFile(segmentId).toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+  }
+
+  /** Records found in a segment during recovery, in the order they were written. */
+  private static class RecoveredSegment {
+    private final int segmentId;
+    private final FileChannel channel;
+    private final List<Byte> types = new ArrayList<>();
+    private final List<String> keys = new ArrayList<>();
+    private final List<RecordLocation> locations = new ArrayList<>();
+    private long validBytes = 0;
+    private boolean fromHints = false;
+
+    private RecoveredSegment(int segmentId, FileChannel channel) {
+      this.segmentId = segmentId;
+      this.channel = channel;
+    }
+
+    private void add(byte type, String key, RecordLocation location) {
+      types.add(type);
+      keys.add(key);
+      locations.add(location);
+    }
+
+    private void clear() {
+      types.clear();
+      keys.clear();
+      locations.clear();
+      validBytes = 0;
+    }
+  }
+}
@@ -0,0 +1,179 @@
+package app_kvServer.data.storage;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import shared.communication.messages.DataTransferMessage;
+import shared.communication.messages.ECSMessage;
+import shared.communication.messages.KVMessage;
+
+/**
+ * Persistent storage of a server: the node's own key range (SELF) and the ranges it replicates for
+ * its two predecessors (REPLICA_1, REPLICA_2). Implementations are chosen at server start through
+ * StorageEngineFactory and must behave identically from the point of view of the caller, which the
+ * shared StorageEngineConformanceTest checks.
+ */
+public interface StorageEngine {
+  /** @return a GET_SUCCESS response holding the stored value, GET_ERROR if there is none. */
+  KVMessage get(KVMessage request, StorageType storageType);
+
+  /**
+   * Apply a verified PUT, SUBSCRIBE or UNSUBSCRIBE request.
+   *
+   * @return the response to the request, and the subscribers to notify if the value changed.
+   */
+  WriteResponse write(KVMessage request, StorageType storageType);
+
+  /** Store an already verified unit, e.g. one promoted from a replica to SELF. */
+  KVMessage.StatusType putStorageUnit(StorageUnit storageUnit, StorageType storageType);
+
+  /**
+   * Collect every unit whose key hashes into hashRange, removing them from storage if
+   * deleteKeysDuringPartition.
+   *
+   * @return a DATA_TRANSFER_REQUEST carrying the units, or DATA_TRANSFER_FAILURE.
+   */
+  DataTransferMessage partitionDatabaseAndGetKeysInRange(
+      ECSMessage ecsMessage,
+      String[] hashRange,
+      StorageType storageType,
+      boolean deleteKeysDuringPartition);
+
+  /**
+   * Move every unit whose key hashes into hashRange from source to destination, e.g. when a replica
+   * changes role.
+   *
+   * @return DATA_TRANSFER_SUCCESS or DATA_TRANSFER_FAILURE.
+   */
+  DataTransferMessage moveUnitsInRange(
+      ECSMessage ecsMessage, String[] hashRange, StorageType source, StorageType destination);
+
+  /**
+   * Remove every unit whose key hashes into hashRange.
+   *
+   * @return DATA_TRANSFER_SUCCESS or DATA_TRANSFER_FAILURE.
+   */
+  DataTransferMessage deleteUnitsInRange(
+      ECSMessage ecsMessage, String[] hashRange, StorageType storageType);
+
+  /**
+   * List the keys hashing into hashRange without loading their units, so a range can be streamed
+   * one unit at a time with readStorageUnit.
+   *
+   * @return the keys in ring order, see ECSUtils.ringPosition.
+   */
+  List<String> keysInRange(String[] hashRange, StorageType storageType) throws DiskStorageException;
+
+  /** @return the unit stored under key, or null if the key is not present. */
+  StorageUnit readStorageUnit(String key, StorageType storageType) throws DiskStorageException;
+
+  /**
+   * Write the units stored under keys to a RawRecordSink as unencrypted StorageUnitRecords framed
+   * as in a SegmentLog, ready to be ingested by another node without building StorageUnits. Keys
+   * that are not present are skipped.
+   *
+   * @return the number of records written.
+   * @throws IOException if the sink failed.
+   */
+  long exportRawRecords(List<String> keys, StorageType storageType, RawRecordSink sink)
+      throws IOException, DiskStorageException;
+
+  /**
+   * @return the number of bytes exportRawRecords writes for key, or at most that many, 0 if key is
+   *     not present. Engines keeping an index answer from it without reading the record.
+   */
+  long rawRecordBytes(String key, StorageType storageType) throws DiskStorageException;
+
+  /**
+   * @return the subscribers of every one of keys that has any, to be sent along with their records
+   *     from exportRawRecords, which don't carry them.
+   */
+  HashMap<String, ArrayList<UUID>> getSubscriptions(
+      Collection<String> keys, StorageType storageType);
+
+  /**
+   * Bulk ingest the units carried by a DATA_TRANSFER_REQUEST or STREAM_CHUNK, including the raw
+   * records that follow it on the wire, see exportRawRecords.
+   */
+  DataTransferMessage updateDatabaseWithKVDataTransfer(
+      DataTransferMessage dataTransferMessage, StorageType storageType);
+
+  /**
+   * @return the number of lookups in storageType answered without reading from disk because the key
+   *     was known to be absent, see KeyFilter.
+   */
+  long getAvoidedDiskReads(StorageType storageType);
+
+  /** @return how well the records written by this node compressed, see StorageUnitRecord. */
+  CompressionStats getCompressionStats();
+
+  /** Release the files and threads held by the engine. The engine can't be used afterwards. */
+  void close() throws DiskStorageException;
+
+  enum StorageType {
+    SELF,
+    REPLICA_1,
+    REPLICA_2
+  }
+
+  /** Destination of exportRawRecords. */
+  interface RawRecordSink {
+    /**
+     * Called exactly once, before anything is written.
+     *
+     * @return the channel to write totalBytes of records to.
+     */
+    WritableByteChannel begin(long totalBytes) throws IOException;
+  }
+
+  class WriteResponse {
+    /** Durability of writes that have nothing to sync. */
+    public static final CompletableFuture<Void> DURABLE = CompletableFuture.completedFuture(null);
+
+    private final KVMessage kvMessageResponse;
+    private final ArrayList<UUID> subscribers;
+    private final CompletableFuture<Void> durable;
+
+    public WriteResponse(KVMessage kvMessageResponse, ArrayList<UUID> subscribers) {
+      this(kvMessageResponse, subscribers, DURABLE);
+    }
+
+    /**
+     * @param durable completed once the write is as durable as the engine's Durability requires,
+     *     exceptionally if it could not be synced. The response must not be sent before.
+     */
+    public WriteResponse(
+        KVMessage kvMessageResponse, ArrayList<UUID> subscribers, CompletableFuture<Void> durable) {
+      this.kvMessageResponse = kvMessageResponse;
+      this.subscribers = subscribers;
+      this.durable = durable;
+    }
+
+    public CompletableFuture<Void> getDurable() {
+      return durable;
+    }
+
+    public KVMessage getKvMessageResponse() {
+      return kvMessageResponse;
+    }
+
+    public ArrayList<UUID> getSubscribers() {
+      return subscribers;
+    }
+
+    @Override
+    public String toString() {
+      return "WriteResponse{"
+          + "kvMessage="
+          + kvMessageResponse
+          + ",  subscribers="
+          + subscribers
+          + "}";
+    }
+  }
+}
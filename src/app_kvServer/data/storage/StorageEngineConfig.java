@@ -0,0 +1,161 @@
+package app_kvServer.data.storage;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A StorageStrategy together with its tuning parameters, written as
+ * NAME[:parameter=value[,parameter=value]*], e.g. "LSM:memtableBytes=8388608". Parameters that are
+ * not given keep the engine's defaults. The flag RECOVER may be listed among the parameters to
+ * reopen the data left by a previous run of the node instead of starting empty, e.g.
+ * "LSM:memtableBytes=8388608,recover".
+ *
+ * <p>Every engine also takes the DURABILITY of its writes, e.g.
+ * "LOG_STRUCTURED:durability=batched,syncIntervalMillis=5", tuned by the SYNC_PARAMETERS.
+ */
+public class StorageEngineConfig {
+  public static final String RECOVER = "recover";
+  public static final String DURABILITY = "durability";
+  /** Group commit parameters shared by all engines, see GroupCommit. */
+  public static final List<String> SYNC_PARAMETERS =
+      Collections.unmodifiableList(Arrays.asList("syncIntervalMillis", "syncBatchWrites"));
+
+  public static final long DEFAULT_SYNC_INTERVAL_MILLIS = 10;
+  public static final long DEFAULT_SYNC_BATCH_WRITES = 128;
+  private final StorageStrategy strategy;
+  private final Map<String, Long> parameters;
+  private final boolean recover;
+  private final Durability durability;
+
+  public StorageEngineConfig(final StorageStrategy strategy) {
+    this(strategy, Collections.emptyMap());
+  }
+
+  public StorageEngineConfig(final StorageStrategy strategy, final Map<String, Long> parameters) {
+    this(strategy, parameters, false);
+  }
+
+  public StorageEngineConfig(
+      final StorageStrategy strategy, final Map<String, Long> parameters, boolean recover) {
+    this(strategy, parameters, recover, Durability.NONE);
+  }
+
+  public StorageEngineConfig(
+      final StorageStrategy strategy,
+      final Map<String, Long> parameters,
+      boolean recover,
+      final Durability durability) {
+    for (Map.Entry<String, Long> parameter : parameters.entrySet()) {
+      if (!strategy.getParameters().contains(parameter.getKey())
+          && !SYNC_PARAMETERS.contains(parameter.getKey())) {
+        throw new IllegalArgumentException(
+            "Unknown parameter \""
+                + parameter.getKey()
+                + "\" for "
+                + strategy
+                + ". Supported parameters: "
+                + strategy.getParameters()
+                + " and "
+                + SYNC_PARAMETERS);
+      }
+      if (parameter.getValue() <= 0) {
+        throw new IllegalArgumentException(
+            "Parameter \"" + parameter.getKey() + "\" must be positive.");
+      }
+    }
+    this.strategy = strategy;
+    this.parameters = Collections.unmodifiableMap(new LinkedHashMap<>(parameters));
+    this.recover = recover;
+    this.durability = durability;
+  }
+
+  /**
+   * @param config a storage engine name optionally followed by its tuning parameters.
+   * @throws IllegalArgumentException if the name, a parameter or its value is invalid.
+   */
+  public static StorageEngineConfig parse(final String config) {
+    String[] nameAndParameters = config.split(":", 2);
+    StorageStrategy strategy = StorageStrategy.valueOf(nameAndParameters[0].trim());
+    Map<String, Long> parameters = new LinkedHashMap<>();
+    boolean recover = false;
+    Durability durability = Durability.NONE;
+    if (nameAndParameters.length == 2) {
+      for (String parameter : nameAndParameters[1].split(",")) {
+        if (parameter.trim().equals(RECOVER)) {
+          recover = true;
+          continue;
+        }
+        String[] nameAndValue = parameter.split("=", 2);
+        if (nameAndValue.length != 2) {
+          throw new IllegalArgumentException(
+              "Expected parameter=value for " + strategy + ". Given: \"" + parameter + "\".");
+        }
+        if (nameAndValue[0].trim().equals(DURABILITY)) {
+          try {
+            durability = Durability.parse(nameAndValue[1]);
+          } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(
+                "Parameter \""
+                    + DURABILITY
+                    + "\" must be one of "
+                    + Arrays.toString(Durability.values())
+                    + ".");
+          }
+          continue;
+        }
+        try {
+          parameters.put(nameAndValue[0].trim(), Long.parseLong(nameAndValue[1].trim()));
+        } catch (NumberFormatException e) {
+          throw new IllegalArgumentException(
+              "Parameter \"" + nameAndValue[0].trim() + "\" must be an integer.");
+        }
+      }
+    }
+    return new StorageEngineConfig(strategy, parameters, recover, durability);
+  }
+
+  public StorageStrategy getStrategy() {
+    return strategy;
+  }
+
+  /** @return whether the engine reopens existing data instead of starting empty. */
+  public boolean recoversExistingData() {
+    return recover;
+  }
+
+  /** @return this configuration with recovery of existing data turned on. */
+  public StorageEngineConfig withRecovery() {
+    return new StorageEngineConfig(strategy, parameters, true, durability);
+  }
+
+  public Durability getDurability() {
+    return durability;
+  }
+
+  public long getParameter(final String name, final long defaultValue) {
+    assert (strategy.getParameters().contains(name) || SYNC_PARAMETERS.contains(name));
+    Long value = parameters.get(name);
+    return value == null ? defaultValue : value;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder config = new StringBuilder(strategy.toString());
+    String separator = ":";
+    if (durability != Durability.NONE) {
+      config.append(separator).append(DURABILITY).append('=').append(durability);
+      separator = ",";
+    }
+    for (Map.Entry<String, Long> parameter : parameters.entrySet()) {
+      config.append(separator).append(parameter.getKey()).append('=').append(parameter.getValue());
+      separator = ",";
+    }
+    if (recover) {
+      config.append(separator).append(RECOVER);
+    }
+    return config.toString();
+  }
+}
@@ -0,0 +1,51 @@
+package app_kvServer.data.storage;
+
+public class StorageEngineFactory {
+  /**
+   * Return the specified StorageEngine implementation.
+   *
+   * @param config Specifies an implementation of StorageEngine and its tuning parameters.
+   * @param uniqueID Identifies the node, used to name the storage files.
+   * @param encrypted Whether values are encrypted at rest.
+   * @return A StorageEngine implementation corresponding to config.
+   */
+  public StorageEngine getStorageEngine(
+      final StorageEngineConfig config, final String uniqueID, boolean encrypted)
+      throws DiskStorageException {
+    DiskStorage storage = openStorage(config, uniqueID, encrypted);
+    storage.startGroupCommit(
+        config.getDurability(),
+        config.getParameter("syncIntervalMillis", StorageEngineConfig.DEFAULT_SYNC_INTERVAL_MILLIS),
+        config.getParameter("syncBatchWrites", StorageEngineConfig.DEFAULT_SYNC_BATCH_WRITES));
+    return storage;
+  }
+
+  private DiskStorage openStorage(
+      final StorageEngineConfig config, final String uniqueID, boolean encrypted)
+      throws DiskStorageException {
+    switch (config.getStrategy()) {
+      case FLAT_FILE:
+        return new FlatFileStorage(
+            uniqueID,
+            encrypted,
+            config.getParameter("maxMappedBytes", FlatFileStorage.DEFAULT_MAX_MAPPED_BYTES),
+            config.recoversExistingData());
+      case LSM:
+        return new LSMStorage(
+            uniqueID,
+            encrypted,
+            config.getParameter("memtableBytes", LSMStorage.DEFAULT_MEMTABLE_BYTES),
+            config.recoversExistingData());
+      default: // LOG_STRUCTURED
+        return new LogStructuredStorage(
+            uniqueID,
+            encrypted,
+            config.getParameter("maxSegmentBytes", LogStructuredStorage.DEFAULT_MAX_SEGMENT_BYTES),
+            (int)
+                Math.min(
+                    config.getParameter("buckets", LogStructuredStorage.DEFAULT_BUCKETS),
+                    Integer.MAX_VALUE),
+            config.recoversExistingData());
+    }
+  }
+}
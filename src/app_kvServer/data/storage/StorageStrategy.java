@@ -0,0 +1,23 @@
+package app_kvServer.data.storage;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/** Correspond to distinct implementations of app_kvServer.data.storage.StorageEngine */
+public enum StorageStrategy {
+  FLAT_FILE("maxMappedBytes"),
+  LOG_STRUCTURED("maxSegmentBytes", "buckets"),
+  LSM("memtableBytes");
+
+  private final List<String> parameters;
+
+  StorageStrategy(String... parameters) {
+    this.parameters = Collections.unmodifiableList(Arrays.asList(parameters));
+  }
+
+  /** @return the names of the tuning parameters the implementation accepts. */
+  public List<String> getParameters() {
+    return parameters;
+  }
+}
@@ -1,7 +1,10 @@
 package app_kvServer.data.storage;
 
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.UUID;
 import javax.crypto.spec.SecretKeySpec;
@@ -11,6 +14,8 @@ import shared.communication.security.encryption.EncryptionException;
 
 public class StorageUnit {
   private static final Logger logger = Logger.getLogger(StorageUnit.class);
+  // Gson instances are thread safe and expensive to build
+  private static final Gson gson = new Gson();
   public final String key;
   public String value;
   public final ArrayList<UUID> subscribers = new ArrayList<>();
@@ -25,9 +30,12 @@ public class StorageUnit {
     this.MAC = MAC;
   }
 
+  /**
+   * Parse a StorageUnit from its JSON form, as used in data transfers and the JSON-lines files
+   * written before StorageUnitRecord. Storage engines use StorageUnitRecord instead.
+   */
   public static StorageUnit deserialize(String line, SecretKeySpec encryption)
       throws StorageUnitException {
-    Gson gson = new Gson();
     String storageJson = line;
     try {
       if (encryption != null) {
@@ -42,9 +50,27 @@ public class StorageUnit {
     }
   }
 
+  /**
+   * @return a short digest of everything stored for this key, used to tell whether two nodes hold
+   *     the same version of it without shipping the value.
+   */
+  public String fingerprint() {
+    Hasher hasher = Hashing.murmur3_128().newHasher();
+    for (String field : new String[] {key, value, uniqueID, MAC}) {
+      hasher.putInt(field == null ? -1 : field.length());
+      if (field != null) {
+        hasher.putString(field, StandardCharsets.UTF_8);
+      }
+    }
+    for (UUID subscriber : subscribers) {
+      hasher.putLong(subscriber.getMostSignificantBits());
+      hasher.putLong(subscriber.getLeastSignificantBits());
+    }
+    return Long.toHexString(hasher.hash().asLong());
+  }
+
   /** @return a string ready for transporting over the network. */
   public String serialize(SecretKeySpec encryption) throws StorageUnitException {
-    Gson gson = new Gson();
     String storageJson = gson.toJson(this);
     if (encryption != null) {
       try {
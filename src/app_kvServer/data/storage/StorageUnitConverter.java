@@ -0,0 +1,78 @@
+package app_kvServer.data.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Offline migration of storage files written with one JSON StorageUnit per line to consecutive
+ * StorageUnitRecords, the layout FlatFileStorage reads. Each KeyValueData_x.txt given is converted
+ * to KeyValueData_x.dat next to it; the input is left in place.
+ *
+ * <p>Usage: java -cp m2-server.jar app_kvServer.data.storage.StorageUnitConverter <file>...
+ *
+ * <p>Encrypted files can't be converted: their key was generated by the server that wrote them and
+ * never persisted.
+ */
+public class StorageUnitConverter {
+  public static void main(String[] args) {
+    if (args.length == 0) {
+      System.out.println("Usage: StorageUnitConverter <json-lines-file>...");
+      return;
+    }
+    for (String path : args) {
+      File input = new File(path);
+      File output = outputFileFor(input);
+      try {
+        int converted = convert(input, output);
+        System.out.println(
+            "Converted " + converted + " units from " + input + " to " + output + ".");
+      } catch (IOException | StorageUnitException e) {
+        System.out.println("Unable to convert " + input + ": " + e.getLocalizedMessage());
+      }
+    }
+  }
+
+  /** @return the file a converted copy of input is written to. */
+  public static File outputFileFor(File input) {
+    String name = input.getName();
+    if (name.endsWith(".txt")) {
+      name = name.substring(0, name.length() - ".txt".length());
+    }
+    return new File(input.getAbsoluteFile().getParentFile(), name + ".dat");
+  }
+
+  /**
+   * Convert the JSON-lines file input to StorageUnitRecords in output, replacing output if it
+   * exists. Blank lines are skipped.
+   *
+   * @return the number of units converted.
+   */
+  public static int convert(File input, File output) throws IOException, StorageUnitException {
+    int converted = 0;
+    File partialOutput = new File(output.getPath() + ".partial");
+    try (BufferedReader reader = Files.newBufferedReader(input.toPath(), StandardCharsets.UTF_8);
+        OutputStream writer = new BufferedOutputStream(new FileOutputStream(partialOutput))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.trim().isEmpty()) {
+          continue;
+        }
+        writer.write(StorageUnitRecord.encode(StorageUnit.deserialize(line.trim(), null), null));
+        converted++;
+      }
+    } catch (IOException | StorageUnitException e) {
+      partialOutput.delete();
+      throw e;
+    }
+    // only replace output once the whole file converted
+    Files.move(partialOutput.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    return converted;
+  }
+}
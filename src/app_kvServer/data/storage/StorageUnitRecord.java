@@ -0,0 +1,528 @@
+package app_kvServer.data.storage;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import shared.communication.security.encryption.Encryption;
+import shared.communication.security.encryption.EncryptionException;
+
+/**
+ * Binary on-disk layout of a StorageUnit:
+ *
+ * <pre>
+ * [version (1 byte)][flags (1 byte)][body length (4 bytes)]
+ * [nonce (12 bytes, encrypted records only)]
+ * [key length (4 bytes)][key]
+ * [rest length (4 bytes)][rest]
+ * [CRC32C of everything before it (4 bytes)]
+ * </pre>
+ *
+ * with rest holding the value, uniqueID and MAC as length-prefixed UTF-8 strings (length -1 for
+ * null) followed by the subscriber count and each subscriber as two longs. When the COMPRESSED flag
+ * is set, rest is stored as its length (4 bytes) followed by its Deflate stream. Rests shorter than
+ * COMPRESSION_THRESHOLD_BYTES, or that don't shrink by at least an eighth, are stored as they are.
+ * When the ENCRYPTED flag is set, key and rest are each AES-GCM encrypted on their own, after
+ * compression, so the key can be read back without touching the value. The key section uses the
+ * record's nonce with its lowest bit cleared and the rest section the same nonce with it set, and
+ * each carries its 16 byte authentication tag at its end. Records written before GCM carry the
+ * ENCRYPTED flag without the GCM one, no nonce, and AES/ECB sections; they are still read, and
+ * reencrypt upgrades them.
+ *
+ * <p>Decoding works directly on the buffer it is given: strings are built from the buffer's
+ * contents without an intermediate copy when the record is not encrypted.
+ */
+public final class StorageUnitRecord {
+  public static final byte FORMAT_VERSION = 1;
+  public static final int HEADER_BYTES = 1 + 1 + 4;
+  public static final int CHECKSUM_BYTES = 4;
+  public static final int COMPRESSION_THRESHOLD_BYTES = 256;
+  private static final byte ENCRYPTED = 1;
+  private static final byte COMPRESSED = 2;
+  private static final byte GCM = 4;
+  private static final int NONCE_BYTES = 12;
+  private static final int TAG_BITS = 128;
+  private static final int NULL_LENGTH = -1;
+  // zlib keeps native buffers per instance, each thread reuses its own
+  private static final ThreadLocal<Deflater> deflaters =
+      ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+  private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+  // Cipher.getInstance walks the provider list, each thread keeps its own instance instead
+  private static final ThreadLocal<Cipher> ciphers =
+      ThreadLocal.withInitial(
+          () -> {
+            try {
+              return Cipher.getInstance("AES/GCM/NoPadding");
+            } catch (GeneralSecurityException e) {
+              throw new IllegalStateException("AES/GCM is not available", e);
+            }
+          });
+  // a random starting point per thread, counting up by 2 so no nonce is used twice
+  private static final ThreadLocal<ByteBuffer> nonces =
+      ThreadLocal.withInitial(
+          () -> {
+            byte[] nonce = new byte[NONCE_BYTES];
+            new SecureRandom().nextBytes(nonce);
+            return ByteBuffer.wrap(nonce);
+          });
+
+  private StorageUnitRecord() {}
+
+  /** @return the record for storageUnit, encrypted with encryption unless it is null. */
+  public static byte[] encode(StorageUnit storageUnit, SecretKeySpec encryption)
+      throws StorageUnitException {
+    return encode(storageUnit, encryption, null);
+  }
+
+  /**
+   * @return the record for storageUnit, encrypted with encryption unless it is null.
+   * @param stats counts how much the record compressed, unless it is null.
+   */
+  public static byte[] encode(
+      StorageUnit storageUnit, SecretKeySpec encryption, CompressionStats stats)
+      throws StorageUnitException {
+    byte[] key = storageUnit.key.getBytes(StandardCharsets.UTF_8);
+    byte[] value = bytesOrNull(storageUnit.value);
+    byte[] uniqueID = bytesOrNull(storageUnit.uniqueID);
+    byte[] mac = bytesOrNull(storageUnit.MAC);
+    int restLength =
+        fieldLength(value)
+            + fieldLength(uniqueID)
+            + fieldLength(mac)
+            + 4
+            + 16 * storageUnit.subscribers.size();
+    ByteBuffer rest = ByteBuffer.allocate(restLength);
+    putField(rest, value);
+    putField(rest, uniqueID);
+    putField(rest, mac);
+    rest.putInt(storageUnit.subscribers.size());
+    for (UUID subscriber : storageUnit.subscribers) {
+      rest.putLong(subscriber.getMostSignificantBits());
+      rest.putLong(subscriber.getLeastSignificantBits());
+    }
+    byte[] restBytes = compress(rest.array());
+    byte flags = restBytes == rest.array() ? 0 : COMPRESSED;
+    if (stats != null) {
+      stats.record(restLength, restBytes.length);
+    }
+    return frame(flags, key, restBytes, encryption);
+  }
+
+  /**
+   * Swap the encryption of the record starting at the buffer's position, leaving its contents and
+   * compression as they are. The buffer's position is left unchanged.
+   *
+   * @param from the key the record is encrypted with, null if it isn't.
+   * @param to the key to encrypt the new record with, null to leave it in the clear.
+   * @return the new record.
+   */
+  public static byte[] reencrypt(ByteBuffer record, SecretKeySpec from, SecretKeySpec to)
+      throws StorageUnitException {
+    int start = record.position();
+    length(record);
+    byte flags = record.get(start + 1);
+    record.position(start + HEADER_BYTES);
+    try {
+      byte[] nonce = readNonce(record, flags);
+      byte[] key = toArray(section(record, flags, nonce, 0, from));
+      byte[] rest = toArray(section(record, flags, nonce, 1, from));
+      return frame((byte) (flags & ~(ENCRYPTED | GCM)), key, rest, to);
+    } finally {
+      record.position(start);
+    }
+  }
+
+  /** @return key and rest laid out as a record, encrypted with encryption unless it is null. */
+  private static byte[] frame(byte flags, byte[] key, byte[] restBytes, SecretKeySpec encryption)
+      throws StorageUnitException {
+    if (encryption == null) {
+      int bodyLength = 4 + key.length + 4 + restBytes.length;
+      ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + bodyLength + CHECKSUM_BYTES);
+      record.put(FORMAT_VERSION).put(flags).putInt(bodyLength);
+      record.putInt(key.length).put(key);
+      record.putInt(restBytes.length).put(restBytes);
+      record.putInt(checksum(record.array(), 0, record.position()));
+      return record.array();
+    }
+
+    int tagBytes = TAG_BITS / 8;
+    int bodyLength = NONCE_BYTES + 4 + key.length + tagBytes + 4 + restBytes.length + tagBytes;
+    ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + bodyLength + CHECKSUM_BYTES);
+    record.put(FORMAT_VERSION).put((byte) (flags | ENCRYPTED | GCM)).putInt(bodyLength);
+    byte[] nonce = nextNonce();
+    record.put(nonce);
+    try {
+      // the cipher writes each section straight into the record
+      Cipher cipher = ciphers.get();
+      record.putInt(key.length + tagBytes);
+      cipher.init(Cipher.ENCRYPT_MODE, encryption, sectionNonce(nonce, 0));
+      record.position(
+          record.position()
+              + cipher.doFinal(key, 0, key.length, record.array(), record.position()));
+      record.putInt(restBytes.length + tagBytes);
+      cipher.init(Cipher.ENCRYPT_MODE, encryption, sectionNonce(nonce, 1));
+      record.position(
+          record.position()
+              + cipher.doFinal(restBytes, 0, restBytes.length, record.array(), record.position()));
+    } catch (GeneralSecurityException e) {
+      throw new StorageUnitException("serialization failed " + e.getLocalizedMessage());
+    }
+    record.putInt(checksum(record.array(), 0, record.position()));
+    return record.array();
+  }
+
+  /**
+   * Decode the record starting at the buffer's position and advance the position past it.
+   *
+   * @throws StorageUnitException if the record is truncated, corrupt or of an unknown version.
+   */
+  public static StorageUnit decode(ByteBuffer record, SecretKeySpec encryption)
+      throws StorageUnitException {
+    int start = record.position();
+    int length = verify(record);
+    byte flags = record.get(start + 1);
+    record.position(start + HEADER_BYTES);
+    byte[] nonce = readNonce(record, flags);
+    ByteBuffer keySection = section(record, flags, nonce, 0, encryption);
+    String key = readString(keySection, keySection.remaining());
+    ByteBuffer rest = rest(record, flags, nonce, encryption);
+    StorageUnit storageUnit =
+        new StorageUnit(key, readField(rest), readField(rest), readField(rest));
+    int subscriberCount = rest.getInt();
+    for (int i = 0; i < subscriberCount; i++) {
+      storageUnit.subscribers.add(new UUID(rest.getLong(), rest.getLong()));
+    }
+    record.position(start + length);
+    return storageUnit;
+  }
+
+  /**
+   * Check the record starting at the buffer's position without decoding it. The buffer's position
+   * is left unchanged.
+   *
+   * @return the total length of the record.
+   * @throws StorageUnitException if the record is truncated, corrupt or of an unknown version.
+   */
+  public static int verify(ByteBuffer record) throws StorageUnitException {
+    int start = record.position();
+    int length = length(record);
+    if (record.remaining() < length) {
+      throw new StorageUnitException("deserialization failed: truncated record");
+    }
+    int expectedChecksum = record.getInt(start + length - CHECKSUM_BYTES);
+    if (checksum(record, start, length - CHECKSUM_BYTES) != expectedChecksum) {
+      throw new StorageUnitException("deserialization failed: checksum mismatch");
+    }
+    return length;
+  }
+
+  /**
+   * Read the key of the record starting at the buffer's position without decoding the rest of it or
+   * verifying its checksum. The buffer's position is left unchanged.
+   */
+  public static String readKey(ByteBuffer record, SecretKeySpec encryption)
+      throws StorageUnitException {
+    int start = record.position();
+    length(record);
+    byte flags = record.get(start + 1);
+    record.position(start + HEADER_BYTES);
+    try {
+      ByteBuffer keySection = section(record, flags, readNonce(record, flags), 0, encryption);
+      return readString(keySection, keySection.remaining());
+    } finally {
+      record.position(start);
+    }
+  }
+
+  /**
+   * Read the MAC of the record starting at the buffer's position without building a StorageUnit or
+   * verifying its checksum. The buffer's position is left unchanged.
+   */
+  public static String readMAC(ByteBuffer record, SecretKeySpec encryption)
+      throws StorageUnitException {
+    return readRestField(record, encryption, 2); // after value and uniqueID
+  }
+
+  /** Read the uniqueID of the record starting at the buffer's position, like readMAC. */
+  public static String readUniqueID(ByteBuffer record, SecretKeySpec encryption)
+      throws StorageUnitException {
+    return readRestField(record, encryption, 1); // after value
+  }
+
+  /** @return the field of the rest section that follows the first skipped fields. */
+  private static String readRestField(ByteBuffer record, SecretKeySpec encryption, int skipped)
+      throws StorageUnitException {
+    int start = record.position();
+    length(record);
+    byte flags = record.get(start + 1);
+    record.position(start + HEADER_BYTES);
+    try {
+      byte[] nonce = readNonce(record, flags);
+      rawSection(record); // key
+      ByteBuffer rest = rest(record, flags, nonce, encryption);
+      for (int i = 0; i < skipped; i++) {
+        skipField(rest);
+      }
+      return readField(rest);
+    } catch (BufferUnderflowException | IllegalArgumentException e) {
+      throw new StorageUnitException("deserialization failed: malformed record");
+    } finally {
+      record.position(start);
+    }
+  }
+
+  /**
+   * @return the total length of the record starting at the buffer's position, which must hold at
+   *     least its header.
+   */
+  public static int length(ByteBuffer record) throws StorageUnitException {
+    int start = record.position();
+    if (record.remaining() < HEADER_BYTES) {
+      throw new StorageUnitException("deserialization failed: truncated record");
+    }
+    if (record.get(start) != FORMAT_VERSION) {
+      throw new StorageUnitException(
+          "deserialization failed: unsupported record version " + record.get(start));
+    }
+    int bodyLength = record.getInt(start + 2);
+    if (bodyLength < 0) {
+      throw new StorageUnitException("deserialization failed: malformed record");
+    }
+    return HEADER_BYTES + bodyLength + CHECKSUM_BYTES;
+  }
+
+  /** @return the next whole record in input, or null at the end of input. */
+  public static byte[] read(DataInputStream input) throws IOException, StorageUnitException {
+    byte[] header = new byte[HEADER_BYTES];
+    int read = input.read(header);
+    if (read < 0) {
+      return null;
+    }
+    if (read < HEADER_BYTES) {
+      try {
+        input.readFully(header, read, HEADER_BYTES - read);
+      } catch (EOFException e) {
+        throw new StorageUnitException("deserialization failed: truncated record");
+      }
+    }
+    byte[] record = new byte[length(ByteBuffer.wrap(header))];
+    System.arraycopy(header, 0, record, 0, HEADER_BYTES);
+    try {
+      input.readFully(record, HEADER_BYTES, record.length - HEADER_BYTES);
+    } catch (EOFException e) {
+      throw new StorageUnitException("deserialization failed: truncated record");
+    }
+    return record;
+  }
+
+  /** @return the nonce of a GCM record, which comes next in record, or null if it has none. */
+  private static byte[] readNonce(ByteBuffer record, byte flags) throws StorageUnitException {
+    if ((flags & GCM) == 0) {
+      return null;
+    }
+    if (record.remaining() < NONCE_BYTES) {
+      throw new StorageUnitException("deserialization failed: malformed record");
+    }
+    byte[] nonce = new byte[NONCE_BYTES];
+    record.get(nonce);
+    return nonce;
+  }
+
+  /** @return a fresh nonce with its lowest bit cleared, leaving that bit to tell sections apart. */
+  private static byte[] nextNonce() {
+    ByteBuffer next = nonces.get();
+    byte[] nonce = next.array().clone();
+    nonce[NONCE_BYTES - 1] &= ~1;
+    next.putLong(NONCE_BYTES - 8, next.getLong(NONCE_BYTES - 8) + 2);
+    return nonce;
+  }
+
+  private static GCMParameterSpec sectionNonce(byte[] nonce, int section) {
+    byte[] sectionNonce = nonce.clone();
+    sectionNonce[NONCE_BYTES - 1] = (byte) ((nonce[NONCE_BYTES - 1] & ~1) | section);
+    return new GCMParameterSpec(TAG_BITS, sectionNonce);
+  }
+
+  /** @return the next length-prefixed section as it is stored, positioned at its start. */
+  private static ByteBuffer rawSection(ByteBuffer record) throws StorageUnitException {
+    int length = record.getInt();
+    if (length < 0 || record.remaining() < length) {
+      throw new StorageUnitException("deserialization failed: malformed record");
+    }
+    ByteBuffer section = record.slice();
+    section.limit(length);
+    record.position(record.position() + length);
+    return section;
+  }
+
+  /**
+   * @param nonce the record's nonce, null if it is in the clear or encrypted before GCM.
+   * @param index which section of the record this is, 0 for the key and 1 for the rest.
+   * @return the next length-prefixed section, decrypted if needed, positioned at its start.
+   */
+  private static ByteBuffer section(
+      ByteBuffer record, byte flags, byte[] nonce, int index, SecretKeySpec encryption)
+      throws StorageUnitException {
+    ByteBuffer section = rawSection(record);
+    if ((flags & ENCRYPTED) == 0) {
+      return section;
+    }
+    if (encryption == null) {
+      throw new StorageUnitException("deserialization failed: record is encrypted");
+    }
+    try {
+      if (nonce == null) {
+        return ByteBuffer.wrap(
+            Encryption.decryptBytes(toArray(section), encryption, Encryption.EncryptionType.AES));
+      }
+      Cipher cipher = ciphers.get();
+      cipher.init(Cipher.DECRYPT_MODE, encryption, sectionNonce(nonce, index));
+      ByteBuffer plainText = ByteBuffer.allocate(cipher.getOutputSize(section.remaining()));
+      cipher.doFinal(section, plainText);
+      plainText.flip();
+      return plainText;
+    } catch (AEADBadTagException e) {
+      throw new StorageUnitException("deserialization failed: record failed authentication");
+    } catch (EncryptionException | GeneralSecurityException e) {
+      throw new StorageUnitException("deserialization failed " + e.getLocalizedMessage());
+    }
+  }
+
+  /** @return the rest section, which comes next in record, decrypted and inflated if needed. */
+  private static ByteBuffer rest(
+      ByteBuffer record, byte flags, byte[] nonce, SecretKeySpec encryption)
+      throws StorageUnitException {
+    ByteBuffer rest = section(record, flags, nonce, 1, encryption);
+    if ((flags & COMPRESSED) == 0) {
+      return rest;
+    }
+    if (rest.remaining() < 4 || rest.getInt(rest.position()) < 0) {
+      throw new StorageUnitException("deserialization failed: malformed record");
+    }
+    byte[] inflated = new byte[rest.getInt()];
+    byte[] input = toArray(rest);
+    Inflater inflater = inflaters.get();
+    inflater.reset();
+    inflater.setInput(input);
+    try {
+      int length = 0;
+      while (length < inflated.length && !inflater.finished() && !inflater.needsInput()) {
+        length += inflater.inflate(inflated, length, inflated.length - length);
+      }
+      if (length != inflated.length || !inflater.finished()) {
+        throw new StorageUnitException("deserialization failed: malformed compressed record");
+      }
+    } catch (DataFormatException e) {
+      throw new StorageUnitException("deserialization failed " + e.getLocalizedMessage());
+    }
+    return ByteBuffer.wrap(inflated);
+  }
+
+  /**
+   * @return rest compressed with its length in front, or rest itself if it is too short or doesn't
+   *     compress well enough to be worth inflating on every read.
+   */
+  private static byte[] compress(byte[] rest) {
+    if (rest.length < COMPRESSION_THRESHOLD_BYTES) {
+      return rest;
+    }
+    byte[] compressed = new byte[rest.length - rest.length / 8];
+    ByteBuffer.wrap(compressed).putInt(rest.length);
+    Deflater deflater = deflaters.get();
+    deflater.reset();
+    deflater.setInput(rest);
+    deflater.finish();
+    int length = 4;
+    while (!deflater.finished() && length < compressed.length) {
+      length += deflater.deflate(compressed, length, compressed.length - length);
+    }
+    return deflater.finished() ? Arrays.copyOf(compressed, length) : rest;
+  }
+
+  /** @return the remaining bytes of buffer, its backing array if that holds exactly those. */
+  private static byte[] toArray(ByteBuffer buffer) {
+    if (buffer.hasArray()
+        && buffer.arrayOffset() == 0
+        && buffer.position() == 0
+        && buffer.remaining() == buffer.array().length) {
+      return buffer.array();
+    }
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return bytes;
+  }
+
+  /** @return the next length-prefixed field of section. */
+  private static String readField(ByteBuffer section) {
+    int length = section.getInt();
+    return length == NULL_LENGTH ? null : readString(section, length);
+  }
+
+  /** @return the next length bytes of buffer as a string, decoded in place. */
+  private static String readString(ByteBuffer buffer, int length) {
+    String string;
+    if (buffer.hasArray()) {
+      string =
+          new String(
+              buffer.array(),
+              buffer.arrayOffset() + buffer.position(),
+              length,
+              StandardCharsets.UTF_8);
+    } else {
+      ByteBuffer bytes = buffer.slice();
+      bytes.limit(length);
+      string = StandardCharsets.UTF_8.decode(bytes).toString();
+    }
+    buffer.position(buffer.position() + length);
+    return string;
+  }
+
+  private static void skipField(ByteBuffer section) {
+    int length = section.getInt();
+    if (length != NULL_LENGTH) {
+      section.position(section.position() + length);
+    }
+  }
+
+  private static byte[] bytesOrNull(String string) {
+    return string == null ? null : string.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static int fieldLength(byte[] field) {
+    return 4 + (field == null ? 0 : field.length);
+  }
+
+  private static void putField(ByteBuffer buffer, byte[] field) {
+    if (field == null) {
+      buffer.putInt(NULL_LENGTH);
+    } else {
+      buffer.putInt(field.length).put(field);
+    }
+  }
+
+  private static int checksum(byte[] bytes, int offset, int length) {
+    return com.google.common.hash.Hashing.crc32c().hashBytes(bytes, offset, length).asInt();
+  }
+
+  private static int checksum(ByteBuffer buffer, int offset, int length) {
+    if (buffer.hasArray()) {
+      return checksum(buffer.array(), buffer.arrayOffset() + offset, length);
+    }
+    ByteBuffer bytes = buffer.duplicate();
+    bytes.limit(offset + length).position(offset);
+    return com.google.common.hash.Hashing.crc32c().newHasher().putBytes(bytes).hash().asInt();
+  }
+}
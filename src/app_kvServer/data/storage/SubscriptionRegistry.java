@@ -0,0 +1,353 @@
+package app_kvServer.data.storage;
+
+import app_kvServer.data.storage.StorageEngine.StorageType;
+import com.google.common.hash.Hashing;
+import ecs.ECSUtils;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.log4j.Logger;
+
+/**
+ * The clients subscribed to each key, per StorageType, kept apart from the value records so
+ * subscribing never rewrites a value and a PUT finds whom to notify with a single map lookup.
+ *
+ * <p>Every change is appended to a log of its own before it is applied:
+ *
+ * <pre>
+ * [op (1 byte)][storage type (1 byte)][key length (2 bytes)][key]
+ * [subscriber (16 bytes, ADD and REMOVE only)][CRC32C of everything before it (4 bytes)]
+ * </pre>
+ *
+ * with CLEAR dropping every subscriber of the key. Recovery replays the log up to its first torn or
+ * corrupt entry, and the log is rewritten as one ADD per live subscription whenever it holds more
+ * than twice as many entries as there are subscriptions.
+ *
+ * <p>Reads never lock: the subscribers of a key are an immutable set replaced as a whole. Changes
+ * are serialized on the registry's monitor.
+ */
+public final class SubscriptionRegistry {
+  private static final Logger logger = Logger.getLogger(SubscriptionRegistry.class);
+  private static final byte ADD = 1;
+  private static final byte REMOVE = 2;
+  private static final byte CLEAR = 3;
+  private static final int CHECKSUM_BYTES = 4;
+  private static final int MIN_COMPACTION_ENTRIES = 4096;
+  private static final String TEMPORARY_SUFFIX = ".tmp";
+  private final File log;
+  private final List<Map<String, Set<UUID>>> subscriptions = new ArrayList<>();
+  private volatile FileChannel channel;
+  private long logEntries = 0;
+  private long liveSubscriptions = 0;
+
+  /**
+   * @param recover whether to replay the log left by a previous run, rather than starting empty.
+   */
+  public SubscriptionRegistry(File log, boolean recover) throws IOException {
+    this.log = log;
+    for (int i = 0; i < StorageType.values().length; i++) {
+      subscriptions.add(new ConcurrentHashMap<>());
+    }
+    if (recover && log.exists()) {
+      replay();
+    }
+    compact();
+  }
+
+  /** @return the subscribers of key, in the order they subscribed. */
+  public ArrayList<UUID> subscribersOf(StorageType storageType, String key) {
+    Set<UUID> subscribers = of(storageType).get(key);
+    return subscribers == null ? new ArrayList<>() : new ArrayList<>(subscribers);
+  }
+
+  /** @return the subscribers of every one of keys that has any. */
+  public HashMap<String, ArrayList<UUID>> subscriptionsOf(
+      Collection<String> keys, StorageType storageType) {
+    HashMap<String, ArrayList<UUID>> found = new HashMap<>();
+    for (String key : keys) {
+      Set<UUID> subscribers = of(storageType).get(key);
+      if (subscribers != null) {
+        found.put(key, new ArrayList<>(subscribers));
+      }
+    }
+    return found;
+  }
+
+  /** @return whether subscriber was not subscribed to key yet. */
+  public synchronized boolean add(StorageType storageType, String key, UUID subscriber)
+      throws IOException {
+    if (of(storageType).getOrDefault(key, Collections.emptySet()).contains(subscriber)) {
+      return false;
+    }
+    ByteBuffer entries = ByteBuffer.allocate(entryBytes(key, ADD));
+    putEntry(entries, ADD, storageType, key, subscriber);
+    append(entries, 1);
+    apply(ADD, storageType, key, subscriber);
+    maybeCompact();
+    return true;
+  }
+
+  /** @return whether subscriber was subscribed to key. */
+  public synchronized boolean remove(StorageType storageType, String key, UUID subscriber)
+      throws IOException {
+    if (!of(storageType).getOrDefault(key, Collections.emptySet()).contains(subscriber)) {
+      return false;
+    }
+    ByteBuffer entries = ByteBuffer.allocate(entryBytes(key, REMOVE));
+    putEntry(entries, REMOVE, storageType, key, subscriber);
+    append(entries, 1);
+    apply(REMOVE, storageType, key, subscriber);
+    maybeCompact();
+    return true;
+  }
+
+  /** Drop every subscriber of key, e.g. once it is deleted. @return the dropped subscribers. */
+  public synchronized ArrayList<UUID> removeKey(StorageType storageType, String key)
+      throws IOException {
+    ArrayList<UUID> subscribers = subscribersOf(storageType, key);
+    if (!subscribers.isEmpty()) {
+      ByteBuffer entries = ByteBuffer.allocate(entryBytes(key, CLEAR));
+      putEntry(entries, CLEAR, storageType, key, null);
+      append(entries, 1);
+      apply(CLEAR, storageType, key, null);
+      maybeCompact();
+    }
+    return subscribers;
+  }
+
+  /** Make subscribers, which may be empty, the exact subscribers of key. */
+  public synchronized void replace(
+      StorageType storageType, String key, Collection<UUID> subscribers) throws IOException {
+    if (subscribersOf(storageType, key).equals(new ArrayList<>(new LinkedHashSet<>(subscribers)))) {
+      return;
+    }
+    ByteBuffer entries =
+        ByteBuffer.allocate(entryBytes(key, CLEAR) + subscribers.size() * entryBytes(key, ADD));
+    putEntry(entries, CLEAR, storageType, key, null);
+    for (UUID subscriber : subscribers) {
+      putEntry(entries, ADD, storageType, key, subscriber);
+    }
+    append(entries, 1 + subscribers.size());
+    apply(CLEAR, storageType, key, null);
+    for (UUID subscriber : subscribers) {
+      apply(ADD, storageType, key, subscriber);
+    }
+    maybeCompact();
+  }
+
+  /** Move the subscriptions of every key that hashes into hashRange from source to destination. */
+  public synchronized void moveRange(
+      String[] hashRange, StorageType source, StorageType destination) throws IOException {
+    for (Map.Entry<String, Set<UUID>> entry : inRange(hashRange, source).entrySet()) {
+      ArrayList<UUID> subscribers = new ArrayList<>(entry.getValue());
+      subscribers.addAll(subscribersOf(destination, entry.getKey()));
+      replace(destination, entry.getKey(), new LinkedHashSet<>(subscribers));
+      removeKey(source, entry.getKey());
+    }
+  }
+
+  /** Drop the subscriptions of every key that hashes into hashRange. */
+  public synchronized void dropRange(String[] hashRange, StorageType storageType)
+      throws IOException {
+    for (String key : inRange(hashRange, storageType).keySet()) {
+      removeKey(storageType, key);
+    }
+  }
+
+  /** Force every change made so far to disk, without holding up changes meanwhile. */
+  public void sync() throws IOException {
+    while (true) {
+      FileChannel current = channel;
+      try {
+        current.force(false);
+        return;
+      } catch (ClosedChannelException e) {
+        // compaction swapped the log, the new one may hold changes not yet forced
+        if (current == channel) {
+          throw e;
+        }
+      }
+    }
+  }
+
+  public synchronized void close() throws IOException {
+    channel.force(false);
+    channel.close();
+  }
+
+  private Map<String, Set<UUID>> of(StorageType storageType) {
+    return subscriptions.get(storageType.ordinal());
+  }
+
+  private Map<String, Set<UUID>> inRange(String[] hashRange, StorageType storageType) {
+    Map<String, Set<UUID>> found = new HashMap<>();
+    for (Map.Entry<String, Set<UUID>> entry : of(storageType).entrySet()) {
+      if (ECSUtils.checkIfKeyBelongsInRange(entry.getKey(), hashRange)) {
+        found.put(entry.getKey(), entry.getValue());
+      }
+    }
+    return found;
+  }
+
+  /** Apply a logged change to the maps, replacing the subscribers of key as a whole. */
+  private void apply(byte op, StorageType storageType, String key, UUID subscriber) {
+    Map<String, Set<UUID>> subscribed = of(storageType);
+    Set<UUID> current = subscribed.getOrDefault(key, Collections.emptySet());
+    Set<UUID> updated = new LinkedHashSet<>(current);
+    switch (op) {
+      case ADD:
+        updated.add(subscriber);
+        break;
+      case REMOVE:
+        updated.remove(subscriber);
+        break;
+      default: // CLEAR
+        updated.clear();
+    }
+    liveSubscriptions += updated.size() - current.size();
+    if (updated.isEmpty()) {
+      subscribed.remove(key);
+    } else {
+      subscribed.put(key, Collections.unmodifiableSet(updated));
+    }
+  }
+
+  private void append(ByteBuffer entries, int count) throws IOException {
+    entries.flip();
+    while (entries.hasRemaining()) {
+      channel.write(entries);
+    }
+    logEntries += count;
+  }
+
+  private void maybeCompact() throws IOException {
+    if (logEntries > MIN_COMPACTION_ENTRIES && logEntries > 2 * liveSubscriptions) {
+      compact();
+    }
+  }
+
+  private static int entryBytes(String key, byte op) {
+    return entryBytes(key.getBytes(StandardCharsets.UTF_8).length, op);
+  }
+
+  private static int entryBytes(int keyLength, byte op) {
+    return 1 + 1 + 2 + keyLength + (op == CLEAR ? 0 : 16) + CHECKSUM_BYTES;
+  }
+
+  private static void putEntry(
+      ByteBuffer buffer, byte op, StorageType storageType, String key, UUID subscriber) {
+    int start = buffer.position();
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    buffer.put(op).put((byte) storageType.ordinal()).putShort((short) keyBytes.length);
+    buffer.put(keyBytes);
+    if (op != CLEAR) {
+      buffer.putLong(subscriber.getMostSignificantBits());
+      buffer.putLong(subscriber.getLeastSignificantBits());
+    }
+    buffer.putInt(checksum(buffer.array(), start, buffer.position() - start));
+  }
+
+  /** Apply every intact entry of the log, up to the first torn or corrupt one. */
+  private void replay() throws IOException {
+    long entries = 0;
+    try (DataInputStream input =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(log), 16384))) {
+      while (true) {
+        byte[] header = new byte[4];
+        int read = input.read(header);
+        if (read < 0) {
+          break;
+        }
+        input.readFully(header, read, header.length - read);
+        byte op = header[0];
+        int storageType = header[1];
+        int keyLength = ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+        if (op < ADD
+            || op > CLEAR
+            || storageType < 0
+            || storageType >= StorageType.values().length) {
+          throw new IOException("malformed entry");
+        }
+        ByteBuffer entry = ByteBuffer.allocate(entryBytes(keyLength, op));
+        entry.put(header);
+        input.readFully(entry.array(), header.length, entry.capacity() - header.length);
+        int checksumAt = entry.capacity() - CHECKSUM_BYTES;
+        if (checksum(entry.array(), 0, checksumAt) != entry.getInt(checksumAt)) {
+          throw new IOException("checksum mismatch");
+        }
+        String key = new String(entry.array(), header.length, keyLength, StandardCharsets.UTF_8);
+        UUID subscriber = null;
+        if (op != CLEAR) {
+          entry.position(header.length + keyLength);
+          subscriber = new UUID(entry.getLong(), entry.getLong());
+        }
+        apply(op, StorageType.values()[storageType], key, subscriber);
+        entries++;
+      }
+    } catch (EOFException e) {
+      logger.warn("Subscription log " + log + " ends in a torn entry, dropping it");
+    } catch (IOException e) {
+      logger.warn("Subscription log " + log + " is corrupt after " + entries + " entries", e);
+    }
+    logger.info(
+        "Recovered " + liveSubscriptions + " subscriptions from " + entries + " log entries");
+  }
+
+  /** Rewrite the log as one ADD per live subscription and keep appending to the new one. */
+  private void compact() throws IOException {
+    File temporary = new File(log.getPath() + TEMPORARY_SUFFIX);
+    long entries = 0;
+    try (FileChannel output =
+        FileChannel.open(
+            temporary.toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      for (StorageType storageType : StorageType.values()) {
+        for (Map.Entry<String, Set<UUID>> entry : of(storageType).entrySet()) {
+          ByteBuffer buffer =
+              ByteBuffer.allocate(entry.getValue().size() * entryBytes(entry.getKey(), ADD));
+          for (UUID subscriber : entry.getValue()) {
+            putEntry(buffer, ADD, storageType, entry.getKey(), subscriber);
+            entries++;
+          }
+          buffer.flip();
+          while (buffer.hasRemaining()) {
+            output.write(buffer);
+          }
+        }
+      }
+      output.force(true);
+    }
+    if (channel != null) {
+      channel.close();
+    }
+    Files.move(temporary.toPath(), log.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    channel = FileChannel.open(log.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    logEntries = entries;
+  }
+
+  private static int checksum(byte[] bytes, int offset, int length) {
+    return Hashing.crc32c().hashBytes(bytes, offset, length).asInt();
+  }
+}
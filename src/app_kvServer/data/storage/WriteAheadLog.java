@@ -0,0 +1,126 @@
+package app_kvServer.data.storage;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.function.BiConsumer;
+import org.apache.log4j.Logger;
+
+/**
+ * Log of the writes an LSMTree holds only in its memtable, so they survive a restart. Records are
+ * laid out as [type][key length][payload length][key][payload][CRC32C of everything before it] and
+ * replay stops at the first torn or corrupt record.
+ */
+public class WriteAheadLog {
+  private static final Logger logger = Logger.getLogger(WriteAheadLog.class);
+  private static final byte LIVE_RECORD = 0;
+  private static final byte TOMBSTONE_RECORD = 1;
+  private static final int HEADER_BYTES = 1 + 4 + 4;
+  private static final int CHECKSUM_BYTES = 4;
+
+  private final File file;
+  private final FileChannel channel;
+  private long size;
+
+  public WriteAheadLog(final File file) throws IOException {
+    this.file = file;
+    this.channel =
+        FileChannel.open(
+            file.toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+    this.size = channel.size();
+  }
+
+  /** Log payload as the latest value of key, SSTable.TOMBSTONE marking a deletion. */
+  public synchronized void append(final String key, final byte[] payload) throws IOException {
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer record =
+        ByteBuffer.allocate(HEADER_BYTES + keyBytes.length + payload.length + CHECKSUM_BYTES);
+    record.put(payload == SSTable.TOMBSTONE ? TOMBSTONE_RECORD : LIVE_RECORD);
+    record.putInt(keyBytes.length).putInt(payload.length).put(keyBytes).put(payload);
+    record.putInt(Hashing.crc32c().hashBytes(record.array(), 0, record.position()).asInt());
+    record.flip();
+    while (record.hasRemaining()) {
+      channel.write(record, size + record.position());
+    }
+    size += record.limit();
+  }
+
+  /**
+   * Feed every intact record to consumer in the order they were appended, deletions with
+   * SSTable.TOMBSTONE as their payload, then cut off anything after the last intact record.
+   */
+  public synchronized void replay(final BiConsumer<String, byte[]> consumer) throws IOException {
+    long validBytes = 0;
+    try (DataInputStream input =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+      byte[] header = new byte[HEADER_BYTES];
+      while (true) {
+        try {
+          input.readFully(header);
+        } catch (EOFException e) {
+          break;
+        }
+        ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+        byte type = headerBuffer.get();
+        int keyLength = headerBuffer.getInt();
+        int payloadLength = headerBuffer.getInt();
+        if ((type != LIVE_RECORD && type != TOMBSTONE_RECORD)
+            || keyLength < 0
+            || payloadLength < 0
+            || validBytes + HEADER_BYTES + keyLength + payloadLength + CHECKSUM_BYTES > size) {
+          break;
+        }
+        byte[] key = new byte[keyLength];
+        byte[] payload = new byte[payloadLength];
+        input.readFully(key);
+        input.readFully(payload);
+        Hasher hasher = Hashing.crc32c().newHasher();
+        hasher.putBytes(header).putBytes(key).putBytes(payload);
+        if (hasher.hash().asInt() != input.readInt()) {
+          break;
+        }
+        consumer.accept(
+            new String(key, StandardCharsets.UTF_8),
+            type == TOMBSTONE_RECORD ? SSTable.TOMBSTONE : payload);
+        validBytes += HEADER_BYTES + keyLength + payloadLength + CHECKSUM_BYTES;
+      }
+    }
+    if (validBytes < size) {
+      logger.warn(
+          "Truncating "
+              + (size - validBytes)
+              + " bytes of torn or corrupt records from "
+              + file.getAbsolutePath());
+      channel.truncate(validBytes);
+      size = validBytes;
+    }
+  }
+
+  /** Force the records appended so far to disk. Appends may carry on meanwhile. */
+  public void sync() throws IOException {
+    channel.force(false);
+  }
+
+  public synchronized void close() throws IOException {
+    channel.close();
+  }
+
+  /** Close the log and delete its file, once its records are all safely stored elsewhere. */
+  public synchronized void delete() throws IOException {
+    channel.close();
+    Files.deleteIfExists(file.toPath());
+  }
+}
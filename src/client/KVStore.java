@@ -5,6 +5,7 @@ import static shared.communication.messages.KVMessage.StatusType.GET_ERROR;
 import static shared.communication.messages.KVMessage.StatusType.NOTIFY;
 import static shared.communication.messages.KVMessage.StatusType.NOT_RESPONSIBLE;
 import static shared.communication.messages.KVMessage.StatusType.PUT;
+import static shared.communication.messages.KVMessage.StatusType.SERVER_BUSY;
 import static shared.communication.messages.KVMessage.StatusType.SUBSCRIBE;
 import static shared.communication.messages.KVMessage.StatusType.UNSUBSCRIBE;
 
@@ -20,6 +21,7 @@ import java.util.UUID;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -39,6 +41,7 @@ import shared.communication.security.property_stores.ClientPropertyStore;
 
 public class KVStore implements KVCommInterface {
   private static final Logger logger = Logger.getLogger(KVStore.class);
+  private static final int MAX_BUSY_ATTEMPTS = 5;
   private final AtomicReference<InetAddress> address = new AtomicReference<>();
   private final AtomicInteger port = new AtomicInteger();
   private final AtomicReference<Socket> clientSocket = new AtomicReference<>();
@@ -373,6 +376,39 @@ public class KVStore implements KVCommInterface {
   }
 
   private ClientServerMessage takeReply(ClientServerMessage request) throws KVStoreException {
+    ClientServerMessage reply = awaitReply(request);
+
+    // the request was turned away before it ran, so it is sent again as it is
+    for (int attempt = 1;
+        attempt < MAX_BUSY_ATTEMPTS
+            && reply.getClass() == KVMessage.class
+            && ((KVMessage) reply).getStatus() == SERVER_BUSY;
+        attempt++) {
+      long retryAfterMillis = ((KVMessage) reply).getRetryAfterMillis();
+      logger.info("Server busy, retrying " + request.getRequestId() + " in " + retryAfterMillis);
+      try {
+        // up to half as long again, so clients turned away together come back at different times
+        TimeUnit.MILLISECONDS.sleep(
+            retryAfterMillis + ThreadLocalRandom.current().nextLong(retryAfterMillis / 2 + 1));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return reply;
+      }
+      sendRequest(request);
+      reply = awaitReply(request);
+    }
+
+    if (reply.getClass() == KVMessage.class && ((KVMessage) reply).getStatus() == NOT_RESPONSIBLE) {
+      MetadataUpdateMessage metaReply =
+          (MetadataUpdateMessage) sendRequestAndTakeReply(new MetadataUpdateMessage());
+      metadata.set(metaReply.getMetadata());
+      return sendRequestAndTakeReply(request);
+    }
+
+    return reply;
+  }
+
+  private ClientServerMessage awaitReply(ClientServerMessage request) throws KVStoreException {
     ClientServerMessage reply;
     while (true) {
       try {
@@ -388,13 +424,6 @@ public class KVStore implements KVCommInterface {
       throw new KVStoreException("No reply from server");
     }
 
-    if (reply.getClass() == KVMessage.class && ((KVMessage) reply).getStatus() == NOT_RESPONSIBLE) {
-      MetadataUpdateMessage metaReply =
-          (MetadataUpdateMessage) sendRequestAndTakeReply(new MetadataUpdateMessage());
-      metadata.set(metaReply.getMetadata());
-      return sendRequestAndTakeReply(request);
-    }
-
     return reply;
   }
 
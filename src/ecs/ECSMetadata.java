@@ -4,13 +4,23 @@ import java.util.ArrayList;
 import java.util.stream.Collectors;
 import org.apache.log4j.Logger;
 
+/**
+ * The nodes on the ring. Routing reads a HashRing built from them, published through a volatile
+ * field: every change of the ring builds a new one, so a lookup sees a single consistent ring even
+ * while a ZooKeeper watcher or the ECS replaces it. A published ring and its nodes are never
+ * changed, adding or removing a node changes copies of them and publishes those. Only the ring
+ * itself is sent in messages, a received ECSMetadata builds its HashRing when it is first routed
+ * with.
+ */
 public class ECSMetadata {
 
   private static final Logger logger = Logger.getLogger(ECSMetadata.class);
 
-  private static ECSMetadata singletonECSMetadata = null;
+  private static volatile ECSMetadata singletonECSMetadata = null;
 
-  private ArrayList<ECSNode> ring = new ArrayList<>();
+  private volatile ArrayList<ECSNode> ring = new ArrayList<>();
+
+  private transient volatile HashRing hashRing;
 
   private ECSMetadata() {}
 
@@ -18,7 +28,7 @@ public class ECSMetadata {
     if (singletonECSMetadata == null) {
       singletonECSMetadata = new ECSMetadata();
     }
-    singletonECSMetadata.ring = serverData;
+    singletonECSMetadata.setRing(serverData);
   }
 
   public static ECSMetadata getInstance() {
@@ -31,51 +41,88 @@ public class ECSMetadata {
   }
 
   public void clear() {
-    this.ring.clear();
+    setRing(new ArrayList<>());
   }
 
   public void update(ECSMetadata newMetadata) {
-    singletonECSMetadata.ring = newMetadata.getNodeRing();
+    singletonECSMetadata.setRing(newMetadata.getNodeRing());
   }
 
   public void updateArray(ArrayList<ECSNode> serverData) {
-    singletonECSMetadata.ring = serverData;
+    singletonECSMetadata.setRing(serverData);
+  }
+
+  private void setRing(ArrayList<ECSNode> serverData) {
+    HashRing next = new HashRing(serverData);
+    ring = serverData;
+    hashRing = next;
   }
 
+  /** @return the ring as it is now, it must not be modified. */
   public ArrayList<ECSNode> getNodeRing() {
     return ring;
   }
 
+  /** @return the ring as it is now for routing, it does not change with the ring. */
+  public HashRing getHashRing() {
+    HashRing current = hashRing;
+    if (current == null) {
+      // received in a message, building it twice is harmless
+      current = new HashRing(ring);
+      hashRing = current;
+    }
+    return current;
+  }
+
   public ECSNode findPredecessor(String nodeName) {
-    return ECSMetadataUtils.findPredecessor(nodeName, ring);
+    return getHashRing().getPredecessor(nodeName);
   }
 
   public ECSNode findSuccessor(String nodeName) {
-    return ECSMetadataUtils.findSuccessor(nodeName, ring);
+    return getHashRing().getSuccessor(nodeName);
   }
 
   public ECSNode getNodeBasedOnKey(String key) {
-    return ECSMetadataUtils.getNodeBasedOnKey(key, ring);
+    return getHashRing().getNodeBasedOnKey(key);
   }
 
   public ECSNode getNodeBasedOnName(String name) {
-    return ECSMetadataUtils.getNodeBasedOnName(name, ring);
+    return getHashRing().getNodeBasedOnName(name);
   }
 
+  /** @return the replicas of the named node, an array shared with other callers. */
   public ECSNode[] getReplicasBasedOnName(String name) {
-    return ECSMetadataUtils.getReplicasBasedOnName(name, ring);
+    return getHashRing().getReplicas(name);
   }
 
+  /** @return the nodes the named node is a replica of, an array shared with other callers. */
   public ECSNode[] getNodesWhereIAmReplicaBasedOnName(String name) {
-    return ECSMetadataUtils.getNodesWhereIAmReplicaBasedOnName(name, ring);
+    return getHashRing().getNodesWhereReplica(name);
   }
 
+  /** @return the nodes whose ranges changed, as they are on the new ring. */
   public ECSNode[] placeNewNodeOnTheRing(ECSNode newNode) {
-    return ECSMetadataUtils.placeNewNodeOnTheRing(newNode, ring);
+    ArrayList<ECSNode> next = copyOfRing();
+    ECSNode[] affected = ECSMetadataUtils.placeNewNodeOnTheRing(newNode, next);
+    setRing(next);
+    return affected;
   }
 
+  /** @return the removed node and the node taking over its range, as it is on the new ring. */
   public ECSNode[] removeNodeFromTheRing(String nodeName) {
-    return ECSMetadataUtils.removeNodeFromTheRing(nodeName, ring);
+    ArrayList<ECSNode> next = copyOfRing();
+    ECSNode[] affected = ECSMetadataUtils.removeNodeFromTheRing(nodeName, next);
+    setRing(next);
+    return affected;
+  }
+
+  private ArrayList<ECSNode> copyOfRing() {
+    ArrayList<ECSNode> current = ring;
+    ArrayList<ECSNode> copy = new ArrayList<>(current.size() + 1);
+    for (ECSNode node : current) {
+      copy.add(new ECSNode(node));
+    }
+    return copy;
   }
 
   @Override
@@ -23,6 +23,15 @@ public class ECSNode {
     this.nodeHash = Hashing.calculateMD5Hash(name);
   }
 
+  /** A copy of node, with its range, to change without affecting the rings node is on. */
+  public ECSNode(ECSNode node) {
+    this.name = node.name;
+    this.address = node.address;
+    this.port = node.port;
+    this.nodeHash = node.nodeHash;
+    this.lowerRange = node.lowerRange;
+  }
+
   /** @return the name of the node (ie "Server 8.8.8.8") */
   public String getNodeName() {
     return name;
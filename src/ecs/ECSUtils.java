@@ -18,9 +18,14 @@ import shared.communication.security.Hashing;
 
 public class ECSUtils {
   private static final Logger logger = Logger.getLogger(ECSUtils.class);
+  private static final int HASH_LENGTH = 32;
 
   public static boolean checkIfKeyBelongsInRange(String key, String[] ends) {
-    String hash = Hashing.calculateMD5Hash(key);
+    return checkIfHashBelongsInRange(Hashing.calculateMD5Hash(key), ends);
+  }
+
+  /** Same as checkIfKeyBelongsInRange for callers that already know the key's ring hash. */
+  public static boolean checkIfHashBelongsInRange(String hash, String[] ends) {
     // the node is not wrapping
     if (ends[0].compareTo(ends[1]) < 0) { // left < right
       return ends[0].compareTo(hash) <= 0 && ends[1].compareTo(hash) > 0;
@@ -29,6 +34,19 @@ public class ECSUtils {
     }
   }
 
+  /**
+   * @return the key's ring hash followed by the key itself. Sorting keys by ring position orders
+   *     them around the ring, breaking ties between colliding hashes by key.
+   */
+  public static String ringPosition(String key) {
+    return Hashing.calculateMD5Hash(key) + key;
+  }
+
+  /** @return the key a ring position was built from. */
+  public static String keyAtRingPosition(String ringPosition) {
+    return ringPosition.substring(HASH_LENGTH);
+  }
+
   public static ArrayList<ECSNode> parseConfigFile(String filepath)
       throws IllegalArgumentException, IOException {
     BufferedReader configReader = new BufferedReader(new FileReader(filepath));
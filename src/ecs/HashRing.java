@@ -0,0 +1,132 @@
+package ecs;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import shared.communication.security.Hashing;
+
+/**
+ * An immutable view of the nodes on the ring for routing: their ring positions as 128-bit numbers
+ * in ring order, searched by bisection, and the replicas of every node worked out up front.
+ *
+ * <p>The ring a HashRing is built from may change afterwards without affecting it, ECSMetadata
+ * builds a new one instead. The arrays returned by getReplicas and getNodesWhereReplica are shared
+ * between callers and must not be modified.
+ */
+public final class HashRing {
+  private static final ECSNode[] NONE = new ECSNode[0];
+
+  private final ECSNode[] nodes;
+  // the ring hash of nodes[i] is positionHigh[i] followed by positionLow[i]
+  private final long[] positionHigh;
+  private final long[] positionLow;
+  private final HashMap<String, Integer> indexByName = new HashMap<>();
+  private final ECSNode[][] replicas;
+  private final ECSNode[][] replicaOf;
+
+  public HashRing(final List<ECSNode> ring) {
+    // the ring is kept in order of its hashes, this only guards against a ring that is not
+    nodes = ring.toArray(NONE);
+    Arrays.sort(nodes, Comparator.comparing(ECSNode::getNodeHash));
+    int size = nodes.length;
+    positionHigh = new long[size];
+    positionLow = new long[size];
+    replicas = new ECSNode[size][];
+    replicaOf = new ECSNode[size][];
+    // a ring of two nodes keeps a single replica of each, a ring of one none
+    int replicaCount = Math.max(0, Math.min(2, size - 1));
+    for (int i = 0; i < size; i++) {
+      String hash = nodes[i].getNodeHash();
+      positionHigh[i] = Long.parseUnsignedLong(hash.substring(0, 16), 16);
+      positionLow[i] = Long.parseUnsignedLong(hash.substring(16, 32), 16);
+      indexByName.put(nodes[i].getNodeName(), i);
+      replicas[i] = new ECSNode[replicaCount];
+      replicaOf[i] = new ECSNode[replicaCount];
+      for (int r = 0; r < replicaCount; r++) {
+        replicas[i][r] = nodes[(i + r + 1) % size];
+        replicaOf[i][r] = nodes[(i - r - 1 + size) % size];
+      }
+    }
+  }
+
+  public int size() {
+    return nodes.length;
+  }
+
+  public ECSNode getNodeBasedOnName(final String name) {
+    Integer index = indexByName.get(name);
+    return index == null ? null : nodes[index];
+  }
+
+  /**
+   * @return the node responsible for the key: the first whose ring hash is above the key's, or the
+   *     first node if there is none, as given by the nodes' hash ranges. Null if the ring is empty.
+   */
+  public ECSNode getNodeBasedOnKey(final String key) {
+    if (nodes.length == 0) {
+      return null;
+    }
+    byte[] digest = Hashing.calculateMD5Digest(key);
+    long high = 0;
+    long low = 0;
+    for (int i = 0; i < 8; i++) {
+      high = high << 8 | (digest[i] & 0xff);
+      low = low << 8 | (digest[i + 8] & 0xff);
+    }
+    int lower = 0;
+    int upper = nodes.length;
+    while (lower < upper) {
+      int middle = (lower + upper) >>> 1;
+      if (compare(positionHigh[middle], positionLow[middle], high, low) > 0) {
+        upper = middle;
+      } else {
+        lower = middle + 1;
+      }
+    }
+    return nodes[lower == nodes.length ? 0 : lower];
+  }
+
+  /**
+   * @return the nodes that keep replicas of the named node's data, none on a ring of fewer than two
+   *     nodes, null if it isn't a node.
+   */
+  public ECSNode[] getReplicas(final String name) {
+    if (nodes.length < 2) {
+      return NONE;
+    }
+    Integer index = indexByName.get(name);
+    return index == null ? null : replicas[index];
+  }
+
+  /**
+   * @return the nodes whose data the named node keeps replicas of, none on a ring of fewer than two
+   *     nodes, null if it isn't a node.
+   */
+  public ECSNode[] getNodesWhereReplica(final String name) {
+    if (nodes.length < 2) {
+      return NONE;
+    }
+    Integer index = indexByName.get(name);
+    return index == null ? null : replicaOf[index];
+  }
+
+  /** @return the node before the named one on the ring, null if there is none. */
+  public ECSNode getPredecessor(final String name) {
+    Integer index = indexByName.get(name);
+    return index == null || nodes.length == 1
+        ? null
+        : nodes[(index - 1 + nodes.length) % nodes.length];
+  }
+
+  /** @return the node after the named one on the ring, null if there is none. */
+  public ECSNode getSuccessor(final String name) {
+    Integer index = indexByName.get(name);
+    return index == null || nodes.length == 1 ? null : nodes[(index + 1) % nodes.length];
+  }
+
+  private static int compare(long aHigh, long aLow, long bHigh, long bLow) {
+    int high = Long.compareUnsigned(aHigh, bHigh);
+    return high != 0 ? high : Long.compareUnsigned(aLow, bLow);
+  }
+}
@@ -12,8 +12,16 @@ public class Cleaner {
     final File folder = new File(System.getProperty("user.dir"));
     for (final File file : folder.listFiles()) {
       if (file.getAbsolutePath().contains("KeyValueData")) {
-        file.delete();
-        file.createNewFile();
+        if (file.isDirectory()) {
+          // segment directories are recreated by the server on startup
+          for (final File segment : file.listFiles()) {
+            segment.delete();
+          }
+          file.delete();
+        } else {
+          file.delete();
+          file.createNewFile();
+        }
       }
     }
   }
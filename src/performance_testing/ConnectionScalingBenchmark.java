@@ -0,0 +1,277 @@
+package performance_testing;
+
+import static shared.communication.messages.DataTransferMessage.DataTransferMessageType.DATA_TRANSFER_REQUEST;
+
+import app_kvServer.KVServer;
+import app_kvServer.NetworkConfig;
+import app_kvServer.data.SynchronizedKVManager;
+import app_kvServer.data.cache.CacheStrategy;
+import app_kvServer.data.storage.StorageEngineConfig;
+import app_kvServer.data.storage.StorageStrategy;
+import app_kvServer.data.storage.StorageUnit;
+import client.KVStore;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.UUID;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import logger.LogSetup;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import shared.communication.Protocol;
+import shared.communication.messages.ClientIdentificationMessage;
+import shared.communication.messages.DataTransferMessage;
+import shared.communication.messages.KVMessage;
+import shared.communication.security.property_stores.ClientPropertyStore;
+
+/**
+ * Opens a number of concurrent connections to a KVServer in the given network mode and has every
+ * connection send GETs one after the other. Reports how long the connections took to open, the
+ * threads and memory of the server while they are open, and the throughput and latency of the GETs.
+ * GETs the server turns away as SERVER_BUSY are counted like any other reply, the server reports
+ * how many there were.
+ *
+ * <p>The server runs in a process of its own, started by the benchmark, since the client and the
+ * server each hold a file descriptor per connection.
+ */
+public class ConnectionScalingBenchmark {
+  private static final int PORT = 50124;
+  private static final int NUM_KEYS = 1000;
+  private static final int NUM_CLIENT_IDS = 100;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length == 3 && args[0].equals("serve")) {
+      serve(Integer.parseInt(args[1]), NetworkConfig.parse(args[2]));
+      return;
+    }
+    if (args.length != 3) {
+      System.out.println(
+          "Please provide 3 args: <network-mode> <connections> <requestsPerConnection>");
+      System.exit(1);
+    }
+    new LogSetup("logs/perftest.log", Level.ERROR, false);
+    NetworkConfig config = NetworkConfig.parse(args[0]);
+    int connections = Integer.parseInt(args[1]);
+    int requestsPerConnection = Integer.parseInt(args[2]);
+
+    Process server =
+        new ProcessBuilder(
+                System.getProperty("java.home") + "/bin/java",
+                "-Xmx2g",
+                "-cp",
+                System.getProperty("java.class.path"),
+                ConnectionScalingBenchmark.class.getName(),
+                "serve",
+                String.valueOf(PORT),
+                config.toString())
+            .redirectError(ProcessBuilder.Redirect.INHERIT)
+            .start();
+    BufferedReader serverOutput =
+        new BufferedReader(new InputStreamReader(server.getInputStream(), StandardCharsets.UTF_8));
+    PrintWriter serverInput = new PrintWriter(server.getOutputStream(), true);
+    try {
+      serverOutput.readLine(); // the server is listening
+      run(config, connections, requestsPerConnection, serverInput, serverOutput);
+    } finally {
+      server.destroy();
+      server.waitFor();
+    }
+    System.exit(0);
+  }
+
+  private static void run(
+      NetworkConfig config,
+      int connections,
+      int requestsPerConnection,
+      PrintWriter serverInput,
+      BufferedReader serverOutput)
+      throws IOException {
+    KVStore.initializeClientPrivateKey();
+    ClientPropertyStore.getInstance().setSenderID("client");
+    // GETs are not checked for replays, so a few signed ones are sent over and over
+    UUID[] clientIds = new UUID[NUM_CLIENT_IDS];
+    byte[][] gets = new byte[NUM_CLIENT_IDS][];
+    for (int i = 0; i < NUM_CLIENT_IDS; i++) {
+      clientIds[i] = UUID.randomUUID();
+      KVMessage get = new KVMessage("key" + i, null, clientIds[i], KVMessage.StatusType.GET);
+      get.calculateMAC();
+      gets[i] = Protocol.frame(get);
+    }
+    System.out.format(
+        "%s, %d connections, %d GETs per connection%n", config, connections, requestsPerConnection);
+    serverInput.println("stats");
+    System.out.println("  idle server:            " + serverOutput.readLine());
+
+    Selector selector = Selector.open();
+    Connection[] open = new Connection[connections];
+    long start = System.nanoTime();
+    for (int i = 0; i < connections; i++) {
+      SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", PORT));
+      channel.socket().setTcpNoDelay(true);
+      ByteBuffer identification =
+          ByteBuffer.wrap(
+              Protocol.frame(new ClientIdentificationMessage(clientIds[i % NUM_CLIENT_IDS])));
+      while (identification.hasRemaining()) {
+        channel.write(identification);
+      }
+      channel.configureBlocking(false);
+      open[i] = new Connection(channel, gets[i % NUM_CLIENT_IDS], requestsPerConnection);
+      channel.register(selector, SelectionKey.OP_READ, open[i]);
+    }
+    System.out.format("  opened in %.2f s%n", (System.nanoTime() - start) / 1e9);
+    serverInput.println("stats");
+    System.out.println("  with connections open:  " + serverOutput.readLine());
+
+    start = System.nanoTime();
+    for (Connection connection : open) {
+      connection.sendNext();
+    }
+    int busy = connections;
+    while (busy > 0) {
+      selector.select();
+      Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+      while (selected.hasNext()) {
+        SelectionKey key = selected.next();
+        selected.remove();
+        if (((Connection) key.attachment()).onReadable()) {
+          busy--;
+        }
+      }
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    long[] latencies =
+        Arrays.stream(open)
+            .flatMapToLong(connection -> Arrays.stream(connection.latencies))
+            .toArray();
+    Arrays.sort(latencies);
+    System.out.format(
+        "  %9.0f GETs/s, latency (ms) p50: %.2f, p99: %.2f, max: %.2f%n",
+        latencies.length / seconds,
+        latencies[latencies.length / 2] / 1e6,
+        latencies[(int) (latencies.length * 0.99)] / 1e6,
+        latencies[latencies.length - 1] / 1e6);
+    serverInput.println("stats");
+    System.out.println("  after the GETs:         " + serverOutput.readLine());
+    for (Connection connection : open) {
+      connection.channel.close();
+    }
+  }
+
+  /** A connection with one GET in flight at a time, until it has sent all of them. */
+  private static class Connection {
+    private final SocketChannel channel;
+    private final byte[] get;
+    private final long[] latencies;
+    private final ByteBuffer reply = ByteBuffer.allocate(4096);
+    private int sent;
+    private long sentAt;
+
+    private Connection(SocketChannel channel, byte[] get, int requests) {
+      this.channel = channel;
+      this.get = get;
+      this.latencies = new long[requests];
+    }
+
+    private void sendNext() throws IOException {
+      ByteBuffer request = ByteBuffer.wrap(get);
+      sentAt = System.nanoTime();
+      while (request.hasRemaining()) {
+        channel.write(request);
+      }
+      sent++;
+    }
+
+    /** @return whether the reply to the last GET arrived. */
+    private boolean onReadable() throws IOException {
+      reply.clear();
+      if (channel.read(reply) == -1) {
+        throw new IOException("Server closed " + channel);
+      }
+      for (int i = 0; i < reply.position(); i++) {
+        if (reply.get(i) != Protocol.END_OF_MESSAGE) {
+          continue;
+        }
+        latencies[sent - 1] = System.nanoTime() - sentAt;
+        if (sent == latencies.length) {
+          return true;
+        }
+        sendNext();
+      }
+      return false;
+    }
+  }
+
+  /** The server side, which answers every "stats" line on its input with its threads and memory. */
+  private static void serve(int port, NetworkConfig config) throws Exception {
+    Cleaner.clean();
+    SynchronizedKVManager.initialize(
+        0,
+        CacheStrategy.LRU,
+        "localhost:" + port,
+        false,
+        new StorageEngineConfig(StorageStrategy.LOG_STRUCTURED));
+    KVServer server = new KVServer(port, config);
+    Logger.getRootLogger().setLevel(Level.ERROR);
+    HashSet<StorageUnit> units = new HashSet<>();
+    for (int i = 0; i < NUM_KEYS; i++) {
+      units.add(new StorageUnit("key" + i, "value" + i, UUID.randomUUID().toString(), "mac"));
+    }
+    SynchronizedKVManager.getInstance()
+        .handleDataTransfer(
+            new DataTransferMessage(DATA_TRANSFER_REQUEST, units, "benchmark", null));
+    new Thread(server).start();
+    while (true) {
+      try {
+        SocketChannel.open(new InetSocketAddress("localhost", port)).close();
+        break;
+      } catch (IOException e) {
+        Thread.sleep(50);
+      }
+    }
+    System.out.println("listening");
+    BufferedReader commands =
+        new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+    MBeanServer metrics = ManagementFactory.getPlatformMBeanServer();
+    ObjectName executor = new ObjectName("app_kvServer:type=RequestExecutor,port=" + port);
+    while (commands.readLine() != null) {
+      Runtime runtime = Runtime.getRuntime();
+      System.gc();
+      System.out.format(
+          "%5d threads, %6.1f MB heap, %6.1f MB resident, %d requests, %d busy%n",
+          ManagementFactory.getThreadMXBean().getThreadCount(),
+          (runtime.totalMemory() - runtime.freeMemory()) / 1e6,
+          residentMegabytes(),
+          (Long) metrics.getAttribute(executor, "AcceptedRequests"),
+          (Long) metrics.getAttribute(executor, "RejectedRequests"));
+    }
+    System.exit(0);
+  }
+
+  private static double residentMegabytes() throws IOException {
+    File status = new File("/proc/self/status");
+    if (!status.exists()) {
+      return -1;
+    }
+    for (String line : Files.readAllLines(Paths.get(status.getPath()))) {
+      if (line.startsWith("VmRSS:")) {
+        return Long.parseLong(line.replaceAll("[^0-9]", "")) / 1e3;
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,64 @@
+package performance_testing;
+
+import app_kvServer.data.storage.StorageUnit;
+import app_kvServer.data.storage.StorageUnitRecord;
+import com.google.common.base.Strings;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import javax.crypto.spec.SecretKeySpec;
+import shared.communication.security.encryption.Encryption;
+
+/**
+ * Cost of encoding and decoding StorageUnitRecords encrypted at rest, against plaintext. Every
+ * engine reads and writes whole records, so this is the overhead encrypted mode adds per PUT and
+ * per GET.
+ */
+public class EncryptionBenchmark {
+  private static final int ROUNDS = 5;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length != 2) {
+      System.out.println("Please provide 2 args: <numRecords> <valueBytes>");
+      System.exit(1);
+    }
+    int numRecords = Integer.parseInt(args[0]);
+    int valueBytes = Integer.parseInt(args[1]);
+    SecretKeySpec encryption = Encryption.createSecretKeySpec("EncryptionBenchmark");
+    String value = Strings.padEnd("", valueBytes, 'v');
+    StorageUnit[] units = new StorageUnit[numRecords];
+    for (int i = 0; i < numRecords; i++) {
+      units[i] = new StorageUnit("key" + i, value + i, UUID.randomUUID().toString(), "mac" + i);
+    }
+    // the rounds before the last warm up the JIT, only the last is reported
+    double[] plaintext = null;
+    double[] encrypted = null;
+    for (int round = 0; round < ROUNDS; round++) {
+      plaintext = run(units, null);
+      encrypted = run(units, encryption);
+    }
+    System.out.format("%d records, %d byte values%n", numRecords, valueBytes);
+    System.out.format(
+        "  plaintext: encode (us): %.2f, decode (us): %.2f%n", plaintext[0], plaintext[1]);
+    System.out.format(
+        "  encrypted: encode (us): %.2f, decode (us): %.2f%n", encrypted[0], encrypted[1]);
+    System.out.format(
+        "  overhead: encode %+.0f%%, decode %+.0f%%%n",
+        100 * (encrypted[0] / plaintext[0] - 1), 100 * (encrypted[1] / plaintext[1] - 1));
+  }
+
+  /** @return the average encode and decode time per record in microseconds. */
+  private static double[] run(StorageUnit[] units, SecretKeySpec encryption) throws Exception {
+    byte[][] records = new byte[units.length][];
+    long start = System.nanoTime();
+    for (int i = 0; i < units.length; i++) {
+      records[i] = StorageUnitRecord.encode(units[i], encryption);
+    }
+    long encodeNanos = System.nanoTime() - start;
+    start = System.nanoTime();
+    for (byte[] record : records) {
+      StorageUnitRecord.decode(ByteBuffer.wrap(record), encryption);
+    }
+    long decodeNanos = System.nanoTime() - start;
+    return new double[] {encodeNanos / 1e3 / units.length, decodeNanos / 1e3 / units.length};
+  }
+}
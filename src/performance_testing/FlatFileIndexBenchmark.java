@@ -0,0 +1,109 @@
+package performance_testing;
+
+import static shared.communication.messages.DataTransferMessage.DataTransferMessageType.DATA_TRANSFER_REQUEST;
+
+import app_kvServer.data.storage.StorageEngine;
+import app_kvServer.data.storage.StorageEngine.StorageType;
+import app_kvServer.data.storage.StorageEngineConfig;
+import app_kvServer.data.storage.StorageEngineFactory;
+import app_kvServer.data.storage.StorageStrategy;
+import app_kvServer.data.storage.StorageUnit;
+import app_kvServer.data.storage.StorageUnitRecord;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.UUID;
+import logger.LogSetup;
+import org.apache.log4j.Level;
+import shared.communication.messages.DataTransferMessage;
+import shared.communication.messages.KVMessage;
+
+/**
+ * GET latency and startup time of FLAT_FILE storage with its FlatFileIndex, against scanning the
+ * file from the top as lookups and recovery did before the index.
+ */
+public class FlatFileIndexBenchmark {
+  private static final String NODE_NAME = "IndexBenchmark";
+  private static final File FILE = new File("KeyValueData_" + NODE_NAME + ".dat");
+  private static final int INGEST_BATCH_KEYS = 1_000_000;
+  private static final int SCANNED_GETS = 20;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length != 2) {
+      System.out.println("Please provide 2 args: <numKeys> <numGets>");
+      System.exit(1);
+    }
+    new LogSetup("logs/perftest.log", Level.ERROR, false);
+    int numKeys = Integer.parseInt(args[0]);
+    int numGets = Integer.parseInt(args[1]);
+    Cleaner.clean();
+    StorageEngineConfig config = new StorageEngineConfig(StorageStrategy.FLAT_FILE);
+    StorageEngine engine = new StorageEngineFactory().getStorageEngine(config, NODE_NAME, false);
+    for (int start = 0; start < numKeys; start += INGEST_BATCH_KEYS) {
+      HashSet<StorageUnit> batch = new HashSet<>();
+      for (int i = start; i < Math.min(numKeys, start + INGEST_BATCH_KEYS); i++) {
+        batch.add(new StorageUnit("key" + i, "value" + i, UUID.randomUUID().toString(), "mac"));
+      }
+      engine.updateDatabaseWithKVDataTransfer(
+          new DataTransferMessage(DATA_TRANSFER_REQUEST, batch, "benchmark", null),
+          StorageType.SELF);
+    }
+    // abandoned without closing as by a crash, the index was saved along with the last rewrite
+    engine = null;
+    System.gc();
+    System.out.format("%d keys, %.1f MB file%n", numKeys, FILE.length() / 1e6);
+
+    long start = System.nanoTime();
+    engine = new StorageEngineFactory().getStorageEngine(config.withRecovery(), NODE_NAME, false);
+    System.out.format(
+        "Startup after a crash with saved index (ms): %.1f%n", (System.nanoTime() - start) / 1e6);
+    engine.close();
+    engine = null;
+    System.gc();
+    new File(FILE.getPath() + ".idx").delete();
+    start = System.nanoTime();
+    engine = new StorageEngineFactory().getStorageEngine(config.withRecovery(), NODE_NAME, false);
+    System.out.format("Startup scanning the files (ms): %.1f%n", (System.nanoTime() - start) / 1e6);
+
+    Random random = new Random();
+    long indexedNanos = 0;
+    for (int i = 0; i < numGets; i++) {
+      String key = "key" + random.nextInt(numKeys);
+      start = System.nanoTime();
+      engine.get(
+          new KVMessage(key, null, UUID.randomUUID(), KVMessage.StatusType.GET), StorageType.SELF);
+      indexedNanos += System.nanoTime() - start;
+    }
+    engine.close();
+    long scannedNanos = 0;
+    int scannedGets = Math.min(numGets, SCANNED_GETS);
+    for (int i = 0; i < scannedGets; i++) {
+      String key = "key" + random.nextInt(numKeys);
+      start = System.nanoTime();
+      scanFor(key);
+      scannedNanos += System.nanoTime() - start;
+    }
+    System.out.format("GET latency with index (us): %.1f%n", indexedNanos / 1e3 / numGets);
+    System.out.format(
+        "GET latency scanning the file (us): %.1f%n", scannedNanos / 1e3 / scannedGets);
+    Cleaner.clean();
+  }
+
+  /** Look key up the way FLAT_FILE did without an index. */
+  private static StorageUnit scanFor(String key) throws Exception {
+    try (DataInputStream reader =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(FILE), 16384))) {
+      byte[] record;
+      while ((record = StorageUnitRecord.read(reader)) != null) {
+        if (StorageUnitRecord.readKey(ByteBuffer.wrap(record), null).equals(key)) {
+          return StorageUnitRecord.decode(ByteBuffer.wrap(record), null);
+        }
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,172 @@
+package performance_testing;
+
+import static shared.communication.messages.DataTransferMessage.DataTransferMessageType.DATA_TRANSFER_REQUEST;
+
+import app_kvServer.data.SynchronizedKVManager;
+import app_kvServer.data.cache.CacheStrategy;
+import app_kvServer.data.storage.StorageEngineConfig;
+import app_kvServer.data.storage.StorageUnit;
+import client.KVStore;
+import ecs.ECSMetadata;
+import ecs.ECSNode;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+import logger.LogSetup;
+import org.apache.log4j.Level;
+import shared.communication.messages.DataTransferMessage;
+import shared.communication.messages.KVMessage;
+import shared.communication.security.KeyLoader;
+import shared.communication.security.keys.ClientPublicKey;
+import shared.communication.security.property_stores.ServerPropertyStore;
+
+/**
+ * Throughput of a SynchronizedKVManager serving a mix of GETs and PUTs over a fixed key set, with
+ * the number of client threads doubling from 1 to 64. Each run serves the same number of requests.
+ */
+public class ManagerThroughputBenchmark {
+  private static final String NODE_NAME = "localhost:50123";
+  private static final int NUM_KEYS = 10_000;
+  private static final int MAX_THREADS = 64;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length != 4) {
+      System.out.println(
+          "Please provide 4 args: <storage-engine> <cacheSize> <requestsPerRun> <writePercent>");
+      System.exit(1);
+    }
+    new LogSetup("logs/perftest.log", Level.ERROR, false);
+    StorageEngineConfig config = StorageEngineConfig.parse(args[0]);
+    int cacheSize = Integer.parseInt(args[1]);
+    int requestsPerRun = Integer.parseInt(args[2]);
+    int writePercent = Integer.parseInt(args[3]);
+
+    KVStore.initializeClientPrivateKey();
+    ServerPropertyStore.getInstance()
+        .setClientPublicKey(KeyLoader.getPublicKey(ClientPublicKey.base64EncodedPublicKey));
+    ECSNode node = new ECSNode("localhost", 50123);
+    node.setLowerRange(node.getNodeHash());
+    ArrayList<ECSNode> nodes = new ArrayList<>();
+    nodes.add(node);
+    ECSMetadata.initialize(nodes);
+    Cleaner.clean();
+    SynchronizedKVManager.initialize(cacheSize, CacheStrategy.LRU, NODE_NAME, false, config);
+    SynchronizedKVManager manager = SynchronizedKVManager.getInstance();
+
+    HashSet<StorageUnit> units = new HashSet<>();
+    for (int i = 0; i < NUM_KEYS; i++) {
+      units.add(new StorageUnit("key" + i, "value" + i, UUID.randomUUID().toString(), "mac"));
+    }
+    manager.handleDataTransfer(
+        new DataTransferMessage(DATA_TRANSFER_REQUEST, units, "benchmark", null));
+
+    // every write needs a signature of its own, they are made before anything is measured
+    int runs = Integer.numberOfTrailingZeros(MAX_THREADS) + 2;
+    int writesPerRun = requestsPerRun / 100 * writePercent;
+    Random random = new Random(0);
+    ConcurrentLinkedQueue<KVMessage> writes = new ConcurrentLinkedQueue<>();
+    int[] writtenKeys = random.ints(runs * writesPerRun, 0, NUM_KEYS).toArray();
+    IntStream.range(0, writtenKeys.length)
+        .parallel()
+        .forEach(
+            i -> {
+              KVMessage put =
+                  new KVMessage(
+                      "key" + writtenKeys[i],
+                      "value" + i,
+                      UUID.randomUUID(),
+                      KVMessage.StatusType.PUT);
+              put.calculateMAC();
+              writes.add(put);
+            });
+
+    System.out.format(
+        "%s, cache %d, %d requests per run, %d%% writes%n",
+        config, cacheSize, requestsPerRun, writePercent);
+    // the first run, with a single thread, warms up the JIT and is not reported
+    run(manager, 1, requestsPerRun, writePercent, writes, false);
+    for (int threads = 1; threads <= MAX_THREADS; threads *= 2) {
+      run(manager, threads, requestsPerRun, writePercent, writes, true);
+    }
+    System.exit(0);
+  }
+
+  private static void run(
+      SynchronizedKVManager manager,
+      int threads,
+      int requestsPerRun,
+      int writePercent,
+      ConcurrentLinkedQueue<KVMessage> writes,
+      boolean report)
+      throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    List<Future<Metrics>> clients = new ArrayList<>();
+    long start = System.nanoTime();
+    for (int t = 0; t < threads; t++) {
+      clients.add(
+          executor.submit(client(manager, t, requestsPerRun / threads, writePercent, writes)));
+    }
+    List<Metrics> results = new ArrayList<>();
+    for (Future<Metrics> client : clients) {
+      results.add(client.get());
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    executor.shutdown();
+    if (!report) {
+      return;
+    }
+    double requests =
+        results.stream().mapToDouble(metrics -> metrics.getNumGets() + metrics.getNumPuts()).sum();
+    System.out.format(
+        "  %2d threads: %9.0f requests/s, GET latency (ms): %.3f, PUT latency (ms): %.3f%n",
+        threads,
+        requests / seconds,
+        results.stream()
+            .filter(metrics -> metrics.getNumGets() > 0)
+            .mapToDouble(Metrics::getAverageReadLatency)
+            .average()
+            .orElse(-1),
+        results.stream()
+            .filter(metrics -> metrics.getNumPuts() > 0)
+            .mapToDouble(Metrics::getAverageWriteLatency)
+            .average()
+            .orElse(-1));
+  }
+
+  private static Callable<Metrics> client(
+      SynchronizedKVManager manager,
+      int seed,
+      int requests,
+      int writePercent,
+      ConcurrentLinkedQueue<KVMessage> writes) {
+    return () -> {
+      Metrics metrics = new Metrics();
+      Random random = new Random(seed);
+      UUID clientId = UUID.randomUUID();
+      for (int i = 0; i < requests; i++) {
+        KVMessage put = random.nextInt(100) < writePercent ? writes.poll() : null;
+        if (put != null) {
+          long start = System.nanoTime();
+          manager.handleClientRequest(put);
+          metrics.updatePutLatency(System.nanoTime() - start);
+        } else {
+          KVMessage get =
+              new KVMessage(
+                  "key" + random.nextInt(NUM_KEYS), null, clientId, KVMessage.StatusType.GET);
+          long start = System.nanoTime();
+          manager.handleClientRequest(get);
+          metrics.updateGetLatency(System.nanoTime() - start);
+        }
+      }
+      return metrics;
+    };
+  }
+}
@@ -0,0 +1,81 @@
+package performance_testing;
+
+import static shared.communication.messages.DataTransferMessage.DataTransferMessageType.DATA_TRANSFER_REQUEST;
+
+import app_kvServer.data.storage.StorageEngine;
+import app_kvServer.data.storage.StorageEngine.StorageType;
+import app_kvServer.data.storage.StorageEngineConfig;
+import app_kvServer.data.storage.StorageEngineFactory;
+import app_kvServer.data.storage.StorageStrategy;
+import app_kvServer.data.storage.StorageUnit;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.UUID;
+import logger.LogSetup;
+import org.apache.log4j.Level;
+import shared.communication.messages.DataTransferMessage;
+import shared.communication.messages.KVMessage;
+
+/**
+ * GET latency percentiles of FLAT_FILE storage reading its file through a memory map, against the
+ * positioned FileChannel reads it falls back to for files over maxMappedBytes.
+ */
+public class MappedReadBenchmark {
+  private static final String NODE_NAME = "MappedReadBenchmark";
+  private static final int INGEST_BATCH_KEYS = 1_000_000;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length != 2) {
+      System.out.println("Please provide 2 args: <numKeys> <numGets>");
+      System.exit(1);
+    }
+    new LogSetup("logs/perftest.log", Level.ERROR, false);
+    int numKeys = Integer.parseInt(args[0]);
+    int numGets = Integer.parseInt(args[1]);
+    System.out.println("Memory map:");
+    run(new StorageEngineConfig(StorageStrategy.FLAT_FILE), numKeys, numGets);
+    System.out.println("Positioned reads:");
+    run(
+        new StorageEngineConfig(
+            StorageStrategy.FLAT_FILE, Collections.singletonMap("maxMappedBytes", 1L)),
+        numKeys,
+        numGets);
+  }
+
+  private static void run(StorageEngineConfig config, int numKeys, int numGets) throws Exception {
+    Cleaner.clean();
+    StorageEngine engine = new StorageEngineFactory().getStorageEngine(config, NODE_NAME, false);
+    for (int start = 0; start < numKeys; start += INGEST_BATCH_KEYS) {
+      HashSet<StorageUnit> batch = new HashSet<>();
+      for (int i = start; i < Math.min(numKeys, start + INGEST_BATCH_KEYS); i++) {
+        batch.add(new StorageUnit("key" + i, "value" + i, UUID.randomUUID().toString(), "mac"));
+      }
+      engine.updateDatabaseWithKVDataTransfer(
+          new DataTransferMessage(DATA_TRANSFER_REQUEST, batch, "benchmark", null),
+          StorageType.SELF);
+    }
+    Random random = new Random(0);
+    // the first round warms up the JIT, only the second is measured
+    long[] nanos = new long[numGets];
+    for (int round = 0; round < 2; round++) {
+      for (int i = 0; i < numGets; i++) {
+        KVMessage get =
+            new KVMessage(
+                "key" + random.nextInt(numKeys), null, UUID.randomUUID(), KVMessage.StatusType.GET);
+        long start = System.nanoTime();
+        engine.get(get, StorageType.SELF);
+        nanos[i] = System.nanoTime() - start;
+      }
+    }
+    engine.close();
+    Cleaner.clean();
+    Arrays.sort(nanos);
+    System.out.format(
+        "  GET latency (us): p50 %.1f, p99 %.1f, mean %.1f%n",
+        nanos[numGets / 2] / 1e3,
+        nanos[(int) (numGets * 0.99)] / 1e3,
+        Arrays.stream(nanos).average().orElse(0) / 1e3);
+  }
+}
@@ -0,0 +1,195 @@
+package performance_testing;
+
+import app_kvServer.KVServer;
+import app_kvServer.NetworkConfig;
+import app_kvServer.data.NotificationDispatcher;
+import app_kvServer.data.SynchronizedKVManager;
+import app_kvServer.data.cache.CacheStrategy;
+import app_kvServer.data.storage.StorageEngineConfig;
+import app_kvServer.data.storage.StorageStrategy;
+import client.KVStore;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+import logger.LogSetup;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import shared.communication.Protocol;
+import shared.communication.messages.ClientIdentificationMessage;
+import shared.communication.messages.KVMessage;
+import shared.communication.security.property_stores.ClientPropertyStore;
+
+/**
+ * Writes a few hot keys as fast as a handful of threads can while clients subscribed to all of them
+ * are notified, some of which read their notifications slowly. Reports the write throughput, the
+ * threads started while writing, how many notifications each kind of subscriber received and the
+ * NotificationDispatcher's lag, coalesced and dropped notifications.
+ */
+public class NotificationBenchmark {
+  private static final int PORT = 50126;
+  private static final int WRITER_THREADS = 4;
+  private static final long SLOW_READ_MILLIS = 5;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length != 5) {
+      System.out.println(
+          "Please provide 5 args: <network-mode> <subscribers> <slowSubscribers> <writes>"
+              + " <hotKeys>");
+      System.exit(1);
+    }
+    new LogSetup("logs/perftest.log", Level.ERROR, false);
+    NetworkConfig config = NetworkConfig.parse(args[0]);
+    int subscribers = Integer.parseInt(args[1]);
+    int slowSubscribers = Integer.parseInt(args[2]);
+    int writes = Integer.parseInt(args[3]);
+    int hotKeys = Integer.parseInt(args[4]);
+
+    Cleaner.clean();
+    SynchronizedKVManager.initialize(
+        0,
+        CacheStrategy.LRU,
+        "localhost:" + PORT,
+        false,
+        new StorageEngineConfig(StorageStrategy.LOG_STRUCTURED));
+    KVServer server = new KVServer(PORT, config);
+    Logger.getRootLogger().setLevel(Level.ERROR);
+    new Thread(server).start();
+    KVStore.initializeClientPrivateKey();
+    ClientPropertyStore.getInstance().setSenderID("client");
+
+    // only keys that exist can be subscribed to
+    UUID writerId = UUID.randomUUID();
+    for (int i = 0; i < hotKeys; i++) {
+      KVMessage put = new KVMessage("hot" + i, "initial", writerId, KVMessage.StatusType.PUT);
+      put.calculateMAC();
+      SynchronizedKVManager.getInstance().handleClientRequest(put);
+    }
+
+    // every write needs a signature of its own, they are made before anything is measured
+    ConcurrentLinkedQueue<KVMessage> puts = new ConcurrentLinkedQueue<>();
+    IntStream.range(0, writes)
+        .parallel()
+        .forEach(
+            i -> {
+              KVMessage put =
+                  new KVMessage("hot" + i % hotKeys, "v" + i, writerId, KVMessage.StatusType.PUT);
+              put.calculateMAC();
+              puts.add(put);
+            });
+
+    List<Subscriber> clients = new ArrayList<>();
+    for (int i = 0; i < subscribers; i++) {
+      Subscriber subscriber = new Subscriber(i < slowSubscribers, hotKeys);
+      clients.add(subscriber);
+      new Thread(subscriber, "Subscriber " + i).start();
+    }
+
+    SynchronizedKVManager manager = SynchronizedKVManager.getInstance();
+    NotificationDispatcher dispatcher = manager.getNotificationDispatcher();
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    long threadsBefore = threads.getTotalStartedThreadCount();
+    long start = System.nanoTime();
+    ExecutorService writers = Executors.newFixedThreadPool(WRITER_THREADS);
+    for (int t = 0; t < WRITER_THREADS; t++) {
+      writers.execute(
+          () -> {
+            for (KVMessage put = puts.poll(); put != null; put = puts.poll()) {
+              manager.handleClientRequest(put);
+            }
+          });
+    }
+    writers.shutdown();
+    writers.awaitTermination(1, TimeUnit.HOURS);
+    double seconds = (System.nanoTime() - start) / 1e9;
+    long threadsStarted = threads.getTotalStartedThreadCount() - threadsBefore;
+    dispatcher.awaitIdle(1, TimeUnit.MINUTES);
+
+    System.out.format(
+        "%s, %d subscribers (%d slow), %d writes to %d keys%n",
+        config, subscribers, slowSubscribers, writes, hotKeys);
+    System.out.format(
+        "  %9.0f writes/s, %d threads started while writing%n", writes / seconds, threadsStarted);
+    System.out.format(
+        "  notifications sent: %d, coalesced: %d, dropped: %d%n",
+        dispatcher.getSentNotifications(),
+        dispatcher.getCoalescedNotifications(),
+        dispatcher.getDroppedNotifications());
+    System.out.format(
+        "  lag (ms) mean: %.2f, max: %.2f%n",
+        dispatcher.getMeanLagMillis(), dispatcher.getMaxLagMillis());
+    // what has been sent may still be on its way
+    TimeUnit.SECONDS.sleep(1);
+    for (boolean slow : new boolean[] {false, true}) {
+      long received =
+          clients.stream().filter(c -> c.slow == slow).mapToLong(c -> c.received.get()).sum();
+      long count = clients.stream().filter(c -> c.slow == slow).count();
+      if (count > 0) {
+        System.out.format(
+            "  %s subscribers received %.0f notifications each%n",
+            slow ? "slow" : "fast", (double) received / count);
+      }
+    }
+    server.stop();
+    System.exit(0);
+  }
+
+  /** Subscribes to every hot key, then reads notifications, pausing after each if slow. */
+  private static class Subscriber implements Runnable {
+    private final boolean slow;
+    private final AtomicLong received = new AtomicLong();
+    private final Socket socket;
+    private final InputStream input;
+
+    private Subscriber(boolean slow, int hotKeys) throws Exception {
+      this.slow = slow;
+      UUID clientId = UUID.randomUUID();
+      socket = connect();
+      input = new BufferedInputStream(socket.getInputStream());
+      Protocol.sendMessage(socket.getOutputStream(), new ClientIdentificationMessage(clientId));
+      for (int i = 0; i < hotKeys; i++) {
+        KVMessage subscribe =
+            new KVMessage("hot" + i, null, clientId, KVMessage.StatusType.SUBSCRIBE);
+        subscribe.calculateMAC();
+        Protocol.sendMessage(socket.getOutputStream(), subscribe);
+        Protocol.receiveMessage(input);
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+          Protocol.receiveMessage(input);
+          received.incrementAndGet();
+          if (slow) {
+            TimeUnit.MILLISECONDS.sleep(SLOW_READ_MILLIS);
+          }
+        }
+      } catch (Exception e) {
+        // the benchmark is over
+      }
+    }
+  }
+
+  private static Socket connect() throws InterruptedException {
+    while (true) {
+      try {
+        return new Socket("localhost", PORT);
+      } catch (IOException e) {
+        Thread.sleep(50);
+      }
+    }
+  }
+}
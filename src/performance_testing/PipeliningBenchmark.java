@@ -0,0 +1,166 @@
+package performance_testing;
+
+import static shared.communication.messages.DataTransferMessage.DataTransferMessageType.DATA_TRANSFER_REQUEST;
+
+import app_kvServer.KVServer;
+import app_kvServer.NetworkConfig;
+import app_kvServer.data.SynchronizedKVManager;
+import app_kvServer.data.cache.CacheStrategy;
+import app_kvServer.data.storage.StorageEngineConfig;
+import app_kvServer.data.storage.StorageUnit;
+import client.KVStore;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.stream.IntStream;
+import logger.LogSetup;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import shared.communication.Protocol;
+import shared.communication.messages.ClientIdentificationMessage;
+import shared.communication.messages.DataTransferMessage;
+import shared.communication.messages.KVMessage;
+import shared.communication.security.property_stores.ClientPropertyStore;
+
+/**
+ * A single client connection that keeps a number of requests in flight, a mix of GETs of stored
+ * keys and PUTs of new keys, against a KVServer whose PUTs wait for the disk. Reports the
+ * throughput of the connection and the latency of each kind of request.
+ *
+ * <p>Run it once with "pipelinedRequests=1" in the network mode to see the connection handled one
+ * request at a time, where every GET waits behind the PUTs before it.
+ */
+public class PipeliningBenchmark {
+  private static final int PORT = 50125;
+  private static final int NUM_KEYS = 1000;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length != 5) {
+      System.out.println(
+          "Please provide 5 args: <network-mode> <storage-engine> <requests> <inFlight>"
+              + " <putPercent>");
+      System.exit(1);
+    }
+    new LogSetup("logs/perftest.log", Level.ERROR, false);
+    NetworkConfig config = NetworkConfig.parse(args[0]);
+    StorageEngineConfig storage = StorageEngineConfig.parse(args[1]);
+    int requests = Integer.parseInt(args[2]);
+    int inFlight = Integer.parseInt(args[3]);
+    int putPercent = Integer.parseInt(args[4]);
+
+    Cleaner.clean();
+    SynchronizedKVManager.initialize(0, CacheStrategy.LRU, "localhost:" + PORT, false, storage);
+    KVServer server = new KVServer(PORT, config);
+    Logger.getRootLogger().setLevel(Level.ERROR);
+    HashSet<StorageUnit> units = new HashSet<>();
+    for (int i = 0; i < NUM_KEYS; i++) {
+      units.add(new StorageUnit("key" + i, "value" + i, UUID.randomUUID().toString(), "mac"));
+    }
+    SynchronizedKVManager.getInstance()
+        .handleDataTransfer(
+            new DataTransferMessage(DATA_TRANSFER_REQUEST, units, "benchmark", null));
+    new Thread(server).start();
+
+    KVStore.initializeClientPrivateKey();
+    ClientPropertyStore.getInstance().setSenderID("client");
+    UUID clientId = UUID.randomUUID();
+    // signed ahead of time, PUTs may not be replayed
+    Random random = new Random(0);
+    KVMessage[] messages = new KVMessage[requests];
+    byte[][] frames = new byte[requests][];
+    for (int i = 0; i < requests; i++) {
+      messages[i] =
+          random.nextInt(100) < putPercent
+              ? new KVMessage("new" + i, "value" + i, clientId, KVMessage.StatusType.PUT)
+              : new KVMessage(
+                  "key" + random.nextInt(NUM_KEYS), null, clientId, KVMessage.StatusType.GET);
+      messages[i].calculateMAC();
+      frames[i] = Protocol.frame(messages[i]);
+    }
+
+    Socket socket = connect();
+    socket.setTcpNoDelay(true);
+    OutputStream output = socket.getOutputStream();
+    InputStream input = new BufferedInputStream(socket.getInputStream());
+    Protocol.sendMessage(output, new ClientIdentificationMessage(clientId));
+
+    Map<UUID, Long> sentAt = new ConcurrentHashMap<>();
+    long[] latencies = new long[requests];
+    boolean[] isPut = new boolean[requests];
+    Map<UUID, Integer> index = new ConcurrentHashMap<>();
+    Semaphore window = new Semaphore(inFlight);
+    Thread sender =
+        new Thread(
+            () -> {
+              try {
+                for (int i = 0; i < requests; i++) {
+                  window.acquire();
+                  index.put(messages[i].getRequestId(), i);
+                  sentAt.put(messages[i].getRequestId(), System.nanoTime());
+                  output.write(frames[i]);
+                  output.flush();
+                }
+              } catch (IOException | InterruptedException e) {
+                e.printStackTrace();
+              }
+            });
+    long start = System.nanoTime();
+    sender.start();
+    int busy = 0;
+    for (int received = 0; received < requests; received++) {
+      KVMessage reply = (KVMessage) Protocol.receiveMessage(input);
+      int i = index.get(reply.getRequestId());
+      latencies[i] = System.nanoTime() - sentAt.get(reply.getRequestId());
+      isPut[i] = messages[i].getStatus() == KVMessage.StatusType.PUT;
+      busy += reply.getStatus() == KVMessage.StatusType.SERVER_BUSY ? 1 : 0;
+      window.release();
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+
+    System.out.format(
+        "%s, %s, %d requests, %d in flight, %d%% PUTs%n",
+        config, storage, requests, inFlight, putPercent);
+    System.out.format("  %9.0f requests/s, %d busy%n", requests / seconds, busy);
+    report("GET", latencies, isPut, false);
+    report("PUT", latencies, isPut, true);
+    socket.close();
+    server.stop();
+    System.exit(0);
+  }
+
+  private static Socket connect() throws InterruptedException {
+    while (true) {
+      try {
+        return new Socket("localhost", PORT);
+      } catch (IOException e) {
+        Thread.sleep(50);
+      }
+    }
+  }
+
+  private static void report(String kind, long[] latencies, boolean[] isPut, boolean puts) {
+    long[] selected =
+        IntStream.range(0, latencies.length)
+            .filter(i -> isPut[i] == puts)
+            .mapToLong(i -> latencies[i])
+            .sorted()
+            .toArray();
+    if (selected.length == 0) {
+      return;
+    }
+    System.out.format(
+        "  %s latency (ms) p50: %.2f, p99: %.2f, max: %.2f%n",
+        kind,
+        selected[selected.length / 2] / 1e6,
+        selected[(int) (selected.length * 0.99)] / 1e6,
+        selected[selected.length - 1] / 1e6);
+  }
+}
@@ -0,0 +1,81 @@
+package performance_testing;
+
+import app_kvServer.data.storage.DiskStorage;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import shared.communication.security.ReplayFilter;
+
+/**
+ * Heap retained by the ReplayFilter DiskStorage uses under a sustained write load, against the
+ * HashSet of every MAC it replaced. Time is simulated, so an hour of writes takes seconds.
+ */
+public class ReplayFilterBenchmark {
+  // a 2048 bit RSA signature, Base64 encoded like KVMessage.calculateMAC does
+  private static final int MAC_BYTES = 256;
+
+  public static void main(String[] args) {
+    if (args.length != 2) {
+      System.out.println("Please provide 2 args: <writesPerSecond> <minutes>");
+      System.exit(1);
+    }
+    int writesPerSecond = Integer.parseInt(args[0]);
+    int minutes = Integer.parseInt(args[1]);
+
+    AtomicLong now = new AtomicLong(System.currentTimeMillis());
+    long baseline = usedHeap();
+    ReplayFilter filter =
+        new ReplayFilter(
+            DiskStorage.REPLAY_WINDOW_MILLIS,
+            DiskStorage.REPLAY_FILTER_MESSAGES_PER_WINDOW,
+            1e-7,
+            now::get);
+    System.out.println("ReplayFilter:");
+    run(writesPerSecond, minutes, now, (mac, timestamp) -> filter.add(mac, timestamp), baseline);
+    System.out.format("  approximate MACs held: %d%n", filter.approximateSize());
+
+    baseline = usedHeap();
+    Set<String> seenIDs = new HashSet<>();
+    System.out.println("HashSet:");
+    run(writesPerSecond, minutes, now, (mac, timestamp) -> seenIDs.add(mac), baseline);
+    System.out.format("  MACs held: %d%n", seenIDs.size());
+  }
+
+  private interface Sink {
+    void add(String mac, long timestamp);
+  }
+
+  private static void run(int writesPerSecond, int minutes, AtomicLong now, Sink sink, long base) {
+    Random random = new Random(0);
+    byte[] mac = new byte[MAC_BYTES];
+    long nanos = 0;
+    for (int minute = 1; minute <= minutes; minute++) {
+      for (int second = 0; second < 60; second++) {
+        for (int i = 0; i < writesPerSecond; i++) {
+          random.nextBytes(mac);
+          String encoded = Base64.getEncoder().encodeToString(mac);
+          long start = System.nanoTime();
+          sink.add(encoded, now.get());
+          nanos += System.nanoTime() - start;
+        }
+        now.addAndGet(1000);
+      }
+      if (minute % 5 == 0 || minute == minutes) {
+        System.out.format(
+            "  after %3d min: %7.1f MB retained%n", minute, (usedHeap() - base) / 1e6);
+      }
+    }
+    System.out.format(
+        "  add latency (us): %.2f%n", nanos / 1e3 / ((long) writesPerSecond * 60 * minutes));
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -0,0 +1,58 @@
+package performance_testing;
+
+import ecs.ECSMetadataUtils;
+import ecs.ECSNode;
+import ecs.HashRing;
+import java.util.ArrayList;
+
+/**
+ * The lookups every request makes, the node responsible for a key and the nodes this node is a
+ * replica of, on the HashRing ECSMetadata routes with against the scans of the ring it replaced.
+ */
+public class RoutingBenchmark {
+  private static final int KEYS = 4096;
+
+  public static void main(String[] args) {
+    if (args.length != 2) {
+      System.out.println("Please provide 2 args: <nodes> <lookups>");
+      System.exit(1);
+    }
+    int size = Integer.parseInt(args[0]);
+    int lookups = Integer.parseInt(args[1]);
+
+    ArrayList<ECSNode> ring = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      ECSMetadataUtils.placeNewNodeOnTheRing(new ECSNode("127.0.0.1", 50000 + i), ring);
+    }
+    HashRing hashRing = new HashRing(ring);
+    String[] keys = new String[KEYS];
+    for (int i = 0; i < KEYS; i++) {
+      keys[i] = "key" + i;
+    }
+    String self = ring.get(size - 1).getNodeName();
+
+    System.out.format("%d nodes, %d lookups%n", size, lookups);
+    for (int round = 0; round < 3; round++) {
+      long start = System.nanoTime();
+      long found = 0;
+      for (int i = 0; i < lookups; i++) {
+        found += ECSMetadataUtils.getNodeBasedOnKey(keys[i % KEYS], ring).getNodePort();
+        found += ECSMetadataUtils.getNodesWhereIAmReplicaBasedOnName(self, ring).length;
+      }
+      long scan = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (int i = 0; i < lookups; i++) {
+        found -= hashRing.getNodeBasedOnKey(keys[i % KEYS]).getNodePort();
+        found -= hashRing.getNodesWhereReplica(self).length;
+      }
+      long search = System.nanoTime() - start;
+      if (found != 0) {
+        throw new IllegalStateException("The lookups disagree");
+      }
+      System.out.format(
+          "  round %d, ns per lookup: scan %.0f, HashRing %.0f%n",
+          round, (double) scan / lookups, (double) search / lookups);
+    }
+  }
+}
@@ -0,0 +1,124 @@
+package performance_testing;
+
+import app_kvServer.data.storage.DiskStorageException;
+import app_kvServer.data.storage.StorageEngine;
+import app_kvServer.data.storage.StorageEngine.StorageType;
+import app_kvServer.data.storage.StorageEngineConfig;
+import app_kvServer.data.storage.StorageEngineFactory;
+import client.KVStore;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import logger.LogSetup;
+import org.apache.log4j.Level;
+import shared.communication.messages.KVMessage;
+import shared.communication.security.KeyLoader;
+import shared.communication.security.keys.ClientPublicKey;
+import shared.communication.security.property_stores.ServerPropertyStore;
+
+/**
+ * Client writes and reads against a StorageEngine on its own, then again while replication writes
+ * to both replica files, to show how much inbound replication slows down clients.
+ */
+public class StorageContentionBenchmark {
+  private static final String NODE_NAME = "ContentionBenchmark";
+
+  public static void main(String[] args) throws Exception {
+    if (args.length != 4) {
+      System.out.println(
+          "Please provide 4 args: <storage-engine> <numClients> <numReplicationWriters>"
+              + " <numRequests>");
+      System.exit(1);
+    }
+    new LogSetup("logs/perftest.log", Level.ERROR, false);
+    KVStore.initializeClientPrivateKey();
+    ServerPropertyStore.getInstance()
+        .setClientPublicKey(KeyLoader.getPublicKey(ClientPublicKey.base64EncodedPublicKey));
+    StorageEngineConfig config = StorageEngineConfig.parse(args[0]);
+    int numClients = Integer.parseInt(args[1]);
+    int numReplicationWriters = Integer.parseInt(args[2]);
+    int numRequests = Integer.parseInt(args[3]);
+
+    System.out.println("Storage engine: " + config);
+    System.out.println("Clients alone:");
+    runPhase(config, numClients, 0, numRequests);
+    System.out.println("Clients with " + numReplicationWriters + " replication writers:");
+    runPhase(config, numClients, numReplicationWriters, numRequests);
+  }
+
+  private static void runPhase(
+      StorageEngineConfig config, int numClients, int numReplicationWriters, int numRequests)
+      throws DiskStorageException, IOException, InterruptedException, ExecutionException {
+    Cleaner.clean();
+    StorageEngine engine = new StorageEngineFactory().getStorageEngine(config, NODE_NAME, false);
+    ExecutorService executor = Executors.newFixedThreadPool(numClients + numReplicationWriters);
+    List<Future<Metrics>> clients = new ArrayList<>();
+    List<Future<Metrics>> replication = new ArrayList<>();
+    long start = System.nanoTime();
+    for (int i = 0; i < numClients; i++) {
+      clients.add(executor.submit(worker(engine, "client" + i, StorageType.SELF, numRequests)));
+    }
+    for (int i = 0; i < numReplicationWriters; i++) {
+      StorageType replica = i % 2 == 0 ? StorageType.REPLICA_1 : StorageType.REPLICA_2;
+      replication.add(executor.submit(worker(engine, "replica" + i, replica, numRequests)));
+    }
+    List<Metrics> clientResults = new ArrayList<>();
+    for (Future<Metrics> client : clients) {
+      clientResults.add(client.get());
+    }
+    double clientSeconds = (System.nanoTime() - start) / 1e9;
+    List<Metrics> replicationResults = new ArrayList<>();
+    for (Future<Metrics> writer : replication) {
+      replicationResults.add(writer.get());
+    }
+    double totalSeconds = (System.nanoTime() - start) / 1e9;
+    executor.shutdown();
+    executor.awaitTermination(1, TimeUnit.MINUTES);
+    engine.close();
+
+    printResults("client", clientResults, clientSeconds);
+    if (numReplicationWriters > 0) {
+      printResults("replication", replicationResults, totalSeconds);
+    }
+  }
+
+  /** Alternately write and read back numRequests keys of its own in storageType. */
+  private static Callable<Metrics> worker(
+      StorageEngine engine, String name, StorageType storageType, int numRequests) {
+    return () -> {
+      Metrics metrics = new Metrics();
+      for (int i = 0; i < numRequests; i++) {
+        String key = name + "-" + i;
+        KVMessage put =
+            new KVMessage(key, "value" + i, UUID.randomUUID(), KVMessage.StatusType.PUT);
+        put.calculateMAC();
+        long start = System.nanoTime();
+        engine.write(put, storageType);
+        metrics.updatePutLatency(System.nanoTime() - start);
+
+        KVMessage get = new KVMessage(key, null, UUID.randomUUID(), KVMessage.StatusType.GET);
+        start = System.nanoTime();
+        engine.get(get, storageType);
+        metrics.updateGetLatency(System.nanoTime() - start);
+      }
+      return metrics;
+    };
+  }
+
+  private static void printResults(String workers, List<Metrics> results, double seconds) {
+    double writes = results.stream().mapToDouble(Metrics::getNumPuts).sum();
+    System.out.format(
+        "  %s write latency (ms): %.3f, read latency (ms): %.3f, writes/s: %.1f%n",
+        workers,
+        results.stream().mapToDouble(Metrics::getAverageWriteLatency).average().orElse(-1),
+        results.stream().mapToDouble(Metrics::getAverageReadLatency).average().orElse(-1),
+        writes / seconds);
+  }
+}
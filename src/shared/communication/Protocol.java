@@ -1,8 +1,10 @@
 package shared.communication;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import org.apache.log4j.Logger;
 import shared.communication.messages.Message;
 import shared.communication.messages.MessageException;
@@ -10,85 +12,68 @@ import shared.communication.messages.MessageException;
 public class Protocol {
   private static final Logger logger = Logger.getLogger(Protocol.class);
   private static final int BUFFER_SIZE = 1024;
-  private static final int DROP_SIZE = 128 * BUFFER_SIZE;
+  // large enough for a full data transfer chunk, see app_kvServer.data.DataTransferStream
+  public static final int MAX_MESSAGE_BYTES = 4 * 1024 * BUFFER_SIZE;
   private static final char LINE_FEED = 0x0A;
   private static final char RETURN = 0x0D;
   private static final byte[] ctrBytes = new byte[] {LINE_FEED, RETURN};
+  /** The byte every message ends with. */
+  public static final byte END_OF_MESSAGE = RETURN;
 
   public static void sendMessage(final OutputStream output, Message message) throws IOException {
+    output.write(frame(message));
+    output.flush();
+    logger.info("sent: " + message);
+  }
+
+  /** @return the bytes sent for the message, ending with END_OF_MESSAGE. */
+  public static byte[] frame(Message message) {
     byte[] bytes = message.serialize();
     byte[] messageBytes = new byte[bytes.length + ctrBytes.length];
 
     System.arraycopy(bytes, 0, messageBytes, 0, bytes.length);
     System.arraycopy(ctrBytes, 0, messageBytes, bytes.length, ctrBytes.length);
-
-    output.write(messageBytes);
-    output.flush();
-    logger.info("sent: " + message);
+    return messageBytes;
   }
 
+  /**
+   * Read the next message, which must end with a carriage return. Messages over MAX_MESSAGE_BYTES
+   * are read to their end and rejected, so the stream stays in sync with the sender.
+   *
+   * @throws ProtocolException if the connection was closed or the message was too large.
+   */
   public static Message receiveMessage(final InputStream input)
       throws IOException, ProtocolException {
-    int index = 0;
-    byte[] msgBytes = null, tmp;
-    byte[] bufferBytes = new byte[BUFFER_SIZE];
-
-    /* read first char from stream */
-    byte read = (byte) input.read();
-    boolean reading = true;
-
-    while (read != 13 && reading) {
-      /* carriage return */
-      /* if buffer filled, copy to msg array */
-      if (index == BUFFER_SIZE) {
-        if (msgBytes == null) {
-          tmp = new byte[BUFFER_SIZE];
-          System.arraycopy(bufferBytes, 0, tmp, 0, BUFFER_SIZE);
-        } else {
-          tmp = new byte[msgBytes.length + BUFFER_SIZE];
-          System.arraycopy(msgBytes, 0, tmp, 0, msgBytes.length);
-          System.arraycopy(bufferBytes, 0, tmp, msgBytes.length, BUFFER_SIZE);
-        }
-
-        msgBytes = tmp;
-        bufferBytes = new byte[BUFFER_SIZE];
-        index = 0;
+    ByteArrayOutputStream msgBytes = new ByteArrayOutputStream(BUFFER_SIZE);
+    boolean oversized = false;
+
+    /* read until carriage return */
+    int read = input.read();
+    while (read != RETURN && read != -1) {
+      if (msgBytes.size() < MAX_MESSAGE_BYTES) {
+        msgBytes.write(read);
+      } else {
+        oversized = true;
       }
-
-      bufferBytes[index] = read;
-      index++;
-
-      /* stop reading if DROP_SIZE is reached */
-      if (msgBytes != null && msgBytes.length + index >= DROP_SIZE) {
-        reading = false;
-      }
-
-      /* read next char from stream */
-      read = (byte) input.read();
+      read = input.read();
     }
-    if (msgBytes == null) {
-      tmp = new byte[index];
-      System.arraycopy(bufferBytes, 0, tmp, 0, index);
-    } else {
-      tmp = new byte[msgBytes.length + index];
-      System.arraycopy(msgBytes, 0, tmp, 0, msgBytes.length);
-      System.arraycopy(bufferBytes, 0, tmp, msgBytes.length, index);
-    }
-
-    msgBytes = tmp;
 
     // Check if stream is closed (read returns -1)
     if (read == -1) {
       throw new ProtocolException("Connection closed by the other side!");
     }
+    if (oversized) {
+      throw new ProtocolException(
+          "Dropped message larger than "
+              + MAX_MESSAGE_BYTES
+              + " bytes, starting with: "
+              + new String(msgBytes.toByteArray(), 0, 64, StandardCharsets.UTF_8));
+    }
 
-    /* build final String */
+    /* build final String, the trailing line feed is trimmed on deserialization */
     Message message = null;
     try {
-      byte[] actualBytes = new byte[msgBytes.length - ctrBytes.length + 1];
-      System.arraycopy(msgBytes, 0, actualBytes, 0, actualBytes.length);
-
-      message = Message.deserialize(actualBytes);
+      message = Message.deserialize(msgBytes.toByteArray());
 
       logger.info("received: " + message);
     } catch (MessageException e) {
@@ -1,9 +1,13 @@
 package shared.communication.messages;
 
-import app_kvServer.data.storage.DiskStorage;
+import app_kvServer.data.storage.StorageEngine;
 import app_kvServer.data.storage.StorageUnit;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.UUID;
 
 public class DataTransferMessage extends Message {
   private final DataTransferMessageType type;
@@ -11,6 +15,21 @@ public class DataTransferMessage extends Message {
   private final String message;
   private String[] hashRange = null;
   private ECSMessage ecsMessage;
+  // DIGEST: fingerprint of every key the responder holds in the requested range
+  private HashMap<String, String> digest = new HashMap<>();
+  // DATA_TRANSFER_REQUEST: keys the receiver holds in the range that the sender no longer has
+  private HashSet<String> deletedKeys = new HashSet<>();
+  // STREAM_*, CHUNK_ACK and chunked DIGEST replies: which stream and which chunk of it
+  private String streamId = null;
+  private long sequence = -1;
+  // ring position of the last key covered by the chunk, see ECSUtils.ringPosition
+  private String resumeAfter = null;
+  private boolean hasMore = false;
+  // number of bytes of raw records following this message on the wire
+  private long rawLength = 0;
+  // subscribers of the keys whose raw records follow, keys without subscribers are left out
+  private HashMap<String, ArrayList<UUID>> subscriptions = new HashMap<>();
+  private transient InputStream rawRecords = null;
 
   public DataTransferMessage(
       final DataTransferMessageType type,
@@ -41,15 +60,15 @@ public class DataTransferMessage extends Message {
     this.ecsMessage = ecsMessage;
   }
 
-  public DiskStorage.StorageType getStorageType() {
+  public StorageEngine.StorageType getStorageType() {
     return storageType;
   }
 
-  public void setStorageType(DiskStorage.StorageType storageType) {
+  public void setStorageType(StorageEngine.StorageType storageType) {
     this.storageType = storageType;
   }
 
-  private DiskStorage.StorageType storageType = DiskStorage.StorageType.SELF;
+  private StorageEngine.StorageType storageType = StorageEngine.StorageType.SELF;
 
   public String[] getHashRange() {
     return this.hashRange;
@@ -71,13 +90,92 @@ public class DataTransferMessage extends Message {
     return this.payload;
   }
 
+  public HashMap<String, String> getDigest() {
+    return digest == null ? new HashMap<>() : digest;
+  }
+
+  public void setDigest(HashMap<String, String> digest) {
+    this.digest = digest;
+  }
+
+  public HashSet<String> getDeletedKeys() {
+    return deletedKeys == null ? new HashSet<>() : deletedKeys;
+  }
+
+  public void setDeletedKeys(HashSet<String> deletedKeys) {
+    this.deletedKeys = deletedKeys;
+  }
+
+  public String getStreamId() {
+    return streamId;
+  }
+
+  public void setStreamId(String streamId) {
+    this.streamId = streamId;
+  }
+
+  public long getSequence() {
+    return sequence;
+  }
+
+  public void setSequence(long sequence) {
+    this.sequence = sequence;
+  }
+
+  public String getResumeAfter() {
+    return resumeAfter;
+  }
+
+  public void setResumeAfter(String resumeAfter) {
+    this.resumeAfter = resumeAfter;
+  }
+
+  /** @return whether more messages of the same stream or digest follow this one. */
+  public boolean hasMore() {
+    return hasMore;
+  }
+
+  public void setHasMore(boolean hasMore) {
+    this.hasMore = hasMore;
+  }
+
+  public long getRawLength() {
+    return rawLength;
+  }
+
+  public void setRawLength(long rawLength) {
+    this.rawLength = rawLength;
+  }
+
+  public HashMap<String, ArrayList<UUID>> getSubscriptions() {
+    return subscriptions == null ? new HashMap<>() : subscriptions;
+  }
+
+  public void setSubscriptions(HashMap<String, ArrayList<UUID>> subscriptions) {
+    this.subscriptions = subscriptions;
+  }
+
+  /** @return the raw records received after this message, or null if there are none. */
+  public InputStream getRawRecords() {
+    return rawRecords;
+  }
+
+  public void setRawRecords(InputStream rawRecords) {
+    this.rawRecords = rawRecords;
+  }
+
   public enum DataTransferMessageType {
     DATA_TRANSFER_REQUEST,
     DATA_TRANSFER_SUCCESS,
     DATA_TRANSFER_FAILURE,
     MOVE_REPLICA2_TO_REPLICA1,
     MOVE_REPLICA1_TO_REPLICA2,
-    DELETE_DATA
+    DELETE_DATA,
+    DIGEST_REQUEST,
+    DIGEST,
+    STREAM_CHUNK,
+    STREAM_RESUME,
+    CHUNK_ACK
   }
 
   @Override
@@ -92,6 +190,7 @@ public class DataTransferMessage extends Message {
         + Arrays.toString(hashRange)
         + ", storageType="
         + storageType
+        + (streamId == null ? "" : ", streamId=" + streamId + ", sequence=" + sequence)
         + '}';
   }
 }
@@ -73,6 +73,15 @@ public class ECSMessage extends Message {
     return senderID;
   }
 
+  /** @return when the message was created, in milliseconds, Long.MIN_VALUE if it is malformed. */
+  public long getTimestamp() {
+    try {
+      return Long.parseLong(timestamp);
+    } catch (NumberFormatException e) {
+      return Long.MIN_VALUE;
+    }
+  }
+
   public String generateHash() {
     return Hashing.calculateMD5Hash(this.timestamp + this.senderID);
   }
@@ -17,6 +17,7 @@ public class KVMessage extends ClientServerMessage {
   private final UUID clientId;
 
   private String MAC = null;
+  private Long retryAfterMillis = null;
   // basic request message constructor for client
   public KVMessage(String key, String value, UUID clientId, StatusType statusType) {
     this.key = key;
@@ -65,10 +66,46 @@ public class KVMessage extends ClientServerMessage {
     return MAC;
   }
 
+  /** @return how long a client should wait before retrying after SERVER_BUSY, 0 if not given. */
+  public long getRetryAfterMillis() {
+    return retryAfterMillis == null ? 0 : retryAfterMillis;
+  }
+
+  // only used by the server
+  public KVMessage withRetryAfterMillis(long retryAfterMillis) {
+    this.retryAfterMillis = retryAfterMillis;
+    return this;
+  }
+
   public String getUniqueID() {
     return timestamp + senderID;
   }
 
+  /** @return when the message was created, in milliseconds, Long.MIN_VALUE if it is malformed. */
+  public long getTimestamp() {
+    return parseTimestamp(timestamp);
+  }
+
+  /** @return the creation time in the uniqueID of a message, as getTimestamp returns it. */
+  public static long timestampOf(String uniqueID) {
+    if (uniqueID == null) {
+      return Long.MIN_VALUE;
+    }
+    int digits = 0;
+    while (digits < uniqueID.length() && Character.isDigit(uniqueID.charAt(digits))) {
+      digits++;
+    }
+    return parseTimestamp(uniqueID.substring(0, digits));
+  }
+
+  private static long parseTimestamp(String timestamp) {
+    try {
+      return Long.parseLong(timestamp);
+    } catch (NumberFormatException e) {
+      return Long.MIN_VALUE;
+    }
+  }
+
   public String generateMessageHash() {
     return Hashing.calculateMD5Hash(this.key + this.value + this.timestamp + this.senderID);
   }
@@ -143,5 +180,6 @@ public class KVMessage extends ClientServerMessage {
     NOT_RESPONSIBLE,
     SERVER_WRITE_LOCK,
     SERVER_STOPPED,
+    SERVER_BUSY, /* too many requests queued, retry after getRetryAfterMillis */
   }
 }
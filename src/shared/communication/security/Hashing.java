@@ -9,18 +9,25 @@ public class Hashing {
 
   private static final Logger logger = Logger.getLogger(Hashing.class);
 
+  // MessageDigest.getInstance looks the algorithm up among the providers on every call
+  private static final ThreadLocal<MessageDigest> MD5 =
+      ThreadLocal.withInitial(
+          () -> {
+            try {
+              return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+              String msg = "Unable to retrieve MD5 Algorithm";
+              logger.error(msg, e);
+              throw new RuntimeException(msg);
+            }
+          });
+
   public static String calculateMD5Hash(String string) {
-    MessageDigest md;
-    try {
-      md = MessageDigest.getInstance("MD5");
-    } catch (NoSuchAlgorithmException e) {
-      String msg = "Unable to retrieve MD5 Algorithm";
-      logger.error(msg, e);
-      throw new RuntimeException(msg);
-    }
-    assert (md != null);
-    md.update(string.getBytes());
-    byte[] digest = md.digest();
-    return DatatypeConverter.printHexBinary(digest).toUpperCase();
+    return DatatypeConverter.printHexBinary(calculateMD5Digest(string)).toUpperCase();
+  }
+
+  /** @return the 16 bytes of the MD5 digest of the string, calculateMD5Hash without the hex. */
+  public static byte[] calculateMD5Digest(String string) {
+    return MD5.get().digest(string.getBytes());
   }
 }
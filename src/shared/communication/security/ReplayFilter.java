@@ -0,0 +1,146 @@
+package shared.communication.security;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongSupplier;
+import org.apache.log4j.Logger;
+
+/**
+ * Remembers the MACs of signed messages for long enough to reject replays, in constant memory.
+ *
+ * <p>Messages are only accepted while their timestamp is within window of now, either way, so a
+ * replay has to arrive within 2 * window of the original. The MACs are kept in Bloom filters, one
+ * generation per window: the current generation takes new MACs, and a generation is dropped once
+ * everything added to it is at least 2 * window old. Lookups check every generation still held,
+ * which is at most three.
+ *
+ * <p>Each generation is sized for expectedPerWindow MACs when it is created, so memory doesn't grow
+ * with load. Beyond that many MACs per window the false positive rate climbs, and so does the
+ * chance of rejecting a message that was never seen.
+ *
+ * <p>Safe for concurrent use: the Bloom filters are lock-free and rotation swaps an immutable list
+ * of generations.
+ */
+public final class ReplayFilter {
+  private static final Logger logger = Logger.getLogger(ReplayFilter.class);
+  private final long windowMillis;
+  private final int expectedPerWindow;
+  private final double falsePositiveRate;
+  private final LongSupplier clock;
+  private volatile List<Generation> generations;
+
+  public ReplayFilter(long windowMillis, int expectedPerWindow, double falsePositiveRate) {
+    this(windowMillis, expectedPerWindow, falsePositiveRate, System::currentTimeMillis);
+  }
+
+  /** @param clock the current time in milliseconds, for tests to control. */
+  public ReplayFilter(
+      long windowMillis, int expectedPerWindow, double falsePositiveRate, LongSupplier clock) {
+    if (windowMillis <= 0 || expectedPerWindow <= 0) {
+      throw new IllegalArgumentException("window and expectedPerWindow must be positive");
+    }
+    this.windowMillis = windowMillis;
+    this.expectedPerWindow = expectedPerWindow;
+    this.falsePositiveRate = falsePositiveRate;
+    this.clock = clock;
+    List<Generation> initial = new ArrayList<>();
+    initial.add(new Generation(clock.getAsLong()));
+    this.generations = initial;
+  }
+
+  /** @return whether a message sent at timestampMillis may still be accepted. */
+  public boolean isFresh(long timestampMillis) {
+    long now = clock.getAsLong();
+    return timestampMillis >= now - windowMillis && timestampMillis <= now + windowMillis;
+  }
+
+  /**
+   * @return false if the message with this MAC was definitely not added in the last 2 * window,
+   *     true if it probably was.
+   */
+  public boolean mightHaveSeen(String mac) {
+    if (mac == null) {
+      return false;
+    }
+    for (Generation generation : current()) {
+      if (generation.macs.mightContain(mac)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Remember the MAC of a message sent at timestampMillis. Messages that are no longer fresh are
+   * not remembered: they are rejected without looking at the filter.
+   */
+  public void add(String mac, long timestampMillis) {
+    if (mac == null || !isFresh(timestampMillis)) {
+      return;
+    }
+    Generation generation = current().get(0);
+    generation.macs.put(mac);
+    if (!generation.warned && generation.macs.approximateElementCount() > expectedPerWindow) {
+      generation.warned = true;
+      logger.warn(
+          "More than "
+              + expectedPerWindow
+              + " messages this window, replay filter false positive rate is rising");
+    }
+  }
+
+  /** @return the approximate number of MACs remembered. */
+  public long approximateSize() {
+    long size = 0;
+    for (Generation generation : current()) {
+      size += generation.macs.approximateElementCount();
+    }
+    return size;
+  }
+
+  /**
+   * @return the generations still held, newest first, starting a new one once the newest has had
+   *     its window.
+   */
+  private List<Generation> current() {
+    List<Generation> held = generations;
+    long now = clock.getAsLong();
+    if (now - held.get(0).start < windowMillis) {
+      return held;
+    }
+    synchronized (this) {
+      held = generations;
+      if (now - held.get(0).start < windowMillis) {
+        return held;
+      }
+      List<Generation> rotated = new ArrayList<>();
+      rotated.add(new Generation(now));
+      // a generation took MACs until the next one started
+      long end = now;
+      for (Generation generation : held) {
+        if (end + 2 * windowMillis <= now) {
+          break;
+        }
+        rotated.add(generation);
+        end = generation.start;
+      }
+      generations = rotated;
+      return rotated;
+    }
+  }
+
+  private class Generation {
+    private final long start;
+    private final BloomFilter<String> macs =
+        BloomFilter.create(
+            Funnels.stringFunnel(StandardCharsets.UTF_8), expectedPerWindow, falsePositiveRate);
+    private volatile boolean warned = false;
+
+    private Generation(long start) {
+      this.start = start;
+    }
+  }
+}
@@ -5,7 +5,7 @@ import static org.junit.Assert.fail;
 import static shared.communication.messages.DataTransferMessage.DataTransferMessageType.*;
 
 import app_kvECS.ECSClient;
-import app_kvServer.data.storage.DiskStorage;
+import app_kvServer.data.storage.StorageEngine;
 import client.KVStore;
 import client.KVStoreException;
 import com.google.gson.Gson;
@@ -147,7 +147,7 @@ public class AuthAcceptanceTests {
             nodeResponsible.getNodeHashRange(),
             "Delete all your data please",
             ecsMessage);
-    dataTransferMessage.setStorageType(DiskStorage.StorageType.SELF);
+    dataTransferMessage.setStorageType(StorageEngine.StorageType.SELF);
 
     DataTransferMessage response =
         (DataTransferMessage) TestUtils.sendMessageToNode(nodeResponsible, dataTransferMessage);
@@ -184,7 +184,7 @@ public class AuthAcceptanceTests {
             nodeResponsible.getNodeHashRange(),
             "Delete all your data please",
             ecsMessage);
-    dataTransferMessage.setStorageType(DiskStorage.StorageType.REPLICA_1);
+    dataTransferMessage.setStorageType(StorageEngine.StorageType.REPLICA_1);
 
     DataTransferMessage response =
         (DataTransferMessage) TestUtils.sendMessageToNode(replicaToFail, dataTransferMessage);
@@ -230,8 +230,8 @@ public class AuthAcceptanceTests {
             ecsMessage);
 
     for (int i = 0; i < replicas.length; i++) {
-      dataTransferMessage.setStorageType(DiskStorage.StorageType.REPLICA_1);
-      if (i == 1) dataTransferMessage.setStorageType(DiskStorage.StorageType.REPLICA_2);
+      dataTransferMessage.setStorageType(StorageEngine.StorageType.REPLICA_1);
+      if (i == 1) dataTransferMessage.setStorageType(StorageEngine.StorageType.REPLICA_2);
       DataTransferMessage response =
           (DataTransferMessage) TestUtils.sendMessageToNode(replicas[i], dataTransferMessage);
       assertNotNull(response);
@@ -0,0 +1,137 @@
+package testing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import app_kvServer.data.storage.FlatFileIndex;
+import app_kvServer.data.storage.StorageUnit;
+import app_kvServer.data.storage.StorageUnitException;
+import app_kvServer.data.storage.StorageUnitRecord;
+import ecs.ECSUtils;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.HashSet;
+import java.util.UUID;
+import org.junit.After;
+import org.junit.Test;
+
+public class FlatFileIndexTest {
+  private static final File FILE = new File("KeyValueData_FlatFileIndexTest.dat");
+  private static final File SIDECAR = new File(FILE.getPath() + ".idx");
+  private static final String[] LOWER_HALF = {
+    "00000000000000000000000000000000", "80000000000000000000000000000000"
+  };
+
+  @After
+  public void tearDown() {
+    FILE.delete();
+    SIDECAR.delete();
+  }
+
+  @Test
+  public void testScanLocatesEveryRecord() throws IOException, StorageUnitException {
+    writeFile(100);
+    FlatFileIndex index = FlatFileIndex.scan(FILE, null);
+    assertEquals(100, index.size());
+    long offset = 0;
+    for (int i = 0; i < 100; i++) {
+      FlatFileIndex.Entry entry = index.get("key" + i);
+      assertEquals(offset, entry.getOffset());
+      offset += entry.getLength();
+    }
+    assertEquals(FILE.length(), offset);
+    assertNull(index.get("missing"));
+  }
+
+  @Test
+  public void testSavedIndexIsLoaded() throws IOException, StorageUnitException {
+    writeFile(100);
+    FlatFileIndex scanned = FlatFileIndex.scan(FILE, null);
+    scanned.save(FILE);
+
+    FlatFileIndex loaded = FlatFileIndex.load(FILE);
+    assertNotNull(loaded);
+    assertEquals(scanned.size(), loaded.size());
+    for (int i = 0; i < 100; i++) {
+      assertEquals(scanned.get("key" + i).getOffset(), loaded.get("key" + i).getOffset());
+      assertEquals(scanned.get("key" + i).getHash(), loaded.get("key" + i).getHash());
+    }
+    // kept for the next startup, whether or not this one ends cleanly
+    assertNotNull(FlatFileIndex.load(FILE));
+  }
+
+  @Test
+  public void testIgnoresIndexOfAnotherVersion() throws IOException, StorageUnitException {
+    writeFile(10);
+    FlatFileIndex.scan(FILE, null).save(FILE);
+    writeFile(11);
+    assertNull(FlatFileIndex.load(FILE));
+  }
+
+  @Test
+  public void testIgnoresIndexOfAVersionOfTheSameLength() throws IOException, StorageUnitException {
+    writeFile(10);
+    FlatFileIndex.scan(FILE, null).save(FILE);
+    long length = FILE.length();
+    // a new version whose index a crash kept from being saved
+    writeFile(10);
+    Files.setLastModifiedTime(
+        FILE.toPath(),
+        FileTime.fromMillis(Files.getLastModifiedTime(FILE.toPath()).toMillis() + 1000));
+    assertEquals(length, FILE.length());
+    assertNull(FlatFileIndex.load(FILE));
+  }
+
+  @Test
+  public void testIgnoresTornIndex() throws IOException, StorageUnitException {
+    writeFile(10);
+    FlatFileIndex.scan(FILE, null).save(FILE);
+    try (FileChannel sidecar = FileChannel.open(SIDECAR.toPath(), StandardOpenOption.WRITE)) {
+      sidecar.truncate(SIDECAR.length() / 2);
+    }
+    assertNull(FlatFileIndex.load(FILE));
+  }
+
+  @Test
+  public void testIgnoresCorruptIndex() throws IOException, StorageUnitException {
+    writeFile(10);
+    FlatFileIndex.scan(FILE, null).save(FILE);
+    try (FileChannel sidecar = FileChannel.open(SIDECAR.toPath(), StandardOpenOption.WRITE)) {
+      sidecar.write(ByteBuffer.wrap(new byte[] {'x'}), SIDECAR.length() / 2);
+    }
+    assertNull(FlatFileIndex.load(FILE));
+  }
+
+  @Test
+  public void testKeysInRangeUseTheIndexAlone() throws IOException, StorageUnitException {
+    writeFile(200);
+    FlatFileIndex index = FlatFileIndex.scan(FILE, null);
+    assertTrue(FILE.delete());
+    HashSet<String> expected = new HashSet<>();
+    for (int i = 0; i < 200; i++) {
+      if (ECSUtils.checkIfKeyBelongsInRange("key" + i, LOWER_HALF)) {
+        expected.add("key" + i);
+      }
+    }
+    assertEquals(expected, new HashSet<>(index.keysInRange(LOWER_HALF)));
+  }
+
+  private static void writeFile(int keys) throws IOException, StorageUnitException {
+    try (FileOutputStream output = new FileOutputStream(FILE)) {
+      for (int i = 0; i < keys; i++) {
+        output.write(
+            StorageUnitRecord.encode(
+                new StorageUnit("key" + i, "value" + i, UUID.randomUUID().toString(), "mac"),
+                null));
+      }
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package testing;
+
+import static org.junit.Assert.*;
+
+import ecs.ECSMetadata;
+import ecs.ECSMetadataUtils;
+import ecs.ECSNode;
+import ecs.HashRing;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import org.junit.Test;
+
+public class HashRingTest {
+
+  private static ArrayList<ECSNode> ringOf(int size) {
+    ArrayList<ECSNode> ring = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      ECSMetadataUtils.placeNewNodeOnTheRing(new ECSNode("127.0.0.1", 50000 + i), ring);
+    }
+    return ring;
+  }
+
+  @Test
+  public void testKeysAreRoutedAsByTheirRanges() {
+    for (int size = 1; size <= 7; size++) {
+      ArrayList<ECSNode> ring = ringOf(size);
+      HashRing hashRing = new HashRing(ring);
+      for (int i = 0; i < 2000; i++) {
+        String key = "key" + i;
+        assertSame(
+            key + " on a ring of " + size,
+            ECSMetadataUtils.getNodeBasedOnKey(key, ring),
+            hashRing.getNodeBasedOnKey(key));
+      }
+    }
+  }
+
+  @Test
+  public void testReplicasAreThoseOfTheRing() {
+    for (int size = 1; size <= 5; size++) {
+      ArrayList<ECSNode> ring = ringOf(size);
+      HashRing hashRing = new HashRing(ring);
+      for (ECSNode node : ring) {
+        String name = node.getNodeName();
+        assertSame(node, hashRing.getNodeBasedOnName(name));
+        assertArrayEquals(
+            ECSMetadataUtils.getReplicasBasedOnName(name, ring), hashRing.getReplicas(name));
+        assertArrayEquals(
+            ECSMetadataUtils.getNodesWhereIAmReplicaBasedOnName(name, ring),
+            hashRing.getNodesWhereReplica(name));
+        assertSame(ECSMetadataUtils.findPredecessor(name, ring), hashRing.getPredecessor(name));
+        assertSame(ECSMetadataUtils.findSuccessor(name, ring), hashRing.getSuccessor(name));
+      }
+    }
+  }
+
+  @Test
+  public void testUnknownNodesAndEmptyRings() {
+    HashRing empty = new HashRing(new ArrayList<>());
+    assertNull(empty.getNodeBasedOnKey("key"));
+    assertNull(empty.getNodeBasedOnName("127.0.0.1:50000"));
+    assertEquals(0, empty.getReplicas("127.0.0.1:50000").length);
+
+    HashRing ring = new HashRing(ringOf(3));
+    assertNull(ring.getNodeBasedOnName("127.0.0.1:1"));
+    assertNull(ring.getReplicas("127.0.0.1:1"));
+    assertNull(ring.getNodesWhereReplica("127.0.0.1:1"));
+  }
+
+  @Test
+  public void testChangesToTheRingDoNotAffectIt() {
+    ArrayList<ECSNode> ring = ringOf(3);
+    HashRing before = new HashRing(ring);
+    ECSNode removed = ring.get(1);
+    ECSMetadataUtils.removeNodeFromTheRing(removed.getNodeName(), ring);
+    assertEquals(3, before.size());
+    assertSame(removed, before.getNodeBasedOnName(removed.getNodeName()));
+    assertNull(new HashRing(ring).getNodeBasedOnName(removed.getNodeName()));
+  }
+
+  @Test
+  public void testChangesToTheMetadataLeavePublishedRings() throws Exception {
+    // on a metadata of its own, the one servers started by other tests route with is put back
+    Field instance = ECSMetadata.class.getDeclaredField("singletonECSMetadata");
+    instance.setAccessible(true);
+    Object previous = instance.get(null);
+    instance.set(null, null);
+    try {
+      ECSMetadata.initialize(ringOf(3));
+      ECSMetadata metadata = ECSMetadata.getInstance();
+      ArrayList<ECSNode> before = metadata.getNodeRing();
+      String[][] rangesBefore =
+          before.stream().map(ECSNode::getNodeHashRange).toArray(String[][]::new);
+
+      ECSNode added = new ECSNode("127.0.0.1", 50003);
+      ECSNode[] affected = metadata.placeNewNodeOnTheRing(added);
+      assertSame(added, metadata.getNodeBasedOnName(added.getNodeName()));
+      assertSame(affected[1], metadata.getNodeBasedOnName(affected[1].getNodeName()));
+      metadata.removeNodeFromTheRing(before.get(0).getNodeName());
+      assertEquals(3, metadata.getNumberOfNodes());
+
+      assertEquals(3, before.size());
+      for (int i = 0; i < before.size(); i++) {
+        assertArrayEquals(rangesBefore[i], before.get(i).getNodeHashRange());
+      }
+      metadata.clear();
+      assertEquals(3, before.size());
+      assertEquals(0, metadata.getNumberOfNodes());
+    } finally {
+      instance.set(null, previous);
+    }
+  }
+}
@@ -20,7 +20,14 @@ public class KVServerInitializerTest {
             " 1 2 3",
             "1 -1 FIFO",
             "",
-            "50000  1000   notastrat ")
+            "50000  1000   notastrat ",
+            "50000 1000 LRU false notanengine",
+            "50000 1000 LRU --network=NOTAMODE",
+            "50000 1000 LRU --network=NIO:workerThreads=0",
+            "50000 1000 LRU --network=BLOCKING:ioThreads=2",
+            "50000 1000 LRU --network=BLOCKING:queuedRequests=-1",
+            "50000 1000 LRU --network=NIO:replicationThreads=2000",
+            "50000 1000 LRU --network=NIO:pipelinedRequests=0")
         .map(cmd -> cmd.split("\\s+"))
         .forEach(
             cmd -> {
@@ -37,7 +44,15 @@ public class KVServerInitializerTest {
     Stream.of(
             //            "5041 0 LRU localhost 2181 true 127.0.0.1:5041",
             //            "5041 0 LRU localhost 2181 127.0.0.1:5041",
-            "5041 0 LRU false", "5041 0 LRU")
+            "5041 0 LRU false",
+            "5041 0 LRU",
+            "5041 0 LRU false LSM",
+            "5041 0 LRU false LSM:memtableBytes=8388608,recover",
+            "5041 0 LRU false LOG_STRUCTURED:durability=batched,syncIntervalMillis=5",
+            "5041 0 LRU --network=NIO",
+            "--network=NIO:ioThreads=2,workerThreads=8 5041 0 LRU false LSM",
+            "5041 0 LRU --network=BLOCKING:workerThreads=8,queuedRequests=64,maxConnections=100",
+            "5041 0 LRU --network=NIO:pipelinedRequests=1")
         .map(cmd -> cmd.split("\\s+"))
         .forEach(
             cmd -> {
@@ -0,0 +1,197 @@
+package testing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import app_kvServer.data.storage.LSMTree;
+import com.google.common.util.concurrent.MoreExecutors;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LSMTreeTest {
+  private static final File DIRECTORY = new File("KeyValueData_LSMTreeTest_lsm");
+  private LSMTree tree;
+
+  @Before
+  public void setUp() throws IOException {
+    // compact on the writing thread so the tests see its results immediately
+    tree = new LSMTree(DIRECTORY, 1024, MoreExecutors.newDirectExecutorService());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    tree.close();
+    for (File table : DIRECTORY.listFiles()) {
+      table.delete();
+    }
+    DIRECTORY.delete();
+  }
+
+  @Test
+  public void testPutGetRemove() throws IOException {
+    tree.put("key", bytes("value1"));
+    assertArrayEquals(bytes("value1"), tree.get("key"));
+
+    tree.put("key", bytes("value2"));
+    assertArrayEquals(bytes("value2"), tree.get("key"));
+
+    tree.remove("key");
+    assertNull(tree.get("key"));
+    assertNull(tree.get("missing"));
+  }
+
+  @Test
+  public void testReadsFlushedAndCompactedTables() throws IOException {
+    for (int i = 0; i < 2000; i++) {
+      tree.put(String.format("key%05d", i % 500), bytes("value" + i));
+    }
+    for (int i = 0; i < 500; i += 2) {
+      tree.remove(String.format("key%05d", i));
+    }
+    assertTrue(tree.tableCount(1) > 0);
+    for (int i = 0; i < 500; i++) {
+      byte[] expected = i % 2 == 0 ? null : bytes("value" + (1500 + i));
+      assertArrayEquals(expected, tree.get(String.format("key%05d", i)));
+    }
+  }
+
+  @Test
+  public void testFiltersRuleOutAbsentKeys() throws IOException {
+    for (int i = 0; i < 1000; i++) {
+      tree.put(String.format("key%05d", i), bytes("value" + i));
+    }
+    for (boolean reopened : new boolean[] {false, true}) {
+      if (reopened) {
+        tree.close();
+        tree = new LSMTree(DIRECTORY, 1024, MoreExecutors.newDirectExecutorService(), true);
+      }
+      int ruledOut = 0;
+      for (int i = 0; i < 1000; i++) {
+        assertTrue(tree.mightContain(String.format("key%05d", i)));
+        if (!tree.mightContain(String.format("absent%05d", i))) {
+          ruledOut++;
+        }
+      }
+      // filters are tuned for one false positive in a hundred
+      assertTrue(ruledOut > 950);
+    }
+  }
+
+  @Test
+  public void testScanReturnsLatestLiveEntriesInOrder() throws IOException {
+    for (int i = 0; i < 1000; i++) {
+      tree.put(String.format("key%05d", i % 300), bytes("value" + i));
+    }
+    tree.remove("key00150");
+
+    List<Map.Entry<String, byte[]>> entries = tree.scan("key00100", "key00199");
+    assertEquals(99, entries.size());
+    String previous = "";
+    for (Map.Entry<String, byte[]> entry : entries) {
+      assertTrue(entry.getKey().compareTo(previous) > 0);
+      int i = Integer.parseInt(entry.getKey().substring(3));
+      assertArrayEquals(bytes("value" + (900 + i < 1000 ? 900 + i : 600 + i)), entry.getValue());
+      previous = entry.getKey();
+    }
+    assertEquals(50, tree.scan("key00250", null).size());
+  }
+
+  @Test
+  public void testRecoversTablesAndWriteAheadLog() throws IOException {
+    for (int i = 0; i < 2000; i++) {
+      tree.put(String.format("key%05d", i % 500), bytes("value" + i));
+    }
+    for (int i = 0; i < 500; i += 2) {
+      tree.remove(String.format("key%05d", i));
+    }
+    // the last writes are only in the memtable and its write-ahead log
+    tree.put("unflushed", bytes("unflushed"));
+    tree.close();
+
+    tree = new LSMTree(DIRECTORY, 1024, MoreExecutors.newDirectExecutorService(), true);
+    assertTrue(tree.tableCount(1) > 0);
+    assertArrayEquals(bytes("unflushed"), tree.get("unflushed"));
+    for (int i = 0; i < 500; i++) {
+      byte[] expected = i % 2 == 0 ? null : bytes("value" + (1500 + i));
+      assertArrayEquals(expected, tree.get(String.format("key%05d", i)));
+    }
+    assertEquals(251, tree.scan("", null).size());
+  }
+
+  @Test
+  public void testWritesDoNotWaitForTheFlush() throws Exception {
+    tree.close();
+    ExecutorService compactor = Executors.newSingleThreadExecutor();
+    CountDownLatch flushing = new CountDownLatch(1);
+    compactor.execute(
+        () -> {
+          try {
+            flushing.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        });
+    tree = new LSMTree(DIRECTORY, 1024, compactor, true);
+    // the first 14 fill the memtable, its flush waits behind the blocked compactor
+    for (int i = 0; i < 20; i++) {
+      tree.put(String.format("key%05d", i), bytes("value" + i));
+    }
+    assertEquals(0, tree.tableCount(0));
+    for (int i = 0; i < 20; i++) {
+      assertArrayEquals(bytes("value" + i), tree.get(String.format("key%05d", i)));
+    }
+    assertEquals(20, tree.scan("", null).size());
+
+    flushing.countDown();
+    compactor.shutdown();
+    assertTrue(compactor.awaitTermination(10, TimeUnit.SECONDS));
+    assertEquals(1, tree.tableCount(0));
+    for (int i = 0; i < 20; i++) {
+      assertArrayEquals(bytes("value" + i), tree.get(String.format("key%05d", i)));
+    }
+  }
+
+  @Test
+  public void testRecoversMemtablesNotFlushedYet() throws Exception {
+    tree.close();
+    ExecutorService compactor = Executors.newSingleThreadExecutor();
+    compactor.execute(
+        () -> {
+          try {
+            new CountDownLatch(1).await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        });
+    tree = new LSMTree(DIRECTORY, 1024, compactor, true);
+    // one full memtable waiting for its flush and one taking writes
+    for (int i = 0; i < 20; i++) {
+      tree.put(String.format("key%05d", i), bytes("value" + i));
+    }
+    // the server stops before the full memtable is flushed
+    compactor.shutdownNow();
+    tree.close();
+
+    tree = new LSMTree(DIRECTORY, 1024, MoreExecutors.newDirectExecutorService(), true);
+    assertEquals(0, tree.tableCount(0));
+    for (int i = 0; i < 20; i++) {
+      assertArrayEquals(bytes("value" + i), tree.get(String.format("key%05d", i)));
+    }
+  }
+
+  private static byte[] bytes(String string) {
+    return string.getBytes(StandardCharsets.UTF_8);
+  }
+}
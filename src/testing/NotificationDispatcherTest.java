@@ -0,0 +1,140 @@
+package testing;
+
+import static org.junit.Assert.*;
+
+import app_kvServer.data.NotificationDispatcher;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import shared.communication.messages.KVMessage;
+
+public class NotificationDispatcherTest {
+  private final ConcurrentHashMap<UUID, FakeSubscriber> connections = new ConcurrentHashMap<>();
+  private NotificationDispatcher dispatcher;
+
+  @After
+  public void tearDown() {
+    dispatcher.shutdown();
+  }
+
+  /** Records its notifications, and waits for a latch before taking the first. */
+  private static class FakeSubscriber implements NotificationDispatcher.Subscriber {
+    private final List<String> received = Collections.synchronizedList(new ArrayList<>());
+    private final CountDownLatch blocked;
+    private volatile boolean running = true;
+
+    private FakeSubscriber(CountDownLatch blocked) {
+      this.blocked = blocked;
+    }
+
+    @Override
+    public boolean isRunning() {
+      return running;
+    }
+
+    @Override
+    public void notifyClient(KVMessage notification) {
+      try {
+        blocked.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      received.add(notification.getKey() + "=" + notification.getValue());
+    }
+  }
+
+  @Test
+  public void testSubscribersAreNotifiedInOrder() throws Exception {
+    dispatcher = new NotificationDispatcher(connections, 2, 100, "in-order");
+    UUID first = subscribe(new CountDownLatch(0));
+    UUID second = subscribe(new CountDownLatch(0));
+    for (int i = 0; i < 10; i++) {
+      dispatcher.notify(Arrays.asList(first, second), change("key" + i, "v" + i));
+    }
+    assertTrue(dispatcher.awaitIdle(5, TimeUnit.SECONDS));
+    for (UUID subscriber : Arrays.asList(first, second)) {
+      List<String> received = connections.get(subscriber).received;
+      assertEquals(10, received.size());
+      for (int i = 0; i < 10; i++) {
+        assertEquals("key" + i + "=v" + i, received.get(i));
+      }
+    }
+    assertEquals(20, dispatcher.getSentNotifications());
+    assertEquals(0, dispatcher.getQueuedNotifications());
+    assertEquals(0, dispatcher.getQueuedSubscribers());
+  }
+
+  @Test
+  public void testSlowSubscribersAreSentTheLatestValue() throws Exception {
+    dispatcher = new NotificationDispatcher(connections, 1, 100, "coalescing");
+    CountDownLatch blocked = new CountDownLatch(1);
+    UUID slow = subscribe(blocked);
+    // the first change is taken while the subscriber is blocked, the rest queue up behind it
+    dispatcher.notify(Collections.singletonList(slow), change("hot", "0"));
+    while (dispatcher.getQueuedNotifications() > 0) {
+      TimeUnit.MILLISECONDS.sleep(1);
+    }
+    for (int i = 1; i <= 50; i++) {
+      dispatcher.notify(Collections.singletonList(slow), change("hot", String.valueOf(i)));
+      dispatcher.notify(Collections.singletonList(slow), change("cold", String.valueOf(i)));
+    }
+    assertEquals(2, dispatcher.getQueuedNotifications());
+    assertEquals(98, dispatcher.getCoalescedNotifications());
+
+    blocked.countDown();
+    assertTrue(dispatcher.awaitIdle(5, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("hot=0", "hot=50", "cold=50"), connections.get(slow).received);
+    assertTrue(dispatcher.getMaxLagMillis() > 0);
+  }
+
+  @Test
+  public void testOldestChangesAreDroppedOnceTheQueueIsFull() throws Exception {
+    dispatcher = new NotificationDispatcher(connections, 1, 3, "bounded");
+    CountDownLatch blocked = new CountDownLatch(1);
+    UUID slow = subscribe(blocked);
+    dispatcher.notify(Collections.singletonList(slow), change("first", "x"));
+    while (dispatcher.getQueuedNotifications() > 0) {
+      TimeUnit.MILLISECONDS.sleep(1);
+    }
+    for (int i = 0; i < 5; i++) {
+      dispatcher.notify(Collections.singletonList(slow), change("key" + i, "x"));
+    }
+    assertEquals(3, dispatcher.getQueuedNotifications());
+    assertEquals(2, dispatcher.getDroppedNotifications());
+
+    blocked.countDown();
+    assertTrue(dispatcher.awaitIdle(5, TimeUnit.SECONDS));
+    assertEquals(
+        Arrays.asList("first=x", "key2=x", "key3=x", "key4=x"), connections.get(slow).received);
+  }
+
+  @Test
+  public void testStaleConnectionsAreForgotten() throws Exception {
+    dispatcher = new NotificationDispatcher(connections, 1, 100, "stale");
+    UUID stopped = subscribe(new CountDownLatch(0));
+    connections.get(stopped).running = false;
+    UUID gone = UUID.randomUUID();
+    dispatcher.notify(Arrays.asList(stopped, gone), change("key", "value"));
+    assertTrue(dispatcher.awaitIdle(5, TimeUnit.SECONDS));
+    assertFalse(connections.containsKey(stopped));
+    assertEquals(2, dispatcher.getDroppedNotifications());
+    assertEquals(0, dispatcher.getSentNotifications());
+  }
+
+  private UUID subscribe(CountDownLatch blocked) {
+    UUID clientId = UUID.randomUUID();
+    connections.put(clientId, new FakeSubscriber(blocked));
+    return clientId;
+  }
+
+  private static KVMessage change(String key, String value) {
+    return new KVMessage(key, value, UUID.randomUUID(), KVMessage.StatusType.NOTIFY);
+  }
+}
@@ -0,0 +1,68 @@
+package testing;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Before;
+import org.junit.Test;
+import shared.communication.security.ReplayFilter;
+
+public class ReplayFilterTest {
+  private static final long WINDOW = 1000;
+  private final AtomicLong now = new AtomicLong(1_000_000);
+  private ReplayFilter filter;
+
+  @Before
+  public void setUp() {
+    filter = new ReplayFilter(WINDOW, 1000, 1e-6, now::get);
+  }
+
+  @Test
+  public void testRejectsMessagesOutsideTheWindow() {
+    assertTrue(filter.isFresh(now.get()));
+    assertTrue(filter.isFresh(now.get() - WINDOW));
+    assertTrue(filter.isFresh(now.get() + WINDOW));
+    assertFalse(filter.isFresh(now.get() - WINDOW - 1));
+    assertFalse(filter.isFresh(now.get() + WINDOW + 1));
+    assertFalse(filter.isFresh(Long.MIN_VALUE));
+  }
+
+  @Test
+  public void testRemembersMACsWhileTheyCanBeReplayed() {
+    long sent = now.get() + WINDOW;
+    filter.add("mac", sent);
+    assertTrue(filter.mightHaveSeen("mac"));
+    assertFalse(filter.mightHaveSeen("other"));
+    assertFalse(filter.mightHaveSeen(null));
+    // the message stays fresh until its timestamp is a window old
+    for (int i = 0; i < 2 * WINDOW / 100; i++) {
+      now.addAndGet(100);
+      assertTrue(filter.isFresh(sent));
+      assertTrue(filter.mightHaveSeen("mac"));
+    }
+    now.addAndGet(2 * WINDOW);
+    assertFalse(filter.isFresh(sent));
+    assertFalse(filter.mightHaveSeen("mac"));
+  }
+
+  @Test
+  public void testStaleMessagesAreNotRemembered() {
+    filter.add("stale", now.get() - 2 * WINDOW);
+    assertFalse(filter.mightHaveSeen("stale"));
+    assertEquals(0, filter.approximateSize());
+  }
+
+  @Test
+  public void testOldGenerationsAreDropped() {
+    for (int window = 0; window < 10; window++) {
+      for (int i = 0; i < 100; i++) {
+        filter.add("mac" + window + "-" + i, now.get());
+      }
+      now.addAndGet(WINDOW);
+    }
+    // only the last two windows' worth are held, give or take the estimate
+    assertTrue(filter.approximateSize() < 250);
+    assertTrue(filter.mightHaveSeen("mac9-0"));
+    assertFalse(filter.mightHaveSeen("mac0-0"));
+  }
+}
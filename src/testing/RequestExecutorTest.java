@@ -0,0 +1,103 @@
+package testing;
+
+import static org.junit.Assert.*;
+
+import app_kvServer.NetworkConfig;
+import app_kvServer.RequestExecutor;
+import app_kvServer.RequestExecutor.Traffic;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+import shared.communication.messages.ECSMessage;
+import shared.communication.messages.KVMessage;
+import shared.communication.messages.Message;
+import shared.communication.messages.ReplicationMessage;
+
+public class RequestExecutorTest {
+  private static final int PORT = 50330;
+  private RequestExecutor executor;
+
+  @After
+  public void tearDown() {
+    if (executor != null) {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testClientRequestsAreRefusedOnceTheQueueIsFull() throws Exception {
+    executor =
+        new RequestExecutor(NetworkConfig.parse("NIO:workerThreads=1,queuedRequests=1"), PORT);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(3);
+    Runnable blocked =
+        () -> {
+          started.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+          done.countDown();
+        };
+    assertTrue(executor.execute(Traffic.CLIENT, blocked));
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    assertTrue(executor.execute(Traffic.CLIENT, done::countDown));
+    assertEquals(1, executor.getClientQueueDepth());
+
+    assertFalse(executor.execute(Traffic.CLIENT, done::countDown));
+    assertEquals(1, executor.getRejectedRequests());
+    assertEquals(2, executor.getAcceptedRequests());
+    long retryAfterMillis = executor.getRetryAfterMillis();
+    assertTrue(retryAfterMillis >= 10 && retryAfterMillis <= 5000);
+
+    // the ECS and the other servers are never turned away
+    assertTrue(executor.execute(Traffic.REPLICATION, done::countDown));
+    CountDownLatch control = new CountDownLatch(1);
+    assertTrue(executor.execute(Traffic.CONTROL, control::countDown));
+    assertTrue(control.await(5, TimeUnit.SECONDS));
+
+    release.countDown();
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertTrue(executor.execute(Traffic.CLIENT, () -> {}));
+    assertEquals(1, executor.getRejectedRequests());
+  }
+
+  @Test
+  public void testConnectionsAreAdmittedUpToTheMaximum() {
+    executor = new RequestExecutor(NetworkConfig.parse("BLOCKING:maxConnections=2"), PORT);
+    assertTrue(executor.admitConnection());
+    assertTrue(executor.admitConnection());
+    assertFalse(executor.admitConnection());
+    assertEquals(2, executor.getOpenConnections());
+    assertEquals(1, executor.getRejectedConnections());
+
+    executor.connectionClosed();
+    assertTrue(executor.admitConnection());
+    assertEquals(2, executor.getOpenConnections());
+  }
+
+  @Test
+  public void testRequestsAreSortedByTraffic() {
+    KVMessage get = new KVMessage("key", null, UUID.randomUUID(), KVMessage.StatusType.GET);
+    assertEquals(Traffic.CLIENT, RequestExecutor.trafficOf(get));
+    assertEquals(Traffic.REPLICATION, RequestExecutor.trafficOf(new ReplicationMessage(get)));
+    assertEquals(
+        Traffic.CONTROL, RequestExecutor.trafficOf(new ECSMessage(ECSMessage.ActionType.START)));
+  }
+
+  @Test
+  public void testRetryHintSurvivesSerialization() throws Exception {
+    KVMessage busy =
+        new KVMessage("key", null, UUID.randomUUID(), KVMessage.StatusType.SERVER_BUSY)
+            .withRetryAfterMillis(250);
+    KVMessage deserialized = (KVMessage) Message.deserialize(busy.serialize());
+    assertEquals(KVMessage.StatusType.SERVER_BUSY, deserialized.getStatus());
+    assertEquals(250, deserialized.getRetryAfterMillis());
+    assertEquals(
+        0, new KVMessage("key", null, null, KVMessage.StatusType.GET).getRetryAfterMillis());
+  }
+}
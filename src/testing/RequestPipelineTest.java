@@ -0,0 +1,104 @@
+package testing;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.*;
+
+import app_kvServer.RequestPipeline;
+import app_kvServer.RequestPipeline.Request;
+import java.util.UUID;
+import org.junit.Test;
+import shared.communication.messages.ClientIdentificationMessage;
+import shared.communication.messages.KVMessage;
+
+public class RequestPipelineTest {
+  private final UUID clientId = UUID.randomUUID();
+  private final RequestPipeline pipeline = new RequestPipeline(2);
+
+  @Test
+  public void testRequestsOnDifferentKeysRunTogether() {
+    Request a = get("a");
+    Request b = get("b");
+    Request c = get("c");
+    assertEquals(singletonList(a), pipeline.add(a));
+    assertEquals(singletonList(b), pipeline.add(b));
+    // two are in flight already
+    assertEquals(emptyList(), pipeline.add(c));
+    assertEquals(3, pipeline.outstanding());
+
+    assertEquals(singletonList(c), pipeline.done(b));
+    assertEquals(emptyList(), pipeline.done(a));
+    assertEquals(emptyList(), pipeline.done(c));
+    assertEquals(0, pipeline.outstanding());
+  }
+
+  @Test
+  public void testRequestsOnAKeyRunInOrder() {
+    Request first = put("a");
+    Request second = get("a");
+    Request third = put("a");
+    Request other = get("b");
+    assertEquals(singletonList(first), pipeline.add(first));
+    assertEquals(emptyList(), pipeline.add(second));
+    assertEquals(emptyList(), pipeline.add(third));
+    assertEquals(singletonList(other), pipeline.add(other));
+
+    assertEquals(singletonList(second), pipeline.done(first));
+    assertEquals(singletonList(third), pipeline.done(second));
+    assertEquals(emptyList(), pipeline.done(third));
+    assertEquals(emptyList(), pipeline.done(other));
+  }
+
+  @Test
+  public void testOtherRequestsRunAlone() {
+    Request before = put("a");
+    Request alone = new Request(new ClientIdentificationMessage(clientId), null);
+    Request after = get("b");
+    assertEquals(singletonList(before), pipeline.add(before));
+    assertEquals(emptyList(), pipeline.add(alone));
+    assertEquals(emptyList(), pipeline.add(after));
+
+    assertEquals(singletonList(alone), pipeline.done(before));
+    assertEquals(singletonList(after), pipeline.done(alone));
+  }
+
+  @Test
+  public void testRequestsWaitingOnARefusedRequestAreRemoved() {
+    Request refused = put("a");
+    Request waiting = put("a");
+    Request other = get("b");
+    pipeline.add(refused);
+    pipeline.add(waiting);
+    pipeline.add(other);
+    assertEquals(singletonList(waiting), pipeline.removeWaiting(refused));
+    assertEquals(2, pipeline.outstanding());
+    assertEquals(emptyList(), pipeline.done(refused));
+    assertEquals(emptyList(), pipeline.removeWaiting(other));
+    assertEquals(emptyList(), pipeline.done(other));
+    assertEquals(0, pipeline.outstanding());
+  }
+
+  @Test
+  public void testRequestsOnARunningKeyAreNotHeldBackByTheLimit() {
+    RequestPipeline serial = new RequestPipeline(1);
+    Request a = get("a");
+    Request b = get("b");
+    Request a2 = put("a");
+    Request c = get("c");
+    assertEquals(singletonList(a), serial.add(a));
+    assertEquals(emptyList(), serial.add(b));
+    assertEquals(emptyList(), serial.add(a2));
+    assertEquals(emptyList(), serial.add(c));
+    assertEquals(singletonList(a2), serial.done(a));
+    assertEquals(singletonList(b), serial.done(a2));
+    assertEquals(singletonList(c), serial.done(b));
+  }
+
+  private Request get(String key) {
+    return new Request(new KVMessage(key, null, clientId, KVMessage.StatusType.GET), null);
+  }
+
+  private Request put(String key) {
+    return new Request(new KVMessage(key, "value", clientId, KVMessage.StatusType.PUT), null);
+  }
+}
@@ -0,0 +1,229 @@
+package testing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import app_kvServer.data.storage.RingBuckets;
+import app_kvServer.data.storage.SegmentLog;
+import ecs.ECSUtils;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import shared.communication.security.Hashing;
+
+public class SegmentLogTest {
+  private static final File DIRECTORY = new File("KeyValueData_SegmentLogTest_segments");
+  private static final String HASH_QUARTER = "40000000000000000000000000000000";
+  private static final String HASH_HALF = "80000000000000000000000000000000";
+  private SegmentLog log;
+
+  @Before
+  public void setUp() throws IOException {
+    log = new SegmentLog(DIRECTORY, 1024);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    log.close();
+    for (File segment : DIRECTORY.listFiles()) {
+      segment.delete();
+    }
+    DIRECTORY.delete();
+  }
+
+  @Test
+  public void testPutReadRemove() throws IOException {
+    log.put("key", bytes("value1"));
+    assertArrayEquals(bytes("value1"), log.read("key"));
+
+    log.put("key", bytes("value2"));
+    assertArrayEquals(bytes("value2"), log.read("key"));
+
+    log.remove("key");
+    assertNull(log.read("key"));
+    assertEquals(0, log.size());
+  }
+
+  @Test
+  public void testReadMissingKey() throws IOException {
+    assertNull(log.read("missing"));
+    log.remove("missing");
+    assertEquals(0, log.size());
+  }
+
+  @Test
+  public void testRollsOverSegments() throws IOException {
+    for (int i = 0; i < 100; i++) {
+      log.put("key" + i, bytes("value" + i));
+    }
+    assertTrue(log.segmentCount() > 1);
+    for (int i = 0; i < 100; i++) {
+      assertArrayEquals(bytes("value" + i), log.read("key" + i));
+    }
+  }
+
+  @Test
+  public void testCompactionReclaimsOverwrittenRecords() throws IOException {
+    for (int i = 0; i < 1000; i++) {
+      log.put("key" + (i % 5), bytes("value" + i));
+    }
+    // 5 live keys fit in a single segment, compaction must have dropped the rest
+    assertTrue(log.segmentCount() <= 3);
+    for (int i = 995; i < 1000; i++) {
+      assertArrayEquals(bytes("value" + i), log.read("key" + (i % 5)));
+    }
+    assertEquals(5, log.size());
+  }
+
+  @Test
+  public void testSyncOfAClosedLogDoesNothing() throws IOException {
+    log.put("key", bytes("value"));
+    log.close();
+    // a group commit may still hold a log that was closed to be replaced
+    log.sync();
+    log = new SegmentLog(DIRECTORY, 1024, true);
+    assertArrayEquals(bytes("value"), log.read("key"));
+  }
+
+  @Test
+  public void testRecoversAfterRestart() throws IOException {
+    for (int i = 0; i < 100; i++) {
+      log.put("key" + i, bytes("value" + i));
+    }
+    for (int i = 0; i < 100; i += 2) {
+      log.remove("key" + i);
+    }
+    log.close();
+
+    log = new SegmentLog(DIRECTORY, 1024, true);
+    assertEquals(50, log.size());
+    for (int i = 0; i < 100; i++) {
+      assertArrayEquals(i % 2 == 0 ? null : bytes("value" + i), log.read("key" + i));
+    }
+    log.put("key0", bytes("after restart"));
+    assertArrayEquals(bytes("after restart"), log.read("key0"));
+  }
+
+  @Test
+  public void testRecoveryWithoutHintsTruncatesTornRecord() throws IOException {
+    for (int i = 0; i < 100; i++) {
+      log.put("key" + i, bytes("value" + i));
+    }
+    log.close();
+    // as if the process died mid append before sealing anything
+    File lastSegment = null;
+    for (File file : DIRECTORY.listFiles()) {
+      if (file.getName().endsWith(".hint")) {
+        file.delete();
+      } else if (lastSegment == null || file.getName().compareTo(lastSegment.getName()) > 0) {
+        lastSegment = file;
+      }
+    }
+    try (FileOutputStream output = new FileOutputStream(lastSegment, true)) {
+      output.write(new byte[] {0, 0, 0, 0, 3, 0, 0, 0, 100, 'k', 'e'});
+    }
+    long tornLength = lastSegment.length();
+
+    log = new SegmentLog(DIRECTORY, 1024, true);
+    assertEquals(100, log.size());
+    for (int i = 0; i < 100; i++) {
+      assertArrayEquals(bytes("value" + i), log.read("key" + i));
+    }
+    assertTrue(lastSegment.length() < tornLength);
+  }
+
+  @Test
+  public void testKeysInRangeFromIndex() throws IOException {
+    for (int i = 0; i < 2000; i++) {
+      log.put("key" + i, bytes("value" + i));
+    }
+    for (int i = 0; i < 2000; i += 3) {
+      log.remove("key" + i);
+    }
+    assertKeysInRange(log, new String[] {HASH_QUARTER, HASH_HALF});
+    // wrapping around the end of the ring, and the whole ring
+    assertKeysInRange(log, new String[] {HASH_HALF, HASH_QUARTER});
+    assertKeysInRange(log, new String[] {HASH_HALF, HASH_HALF});
+
+    // a log holding only the second of four RingBuckets
+    RingBuckets buckets = new RingBuckets(4);
+    File bucketDirectory = new File(DIRECTORY.getPath() + "_bucket");
+    SegmentLog bucketLog = new SegmentLog(bucketDirectory, 1024 * 1024, false, buckets.bits(), 1);
+    try {
+      for (int i = 0; i < 2000; i++) {
+        if (buckets.bucketOf(Hashing.calculateMD5Hash("key" + i)) == 1) {
+          bucketLog.put("key" + i, bytes("value" + i));
+        }
+      }
+      assertKeysInRange(bucketLog, new String[] {HASH_QUARTER, HASH_HALF});
+      assertKeysInRange(bucketLog, new String[] {"30000000000000000000000000000000", HASH_HALF});
+      assertKeysInRange(bucketLog, new String[] {HASH_HALF, "60000000000000000000000000000000"});
+      assertKeysInRange(bucketLog, new String[] {HASH_HALF, HASH_QUARTER});
+    } finally {
+      bucketLog.close();
+      for (File segment : bucketDirectory.listFiles()) {
+        segment.delete();
+      }
+      bucketDirectory.delete();
+    }
+  }
+
+  @Test
+  public void testReadsDuringWrites() throws Exception {
+    for (int i = 0; i < 100; i++) {
+      log.put("stable" + i, bytes("value" + i));
+    }
+    AtomicBoolean writing = new AtomicBoolean(true);
+    Thread writer =
+        new Thread(
+            () -> {
+              try {
+                // grows the index and shifts keys around it on removal
+                for (int i = 0; i < 5000; i++) {
+                  log.put("churn" + i, bytes("value" + i));
+                  if (i % 2 == 0) {
+                    log.remove("churn" + (i / 2));
+                  }
+                }
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              } finally {
+                writing.set(false);
+              }
+            });
+    writer.start();
+    int reads = 0;
+    while (writing.get() || reads == 0) {
+      int i = reads++ % 100;
+      assertArrayEquals(bytes("value" + i), log.read("stable" + i));
+    }
+    writer.join();
+    assertEquals(100 + 2500, log.size());
+  }
+
+  private static void assertKeysInRange(SegmentLog log, String[] hashRange) {
+    HashSet<String> expected = new HashSet<>();
+    for (String key : log.keys()) {
+      if (ECSUtils.checkIfKeyBelongsInRange(key, hashRange)) {
+        expected.add(key);
+      }
+    }
+    List<String> keys = log.keysInRange(hashRange);
+    assertEquals(expected.size(), keys.size());
+    assertEquals(expected, new HashSet<>(keys));
+  }
+
+  private static byte[] bytes(String string) {
+    return string.getBytes(StandardCharsets.UTF_8);
+  }
+}
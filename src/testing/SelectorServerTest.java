@@ -0,0 +1,243 @@
+package testing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static shared.communication.messages.DataTransferMessage.DataTransferMessageType.DATA_TRANSFER_SUCCESS;
+import static shared.communication.messages.DataTransferMessage.DataTransferMessageType.DIGEST_REQUEST;
+import static shared.communication.messages.DataTransferMessage.DataTransferMessageType.STREAM_CHUNK;
+
+import app_kvECS.ECSClient;
+import app_kvServer.KVServer;
+import app_kvServer.NetworkConfig;
+import app_kvServer.data.SynchronizedKVManager;
+import app_kvServer.data.cache.CacheStrategy;
+import app_kvServer.data.storage.SegmentLog;
+import app_kvServer.data.storage.StorageEngine;
+import app_kvServer.data.storage.StorageUnit;
+import app_kvServer.data.storage.StorageUnitRecord;
+import client.KVStore;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang3.RandomStringUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import shared.communication.Protocol;
+import shared.communication.ProtocolException;
+import shared.communication.messages.ClientIdentificationMessage;
+import shared.communication.messages.DataTransferMessage;
+import shared.communication.messages.ECSMessage;
+import shared.communication.messages.KVMessage;
+import shared.communication.security.KeyLoader;
+import shared.communication.security.keys.ECSPublicKey;
+import shared.communication.security.property_stores.ClientPropertyStore;
+import shared.communication.security.property_stores.ECSPropertyStore;
+import shared.communication.security.property_stores.ServerPropertyStore;
+
+public class SelectorServerTest {
+  private static final int PORT = 50321;
+  private static final String[] WHOLE_RING = {
+    "00000000000000000000000000000000", "00000000000000000000000000000000"
+  };
+  private static KVServer server;
+
+  @BeforeClass
+  public static void startServer() throws Exception {
+    Field instance = SynchronizedKVManager.class.getDeclaredField("INSTANCE");
+    instance.setAccessible(true);
+    instance.set(null, null);
+    SynchronizedKVManager.initialize(0, CacheStrategy.LRU, "localhost:" + PORT, false);
+    KVStore.initializeClientPrivateKey();
+    ClientPropertyStore.getInstance().setSenderID("client");
+
+    server = new KVServer(PORT, NetworkConfig.parse("NIO:ioThreads=2,workerThreads=4"));
+    new Thread(server).start();
+    while (true) {
+      try {
+        new Socket("localhost", PORT).close();
+        break;
+      } catch (IOException e) {
+        TimeUnit.MILLISECONDS.sleep(50);
+      }
+    }
+  }
+
+  @AfterClass
+  public static void stopServer() {
+    server.stop();
+  }
+
+  @Test
+  public void testPipelinedRequestsAreAllAnswered() throws Exception {
+    UUID clientId = UUID.randomUUID();
+    try (Socket socket = connect(clientId)) {
+      List<KVMessage> requests = new ArrayList<>();
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      for (int i = 0; i < 20; i++) {
+        KVMessage put = signed("pipelined" + i, "value" + i, clientId, KVMessage.StatusType.PUT);
+        requests.add(put);
+        bytes.write(Protocol.frame(put));
+      }
+      // messages arrive split at arbitrary points, several to a packet
+      OutputStream output = socket.getOutputStream();
+      byte[] pipelined = bytes.toByteArray();
+      for (int offset = 0; offset < pipelined.length; offset += 777) {
+        output.write(pipelined, offset, Math.min(777, pipelined.length - offset));
+        output.flush();
+      }
+
+      // requests on different keys are answered as they complete
+      InputStream input = socket.getInputStream();
+      Map<UUID, KVMessage> replies = new HashMap<>();
+      for (int i = 0; i < requests.size(); i++) {
+        KVMessage reply = (KVMessage) Protocol.receiveMessage(input);
+        replies.put(reply.getRequestId(), reply);
+      }
+      for (KVMessage request : requests) {
+        assertEquals(
+            KVMessage.StatusType.PUT_SUCCESS, replies.get(request.getRequestId()).getStatus());
+      }
+      Protocol.sendMessage(output, signed("pipelined7", null, clientId, KVMessage.StatusType.GET));
+      assertEquals("value7", ((KVMessage) Protocol.receiveMessage(input)).getValue());
+    }
+  }
+
+  @Test
+  public void testPipelinedRequestsOnAKeyRunInOrder() throws Exception {
+    UUID clientId = UUID.randomUUID();
+    try (Socket socket = connect(clientId)) {
+      List<KVMessage> requests = new ArrayList<>();
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      for (int i = 0; i < 30; i++) {
+        KVMessage request =
+            i % 3 == 2
+                ? signed("ordered", null, clientId, KVMessage.StatusType.GET)
+                : signed("ordered", "value" + i, clientId, KVMessage.StatusType.PUT);
+        requests.add(request);
+        bytes.write(Protocol.frame(request));
+        // unrelated keys in between
+        bytes.write(Protocol.frame(signed("other" + i, "x", clientId, KVMessage.StatusType.PUT)));
+      }
+      socket.getOutputStream().write(bytes.toByteArray());
+
+      InputStream input = socket.getInputStream();
+      List<UUID> answered = new ArrayList<>();
+      Map<UUID, KVMessage> replies = new HashMap<>();
+      for (int i = 0; i < 2 * requests.size(); i++) {
+        KVMessage reply = (KVMessage) Protocol.receiveMessage(input);
+        answered.add(reply.getRequestId());
+        replies.put(reply.getRequestId(), reply);
+      }
+      int previous = -1;
+      for (int i = 0; i < requests.size(); i++) {
+        int position = answered.indexOf(requests.get(i).getRequestId());
+        assertTrue(position > previous);
+        previous = position;
+        if (i % 3 == 2) {
+          // each GET sees the PUT just before it
+          assertEquals("value" + (i - 1), replies.get(requests.get(i).getRequestId()).getValue());
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testSubscribersAreNotified() throws Exception {
+    UUID subscriberId = UUID.randomUUID();
+    UUID writerId = UUID.randomUUID();
+    try (Socket subscriber = connect(subscriberId);
+        Socket writer = connect(writerId)) {
+      assertEquals(
+          KVMessage.StatusType.PUT_SUCCESS,
+          request(writer, signed("watched", "first", writerId, KVMessage.StatusType.PUT))
+              .getStatus());
+      assertEquals(
+          KVMessage.StatusType.SUBSCRIBE_SUCCESS,
+          request(subscriber, signed("watched", null, subscriberId, KVMessage.StatusType.SUBSCRIBE))
+              .getStatus());
+
+      request(writer, signed("watched", "second", writerId, KVMessage.StatusType.PUT));
+      subscriber.setSoTimeout(5000);
+      KVMessage notification = (KVMessage) Protocol.receiveMessage(subscriber.getInputStream());
+      assertEquals(KVMessage.StatusType.NOTIFY, notification.getStatus());
+      assertEquals("second", notification.getValue());
+    }
+  }
+
+  @Test
+  public void testStreamChunksOfAnySizeAreIngested() throws Exception {
+    ServerPropertyStore.getInstance()
+        .setECSPublicKey(KeyLoader.getPublicKey(ECSPublicKey.base64EncodedPublicKey));
+    ECSClient.initializePrivateKey();
+    ECSPropertyStore.getInstance().setSenderID("ecs");
+    ECSMessage message = new ECSMessage(ECSMessage.ActionType.MOVE_DATA).calculateAndSetMAC();
+    ByteArrayOutputStream records = new ByteArrayOutputStream();
+    for (int i = 0; i < 80; i++) {
+      StorageUnit storageUnit =
+          new StorageUnit(
+              "chunked" + i,
+              RandomStringUtils.randomAlphanumeric(100 * 1024),
+              UUID.randomUUID().toString(),
+              "mac");
+      records.write(
+          SegmentLog.frameRecord(storageUnit.key, StorageUnitRecord.encode(storageUnit, null)));
+    }
+    // more than a message may hold, and than the connection buffers for the worker
+    assertTrue(records.size() > Protocol.MAX_MESSAGE_BYTES);
+    DataTransferMessage chunk =
+        new DataTransferMessage(STREAM_CHUNK, new HashSet<>(), "test", message);
+    chunk.setStreamId(UUID.randomUUID().toString());
+    chunk.setSequence(0);
+    chunk.setHasMore(false);
+    chunk.setStorageType(StorageEngine.StorageType.REPLICA_1);
+    chunk.setDeletedKeys(new HashSet<>());
+    chunk.setRawLength(records.size());
+
+    try (Socket socket = new Socket("localhost", PORT)) {
+      OutputStream output = socket.getOutputStream();
+      Protocol.sendMessage(output, chunk);
+      output.write(records.toByteArray());
+      output.flush();
+      socket.setSoTimeout(30000);
+      DataTransferMessage reply =
+          (DataTransferMessage) Protocol.receiveMessage(socket.getInputStream());
+      assertEquals(reply.getMessage(), DATA_TRANSFER_SUCCESS, reply.getDataTransferMessageType());
+    }
+    DataTransferMessage digestRequest =
+        new DataTransferMessage(DIGEST_REQUEST, WHOLE_RING, "test", message);
+    digestRequest.setStorageType(StorageEngine.StorageType.REPLICA_1);
+    assertEquals(
+        80,
+        SynchronizedKVManager.getInstance().handleDataTransfer(digestRequest).getDigest().size());
+  }
+
+  private static Socket connect(UUID clientId) throws IOException {
+    Socket socket = new Socket("localhost", PORT);
+    Protocol.sendMessage(socket.getOutputStream(), new ClientIdentificationMessage(clientId));
+    return socket;
+  }
+
+  private static KVMessage request(Socket socket, KVMessage request)
+      throws IOException, ProtocolException {
+    Protocol.sendMessage(socket.getOutputStream(), request);
+    return (KVMessage) Protocol.receiveMessage(socket.getInputStream());
+  }
+
+  private static KVMessage signed(
+      String key, String value, UUID clientId, KVMessage.StatusType status) {
+    KVMessage request = new KVMessage(key, value, clientId, status);
+    request.calculateMAC();
+    return request;
+  }
+}
@@ -0,0 +1,658 @@
+package testing;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static shared.communication.messages.DataTransferMessage.DataTransferMessageType.DATA_TRANSFER_REQUEST;
+import static shared.communication.messages.DataTransferMessage.DataTransferMessageType.DATA_TRANSFER_SUCCESS;
+
+import app_kvServer.data.storage.CompressionStats;
+import app_kvServer.data.storage.DiskStorageException;
+import app_kvServer.data.storage.Durability;
+import app_kvServer.data.storage.StorageEngine;
+import app_kvServer.data.storage.StorageEngine.StorageType;
+import app_kvServer.data.storage.StorageEngineConfig;
+import app_kvServer.data.storage.StorageEngineFactory;
+import app_kvServer.data.storage.StorageStrategy;
+import app_kvServer.data.storage.StorageUnit;
+import client.KVStore;
+import com.google.common.base.Strings;
+import ecs.ECSUtils;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.spec.InvalidKeySpecException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import shared.communication.messages.DataTransferMessage;
+import shared.communication.messages.KVMessage;
+import shared.communication.security.KeyLoader;
+import shared.communication.security.keys.ClientPublicKey;
+import shared.communication.security.property_stores.ServerPropertyStore;
+
+/** Behaviour every StorageEngine must share, run against each StorageStrategy. */
+@RunWith(Parameterized.class)
+public class StorageEngineConformanceTest {
+  private static final String NODE_NAME = "ConformanceTest";
+  private static final String[] LOWER_HALF = {
+    "00000000000000000000000000000000", "80000000000000000000000000000000"
+  };
+  private static final String[] WRAPPING_RANGE = {
+    "C0000000000000000000000000000000", "40000000000000000000000000000000"
+  };
+  // ends that don't fall on a bucket boundary, nor on one of a wrapping range
+  private static final String[] UNALIGNED_RANGE = {
+    "3A7F0000000000000000000000000000", "9C215555555555555555555555555555"
+  };
+  private static final String[] UNALIGNED_WRAPPING_RANGE = {
+    "D1230000000000000000000000000000", "2B3C0000000000000000000000000000"
+  };
+  private final StorageStrategy strategy;
+  private StorageEngine engine;
+
+  public StorageEngineConformanceTest(StorageStrategy strategy) {
+    this.strategy = strategy;
+  }
+
+  @Parameterized.Parameters
+  public static Collection<Object[]> strategies() {
+    List<Object[]> strategies = new ArrayList<>();
+    for (StorageStrategy strategy : StorageStrategy.values()) {
+      strategies.add(new Object[] {strategy});
+    }
+    return strategies;
+  }
+
+  @Before
+  public void setUp() throws InvalidKeySpecException, DiskStorageException {
+    KVStore.initializeClientPrivateKey();
+    ServerPropertyStore.getInstance()
+        .setClientPublicKey(KeyLoader.getPublicKey(ClientPublicKey.base64EncodedPublicKey));
+    engine = openEngine(false, false);
+  }
+
+  private StorageEngine openEngine(boolean encrypted, boolean recover) throws DiskStorageException {
+    return openEngine(encrypted, recover, Durability.NONE);
+  }
+
+  private StorageEngine openEngine(boolean encrypted, boolean recover, Durability durability)
+      throws DiskStorageException {
+    // small sizes so a few hundred keys already span several segments or tables
+    Map<String, Long> parameters = new HashMap<>();
+    for (String parameter : strategy.getParameters()) {
+      parameters.put(parameter, parameter.equals("buckets") ? 16L : 4096L);
+    }
+    return new StorageEngineFactory()
+        .getStorageEngine(
+            new StorageEngineConfig(strategy, parameters, recover, durability),
+            NODE_NAME,
+            encrypted);
+  }
+
+  @After
+  public void tearDown() throws DiskStorageException {
+    engine.close();
+    for (File file : new File(System.getProperty("user.dir")).listFiles()) {
+      if (file.getName().startsWith("KeyValueData_" + NODE_NAME)) {
+        delete(file);
+      }
+    }
+  }
+
+  @Test
+  public void testPutGetUpdateDelete() {
+    assertEquals(KVMessage.StatusType.PUT_SUCCESS, put("key", "value1", StorageType.SELF));
+    assertEquals("value1", get("key", StorageType.SELF).getValue());
+    assertEquals(KVMessage.StatusType.PUT_UPDATE, put("key", "value2", StorageType.SELF));
+    assertEquals("value2", get("key", StorageType.SELF).getValue());
+    assertEquals(KVMessage.StatusType.DELETE_SUCCESS, put("key", null, StorageType.SELF));
+    assertEquals(KVMessage.StatusType.GET_ERROR, get("key", StorageType.SELF).getStatus());
+    assertEquals(KVMessage.StatusType.DELETE_ERROR, put("key", null, StorageType.SELF));
+  }
+
+  @Test
+  public void testLookupsOfAbsentKeysSkipTheDisk() throws DiskStorageException {
+    for (int i = 0; i < 300; i++) {
+      put("key" + i, "value" + i, StorageType.SELF);
+    }
+    put("replicated", "replica", StorageType.REPLICA_1);
+    for (int i = 0; i < 300; i++) {
+      assertEquals(KVMessage.StatusType.GET_ERROR, get("absent" + i, StorageType.SELF).getStatus());
+    }
+    assertTrue(engine.getAvoidedDiskReads(StorageType.SELF) > 280);
+    assertEquals(0, engine.getAvoidedDiskReads(StorageType.REPLICA_1));
+    for (int i = 0; i < 300; i++) {
+      assertEquals("value" + i, get("key" + i, StorageType.SELF).getValue());
+    }
+
+    engine.close();
+    engine = openEngine(false, true);
+    assertEquals("replica", get("replicated", StorageType.REPLICA_1).getValue());
+    for (int i = 0; i < 300; i++) {
+      assertEquals(
+          KVMessage.StatusType.GET_ERROR, get("absent" + i, StorageType.REPLICA_1).getStatus());
+    }
+    assertTrue(engine.getAvoidedDiskReads(StorageType.REPLICA_1) > 280);
+  }
+
+  @Test
+  public void testRejectsReplayedWrite() {
+    KVMessage request = signed("key", "value", UUID.randomUUID(), KVMessage.StatusType.PUT);
+    assertEquals(
+        KVMessage.StatusType.PUT_SUCCESS,
+        engine.write(request, StorageType.SELF).getKvMessageResponse().getStatus());
+    assertEquals(
+        KVMessage.StatusType.AUTH_FAILED,
+        engine.write(request, StorageType.SELF).getKvMessageResponse().getStatus());
+  }
+
+  @Test
+  public void testStorageTypesAreIndependent() {
+    put("key", "replica", StorageType.REPLICA_1);
+    assertEquals(KVMessage.StatusType.GET_ERROR, get("key", StorageType.SELF).getStatus());
+    assertEquals(KVMessage.StatusType.GET_ERROR, get("key", StorageType.REPLICA_2).getStatus());
+    assertEquals("replica", get("key", StorageType.REPLICA_1).getValue());
+  }
+
+  @Test
+  public void testConcurrentWritesToEveryStorageType() throws InterruptedException {
+    List<Thread> writers = new ArrayList<>();
+    for (StorageType storageType : StorageType.values()) {
+      for (int t = 0; t < 2; t++) {
+        final int writer = t;
+        writers.add(
+            new Thread(
+                () -> {
+                  for (int i = 0; i < 100; i++) {
+                    put(storageType + "-" + writer + "-" + i, "value" + i, storageType);
+                  }
+                }));
+      }
+    }
+    writers.forEach(Thread::start);
+    for (Thread writer : writers) {
+      writer.join();
+    }
+    for (StorageType storageType : StorageType.values()) {
+      for (int t = 0; t < 2; t++) {
+        for (int i = 0; i < 100; i++) {
+          assertEquals("value" + i, get(storageType + "-" + t + "-" + i, storageType).getValue());
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testSubscribersAreReturnedOnChange() {
+    UUID subscriber = UUID.randomUUID();
+    assertEquals(
+        KVMessage.StatusType.SUBSCRIBE_ERROR,
+        write(signed("key", null, subscriber, KVMessage.StatusType.SUBSCRIBE))
+            .getKvMessageResponse()
+            .getStatus());
+    put("key", "value1", StorageType.SELF);
+    assertEquals(
+        KVMessage.StatusType.SUBSCRIBE_SUCCESS,
+        write(signed("key", null, subscriber, KVMessage.StatusType.SUBSCRIBE))
+            .getKvMessageResponse()
+            .getStatus());
+
+    StorageEngine.WriteResponse update =
+        write(signed("key", "value2", UUID.randomUUID(), KVMessage.StatusType.PUT));
+    assertEquals(KVMessage.StatusType.PUT_UPDATE, update.getKvMessageResponse().getStatus());
+    assertTrue(update.getSubscribers().contains(subscriber));
+
+    assertEquals(
+        KVMessage.StatusType.UNSUBSCRIBE_SUCCESS,
+        write(signed("key", null, subscriber, KVMessage.StatusType.UNSUBSCRIBE))
+            .getKvMessageResponse()
+            .getStatus());
+    update = write(signed("key", "value3", UUID.randomUUID(), KVMessage.StatusType.PUT));
+    assertTrue(update.getSubscribers().isEmpty());
+  }
+
+  @Test
+  public void testSubscribingLeavesTheRecordAlone() throws Exception {
+    put("key", "value", StorageType.SELF);
+    byte[] before = export("key", StorageType.SELF);
+    UUID subscriber = UUID.randomUUID();
+    write(signed("key", null, subscriber, KVMessage.StatusType.SUBSCRIBE));
+    assertArrayEquals(before, export("key", StorageType.SELF));
+    assertEquals(
+        Collections.singletonList(subscriber),
+        engine.readStorageUnit("key", StorageType.SELF).subscribers);
+
+    engine.close();
+    engine = openEngine(false, true);
+    assertEquals(
+        Collections.singletonList(subscriber),
+        write(signed("key", "value2", UUID.randomUUID(), KVMessage.StatusType.PUT))
+            .getSubscribers());
+    assertEquals(
+        Collections.singletonList(subscriber),
+        write(signed("key", null, UUID.randomUUID(), KVMessage.StatusType.PUT)).getSubscribers());
+    put("key", "again", StorageType.SELF);
+    assertTrue(engine.readStorageUnit("key", StorageType.SELF).subscribers.isEmpty());
+  }
+
+  @Test
+  public void testSubscriptionsFollowTheirKeys() throws Exception {
+    List<String> keys = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      keys.add("key" + i);
+      put("key" + i, "value" + i, StorageType.REPLICA_1);
+      engine.write(
+          signed("key" + i, null, new UUID(0, i), KVMessage.StatusType.SUBSCRIBE),
+          StorageType.REPLICA_1);
+    }
+    engine.moveUnitsInRange(null, UNALIGNED_RANGE, StorageType.REPLICA_1, StorageType.REPLICA_2);
+    for (int i = 0; i < 100; i++) {
+      StorageType holder =
+          ECSUtils.checkIfKeyBelongsInRange("key" + i, UNALIGNED_RANGE)
+              ? StorageType.REPLICA_2
+              : StorageType.REPLICA_1;
+      assertEquals(
+          Collections.singletonList(new UUID(0, i)),
+          engine.readStorageUnit("key" + i, holder).subscribers);
+    }
+    engine.deleteUnitsInRange(null, UNALIGNED_RANGE, StorageType.REPLICA_2);
+    assertTrue(engine.getSubscriptions(keys, StorageType.REPLICA_2).isEmpty());
+
+    // raw records leave subscribers to the message announcing them
+    ByteArrayOutputStream records = new ByteArrayOutputStream();
+    engine.exportRawRecords(
+        keys, StorageType.REPLICA_1, totalBytes -> Channels.newChannel(records));
+    DataTransferMessage chunk =
+        new DataTransferMessage(DATA_TRANSFER_REQUEST, new HashSet<>(), "test", null);
+    chunk.setSubscriptions(engine.getSubscriptions(keys, StorageType.REPLICA_1));
+    chunk.setRawLength(records.size());
+    chunk.setRawRecords(new ByteArrayInputStream(records.toByteArray()));
+    engine.updateDatabaseWithKVDataTransfer(chunk, StorageType.SELF);
+    assertEquals(
+        engine.getSubscriptions(keys, StorageType.REPLICA_1),
+        engine.getSubscriptions(keys, StorageType.SELF));
+
+    // units in a payload carry their subscribers
+    DataTransferMessage partition =
+        engine.partitionDatabaseAndGetKeysInRange(null, LOWER_HALF, StorageType.SELF, true);
+    assertTrue(
+        engine.getSubscriptions(keys, StorageType.SELF).keySet().stream()
+            .noneMatch(key -> ECSUtils.checkIfKeyBelongsInRange(key, LOWER_HALF)));
+    engine.updateDatabaseWithKVDataTransfer(partition, StorageType.REPLICA_2);
+    for (StorageUnit storageUnit : partition.getPayload()) {
+      int i = Integer.parseInt(storageUnit.key.substring("key".length()));
+      assertEquals(
+          Collections.singletonList(new UUID(0, i)),
+          engine.readStorageUnit(storageUnit.key, StorageType.REPLICA_2).subscribers);
+    }
+  }
+
+  @Test
+  public void testPartitionExtractsExactlyTheRange() {
+    for (int i = 0; i < 300; i++) {
+      put("key" + i, "value" + i, StorageType.SELF);
+    }
+    for (String[] hashRange :
+        new String[][] {LOWER_HALF, WRAPPING_RANGE, UNALIGNED_RANGE, UNALIGNED_WRAPPING_RANGE}) {
+      HashSet<String> expected = new HashSet<>();
+      for (int i = 0; i < 300; i++) {
+        if (ECSUtils.checkIfKeyBelongsInRange("key" + i, hashRange)) {
+          expected.add("key" + i);
+        }
+      }
+      DataTransferMessage copy =
+          engine.partitionDatabaseAndGetKeysInRange(null, hashRange, StorageType.SELF, false);
+      assertEquals(DATA_TRANSFER_REQUEST, copy.getDataTransferMessageType());
+      assertEquals(expected, keys(copy.getPayload()));
+    }
+
+    DataTransferMessage moved =
+        engine.partitionDatabaseAndGetKeysInRange(null, LOWER_HALF, StorageType.SELF, true);
+    for (StorageUnit storageUnit : moved.getPayload()) {
+      assertEquals(storageUnit.key.replace("key", "value"), storageUnit.value);
+    }
+    for (int i = 0; i < 300; i++) {
+      KVMessage.StatusType expected =
+          keys(moved.getPayload()).contains("key" + i)
+              ? KVMessage.StatusType.GET_ERROR
+              : KVMessage.StatusType.GET_SUCCESS;
+      assertEquals(expected, get("key" + i, StorageType.SELF).getStatus());
+    }
+    assertTrue(
+        engine
+            .partitionDatabaseAndGetKeysInRange(null, LOWER_HALF, StorageType.SELF, false)
+            .getPayload()
+            .isEmpty());
+  }
+
+  @Test
+  public void testMoveAndDeleteUnitsInRange() {
+    for (int i = 0; i < 300; i++) {
+      put("key" + i, "value" + i, StorageType.REPLICA_1);
+    }
+    put("key0", "existing", StorageType.REPLICA_2);
+    for (String[] hashRange : new String[][] {UNALIGNED_RANGE, UNALIGNED_WRAPPING_RANGE}) {
+      assertEquals(
+          DATA_TRANSFER_SUCCESS,
+          engine
+              .moveUnitsInRange(null, hashRange, StorageType.REPLICA_1, StorageType.REPLICA_2)
+              .getDataTransferMessageType());
+    }
+    for (int i = 0; i < 300; i++) {
+      boolean moved =
+          ECSUtils.checkIfKeyBelongsInRange("key" + i, UNALIGNED_RANGE)
+              || ECSUtils.checkIfKeyBelongsInRange("key" + i, UNALIGNED_WRAPPING_RANGE);
+      StorageType holder = moved ? StorageType.REPLICA_2 : StorageType.REPLICA_1;
+      StorageType other = moved ? StorageType.REPLICA_1 : StorageType.REPLICA_2;
+      assertEquals("value" + i, get("key" + i, holder).getValue());
+      if (i != 0) {
+        assertEquals(KVMessage.StatusType.GET_ERROR, get("key" + i, other).getStatus());
+      }
+    }
+
+    assertEquals(
+        DATA_TRANSFER_SUCCESS,
+        engine
+            .deleteUnitsInRange(null, UNALIGNED_RANGE, StorageType.REPLICA_2)
+            .getDataTransferMessageType());
+    for (int i = 0; i < 300; i++) {
+      if (ECSUtils.checkIfKeyBelongsInRange("key" + i, UNALIGNED_RANGE)) {
+        assertEquals(
+            KVMessage.StatusType.GET_ERROR, get("key" + i, StorageType.REPLICA_2).getStatus());
+      }
+    }
+    assertEquals(KVMessage.StatusType.PUT_SUCCESS, put("key1", "again", StorageType.REPLICA_2));
+  }
+
+  @Test
+  public void testBulkIngest() {
+    HashSet<StorageUnit> units = new HashSet<>();
+    for (int i = 0; i < 200; i++) {
+      KVMessage request =
+          signed("key" + i, "value" + i, UUID.randomUUID(), KVMessage.StatusType.PUT);
+      units.add(new StorageUnit("key" + i, "value" + i, request.getUniqueID(), request.getMAC()));
+    }
+    DataTransferMessage response =
+        engine.updateDatabaseWithKVDataTransfer(
+            new DataTransferMessage(DATA_TRANSFER_REQUEST, units, "test", null),
+            StorageType.REPLICA_2);
+    assertEquals(DATA_TRANSFER_SUCCESS, response.getDataTransferMessageType());
+    for (int i = 0; i < 200; i++) {
+      assertEquals("value" + i, get("key" + i, StorageType.REPLICA_2).getValue());
+    }
+  }
+
+  @Test
+  public void testPutStorageUnit() {
+    KVMessage first = signed("key", "value1", UUID.randomUUID(), KVMessage.StatusType.PUT);
+    KVMessage second = signed("key", "value2", UUID.randomUUID(), KVMessage.StatusType.PUT);
+    assertEquals(
+        KVMessage.StatusType.PUT_SUCCESS,
+        engine.putStorageUnit(
+            new StorageUnit("key", "value1", first.getUniqueID(), first.getMAC()),
+            StorageType.SELF));
+    assertEquals(
+        KVMessage.StatusType.PUT_UPDATE,
+        engine.putStorageUnit(
+            new StorageUnit("key", "value2", second.getUniqueID(), second.getMAC()),
+            StorageType.SELF));
+    assertEquals("value2", get("key", StorageType.SELF).getValue());
+  }
+
+  @Test
+  public void testStorageKeyIsOnlyKeptForRecovery() throws Exception {
+    File keyFile = new File("KeyValueData_" + NODE_NAME + ".key");
+    engine.close();
+    engine = openEngine(true, false);
+    assertFalse(keyFile.exists());
+
+    engine.close();
+    engine = openEngine(true, true);
+    assertTrue(keyFile.exists());
+    if (Files.getFileStore(keyFile.toPath()).supportsFileAttributeView("posix")) {
+      assertEquals(
+          PosixFilePermissions.fromString("rw-------"),
+          Files.getPosixFilePermissions(keyFile.toPath()));
+    }
+    byte[] key = Files.readAllBytes(keyFile.toPath());
+    engine.close();
+    engine = openEngine(true, true);
+    assertArrayEquals(key, Files.readAllBytes(keyFile.toPath()));
+
+    // a node that is not to be recovered leaves no key behind
+    engine.close();
+    engine = openEngine(true, false);
+    assertFalse(keyFile.exists());
+  }
+
+  @Test
+  public void testRecoversAfterRestart() throws DiskStorageException {
+    for (boolean encrypted : new boolean[] {false, true}) {
+      engine.close();
+      engine = openEngine(encrypted, false);
+      if (encrypted) {
+        // only a node started with recover keeps the key to decrypt its data after a restart
+        engine.close();
+        engine = openEngine(true, true);
+      }
+      for (int i = 0; i < 300; i++) {
+        put("key" + i, "value" + i, StorageType.SELF);
+      }
+      put("replicated", "replica", StorageType.REPLICA_2);
+      for (int i = 0; i < 300; i += 3) {
+        put("key" + i, null, StorageType.SELF);
+      }
+      engine.close();
+
+      engine = openEngine(encrypted, true);
+      for (int i = 0; i < 300; i++) {
+        KVMessage response = get("key" + i, StorageType.SELF);
+        if (i % 3 == 0) {
+          assertEquals(KVMessage.StatusType.GET_ERROR, response.getStatus());
+        } else {
+          assertEquals("value" + i, response.getValue());
+        }
+      }
+      assertEquals("replica", get("replicated", StorageType.REPLICA_2).getValue());
+      assertEquals(KVMessage.StatusType.PUT_UPDATE, put("key1", "updated", StorageType.SELF));
+      assertEquals("updated", get("key1", StorageType.SELF).getValue());
+    }
+  }
+
+  @Test
+  public void testSyncedWritesAreAcknowledgedAndRecovered() throws Exception {
+    for (Durability durability : new Durability[] {Durability.BATCHED, Durability.PER_WRITE}) {
+      engine.close();
+      engine = openEngine(false, false, durability);
+      List<Thread> writers = new ArrayList<>();
+      List<CompletableFuture<Void>> acknowledgements =
+          Collections.synchronizedList(new ArrayList<>());
+      for (int t = 0; t < 4; t++) {
+        final int writer = t;
+        writers.add(
+            new Thread(
+                () -> {
+                  for (int i = 0; i < 50; i++) {
+                    String key = durability + "-" + writer + "-" + i;
+                    acknowledgements.add(
+                        write(signed(key, "value" + i, UUID.randomUUID(), KVMessage.StatusType.PUT))
+                            .getDurable());
+                  }
+                }));
+      }
+      writers.forEach(Thread::start);
+      for (Thread writer : writers) {
+        writer.join();
+      }
+      for (CompletableFuture<Void> acknowledgement : acknowledgements) {
+        acknowledgement.get(10, TimeUnit.SECONDS);
+      }
+      assertTrue(
+          write(signed("absent", null, UUID.randomUUID(), KVMessage.StatusType.PUT))
+              .getDurable()
+              .isDone());
+      engine.close();
+
+      engine = openEngine(false, true, durability);
+      for (int t = 0; t < 4; t++) {
+        for (int i = 0; i < 50; i++) {
+          assertEquals(
+              "value" + i, get(durability + "-" + t + "-" + i, StorageType.SELF).getValue());
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testBulkIngestAppliesDeletions() {
+    put("stale", "value", StorageType.SELF);
+    put("kept", "old", StorageType.SELF);
+    KVMessage request = signed("kept", "new", UUID.randomUUID(), KVMessage.StatusType.PUT);
+    HashSet<StorageUnit> units = new HashSet<>();
+    units.add(new StorageUnit("kept", "new", request.getUniqueID(), request.getMAC()));
+    DataTransferMessage delta = new DataTransferMessage(DATA_TRANSFER_REQUEST, units, "test", null);
+    delta.setDeletedKeys(new HashSet<>(Collections.singletonList("stale")));
+
+    assertEquals(
+        DATA_TRANSFER_SUCCESS,
+        engine
+            .updateDatabaseWithKVDataTransfer(delta, StorageType.SELF)
+            .getDataTransferMessageType());
+    assertEquals(KVMessage.StatusType.GET_ERROR, get("stale", StorageType.SELF).getStatus());
+    assertEquals("new", get("kept", StorageType.SELF).getValue());
+  }
+
+  @Test
+  public void testRawRecordsRoundTrip() throws Exception {
+    for (boolean encrypted : new boolean[] {false, true}) {
+      engine.close();
+      engine = openEngine(encrypted, false);
+      List<String> keys = new ArrayList<>();
+      for (int i = 0; i < 300; i++) {
+        put("raw" + encrypted + i, rawValue(i), StorageType.SELF);
+        keys.add("raw" + encrypted + i);
+      }
+      keys.add("absent");
+      ByteArrayOutputStream records = new ByteArrayOutputStream();
+      long[] announced = {-1};
+      long exported =
+          engine.exportRawRecords(
+              keys,
+              StorageType.SELF,
+              totalBytes -> {
+                announced[0] = totalBytes;
+                return Channels.newChannel(records);
+              });
+      assertEquals(300, exported);
+      assertEquals(records.size(), announced[0]);
+      // exact for records sent as stored, an upper bound for those decrypted on the way out
+      long measured = 0;
+      for (String key : keys) {
+        measured += engine.rawRecordBytes(key, StorageType.SELF);
+      }
+      if (encrypted) {
+        assertTrue(measured >= records.size());
+      } else {
+        assertEquals(records.size(), measured);
+      }
+
+      DataTransferMessage chunk =
+          new DataTransferMessage(DATA_TRANSFER_REQUEST, new HashSet<>(), "test", null);
+      chunk.setRawLength(records.size());
+      chunk.setRawRecords(new ByteArrayInputStream(records.toByteArray()));
+      assertEquals(
+          DATA_TRANSFER_SUCCESS,
+          engine
+              .updateDatabaseWithKVDataTransfer(chunk, StorageType.REPLICA_1)
+              .getDataTransferMessageType());
+      for (int i = 0; i < 300; i++) {
+        assertEquals(rawValue(i), get("raw" + encrypted + i, StorageType.REPLICA_1).getValue());
+      }
+      assertEquals(
+          KVMessage.StatusType.GET_ERROR, get("absent", StorageType.REPLICA_1).getStatus());
+    }
+  }
+
+  @Test
+  public void testLargeValuesAreStoredCompressed() {
+    String value = Strings.repeat("Subject: quarterly gas trading report for the west desk\n", 200);
+    for (int i = 0; i < 20; i++) {
+      assertEquals(KVMessage.StatusType.PUT_SUCCESS, put("large" + i, value + i, StorageType.SELF));
+    }
+    assertEquals(KVMessage.StatusType.PUT_SUCCESS, put("small", "value", StorageType.SELF));
+    for (int i = 0; i < 20; i++) {
+      assertEquals(value + i, get("large" + i, StorageType.SELF).getValue());
+    }
+    CompressionStats stats = engine.getCompressionStats();
+    assertEquals(20, stats.getCompressedRecords());
+    assertTrue(stats.getRatio() > 10);
+  }
+
+  private byte[] export(String key, StorageType storageType) throws Exception {
+    ByteArrayOutputStream records = new ByteArrayOutputStream();
+    engine.exportRawRecords(
+        Collections.singletonList(key), storageType, totalBytes -> Channels.newChannel(records));
+    return records.toByteArray();
+  }
+
+  /** Every other value is large enough to be compressed. */
+  private static String rawValue(int i) {
+    return i % 2 == 0 ? "value" + i : Strings.repeat("value" + i, 100);
+  }
+
+  private KVMessage.StatusType put(String key, String value, StorageType storageType) {
+    KVMessage request = signed(key, value, UUID.randomUUID(), KVMessage.StatusType.PUT);
+    return engine.write(request, storageType).getKvMessageResponse().getStatus();
+  }
+
+  private StorageEngine.WriteResponse write(KVMessage request) {
+    return engine.write(request, StorageType.SELF);
+  }
+
+  private KVMessage get(String key, StorageType storageType) {
+    return engine.get(
+        new KVMessage(key, null, UUID.randomUUID(), KVMessage.StatusType.GET), storageType);
+  }
+
+  private static KVMessage signed(
+      String key, String value, UUID clientId, KVMessage.StatusType status) {
+    KVMessage request = new KVMessage(key, value, clientId, status);
+    request.calculateMAC();
+    return request;
+  }
+
+  private static HashSet<String> keys(Collection<StorageUnit> units) {
+    HashSet<String> keys = new HashSet<>();
+    for (StorageUnit storageUnit : units) {
+      keys.add(storageUnit.key);
+    }
+    return keys;
+  }
+
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
@@ -2,8 +2,21 @@ package testing;
 
 import static org.junit.Assert.*;
 
+import app_kvServer.data.storage.CompressionStats;
 import app_kvServer.data.storage.StorageUnit;
+import app_kvServer.data.storage.StorageUnitConverter;
 import app_kvServer.data.storage.StorageUnitException;
+import app_kvServer.data.storage.StorageUnitRecord;
+import com.google.common.base.Strings;
+import com.google.common.hash.Hashing;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
 import javax.crypto.spec.SecretKeySpec;
 import org.junit.Test;
 import shared.communication.security.encryption.Encryption;
@@ -76,4 +89,174 @@ public class StorageUnitTest {
     }
     assertTrue(ex instanceof StorageUnitException);
   }
+
+  @Test
+  public void testRecordRoundTrip() throws StorageUnitException {
+    StorageUnit unit = new StorageUnit(KEY, VALUE, UNIQUEID, null);
+    unit.subscribers.add(UUID.randomUUID());
+    unit.subscribers.add(UUID.randomUUID());
+    byte[] record = StorageUnitRecord.encode(unit, null);
+
+    ByteBuffer direct = ByteBuffer.allocateDirect(record.length);
+    direct.put(record).flip();
+    for (ByteBuffer buffer : new ByteBuffer[] {ByteBuffer.wrap(record), direct}) {
+      StorageUnit decodedUnit = StorageUnitRecord.decode(buffer, null);
+      assertEquals(KEY, decodedUnit.key);
+      assertEquals(VALUE, decodedUnit.value);
+      assertEquals(UNIQUEID, decodedUnit.uniqueID);
+      assertNull(decodedUnit.MAC);
+      assertEquals(unit.subscribers, decodedUnit.subscribers);
+      assertFalse(buffer.hasRemaining());
+    }
+  }
+
+  @Test
+  public void testRecordRoundTripWithEncryption() throws Exception {
+    SecretKeySpec aesEncryption = Encryption.createSecretKeySpec("abcde");
+    byte[] record =
+        StorageUnitRecord.encode(new StorageUnit(KEY, VALUE, UNIQUEID, KVCHECK), aesEncryption);
+    assertFalse(new String(record, StandardCharsets.UTF_8).contains(VALUE));
+    assertEquals(KEY, StorageUnitRecord.readKey(ByteBuffer.wrap(record), aesEncryption));
+    StorageUnit decodedUnit = StorageUnitRecord.decode(ByteBuffer.wrap(record), aesEncryption);
+    assertEquals(KEY, decodedUnit.key);
+    assertEquals(VALUE, decodedUnit.value);
+    assertEquals(KVCHECK, decodedUnit.MAC);
+  }
+
+  @Test
+  public void testEncryptedRecordsAreAuthenticated() throws Exception {
+    SecretKeySpec aesEncryption = Encryption.createSecretKeySpec("abcde");
+    StorageUnit unit = new StorageUnit(KEY, VALUE, UNIQUEID, KVCHECK);
+    byte[] record = StorageUnitRecord.encode(unit, aesEncryption);
+    // every record gets its own nonce
+    assertFalse(Arrays.equals(record, StorageUnitRecord.encode(unit, aesEncryption)));
+
+    // flip a bit of the value and fix up the checksum so only the GCM tag can catch it
+    int checksumAt = record.length - StorageUnitRecord.CHECKSUM_BYTES;
+    record[checksumAt - 1] ^= 1;
+    ByteBuffer.wrap(record)
+        .putInt(checksumAt, Hashing.crc32c().hashBytes(record, 0, checksumAt).asInt());
+    assertEquals(KEY, StorageUnitRecord.readKey(ByteBuffer.wrap(record), aesEncryption));
+    try {
+      StorageUnitRecord.decode(ByteBuffer.wrap(record), aesEncryption);
+      fail("tampered record decoded");
+    } catch (StorageUnitException e) {
+      assertTrue(e.getMessage().contains("authentication"));
+    }
+    try {
+      StorageUnitRecord.decode(
+          ByteBuffer.wrap(StorageUnitRecord.encode(unit, aesEncryption)),
+          Encryption.createSecretKeySpec("edcba"));
+      fail("record decoded with the wrong key");
+    } catch (StorageUnitException e) {
+      assertTrue(e.getMessage().contains("authentication"));
+    }
+  }
+
+  @Test
+  public void testReadsRecordsEncryptedBeforeGCM() throws Exception {
+    SecretKeySpec aesEncryption = Encryption.createSecretKeySpec("abcde");
+    byte[] plain = StorageUnitRecord.encode(new StorageUnit(KEY, VALUE, UNIQUEID, KVCHECK), null);
+    ByteBuffer sections = ByteBuffer.wrap(plain);
+    sections.position(StorageUnitRecord.HEADER_BYTES);
+    byte[] key = new byte[sections.getInt()];
+    sections.get(key);
+    byte[] rest = new byte[sections.getInt()];
+    sections.get(rest);
+    // the AES/ECB layout, flagged ENCRYPTED only
+    key = Encryption.encryptBytes(key, aesEncryption, Encryption.EncryptionType.AES);
+    rest = Encryption.encryptBytes(rest, aesEncryption, Encryption.EncryptionType.AES);
+    int bodyLength = 4 + key.length + 4 + rest.length;
+    ByteBuffer legacy =
+        ByteBuffer.allocate(
+            StorageUnitRecord.HEADER_BYTES + bodyLength + StorageUnitRecord.CHECKSUM_BYTES);
+    legacy.put(StorageUnitRecord.FORMAT_VERSION).put((byte) 1).putInt(bodyLength);
+    legacy.putInt(key.length).put(key).putInt(rest.length).put(rest);
+    legacy.putInt(Hashing.crc32c().hashBytes(legacy.array(), 0, legacy.position()).asInt());
+    byte[] record = legacy.array();
+
+    assertEquals(KEY, StorageUnitRecord.readKey(ByteBuffer.wrap(record), aesEncryption));
+    assertEquals(KVCHECK, StorageUnitRecord.readMAC(ByteBuffer.wrap(record), aesEncryption));
+    assertEquals(VALUE, StorageUnitRecord.decode(ByteBuffer.wrap(record), aesEncryption).value);
+    assertArrayEquals(
+        plain, StorageUnitRecord.reencrypt(ByteBuffer.wrap(record), aesEncryption, null));
+    byte[] upgraded =
+        StorageUnitRecord.reencrypt(ByteBuffer.wrap(record), aesEncryption, aesEncryption);
+    assertEquals(VALUE, StorageUnitRecord.decode(ByteBuffer.wrap(upgraded), aesEncryption).value);
+  }
+
+  @Test
+  public void testRecordCompressesLargeValues() throws Exception {
+    String value = Strings.repeat("Please review the attached gas schedule. ", 100);
+    CompressionStats stats = new CompressionStats();
+    byte[] record =
+        StorageUnitRecord.encode(new StorageUnit(KEY, value, UNIQUEID, KVCHECK), null, stats);
+    assertTrue(record.length < value.length() / 4);
+    assertEquals(1, stats.getCompressedRecords());
+    assertEquals(value, StorageUnitRecord.decode(ByteBuffer.wrap(record), null).value);
+    assertEquals(KVCHECK, StorageUnitRecord.readMAC(ByteBuffer.wrap(record), null));
+
+    // changing the encryption of the record keeps it compressed
+    SecretKeySpec aesEncryption = Encryption.createSecretKeySpec("abcde");
+    byte[] encrypted = StorageUnitRecord.reencrypt(ByteBuffer.wrap(record), null, aesEncryption);
+    assertTrue(encrypted.length < value.length() / 4);
+    assertEquals(value, StorageUnitRecord.decode(ByteBuffer.wrap(encrypted), aesEncryption).value);
+    byte[] decrypted = StorageUnitRecord.reencrypt(ByteBuffer.wrap(encrypted), aesEncryption, null);
+    assertArrayEquals(record, decrypted);
+  }
+
+  @Test
+  public void testRecordStoresSmallValuesAsTheyAre() throws StorageUnitException {
+    String value = Strings.repeat("a", StorageUnitRecord.COMPRESSION_THRESHOLD_BYTES / 2);
+    CompressionStats stats = new CompressionStats();
+    byte[] record = StorageUnitRecord.encode(new StorageUnit(KEY, value, null, null), null, stats);
+    assertTrue(record.length > value.length());
+    assertEquals(0, stats.getCompressedRecords());
+    assertEquals(1, stats.getRatio(), 0);
+    assertEquals(value, StorageUnitRecord.decode(ByteBuffer.wrap(record), null).value);
+  }
+
+  @Test
+  public void testReadKeysOfConsecutiveRecords() throws StorageUnitException {
+    byte[] first = StorageUnitRecord.encode(new StorageUnit("first", VALUE, null, null), null);
+    byte[] second = StorageUnitRecord.encode(new StorageUnit("second", null, null, null), null);
+    ByteBuffer buffer = ByteBuffer.allocate(first.length + second.length);
+    buffer.put(first).put(second).flip();
+
+    assertEquals("first", StorageUnitRecord.readKey(buffer, null));
+    assertEquals(first.length, StorageUnitRecord.length(buffer));
+    buffer.position(buffer.position() + StorageUnitRecord.length(buffer));
+    assertEquals("second", StorageUnitRecord.readKey(buffer, null));
+    assertNull(StorageUnitRecord.decode(buffer, null).value);
+  }
+
+  @Test(expected = StorageUnitException.class)
+  public void testRecordDetectsCorruption() throws StorageUnitException {
+    byte[] record = StorageUnitRecord.encode(new StorageUnit(KEY, VALUE, null, null), null);
+    record[record.length - StorageUnitRecord.CHECKSUM_BYTES - 1] ^= 1;
+    StorageUnitRecord.decode(ByteBuffer.wrap(record), null);
+  }
+
+  @Test
+  public void testConvertJsonLinesToRecords() throws Exception {
+    File input = File.createTempFile("KeyValueData_StorageUnitTest", ".txt");
+    File output = StorageUnitConverter.outputFileFor(input);
+    try {
+      try (FileWriter writer = new FileWriter(input)) {
+        writer.write(new StorageUnit("a", "1", null, null).serialize(null) + "\n");
+        writer.write(new StorageUnit("b", "2", null, null).serialize(null) + "\n");
+      }
+      assertEquals(2, StorageUnitConverter.convert(input, output));
+      try (DataInputStream reader = new DataInputStream(new FileInputStream(output))) {
+        byte[] record = StorageUnitRecord.read(reader);
+        assertEquals("a", StorageUnitRecord.readKey(ByteBuffer.wrap(record), null));
+        record = StorageUnitRecord.read(reader);
+        assertEquals("2", StorageUnitRecord.decode(ByteBuffer.wrap(record), null).value);
+        assertNull(StorageUnitRecord.read(reader));
+      }
+    } finally {
+      input.delete();
+      output.delete();
+    }
+  }
 }
@@ -0,0 +1,117 @@
+package testing;
+
+import static org.junit.Assert.*;
+
+import app_kvServer.data.storage.StorageEngine.StorageType;
+import app_kvServer.data.storage.SubscriptionRegistry;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SubscriptionRegistryTest {
+  private static final File LOG = new File("KeyValueData_SubscriptionRegistryTest.log");
+  private SubscriptionRegistry registry;
+
+  @Before
+  public void setUp() throws IOException {
+    registry = new SubscriptionRegistry(LOG, false);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    registry.close();
+    LOG.delete();
+  }
+
+  @Test
+  public void testChangesAreReplayed() throws IOException {
+    UUID first = new UUID(0, 1);
+    UUID second = new UUID(0, 2);
+    assertTrue(registry.add(StorageType.SELF, "key", first));
+    assertFalse(registry.add(StorageType.SELF, "key", first));
+    registry.add(StorageType.SELF, "key", second);
+    registry.add(StorageType.REPLICA_1, "key", second);
+    registry.add(StorageType.SELF, "deleted", first);
+    assertTrue(registry.remove(StorageType.SELF, "key", first));
+    assertEquals(Collections.singletonList(first), registry.removeKey(StorageType.SELF, "deleted"));
+    registry.replace(StorageType.REPLICA_2, "replaced", Arrays.asList(second, first));
+
+    registry.close();
+    registry = new SubscriptionRegistry(LOG, true);
+    assertEquals(
+        Collections.singletonList(second), registry.subscribersOf(StorageType.SELF, "key"));
+    assertEquals(
+        Collections.singletonList(second), registry.subscribersOf(StorageType.REPLICA_1, "key"));
+    assertTrue(registry.subscribersOf(StorageType.SELF, "deleted").isEmpty());
+    assertEquals(
+        Arrays.asList(second, first), registry.subscribersOf(StorageType.REPLICA_2, "replaced"));
+
+    registry.close();
+    registry = new SubscriptionRegistry(LOG, false);
+    assertTrue(registry.subscribersOf(StorageType.SELF, "key").isEmpty());
+  }
+
+  @Test
+  public void testTornEntryIsDropped() throws IOException {
+    registry.add(StorageType.SELF, "kept", new UUID(0, 1));
+    registry.add(StorageType.SELF, "torn", new UUID(0, 2));
+    registry.close();
+    try (RandomAccessFile file = new RandomAccessFile(LOG, "rw")) {
+      file.setLength(file.length() - 3);
+    }
+
+    registry = new SubscriptionRegistry(LOG, true);
+    assertEquals(1, registry.subscribersOf(StorageType.SELF, "kept").size());
+    assertTrue(registry.subscribersOf(StorageType.SELF, "torn").isEmpty());
+    // the torn tail is gone, so new entries replay after the intact ones
+    registry.add(StorageType.SELF, "after", new UUID(0, 3));
+    registry.close();
+    registry = new SubscriptionRegistry(LOG, true);
+    assertEquals(1, registry.subscribersOf(StorageType.SELF, "kept").size());
+    assertEquals(1, registry.subscribersOf(StorageType.SELF, "after").size());
+  }
+
+  @Test
+  public void testLogIsCompacted() throws IOException {
+    UUID subscriber = UUID.randomUUID();
+    for (int i = 0; i < 20_000; i++) {
+      registry.add(StorageType.SELF, "key" + (i % 10), subscriber);
+      registry.remove(StorageType.SELF, "key" + (i % 10), subscriber);
+    }
+    registry.add(StorageType.SELF, "key", subscriber);
+    // 40k entries of about 30 bytes were appended, compaction keeps the log near the live ones
+    assertTrue(LOG.length() < 4096 * 2 * 30);
+
+    registry.close();
+    registry = new SubscriptionRegistry(LOG, true);
+    assertEquals(
+        Collections.singletonList(subscriber), registry.subscribersOf(StorageType.SELF, "key"));
+    assertTrue(registry.subscribersOf(StorageType.SELF, "key0").isEmpty());
+  }
+
+  @Test
+  public void testRangesMoveBetweenStorageTypes() throws IOException {
+    String[] everything = {"00000000000000000000000000000000", "00000000000000000000000000000000"};
+    for (int i = 0; i < 10; i++) {
+      registry.add(StorageType.REPLICA_1, "key" + i, new UUID(0, i));
+    }
+    registry.add(StorageType.REPLICA_2, "key0", new UUID(1, 0));
+    registry.moveRange(everything, StorageType.REPLICA_1, StorageType.REPLICA_2);
+    assertTrue(registry.subscribersOf(StorageType.REPLICA_1, "key0").isEmpty());
+    assertEquals(
+        Arrays.asList(new UUID(0, 0), new UUID(1, 0)),
+        registry.subscribersOf(StorageType.REPLICA_2, "key0"));
+    assertEquals(
+        Collections.singletonList(new UUID(0, 9)),
+        registry.subscribersOf(StorageType.REPLICA_2, "key9"));
+
+    registry.dropRange(everything, StorageType.REPLICA_2);
+    assertTrue(registry.subscribersOf(StorageType.REPLICA_2, "key0").isEmpty());
+  }
+}
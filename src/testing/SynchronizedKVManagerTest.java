@@ -2,27 +2,65 @@ package testing;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static shared.communication.messages.DataTransferMessage.DataTransferMessageType.CHUNK_ACK;
+import static shared.communication.messages.DataTransferMessage.DataTransferMessageType.DATA_TRANSFER_FAILURE;
 import static shared.communication.messages.DataTransferMessage.DataTransferMessageType.DATA_TRANSFER_REQUEST;
+import static shared.communication.messages.DataTransferMessage.DataTransferMessageType.DATA_TRANSFER_SUCCESS;
+import static shared.communication.messages.DataTransferMessage.DataTransferMessageType.DIGEST;
+import static shared.communication.messages.DataTransferMessage.DataTransferMessageType.DIGEST_REQUEST;
+import static shared.communication.messages.DataTransferMessage.DataTransferMessageType.STREAM_CHUNK;
+import static shared.communication.messages.DataTransferMessage.DataTransferMessageType.STREAM_RESUME;
 
 import app_kvECS.ECSClient;
+import app_kvServer.KVServerConnection;
+import app_kvServer.NetworkConfig;
+import app_kvServer.RequestExecutor;
+import app_kvServer.data.DataTransferStream;
 import app_kvServer.data.SynchronizedKVManager;
 import app_kvServer.data.cache.CacheStrategy;
+import app_kvServer.data.storage.SegmentLog;
+import app_kvServer.data.storage.StorageEngine;
 import app_kvServer.data.storage.StorageUnit;
+import app_kvServer.data.storage.StorageUnitException;
+import app_kvServer.data.storage.StorageUnitRecord;
 import client.KVStore;
+import com.google.common.io.ByteStreams;
 import ecs.ECSMetadata;
 import ecs.ECSNode;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Field;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.security.spec.InvalidKeySpecException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.junit.Before;
 import org.junit.Test;
+import shared.communication.Protocol;
+import shared.communication.ProtocolException;
 import shared.communication.messages.DataTransferMessage;
 import shared.communication.messages.ECSMessage;
 import shared.communication.messages.KVMessage;
 import shared.communication.security.KeyLoader;
+import shared.communication.security.ReplayFilter;
 import shared.communication.security.keys.ClientPublicKey;
 import shared.communication.security.keys.ECSPublicKey;
 import shared.communication.security.property_stores.ECSPropertyStore;
@@ -170,6 +208,496 @@ public class SynchronizedKVManagerTest {
     assertNotEquals(((StorageUnit) (dtmsg.getPayload().toArray()[0])).key, key3);
   }
 
+  @Test
+  public void testDeltaAgainstDigest() {
+    SynchronizedKVManager skvmngr = SynchronizedKVManager.getInstance();
+    ECSNode loneNode = ECSMetadata.getInstance().getNodeBasedOnName("localhost:48");
+    ECSMessage message = new ECSMessage(ECSMessage.ActionType.MOVE_DATA, ECSMetadata.getInstance());
+    final UUID clientId = UUID.randomUUID();
+    for (String key : new String[] {"unchanged", "changed", "deleted"}) {
+      KVMessage put = new KVMessage(key, "old", clientId, KVMessage.StatusType.PUT);
+      put.calculateMAC();
+      skvmngr.handleClientRequest(put);
+    }
+
+    // the sender holds "unchanged" as is, a newer "changed", a new "added" and no "deleted"
+    HashSet<StorageUnit> senderData = new HashSet<>();
+    for (StorageUnit storageUnit :
+        skvmngr.getDataChunkForReplication(message, loneNode.getNodeHashRange()).getPayload()) {
+      if (storageUnit.key.equals("unchanged")) {
+        senderData.add(storageUnit);
+      }
+    }
+    for (String key : new String[] {"changed", "added"}) {
+      KVMessage put = new KVMessage(key, "new", clientId, KVMessage.StatusType.PUT);
+      put.calculateMAC();
+      senderData.add(new StorageUnit(key, "new", put.getUniqueID(), put.getMAC()));
+    }
+
+    DataTransferMessage digestRequest =
+        new DataTransferMessage(DIGEST_REQUEST, loneNode.getNodeHashRange(), "test", message);
+    DataTransferMessage digest = skvmngr.handleDataTransfer(digestRequest);
+    assertEquals(DIGEST, digest.getDataTransferMessageType());
+    assertEquals(3, digest.getDigest().size());
+
+    DataTransferMessage delta =
+        skvmngr.getDelta(
+            new DataTransferMessage(DATA_TRANSFER_REQUEST, senderData, "test", message), digest);
+    HashSet<String> sentKeys = new HashSet<>();
+    for (StorageUnit storageUnit : delta.getPayload()) {
+      sentKeys.add(storageUnit.key);
+    }
+    assertEquals(new HashSet<>(Arrays.asList("changed", "added")), sentKeys);
+    assertEquals(new HashSet<>(Collections.singletonList("deleted")), delta.getDeletedKeys());
+
+    skvmngr.handleDataTransfer(delta);
+    skvmngr.clearCache();
+    for (String key : new String[] {"unchanged", "changed", "added", "deleted"}) {
+      KVMessage get = new KVMessage(key, null, clientId, KVMessage.StatusType.GET);
+      get.calculateMAC();
+      String expected = key.equals("unchanged") ? "old" : key.equals("deleted") ? null : "new";
+      assertEquals(expected, skvmngr.handleClientRequest(get).getValue());
+    }
+  }
+
+  @Test
+  public void testStreamedTransferResumesAfterDisconnect() throws Exception {
+    SynchronizedKVManager skvmngr = SynchronizedKVManager.getInstance();
+    ECSNode loneNode = ECSMetadata.getInstance().getNodeBasedOnName("localhost:48");
+    ECSMessage message = new ECSMessage(ECSMessage.ActionType.MOVE_DATA, ECSMetadata.getInstance());
+    final UUID clientId = UUID.randomUUID();
+    // enough data for several chunks
+    String value = RandomStringUtils.randomAlphanumeric(10 * 1024);
+    for (int i = 0; i < 100; i++) {
+      KVMessage put = new KVMessage("key" + i, value, clientId, KVMessage.StatusType.PUT);
+      put.calculateMAC();
+      skvmngr.handleClientRequest(put);
+    }
+
+    // stands in for the receiving server, dropping the first connection after one chunk
+    try (ServerSocket serverSocket = new ServerSocket(0)) {
+      Thread receiver =
+          new Thread(
+              () -> {
+                for (int connection = 0; connection < 2; connection++) {
+                  try (Socket socket = serverSocket.accept()) {
+                    BufferedInputStream input = new BufferedInputStream(socket.getInputStream());
+                    OutputStream output = socket.getOutputStream();
+                    int chunks = 0;
+                    while (true) {
+                      DataTransferMessage request =
+                          (DataTransferMessage) Protocol.receiveMessage(input);
+                      if (request.getDataTransferMessageType() == STREAM_CHUNK
+                          && connection == 0
+                          && chunks++ == 1) {
+                        break;
+                      }
+                      // raw records of the chunk follow the message
+                      InputStream rawRecords = ByteStreams.limit(input, request.getRawLength());
+                      request.setRawRecords(request.getRawLength() > 0 ? rawRecords : null);
+                      DataTransferMessage response =
+                          request.getDataTransferMessageType() == DIGEST_REQUEST
+                              ? skvmngr.handleDigestRequest(request, partial -> {})
+                              : skvmngr.handleDataTransfer(request);
+                      ByteStreams.exhaust(rawRecords);
+                      Protocol.sendMessage(output, response);
+                    }
+                  } catch (IOException | ProtocolException e) {
+                    // the sender closed the connection
+                  }
+                }
+              });
+      receiver.start();
+
+      DataTransferMessage reply =
+          skvmngr
+              .openTransferStream(
+                  message,
+                  loneNode.getNodeHashRange(),
+                  new ECSNode("localhost", serverSocket.getLocalPort()),
+                  StorageEngine.StorageType.SELF,
+                  StorageEngine.StorageType.REPLICA_1)
+              .transfer();
+      assertEquals(DATA_TRANSFER_SUCCESS, reply.getDataTransferMessageType());
+      receiver.join(10000);
+    }
+
+    DataTransferMessage replica =
+        skvmngr.handleDataTransfer(replicaDigestRequest(loneNode.getNodeHashRange(), message));
+    assertEquals(100, replica.getDigest().size());
+  }
+
+  @Test
+  public void testHandOffRangeKeepsTakingWrites() throws Exception {
+    SynchronizedKVManager skvmngr = SynchronizedKVManager.getInstance();
+    String[] wholeRing =
+        ECSMetadata.getInstance().getNodeBasedOnName("localhost:48").getNodeHashRange();
+    ECSMessage message = new ECSMessage(ECSMessage.ActionType.MOVE_DATA, ECSMetadata.getInstance());
+    final UUID clientId = UUID.randomUUID();
+    for (int i = 0; i < 20; i++) {
+      skvmngr.handleClientRequest(signedPut("key" + i, "value" + i, clientId));
+    }
+
+    // stands in for the new owner, writing to the source while the first chunk arrives
+    ConcurrentHashMap<String, String> received = new ConcurrentHashMap<>();
+    ArrayList<KVMessage.StatusType> writesDuringTransfer = new ArrayList<>();
+    try (ServerSocket serverSocket = new ServerSocket(0)) {
+      Thread receiver =
+          new Thread(
+              () -> {
+                while (!serverSocket.isClosed()) {
+                  try (Socket socket = serverSocket.accept()) {
+                    BufferedInputStream input = new BufferedInputStream(socket.getInputStream());
+                    OutputStream output = socket.getOutputStream();
+                    while (true) {
+                      DataTransferMessage request =
+                          (DataTransferMessage) Protocol.receiveMessage(input);
+                      Protocol.sendMessage(
+                          output,
+                          receiveAsNewOwner(
+                              request,
+                              ByteStreams.limit(input, request.getRawLength()),
+                              received,
+                              () -> {
+                                if (writesDuringTransfer.isEmpty()) {
+                                  writesDuringTransfer.add(
+                                      skvmngr
+                                          .handleClientRequest(signedPut("key0", "new", clientId))
+                                          .getStatus());
+                                  writesDuringTransfer.add(
+                                      skvmngr
+                                          .handleClientRequest(signedPut("key1", null, clientId))
+                                          .getStatus());
+                                }
+                              }));
+                    }
+                  } catch (IOException | ProtocolException e) {
+                    // the sender closed the connection
+                  }
+                }
+              });
+      receiver.start();
+
+      DataTransferMessage reply =
+          skvmngr.handOffRange(
+              message, wholeRing, new ECSNode("localhost", serverSocket.getLocalPort()));
+      assertEquals(DATA_TRANSFER_SUCCESS, reply.getDataTransferMessageType());
+    }
+
+    assertEquals(
+        Arrays.asList(KVMessage.StatusType.PUT_UPDATE, KVMessage.StatusType.DELETE_SUCCESS),
+        writesDuringTransfer);
+    assertEquals(19, received.size());
+    assertEquals("new", received.get("key0"));
+    assertFalse(received.containsKey("key1"));
+    assertEquals("value2", received.get("key2"));
+    // the range is gone until the metadata moves it elsewhere
+    assertEquals(
+        KVMessage.StatusType.SERVER_WRITE_LOCK,
+        skvmngr.handleClientRequest(signedPut("key2", "late", clientId)).getStatus());
+    skvmngr.releaseHandedOffRanges();
+    assertEquals(
+        KVMessage.StatusType.PUT_SUCCESS,
+        skvmngr.handleClientRequest(signedPut("key2", "late", clientId)).getStatus());
+  }
+
+  @Test
+  public void testHandOffRangeCapsChunksWithLargeValues() throws Exception {
+    SynchronizedKVManager skvmngr = SynchronizedKVManager.getInstance();
+    String[] wholeRing =
+        ECSMetadata.getInstance().getNodeBasedOnName("localhost:48").getNodeHashRange();
+    ECSMessage message = new ECSMessage(ECSMessage.ActionType.MOVE_DATA, ECSMetadata.getInstance());
+    UUID clientId = UUID.randomUUID();
+    for (int i = 0; i < 30; i++) {
+      skvmngr.handleClientRequest(
+          signedPut("large" + i, RandomStringUtils.randomAlphanumeric(100 * 1024), clientId));
+    }
+
+    ConcurrentHashMap<String, String> received = new ConcurrentHashMap<>();
+    List<Long> rawLengths = Collections.synchronizedList(new ArrayList<>());
+    try (ServerSocket serverSocket = new ServerSocket(0)) {
+      Thread receiver =
+          new Thread(
+              () -> {
+                try (Socket socket = serverSocket.accept()) {
+                  BufferedInputStream input = new BufferedInputStream(socket.getInputStream());
+                  OutputStream output = socket.getOutputStream();
+                  while (true) {
+                    DataTransferMessage request =
+                        (DataTransferMessage) Protocol.receiveMessage(input);
+                    if (request.getDataTransferMessageType() == STREAM_CHUNK) {
+                      rawLengths.add(request.getRawLength());
+                    }
+                    Protocol.sendMessage(
+                        output,
+                        receiveAsNewOwner(
+                            request,
+                            ByteStreams.limit(input, request.getRawLength()),
+                            received,
+                            () -> {}));
+                  }
+                } catch (IOException | ProtocolException e) {
+                  // the sender closed the connection
+                }
+              });
+      receiver.start();
+
+      DataTransferMessage reply =
+          skvmngr.handOffRange(
+              message, wholeRing, new ECSNode("localhost", serverSocket.getLocalPort()));
+      assertEquals(DATA_TRANSFER_SUCCESS, reply.getDataTransferMessageType());
+      receiver.join(10000);
+    }
+    skvmngr.releaseHandedOffRanges();
+
+    assertEquals(30, received.size());
+    assertTrue(rawLengths.size() > 1);
+    for (long rawLength : rawLengths) {
+      assertTrue(rawLengths.toString(), rawLength <= DataTransferStream.CHUNK_BYTES);
+    }
+  }
+
+  @Test
+  public void testHandOffRangeToAConnectionCheckingForReplays() throws Exception {
+    SynchronizedKVManager skvmngr = SynchronizedKVManager.getInstance();
+    String[] wholeRing =
+        ECSMetadata.getInstance().getNodeBasedOnName("localhost:48").getNodeHashRange();
+    ECSMessage message =
+        new ECSMessage(ECSMessage.ActionType.MOVE_DATA, ECSMetadata.getInstance())
+            .calculateAndSetMAC();
+    UUID clientId = UUID.randomUUID();
+    for (int i = 0; i < 200; i++) {
+      skvmngr.handleClientRequest(signedPut("handoff" + i, "value" + i, clientId));
+    }
+
+    // the receiving end of a server, on the same manager
+    ReplayFilter seenECSIDs = new ReplayFilter(60 * 1000, 1000, 1e-9);
+    AtomicBoolean handingOff = new AtomicBoolean();
+    AtomicInteger writesDuringHandOff = new AtomicInteger();
+    try (ServerSocket serverSocket = new ServerSocket(0)) {
+      RequestExecutor executor =
+          new RequestExecutor(
+              new NetworkConfig(NetworkConfig.Mode.BLOCKING), serverSocket.getLocalPort());
+      Thread acceptor =
+          new Thread(
+              () -> {
+                while (!serverSocket.isClosed()) {
+                  try {
+                    Socket socket = serverSocket.accept();
+                    executor.admitConnection();
+                    new Thread(
+                            new KVServerConnection(
+                                socket,
+                                new AtomicBoolean(true),
+                                new LinkedBlockingQueue<>(),
+                                seenECSIDs,
+                                executor))
+                        .start();
+                  } catch (IOException e) {
+                    // the test is over
+                  }
+                }
+              });
+      acceptor.start();
+      // keeps writing to the range until it is frozen
+      Thread writer =
+          new Thread(
+              () -> {
+                for (int i = 0; ; i++) {
+                  KVMessage.StatusType status =
+                      skvmngr
+                          .handleClientRequest(signedPut("handoff" + i % 200, "new" + i, clientId))
+                          .getStatus();
+                  if (status == KVMessage.StatusType.SERVER_WRITE_LOCK) {
+                    return;
+                  }
+                  if (handingOff.get()) {
+                    writesDuringHandOff.incrementAndGet();
+                  }
+                }
+              });
+      writer.start();
+      handingOff.set(true);
+      DataTransferMessage reply =
+          skvmngr.handOffRange(
+              message, wholeRing, new ECSNode("localhost", serverSocket.getLocalPort()));
+      writer.join(10000);
+      executor.shutdown();
+
+      // every catch-up round went through, the ECSMessage is only used up at the end
+      assertEquals(reply.getMessage(), DATA_TRANSFER_SUCCESS, reply.getDataTransferMessageType());
+      assertTrue(writesDuringHandOff.get() > 0);
+      assertTrue(seenECSIDs.mightHaveSeen(message.getMAC()));
+    }
+    skvmngr.releaseHandedOffRanges();
+  }
+
+  @Test
+  public void testCompletedStreamsAnswerResumes() throws InterruptedException {
+    SynchronizedKVManager skvmngr = SynchronizedKVManager.getInstance();
+    ECSMessage message =
+        new ECSMessage(ECSMessage.ActionType.MOVE_DATA, ECSMetadata.getInstance())
+            .calculateAndSetMAC();
+    DataTransferMessage last = chunk("completed", 0, false, message);
+    assertFalse(skvmngr.continuesStream(last));
+    assertEquals(
+        DATA_TRANSFER_SUCCESS, skvmngr.handleDataTransfer(last).getDataTransferMessageType());
+
+    // the sender missed the answer, it resumes or resends the last chunk
+    DataTransferMessage resume =
+        new DataTransferMessage(STREAM_RESUME, (String[]) null, "test", message);
+    resume.setStreamId("completed");
+    assertTrue(skvmngr.continuesStream(resume));
+    assertEquals(
+        DATA_TRANSFER_SUCCESS, skvmngr.handleDataTransfer(resume).getDataTransferMessageType());
+    assertEquals(
+        DATA_TRANSFER_SUCCESS, skvmngr.handleDataTransfer(last).getDataTransferMessageType());
+
+    // only with the ECSMessage the stream was opened with, told apart by its timestamp
+    Thread.sleep(5);
+    ECSMessage other =
+        new ECSMessage(ECSMessage.ActionType.MOVE_DATA, ECSMetadata.getInstance())
+            .calculateAndSetMAC();
+    assertFalse(skvmngr.continuesStream(chunk("completed", 0, false, other)));
+  }
+
+  @Test
+  public void testStreamChunksMustArriveInSequence() {
+    SynchronizedKVManager skvmngr = SynchronizedKVManager.getInstance();
+    ECSMessage message = new ECSMessage(ECSMessage.ActionType.MOVE_DATA, ECSMetadata.getInstance());
+    DataTransferMessage first = chunk("stream", 0, true, message);
+    assertEquals(CHUNK_ACK, skvmngr.handleDataTransfer(first).getDataTransferMessageType());
+
+    DataTransferMessage resume =
+        new DataTransferMessage(STREAM_RESUME, (String[]) null, "test", message);
+    resume.setStreamId("stream");
+    assertEquals(0, skvmngr.handleDataTransfer(resume).getSequence());
+
+    assertEquals(
+        DATA_TRANSFER_FAILURE,
+        skvmngr
+            .handleDataTransfer(chunk("stream", 2, false, message))
+            .getDataTransferMessageType());
+    // the stream was abandoned, resuming starts over
+    assertEquals(-1, skvmngr.handleDataTransfer(resume).getSequence());
+  }
+
+  @Test
+  public void testConcurrentReadsNeverCacheOverwrittenValues() throws Exception {
+    Field instance = SynchronizedKVManager.class.getDeclaredField("INSTANCE");
+    instance.setAccessible(true);
+    instance.set(null, null);
+    SynchronizedKVManager.initialize(100, CacheStrategy.LRU, "localhost:48", false);
+    SynchronizedKVManager skvmngr = SynchronizedKVManager.getInstance();
+    UUID clientId = UUID.randomUUID();
+    AtomicBoolean writing = new AtomicBoolean(true);
+    Queue<String> failures = new ConcurrentLinkedQueue<>();
+
+    // readers keep refilling the cache from storage while the keys are overwritten
+    List<Thread> threads = new ArrayList<>();
+    for (int r = 0; r < 4; r++) {
+      threads.add(
+          new Thread(
+              () -> {
+                while (writing.get()) {
+                  for (int w = 0; w < 4; w++) {
+                    skvmngr.handleClientRequest(
+                        new KVMessage("conc" + w, null, clientId, KVMessage.StatusType.GET));
+                  }
+                }
+              }));
+    }
+    List<Thread> writers = new ArrayList<>();
+    for (int w = 0; w < 4; w++) {
+      final String key = "conc" + w;
+      writers.add(
+          new Thread(
+              () -> {
+                for (int i = 0; i < 50; i++) {
+                  skvmngr.handleClientRequest(signedPut(key, "value" + i, clientId));
+                  String read =
+                      skvmngr
+                          .handleClientRequest(
+                              new KVMessage(key, null, clientId, KVMessage.StatusType.GET))
+                          .getValue();
+                  if (!("value" + i).equals(read)) {
+                    failures.add(key + " read " + read + " after writing value" + i);
+                  }
+                }
+              }));
+    }
+    threads.addAll(writers);
+    threads.forEach(Thread::start);
+    for (Thread writer : writers) {
+      writer.join();
+    }
+    writing.set(false);
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEquals(new ArrayList<>(), new ArrayList<>(failures));
+  }
+
+  private static DataTransferMessage chunk(
+      String streamId, long sequence, boolean hasMore, ECSMessage message) {
+    DataTransferMessage chunk =
+        new DataTransferMessage(STREAM_CHUNK, new HashSet<>(), "test", message);
+    chunk.setStreamId(streamId);
+    chunk.setSequence(sequence);
+    chunk.setHasMore(hasMore);
+    return chunk;
+  }
+
+  private static KVMessage signedPut(String key, String value, UUID clientId) {
+    KVMessage put = new KVMessage(key, value, clientId, KVMessage.StatusType.PUT);
+    put.calculateMAC();
+    return put;
+  }
+
+  /** Answer request the way an empty node would, keeping what it is sent in received. */
+  private static DataTransferMessage receiveAsNewOwner(
+      DataTransferMessage request,
+      InputStream rawRecords,
+      Map<String, String> received,
+      Runnable onChunk)
+      throws IOException {
+    switch (request.getDataTransferMessageType()) {
+      case DIGEST_REQUEST:
+        DataTransferMessage digest = new DataTransferMessage(DIGEST, "empty", null);
+        digest.setDigest(new HashMap<>());
+        return digest;
+      case STREAM_CHUNK:
+        onChunk.run();
+        SegmentLog.readRecords(
+            rawRecords,
+            (key, payload) -> {
+              try {
+                received.put(key, StorageUnitRecord.decode(ByteBuffer.wrap(payload), null).value);
+              } catch (StorageUnitException e) {
+                throw new IOException(e);
+              }
+            });
+        request.getDeletedKeys().forEach(received::remove);
+        if (!request.hasMore()) {
+          return new DataTransferMessage(DATA_TRANSFER_SUCCESS, "done", null);
+        }
+        DataTransferMessage ack = new DataTransferMessage(CHUNK_ACK, "ack", null);
+        ack.setSequence(request.getSequence());
+        return ack;
+      default:
+        DataTransferMessage restart = new DataTransferMessage(CHUNK_ACK, "unknown stream", null);
+        restart.setSequence(-1);
+        return restart;
+    }
+  }
+
+  private static DataTransferMessage replicaDigestRequest(String[] hashRange, ECSMessage message) {
+    DataTransferMessage digestRequest =
+        new DataTransferMessage(DIGEST_REQUEST, hashRange, "test", message);
+    digestRequest.setStorageType(StorageEngine.StorageType.REPLICA_1);
+    return digestRequest;
+  }
+
   private void assertNotEquals(String key, String key2) {
     assertFalse(key.equals(key2));
   }
@@ -8,13 +8,24 @@ import org.junit.runners.Suite;
   InitializeTests.class,
   ConnectionTest.class,
   ECSUtilsTest.class,
+  HashRingTest.class,
   InteractionTest.class,
   ECSAdminInterfaceTest.class,
   KVClientTest.class,
   KVMessageTest.class,
   KVServerInitializerTest.class,
+  SelectorServerTest.class,
+  RequestExecutorTest.class,
+  RequestPipelineTest.class,
   SynchronizedKVManagerTest.class,
   StorageUnitTest.class,
+  ReplayFilterTest.class,
+  SubscriptionRegistryTest.class,
+  NotificationDispatcherTest.class,
+  SegmentLogTest.class,
+  FlatFileIndexTest.class,
+  LSMTreeTest.class,
+  StorageEngineConformanceTest.class,
   AuthTest.class
 })
 public class UnitAndIntegrationTests {}